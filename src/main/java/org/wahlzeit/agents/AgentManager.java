@@ -43,6 +43,9 @@ public class AgentManager {
 	 */
 	protected static void initInstance() {
 		getInstance().addAgent(new NotifyUsersAboutPraiseAgent());
+		getInstance().addAgent(new PrefetchImagesAgent());
+		getInstance().addAgent(new WriteCatalogSnapshotAgent());
+		getInstance().addAgent(new FlushWriteBehindAgent());
 	}
 
 	/**
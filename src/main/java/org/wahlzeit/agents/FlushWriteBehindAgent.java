@@ -0,0 +1,49 @@
+package org.wahlzeit.agents;
+
+import org.wahlzeit.model.PraiseVotePipeline;
+import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.WriteBehindQueue;
+
+import java.util.logging.Logger;
+
+/**
+ * An agent class that applies the queued praise votes and persists the modified objects of the write-behind queue.
+ * Cron reaches only one of the running instances per run, so this is a best effort for that instance; the age of
+ * queued objects is bounded by the request path of each instance (see WriteBehindQueue).
+ */
+public class FlushWriteBehindAgent extends Agent {
+
+	public static final String NAME = "flushWriteBehind";
+
+	private static final Logger log = Logger.getLogger(FlushWriteBehindAgent.class.getName());
+
+	public FlushWriteBehindAgent() {
+		initialize(NAME);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void doRun() {
+		PraiseVotePipeline pipeline = PraiseVotePipeline.getInstance();
+		pipeline.apply();
+
+		log.config(LogBuilder.createSystemMessage().addAction("applied praise votes")
+				.addParameter("applied votes", pipeline.getNoAppliedVotes())
+				.addParameter("photo updates", pipeline.getNoPhotoUpdates())
+				.addParameter("backpressure events", pipeline.getNoBackpressureEvents())
+				.addParameter("failed batches", pipeline.getNoFailedBatches())
+				.addParameter("unjournaled votes", pipeline.getNoUnjournaledVotes()).toString());
+
+		WriteBehindQueue queue = WriteBehindQueue.getInstance();
+		queue.flush();
+
+		log.config(LogBuilder.createSystemMessage().addAction("flushed write-behind queue")
+				.addParameter("queue depth", queue.getQueueDepth())
+				.addParameter("written objects", queue.getNoWrittenObjects())
+				.addParameter("coalesced modifications", queue.getNoCoalescedMarks())
+				.addParameter("average flush ms", queue.getAverageFlushMillis())
+				.addParameter("max flush ms", queue.getMaxFlushMillis()).toString());
+	}
+
+}
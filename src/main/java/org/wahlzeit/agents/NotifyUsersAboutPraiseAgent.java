@@ -10,7 +10,7 @@ import org.wahlzeit.services.mailing.EmailServiceManager;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 import java.util.logging.Logger;
 
 /**
@@ -29,16 +29,22 @@ public class NotifyUsersAboutPraiseAgent extends Agent {
 	/**
 	 * @methodtype command
 	 * 
-	 * Notifies all users that want to get informed if their photos have been praised.
+	 * Notifies all users that want to get informed if their photos have been praised. The candidates are found in the
+	 * metadata store, so only photos with new praise are loaded, and they are loaded and saved in batches.
 	 */
 	protected void doRun() {
-		Map<PhotoId, ? extends Photo> photoCache = PhotoManager.getInstance().getPhotoCache();
-		Collection<? extends Photo> photos = photoCache.values();
+		PhotoManager photoManager = PhotoManager.getInstance();
+
+		List<PhotoId> candidateIds = new ArrayList<PhotoId>();
+		for (int id : photoManager.getPhotoMetadata().getVisiblePhotosWithNewPraise()) {
+			candidateIds.add(PhotoId.getIdFromInt(id));
+		}
 
 		ArrayList<Photo> arrayListOfPhotos;
 		HashMap<String, ArrayList<Photo>> ownerIdPhotosMap = new HashMap<String, ArrayList<Photo>>();
-		for (Photo photo : photos) {
-			if (photo != null && photo.isVisible() && photo.hasNewPraise()) {
+		List<Photo> notifiedPhotos = new ArrayList<Photo>();
+		for (Photo photo : photoManager.getPhotosFromIds(candidateIds)) {
+			if (photo.isVisible() && photo.hasNewPraise()) {
 				String ownerId = photo.getOwnerId();
 				if (ownerId != null) {
 					log.config(LogBuilder.createSystemMessage().addParameter("ownerId", ownerId).toString());
@@ -52,10 +58,12 @@ public class NotifyUsersAboutPraiseAgent extends Agent {
 					arrayListOfPhotos.add(photo);
 					ownerIdPhotosMap.put(ownerId, arrayListOfPhotos);
 					photo.setNoNewPraise();
-					PhotoManager.getInstance().savePhoto(photo);
+					notifiedPhotos.add(photo);
 				}
 			}
 		}
+		photoManager.savePhotos(notifiedPhotos);
+		UserManager.getInstance().loadUsers(ownerIdPhotosMap.keySet());
 
 		log.config(LogBuilder.createSystemMessage().addAction("notify owner")
 				.addParameter("number of user to notify", ownerIdPhotosMap.size()).toString());
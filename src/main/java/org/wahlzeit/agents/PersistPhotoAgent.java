@@ -3,6 +3,7 @@ package org.wahlzeit.agents;
 import org.wahlzeit.model.Photo;
 import org.wahlzeit.model.PhotoManager;
 import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.MetricsRegistry;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -22,12 +23,31 @@ public class PersistPhotoAgent extends HttpServlet {
 
 	private static final Logger log = Logger.getLogger(PersistPhotoAgent.class.getName());
 
+	/**
+	 *
+	 */
+	protected static final String SERVLET_NAME = "PersistPhotoAgent";
+
 	/**
 	 * @methodtype command
 	 */
 	protected void doPost(HttpServletRequest request, HttpServletResponse response)
 			throws ServletException, IOException {
 
+		long startNanos = System.nanoTime();
+		String outcome = MetricsRegistry.ERROR;
+		try {
+			persistPhoto(request, response);
+			outcome = MetricsRegistry.RENDER;
+		} finally {
+			MetricsRegistry.getInstance().recordRequest(SERVLET_NAME, null, outcome, startNanos);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void persistPhoto(HttpServletRequest request, HttpServletResponse response) {
 		String id = request.getParameter(Photo.ID);
 		log.config(LogBuilder.createSystemMessage().addParameter("Try to persist PhotoId", id).toString());
 		if (id != null && !"".equals(id)) {
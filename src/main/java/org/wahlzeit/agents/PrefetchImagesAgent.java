@@ -0,0 +1,81 @@
+package org.wahlzeit.agents;
+
+import org.wahlzeit.model.Photo;
+import org.wahlzeit.model.PhotoCache;
+import org.wahlzeit.model.PhotoManager;
+import org.wahlzeit.model.PhotoSize;
+import org.wahlzeit.services.LogBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * An agent class that warms the image tier: it loads the most requested sizes of the most popular photos, so that
+ * they do not have to be fetched from the image storage on first request.
+ */
+public class PrefetchImagesAgent extends Agent {
+
+	public static final String NAME = "prefetchImages";
+
+	/**
+	 * System property (see appengine-web.xml) to configure how many photos are warmed per run; 0 disables prefetching
+	 */
+	public static final String MAX_PHOTOS_PROPERTY = "org.wahlzeit.imagePrefetch.maxPhotos";
+	public static final int DEFAULT_MAX_PHOTOS = 50;
+
+	/**
+	 * The sizes shown on the main page, THUMB for the praised photos and MEDIUM for the photo to rate
+	 */
+	protected static final PhotoSize[] PREFETCHED_SIZES = {PhotoSize.MEDIUM, PhotoSize.THUMB};
+
+	/**
+	 * Prefetching stops when the photo cache is filled up to this percentage, to not evict photos being viewed
+	 */
+	protected static final int MAX_CACHE_FILL_PERCENTAGE = 80;
+
+	private static final Logger log = Logger.getLogger(PrefetchImagesAgent.class.getName());
+
+	public PrefetchImagesAgent() {
+		initialize(NAME);
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Loads the prefetched sizes of the cached photos, ordered by their number of votes.
+	 */
+	protected void doRun() {
+		int maxPhotos = Integer.getInteger(MAX_PHOTOS_PROPERTY, DEFAULT_MAX_PHOTOS);
+		PhotoCache<? extends Photo> photoCache = PhotoManager.getInstance().getPhotoCache();
+
+		List<Photo> photos = new ArrayList<Photo>(photoCache.values());
+		Collections.sort(photos, new Comparator<Photo>() {
+			@Override
+			public int compare(Photo first, Photo second) {
+				return Integer.compare(second.getNoVotes(), first.getNoVotes());
+			}
+		});
+
+		int noPrefetchedPhotos = 0;
+		for (Photo photo : photos) {
+			if (noPrefetchedPhotos >= maxPhotos ||
+					photoCache.getWeightedSize() * 100 >= photoCache.getMaxBytes() * MAX_CACHE_FILL_PERCENTAGE) {
+				break;
+			}
+
+			if (photo.isVisible()) {
+				for (PhotoSize photoSize : PREFETCHED_SIZES) {
+					photo.loadImage(photoSize);
+				}
+				noPrefetchedPhotos++;
+			}
+		}
+
+		log.config(LogBuilder.createSystemMessage().addAction("prefetched images")
+				.addParameter("number of photos", noPrefetchedPhotos).toString());
+	}
+
+}
@@ -0,0 +1,26 @@
+package org.wahlzeit.agents;
+
+import org.wahlzeit.model.PhotoManager;
+import org.wahlzeit.model.UserManager;
+
+/**
+ * An agent class that refreshes the local catalog snapshots, so that the next instance only has to catch up the
+ * photos and users that were saved since.
+ */
+public class WriteCatalogSnapshotAgent extends Agent {
+
+	public static final String NAME = "writeCatalogSnapshot";
+
+	public WriteCatalogSnapshotAgent() {
+		initialize(NAME);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void doRun() {
+		PhotoManager.getInstance().writeCatalogSnapshot();
+		UserManager.getInstance().writeCatalogSnapshot();
+	}
+
+}
@@ -137,6 +137,9 @@ public interface PartUtil {
 	String EDIT_USER_PHOTO_FORM_NAME = "editUserPhotoForm";
 	String EDIT_USER_PHOTO_FORM_FILE = "forms/EditUserPhotoForm";
 
+	String SHOW_TOP_PHOTOS_PAGE_NAME = "top";
+	String SHOW_TOP_PHOTOS_PAGE_FILE = "pages/ShowTopPhotosPage";
+
 	String SHOW_PHOTO_CASES_PAGE_NAME = "cases";
 	String SHOW_PHOTO_CASES_PAGE_FILE = "pages/ShowPhotoCasesPage";
 	String EDIT_PHOTO_CASE_FORM_NAME = "editPhotoCaseForm";
@@ -25,6 +25,7 @@ import org.wahlzeit.model.Client;
 import org.wahlzeit.model.Photo;
 import org.wahlzeit.model.PhotoId;
 import org.wahlzeit.model.PhotoManager;
+import org.wahlzeit.model.PraiseVotePipeline;
 import org.wahlzeit.model.UserSession;
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.utils.StringUtil;
@@ -81,8 +82,9 @@ public class PraisePhotoFormHandler extends AbstractWebFormHandler {
 		if (!StringUtil.isNullOrEmptyString(praise)) {
 			if (!us.hasPraisedPhoto(photo)) {
 				int value = Integer.parseInt(praise);
-				photo.addToPraise(value);
+				PraiseVotePipeline.getInstance().submit(photo.getId(), client.getId(), value);
 				client.addPraisedPhotoId(photo.getId());
+				us.addPraisedPhoto(photo);
 				us.addProcessedPhoto(photo);
 				wasPraised = true;
 			}
@@ -28,6 +28,8 @@ import org.wahlzeit.model.User;
 import org.wahlzeit.model.UserManager;
 import org.wahlzeit.model.UserSession;
 import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.LogSite;
+import org.wahlzeit.utils.HtmlUtil;
 import org.wahlzeit.utils.StringUtil;
 import org.wahlzeit.webparts.WebPart;
 import org.wahlzeit.webparts.Writable;
@@ -67,6 +69,26 @@ public class ShowAdminPageHandler extends AbstractWebPageHandler implements WebF
 			page.addStringFromArgs(args, "photoId");
 			page.addWritable("object", makeAdminUserPhoto(us));
 		}
+
+		page.addString("logSites", makeLogSiteTable());
+	}
+
+	/**
+	 * Shows the sampled log sites with their configuration and how many messages they wrote and suppressed.
+	 */
+	protected String makeLogSiteTable() {
+		StringBuilder result = new StringBuilder(512);
+		result.append("<table class=\"form\"><tr><th align=\"left\">Site</th><th>Sample rate</th>");
+		result.append("<th>Max per second</th><th>Written</th><th>Suppressed</th></tr>");
+		for (LogSite site : LogSite.getSites()) {
+			result.append("<tr><td align=\"left\">").append(HtmlUtil.maskForWeb(site.getName())).append("</td>");
+			result.append("<td>").append(site.getSampleRate()).append("</td>");
+			result.append("<td>").append(site.getMaxPerSecond()).append("</td>");
+			result.append("<td>").append(site.getNoWrittenMessages()).append("</td>");
+			result.append("<td>").append(site.getNoSuppressedMessages()).append("</td></tr>");
+		}
+		result.append("</table>");
+		return result.toString();
 	}
 
 	/**
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.handlers;
+
+import org.wahlzeit.model.AccessRights;
+import org.wahlzeit.model.ModelConfig;
+import org.wahlzeit.model.Photo;
+import org.wahlzeit.model.PhotoLeaderboard;
+import org.wahlzeit.model.PhotoManager;
+import org.wahlzeit.model.UserSession;
+import org.wahlzeit.utils.HtmlUtil;
+import org.wahlzeit.utils.StringUtil;
+import org.wahlzeit.webparts.WebPart;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A handler class for the page of the best photos, overall or of one tag. The photos come from the PhotoLeaderboard,
+ * so the page does not scan all photos.
+ */
+public class ShowTopPhotosPageHandler extends AbstractWebPageHandler {
+
+	/**
+	 * The optional tag to show the best photos of
+	 */
+	public static final String TAG = "tag";
+
+	/**
+	 *
+	 */
+	public ShowTopPhotosPageHandler() {
+		initialize(PartUtil.SHOW_TOP_PHOTOS_PAGE_FILE, AccessRights.GUEST);
+	}
+
+	/**
+	 *
+	 */
+	protected boolean isWellFormedGet(UserSession us, String link, Map args) {
+		if (args == null) {
+			return true;
+		}
+		String tag = us.getAsString(args, TAG);
+		return StringUtil.isNullOrEmptyString(tag) || StringUtil.isLegalTagsString(tag);
+	}
+
+	/**
+	 *
+	 */
+	protected String doHandleGet(UserSession us, String link, Map args) {
+		// the tag only concerns this request, so that anonymous requests do not need an HttpSession
+		String tag = (args == null) ? "" : us.getAsString(args, TAG);
+		us.setTopPhotosTag(StringUtil.isNullOrEmptyString(tag) ? null : tag);
+		return link;
+	}
+
+	/**
+	 *
+	 */
+	protected void makeWebPageBody(UserSession us, WebPart page) {
+		String tag = us.getTopPhotosTag();
+		if (tag == null) {
+			tag = "";
+		}
+		page.addString("tag", HtmlUtil.maskForWeb(tag));
+
+		List<Photo> photos = PhotoManager.getInstance().getPhotosFromIds(
+				PhotoLeaderboard.getInstance().getTopPhotoIds(tag));
+		ModelConfig config = us.getClient().getLanguageConfiguration();
+		if (photos.isEmpty()) {
+			page.addString("topPhotos", HtmlUtil.asP(config.getNoTopPhotos()));
+			return;
+		}
+
+		StringBuilder topPhotos = new StringBuilder();
+		for (Photo photo : photos) {
+			String link = getResourceAsRelativeHtmlPathString(photo.getId().asString());
+			topPhotos.append(HtmlUtil.asP(HtmlUtil.asHref(link, getPhotoThumb(us, photo)) + "<br>" +
+					photo.getPraiseAsString(config)));
+		}
+		page.addString("topPhotos", topPhotos.toString());
+	}
+
+}
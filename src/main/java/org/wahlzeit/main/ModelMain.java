@@ -24,11 +24,13 @@ import org.wahlzeit.model.GlobalsManager;
 import org.wahlzeit.model.PhotoCaseManager;
 import org.wahlzeit.model.PhotoFactory;
 import org.wahlzeit.model.PhotoManager;
+import org.wahlzeit.model.PraiseVotePipeline;
 import org.wahlzeit.model.User;
 import org.wahlzeit.model.UserManager;
 import org.wahlzeit.model.persistence.DatastoreAdapter;
 import org.wahlzeit.model.persistence.ImageStorage;
 import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.WriteBehindQueue;
 
 import java.io.File;
 import java.io.FileFilter;
@@ -42,28 +44,81 @@ public abstract class ModelMain extends AbstractMain {
 
 	private static final Logger log = Logger.getLogger(ModelMain.class.getName());
 
+	/**
+	 * Phases of the startup, see startUp
+	 */
+	public static final String IMAGE_STORAGE_PHASE = "image storage";
+	public static final String GLOBALS_PHASE = "globals";
+	public static final String USERS_PHASE = "users";
+	public static final String PHOTO_FACTORY_PHASE = "photo factory";
+	public static final String PHOTOS_PHASE = "photos";
+	public static final String VOTES_PHASE = "votes";
+
 	/**
 	 *
 	 */
+	protected StartupOrchestrator startupOrchestrator = null;
+
+	/**
+	 * Globals go first, as they initialize the id counters; afterwards users and photos are loaded concurrently.
+	 */
 	protected void startUp(String rootDir) throws Exception {
 		super.startUp(rootDir);
 		log.info("AbstractMain.startUp completed");
 
-		log.config(LogBuilder.createSystemMessage().addAction("load image storage").toString());
-		//GcsAdapter.Builder gcsAdapterBuilder = new GcsAdapter.Builder();
-		ImageStorage.setInstance(new DatastoreAdapter());
-
-		log.config(LogBuilder.createSystemMessage().addAction("load globals").toString());
-		GlobalsManager.getInstance().loadGlobals();
-
-		log.config(LogBuilder.createSystemMessage().addAction("load user").toString());
-		UserManager.getInstance().init();
+		startupOrchestrator = new StartupOrchestrator();
+		startupOrchestrator.addPhase(IMAGE_STORAGE_PHASE, new Runnable() {
+			@Override
+			public void run() {
+				log.config(LogBuilder.createSystemMessage().addAction("load image storage").toString());
+				//GcsAdapter.Builder gcsAdapterBuilder = new GcsAdapter.Builder();
+				ImageStorage.setInstance(new DatastoreAdapter());
+			}
+		});
+		startupOrchestrator.addPhase(GLOBALS_PHASE, new Runnable() {
+			@Override
+			public void run() {
+				log.config(LogBuilder.createSystemMessage().addAction("load globals").toString());
+				GlobalsManager.getInstance().loadGlobals();
+			}
+		});
+		startupOrchestrator.addPhase(USERS_PHASE, new Runnable() {
+			@Override
+			public void run() {
+				log.config(LogBuilder.createSystemMessage().addAction("load user").toString());
+				UserManager.getInstance().init();
+			}
+		}, GLOBALS_PHASE);
+		startupOrchestrator.addPhase(PHOTO_FACTORY_PHASE, new Runnable() {
+			@Override
+			public void run() {
+				log.config(LogBuilder.createSystemMessage().addAction("init PhotoFactory").toString());
+				PhotoFactory.initialize();
+			}
+		});
+		startupOrchestrator.addPhase(PHOTOS_PHASE, new Runnable() {
+			@Override
+			public void run() {
+				log.config(LogBuilder.createSystemMessage().addAction("load Photos").toString());
+				PhotoManager.getInstance().init();
+			}
+		}, IMAGE_STORAGE_PHASE, GLOBALS_PHASE, PHOTO_FACTORY_PHASE);
+		startupOrchestrator.addPhase(VOTES_PHASE, new Runnable() {
+			@Override
+			public void run() {
+				log.config(LogBuilder.createSystemMessage().addAction("replay vote journal").toString());
+				PraiseVotePipeline.getInstance().apply();
+			}
+		}, PHOTOS_PHASE, USERS_PHASE);
 
-		log.config(LogBuilder.createSystemMessage().addAction("init PhotoFactory").toString());
-		PhotoFactory.initialize();
+		startupOrchestrator.run();
+	}
 
-		log.config(LogBuilder.createSystemMessage().addAction("load Photos").toString());
-		PhotoManager.getInstance().init();
+	/**
+	 * @methodtype get
+	 */
+	public String getStartupReport() {
+		return startupOrchestrator == null ? "" : startupOrchestrator.getReport();
 	}
 
 
@@ -72,6 +127,8 @@ public abstract class ModelMain extends AbstractMain {
 	 */
 	protected void shutDown() throws Exception {
 		saveAll();
+		PhotoManager.getInstance().writeCatalogSnapshot();
+		UserManager.getInstance().writeCatalogSnapshot();
 
 		super.shutDown();
 	}
@@ -81,8 +138,10 @@ public abstract class ModelMain extends AbstractMain {
 	 */
 	public void saveAll() throws IOException{
 		PhotoCaseManager.getInstance().savePhotoCases();
+		PraiseVotePipeline.getInstance().apply();
 		PhotoManager.getInstance().savePhotos();
 		UserManager.getInstance().saveClients();
+		WriteBehindQueue.getInstance().flush();
 		GlobalsManager.getInstance().saveGlobals();
 	}
 
@@ -139,6 +139,9 @@ public class ServiceMain extends ModelMain {
 
 		manager.addWebPartHandler(PartUtil.RESET_SESSION_PAGE_NAME, new ResetSessionPageHandler());
 
+		// Top photos page
+		manager.addWebPartHandler(PartUtil.SHOW_TOP_PHOTOS_PAGE_NAME, new ShowTopPhotosPageHandler());
+
 		// About and Terms pages
 		manager.addWebPartHandler(PartUtil.ABOUT_PAGE_NAME,
 				new ShowInfoPageHandler(AccessRights.GUEST, PartUtil.ABOUT_INFO_FILE));
@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.main;
+
+import com.google.appengine.api.ThreadManager;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.VoidWork;
+import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.Session;
+import org.wahlzeit.services.SessionManager;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+/**
+ * Runs the phases of the system startup on a bounded executor. A phase starts as soon as all phases it depends on have
+ * completed, so independent phases run concurrently. Each phase runs within its own Objectify context and with the
+ * session of the starting thread. After the run, a report lists the timings of all phases.
+ */
+public class StartupOrchestrator {
+
+	private static final Logger log = Logger.getLogger(StartupOrchestrator.class.getName());
+
+	/**
+	 * System property (see appengine-web.xml) to configure the number of startup threads
+	 */
+	public static final String THREADS_PROPERTY = "org.wahlzeit.startup.threads";
+	public static final int DEFAULT_THREADS = 4;
+
+	/**
+	 *
+	 */
+	protected final Map<String, Phase> phases = new LinkedHashMap<String, Phase>();
+	protected long startTime = 0;
+	protected long endTime = 0;
+
+	/**
+	 * Adds a phase that starts after the named phases have completed; these must have been added before.
+	 *
+	 * @methodtype command
+	 */
+	public void addPhase(String name, Runnable task, String... dependencies) {
+		if (phases.containsKey(name)) {
+			throw new IllegalArgumentException("startup phase already exists: " + name);
+		}
+
+		List<Phase> dependencyPhases = new ArrayList<Phase>();
+		for (String dependency : dependencies) {
+			Phase phase = phases.get(dependency);
+			if (phase == null) {
+				throw new IllegalArgumentException("unknown startup phase: " + dependency);
+			}
+			dependencyPhases.add(phase);
+		}
+
+		phases.put(name, new Phase(name, task, dependencyPhases));
+	}
+
+	/**
+	 * Runs all phases and waits for them to complete. Phases that depend on a failed phase are skipped; the first
+	 * failure is rethrown after all other phases have finished.
+	 *
+	 * @methodtype command
+	 */
+	public void run() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(getNumberOfThreads(), createThreadFactory());
+		final Session session = SessionManager.getThreadLocalSession();
+		startTime = System.nanoTime();
+		try {
+			for (final Phase phase : phases.values()) {
+				CompletableFuture<?>[] dependencyFutures = new CompletableFuture<?>[phase.dependencies.size()];
+				for (int i = 0; i < dependencyFutures.length; i++) {
+					dependencyFutures[i] = phase.dependencies.get(i).future;
+				}
+
+				phase.future = CompletableFuture.allOf(dependencyFutures).thenRunAsync(new Runnable() {
+					@Override
+					public void run() {
+						runPhase(phase, session);
+					}
+				}, executor);
+			}
+
+			Throwable failure = null;
+			for (Phase phase : phases.values()) {
+				try {
+					phase.future.join();
+				} catch (CompletionException ex) {
+					if (failure == null) {
+						failure = ex.getCause();
+					}
+				}
+			}
+
+			endTime = System.nanoTime();
+			log.info(LogBuilder.createSystemMessage().addMessage(getReport()).toString());
+
+			if (failure instanceof Exception) {
+				throw (Exception) failure;
+			} else if (failure != null) {
+				throw new IllegalStateException("startup failed", failure);
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void runPhase(final Phase phase, Session session) {
+		phase.threadName = Thread.currentThread().getName();
+		phase.startTime = System.nanoTime();
+		Session previousSession = SessionManager.getThreadLocalSession();
+		SessionManager.setThreadLocalSession(session);
+		try {
+			log.config(LogBuilder.createSystemMessage().addAction("start startup phase")
+					.addParameter("phase", phase.name).toString());
+			ObjectifyService.run(new VoidWork() {
+				@Override
+				public void vrun() {
+					phase.task.run();
+				}
+			});
+		} catch (RuntimeException ex) {
+			phase.failed = true;
+			throw ex;
+		} finally {
+			SessionManager.setThreadLocalSession(previousSession);
+			phase.endTime = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Returns one line per phase with its start offset, duration and thread, followed by the wall-clock time of the
+	 * whole startup and the sum of all phase durations.
+	 *
+	 * @methodtype get
+	 */
+	public String getReport() {
+		StringBuilder result = new StringBuilder("startup report:");
+		long sumOfPhases = 0;
+		for (Phase phase : phases.values()) {
+			result.append("\n  ").append(phase.name).append(": ");
+			if (phase.endTime == 0) {
+				result.append("skipped");
+			} else {
+				long duration = phase.endTime - phase.startTime;
+				sumOfPhases += duration;
+				result.append("started at ").append(asMillis(phase.startTime - startTime)).append(" ms, ")
+						.append(phase.failed ? "failed after " : "took ").append(asMillis(duration)).append(" ms on ")
+						.append(phase.threadName);
+			}
+		}
+		result.append("\n  total: ").append(asMillis(endTime - startTime)).append(" ms (sum of phases: ")
+				.append(asMillis(sumOfPhases)).append(" ms)");
+		return result.toString();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getPhaseDurationMillis(String name) {
+		Phase phase = phases.get(name);
+		return (phase == null || phase.endTime == 0) ? -1 : asMillis(phase.endTime - phase.startTime);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected int getNumberOfThreads() {
+		return Math.max(1, Integer.getInteger(THREADS_PROPERTY, DEFAULT_THREADS));
+	}
+
+	/**
+	 * On App Engine, threads must be created by the ThreadManager and end with the (loading) request; elsewhere, e.g.
+	 * in tools and tests, plain threads are used.
+	 *
+	 * @methodtype factory
+	 */
+	protected ThreadFactory createThreadFactory() {
+		ThreadFactory result = null;
+		try {
+			result = ThreadManager.currentRequestThreadFactory();
+		} catch (RuntimeException ex) {
+			log.config(LogBuilder.createSystemMessage().
+					addMessage("no request thread factory available, using default threads").toString());
+		}
+		return result != null ? result : Executors.defaultThreadFactory();
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected static long asMillis(long nanos) {
+		return nanos / 1000000;
+	}
+
+	/**
+	 * A named unit of startup work together with the phases it depends on.
+	 */
+	protected static class Phase {
+
+		protected final String name;
+		protected final Runnable task;
+		protected final List<Phase> dependencies;
+		protected CompletableFuture<Void> future;
+		protected volatile String threadName;
+		protected volatile long startTime = 0;
+		protected volatile long endTime = 0;
+		protected volatile boolean failed = false;
+
+		/**
+		 * @methodtype constructor
+		 */
+		protected Phase(String name, Runnable task, List<Phase> dependencies) {
+			this.name = name;
+			this.task = task;
+			this.dependencies = dependencies;
+		}
+	}
+
+}
@@ -22,12 +22,15 @@ package org.wahlzeit.model;
 
 import com.google.appengine.api.images.Image;
 import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.VoidWork;
 import com.googlecode.objectify.Work;
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.services.Persistent;
+import org.wahlzeit.services.WriteBehindQueue;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 public class BeachPhotoManager extends PhotoManager {
@@ -35,9 +38,9 @@ public class BeachPhotoManager extends PhotoManager {
 	private static final Logger log = Logger.getLogger(PhotoManager.class.getName());
 
 	/**
-	 * In-memory cache for photos
+	 * In-memory cache for photos, bounded by the bytes of their images
 	 */
-	protected Map<PhotoId, BeachPhoto> photoCache = new HashMap<>();
+	protected PhotoCache<BeachPhoto> photoCache = new PhotoCache<>();
 
 	/**
 	 * @methodtype constructor
@@ -57,17 +60,30 @@ public class BeachPhotoManager extends PhotoManager {
 
 		BeachPhoto result = doGetPhotoFromId(id);
 
-		//PhotoFactory#loadPhoto(PhotoId) always returns null, so we can ignore it
-		//if (result == null) {
-		//	result = BeachPhotoFactory.getInstance().loadPhoto(id);
-		//	if (result != null) {
-		//		doAddPhoto(result);
-		//	}
-		//}
+		//PhotoFactory#loadPhoto(PhotoId) always returns null, so only evicted photos need to be reloaded
+		if (result == null) {
+			result = reloadEvictedPhoto(photoCache, BeachPhoto.class, id);
+			if (result != null) {
+				doAddPhoto(result);
+			}
+		}
 
 		return result;
 	}
 
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	protected void reloadEvictedPhotos(Collection<PhotoId> ids) {
+		reloadEvictedPhotos(photoCache, BeachPhoto.class, ids, new Consumer<BeachPhoto>() {
+			@Override
+			public void accept(BeachPhoto photo) {
+				addLoadedPhoto(photo);
+			}
+		});
+	}
+
 	/**
 	 * @methodtype get
 	 * @methodproperties primitive
@@ -83,37 +99,68 @@ public class BeachPhotoManager extends PhotoManager {
 	 */
 	protected void doAddPhoto(BeachPhoto myPhoto) {
 		photoCache.put(myPhoto.getId(), myPhoto);
+		registerPhoto(myPhoto);
 	}
 
 	/**
 	 * @methodtype command
 	 *
-	 * Load all persisted photos. Executed when Wahlzeit is restarted.
+	 * Load all persisted photos. Executed when Wahlzeit is restarted. Images are loaded on first access.
 	 */
 	@Override
 	public void loadPhotos() {
-		Collection<BeachPhoto> existingPhotos = ObjectifyService.run(new Work<Collection<BeachPhoto>>() {
+		long syncTime = System.currentTimeMillis() - SNAPSHOT_CLOCK_SKEW_MILLIS;
+		ObjectifyService.run(new VoidWork() {
 			@Override
-			public Collection<BeachPhoto> run() {
-				Collection<BeachPhoto> existingPhotos = new ArrayList<>();
-				readObjects(existingPhotos, BeachPhoto.class);
-				return existingPhotos;
+			public void vrun() {
+				readObjectsInChunks(BeachPhoto.class, LOAD_CHUNK_SIZE, new Consumer<List<BeachPhoto>>() {
+					@Override
+					public void accept(List<BeachPhoto> photos) {
+						for (BeachPhoto photo : photos) {
+							addLoadedPhoto(photo);
+						}
+					}
+				});
 			}
 		});
+		catalogSyncTime = syncTime;
+
+		log.info(LogBuilder.createSystemMessage().addMessage("All BeachPhotos loaded.").toString());
+	}
 
-		for (BeachPhoto photo : existingPhotos) {
-			if (!doHasPhoto(photo.getId())) {
-				log.config(LogBuilder.createSystemMessage().
-						addParameter("Load BeachPhoto with ID", photo.getIdAsString()).toString());
-				loadScaledImages(photo);
-				doAddPhoto(photo);
-			} else {
-				log.config(LogBuilder.createSystemMessage().
-						addParameter("Already loaded BeachPhoto", photo.getIdAsString()).toString());
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	protected void loadPhotosModifiedSince(final long time) {
+		long syncTime = System.currentTimeMillis() - SNAPSHOT_CLOCK_SKEW_MILLIS;
+		Collection<BeachPhoto> modifiedPhotos = ObjectifyService.run(new Work<Collection<BeachPhoto>>() {
+			@Override
+			public Collection<BeachPhoto> run() {
+				Collection<BeachPhoto> modifiedPhotos = new ArrayList<>();
+				readObjects(modifiedPhotos, BeachPhoto.class, Photo.MODIFICATION_TIME + " >=", time);
+				return modifiedPhotos;
 			}
+		});
+
+		for (BeachPhoto photo : modifiedPhotos) {
+			addLoadedPhoto(photo);
 		}
+		catalogSyncTime = syncTime;
+	}
 
-		log.info(LogBuilder.createSystemMessage().addMessage("All BeachPhotos loaded.").toString());
+	/**
+	 * @methodtype command
+	 */
+	protected void addLoadedPhoto(BeachPhoto photo) {
+		if (!doHasPhoto(photo.getId())) {
+			log.config(LogBuilder.createSystemMessage().
+					addParameter("Load BeachPhoto with ID", photo.getIdAsString()).toString());
+			doAddPhoto(photo);
+		} else {
+			log.config(LogBuilder.createSystemMessage().
+					addParameter("Already loaded BeachPhoto", photo.getIdAsString()).toString());
+		}
 	}
 
 	/**
@@ -130,6 +177,7 @@ public class BeachPhotoManager extends PhotoManager {
 			BeachPhoto photo = (BeachPhoto) obj;
 			saveScaledImages(photo);
 			updateTags(photo);
+			updateCatalogRecord(photo);
 			UserManager userManager = UserManager.getInstance();
 			Client owner = userManager.getClientById(photo.getOwnerId());
 			userManager.saveClient(owner);
@@ -141,14 +189,14 @@ public class BeachPhotoManager extends PhotoManager {
 	 */
 	@Override
 	public void savePhotos() throws IOException{
-		updateObjects(photoCache.values());
+		WriteBehindQueue.getInstance().flush(BeachPhoto.class);
 	}
 
 	/**
 	 * @methodtype get
 	 */
 	@Override
-	public Map<PhotoId, BeachPhoto> getPhotoCache() {
+	public PhotoCache<BeachPhoto> getPhotoCache() {
 		return photoCache;
 	}
 
@@ -172,7 +220,6 @@ public class BeachPhotoManager extends PhotoManager {
 	 */
 	@Override
 	public BeachPhoto getVisiblePhoto(PhotoFilter filter) {
-		filter.generateDisplayablePhotoIds();
 		return getPhotoFromId(filter.getRandomDisplayablePhotoId());
 	}
 
@@ -194,6 +241,8 @@ public class BeachPhotoManager extends PhotoManager {
 		PhotoId id = photo.getId();
 		assertIsNewPhoto(id);
 		doAddPhoto(photo);
+		// a new photo has no tags in the datastore yet
+		persistedTags.put(id, Collections.<String>emptySet());
 
 		GlobalsManager.getInstance().saveGlobals();
 	}
@@ -21,15 +21,25 @@
 package org.wahlzeit.model;
 
 import com.google.appengine.api.datastore.Key;
+import com.googlecode.objectify.annotation.AlsoLoad;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
 import com.googlecode.objectify.annotation.Ignore;
+import com.googlecode.objectify.annotation.IgnoreSave;
+import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.OnLoad;
+import com.googlecode.objectify.annotation.OnSave;
 import com.googlecode.objectify.annotation.Parent;
 import org.wahlzeit.services.EmailAddress;
 import org.wahlzeit.services.Language;
 import org.wahlzeit.services.ObjectManager;
 import org.wahlzeit.services.Persistent;
+import org.wahlzeit.services.WriteBehindQueue;
+import org.wahlzeit.utils.IntBitmap;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
@@ -44,6 +54,12 @@ public abstract class Client implements Serializable, Persistent {
 	public static final String ID = "id";
 	public static final String NICK_NAME = "nickName";
 	public static final String LANGUAGE = "language";
+	public static final String MODIFICATION_TIME = "modificationTime";
+
+	/**
+	 * Number of praised photos kept in order, to show the last praised photo
+	 */
+	protected static final int MAX_RECENTLY_PRAISED_PHOTOS = 16;
 
 	@Id
 	protected String id;
@@ -66,15 +82,50 @@ public abstract class Client implements Serializable, Persistent {
 	@Ignore
 	protected int writeCount = 0;
 
+	/**
+	 * Unregistered clients are neither known to the UserManager nor queued for writing, see Guest
+	 */
+	@Ignore
+	protected transient boolean isRegistered = true;
+
 	private String httpSessionId;
 
 	protected Language language = Language.ENGLISH;
 
 	protected PhotoSize photoSize = PhotoSize.MEDIUM;
 
-	protected List<PhotoId> praisedPhotoIds = new ArrayList<PhotoId>();
+	/**
+	 * Praised and skipped photos by the int value of their ids; persisted in their compact form below
+	 */
+	protected transient IntBitmap praisedPhotoIds = new IntBitmap();
+
+	protected transient IntBitmap skippedPhotoIds = new IntBitmap();
+
+	protected byte[] praisedPhotoIdBytes;
 
-	protected List<PhotoId> skippedPhotoIds = new ArrayList<PhotoId>();
+	protected byte[] skippedPhotoIdBytes;
+
+	/**
+	 * The last praised photos, the latest last, since the bitmap does not keep the order
+	 */
+	protected List<Integer> recentlyPraisedPhotoIds = new ArrayList<Integer>();
+
+	/**
+	 * Photo ids as lists, as saved by earlier versions; converted on load
+	 */
+	@IgnoreSave
+	@AlsoLoad("praisedPhotoIds")
+	protected List<PhotoId> praisedPhotoIdList;
+
+	@IgnoreSave
+	@AlsoLoad("skippedPhotoIds")
+	protected List<PhotoId> skippedPhotoIdList;
+
+	/**
+	 * Time of the last save, used to catch up on users that changed after a catalog snapshot was taken
+	 */
+	@Index
+	protected long modificationTime = 0;
 
 
 	/**
@@ -89,6 +140,16 @@ public abstract class Client implements Serializable, Persistent {
 	 */
 	protected void initialize(String id, String nickName, EmailAddress emailAddress, AccessRights accessRights,
 							  Client previousClient) {
+		doInitialize(id, nickName, emailAddress, accessRights, previousClient);
+		register();
+	}
+
+	/**
+	 * @methodtype initialization
+	 * @methodproperty primitive
+	 */
+	protected void doInitialize(String id, String nickName, EmailAddress emailAddress, AccessRights accessRights,
+								Client previousClient) {
 		this.id = id;
 		this.nickName = nickName;
 		this.accessRights = accessRights;
@@ -98,14 +159,30 @@ public abstract class Client implements Serializable, Persistent {
 		if (previousClient != null) {
 			this.setLanguage(previousClient.getLanguage());
 			this.setPraisedPhotoIds(previousClient.getPraisedPhotoIds());
+			this.recentlyPraisedPhotoIds = new ArrayList<Integer>(previousClient.recentlyPraisedPhotoIds);
 			this.setPhotoSize(previousClient.getPhotoSize());
 		}
+	}
 
+	/**
+	 * Makes the client known to the UserManager and queues it for writing.
+	 *
+	 * @methodtype command
+	 */
+	public void register() {
+		isRegistered = true;
 		incWriteCount();
 
 		UserManager.getInstance().addClient(this);
 	}
 
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isRegistered() {
+		return isRegistered;
+	}
+
 	/**
 	 * @methodtype get
 	 */
@@ -198,6 +275,9 @@ public abstract class Client implements Serializable, Persistent {
 	 */
 	public void incWriteCount() {
 		writeCount++;
+		if (isRegistered) {
+			WriteBehindQueue.getInstance().markDirty(this);
+		}
 	}
 
 	/**
@@ -205,6 +285,69 @@ public abstract class Client implements Serializable, Persistent {
 	 */
 	public void resetWriteCount() {
 		writeCount = 0;
+		WriteBehindQueue.getInstance().forget(this);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getModificationTime() {
+		return modificationTime;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	@OnSave
+	protected void updateModificationTime() {
+		modificationTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	@OnSave
+	protected void encodePhotoIds() {
+		praisedPhotoIdBytes = praisedPhotoIds.toByteArray();
+		skippedPhotoIdBytes = skippedPhotoIds.toByteArray();
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	@OnLoad
+	protected void decodePhotoIds() {
+		praisedPhotoIds = IntBitmap.fromByteArray(praisedPhotoIdBytes);
+		skippedPhotoIds = IntBitmap.fromByteArray(skippedPhotoIdBytes);
+
+		if (praisedPhotoIdList != null) {
+			for (PhotoId photoId : praisedPhotoIdList) {
+				addPraisedPhotoId(photoId);
+			}
+			praisedPhotoIdList = null;
+		}
+		if (skippedPhotoIdList != null) {
+			for (PhotoId photoId : skippedPhotoIdList) {
+				skippedPhotoIds.add(photoId.asInt());
+			}
+			skippedPhotoIdList = null;
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		encodePhotoIds();
+		out.defaultWriteObject();
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		decodePhotoIds();
 	}
 
 	/**
@@ -269,38 +412,53 @@ public abstract class Client implements Serializable, Persistent {
 	 */
 	public void setPhotoSize(PhotoSize photoSize) {
 		this.photoSize = photoSize;
+		incWriteCount();
 	}
 
 	/**
 	 * @methodtype get
 	 */
-	public List<PhotoId> getPraisedPhotoIds() {
+	public IntBitmap getPraisedPhotoIds() {
 		return praisedPhotoIds;
 	}
 
 	/**
 	 * @methodtype set
 	 */
-	public void setPraisedPhotoIds(List<PhotoId> praisedPhotoIds) {
-		this.praisedPhotoIds = praisedPhotoIds;
+	public void setPraisedPhotoIds(IntBitmap praisedPhotoIds) {
+		this.praisedPhotoIds = new IntBitmap(praisedPhotoIds);
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean hasPraisedPhoto(PhotoId photoId) {
+		return praisedPhotoIds.contains(photoId.asInt());
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void addPraisedPhotoId(PhotoId ratedPhotoId) {
-		praisedPhotoIds.add(ratedPhotoId);
+		praisedPhotoIds.add(ratedPhotoId.asInt());
+		recentlyPraisedPhotoIds.remove(Integer.valueOf(ratedPhotoId.asInt()));
+		recentlyPraisedPhotoIds.add(ratedPhotoId.asInt());
+		if (recentlyPraisedPhotoIds.size() > MAX_RECENTLY_PRAISED_PHOTOS) {
+			recentlyPraisedPhotoIds.remove(0);
+		}
 		removeSkippedPhotoId(ratedPhotoId);
 	}
 
 	/**
+	 * Returns the last praised photo that is still visible, looking at the recently praised photos only.
+	 *
 	 * @methodtype get
 	 */
 	public Photo getLastPraisedPhoto() {
-		int indexOfLastPraisedPhoto = praisedPhotoIds.size() - 1;
+		int indexOfLastPraisedPhoto = recentlyPraisedPhotoIds.size() - 1;
 		Photo result = null;
 		while (indexOfLastPraisedPhoto >= 0 && result == null) {
-			PhotoId lastPraisedPhotoId = praisedPhotoIds.get(indexOfLastPraisedPhoto);
+			PhotoId lastPraisedPhotoId = PhotoId.getIdFromInt(recentlyPraisedPhotoIds.get(indexOfLastPraisedPhoto));
 			result = PhotoManager.getInstance().getPhoto(lastPraisedPhotoId);
 			if (result != null && !result.isVisible()) {
 				result = null;
@@ -313,30 +471,35 @@ public abstract class Client implements Serializable, Persistent {
 	/**
 	 * @methodtype get
 	 */
-	public List<PhotoId> getSkippedPhotoIds() {
+	public IntBitmap getSkippedPhotoIds() {
 		return skippedPhotoIds;
 	}
 
 	/**
 	 * @methodtype get
 	 */
-	public void setSkippedPhotoIds(List<PhotoId> skippedPhotoIds) {
-		this.skippedPhotoIds = skippedPhotoIds;
+	public void setSkippedPhotoIds(IntBitmap skippedPhotoIds) {
+		this.skippedPhotoIds = new IntBitmap(skippedPhotoIds);
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean hasSkippedPhoto(PhotoId photoId) {
+		return skippedPhotoIds.contains(photoId.asInt());
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void removeSkippedPhotoId(PhotoId skippedPhotoIdToRemove) {
-		skippedPhotoIds.remove(skippedPhotoIdToRemove);
+		skippedPhotoIds.remove(skippedPhotoIdToRemove.asInt());
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void addSkippedPhotoId(PhotoId skippedPhotoId) {
-		if (!skippedPhotoIds.contains(skippedPhotoId)) {
-			skippedPhotoIds.add(skippedPhotoId);
-		}
+		skippedPhotoIds.add(skippedPhotoId.asInt());
 	}
 }
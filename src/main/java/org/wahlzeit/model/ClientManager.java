@@ -2,8 +2,11 @@ package org.wahlzeit.model;
 
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.services.ObjectManager;
+import org.wahlzeit.services.Persistent;
+import org.wahlzeit.services.WriteBehindQueue;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -32,6 +35,18 @@ public abstract class ClientManager extends ObjectManager {
 
 	protected List<String> listOfUsedNicknames = new ArrayList<String>();
 
+	/**
+	 *
+	 */
+	protected ClientManager() {
+		WriteBehindQueue.getInstance().registerWriter(Client.class, new WriteBehindQueue.Writer() {
+			@Override
+			public void write(List<Persistent> objects) {
+				updateObjects(objects);
+			}
+		});
+	}
+
 
 	// add methods -----------------------------------------------------------------------------------------------------
 
@@ -157,7 +172,14 @@ public abstract class ClientManager extends ObjectManager {
 	 * @methodtype command
 	 */
 	public void saveClients() {
-		updateObjects(idClientMap.values());
+		WriteBehindQueue.getInstance().flush(Client.class);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void saveClients(Collection<? extends Client> clients) {
+		writeObjects(clients);
 	}
 
 
@@ -209,6 +231,33 @@ public abstract class ClientManager extends ObjectManager {
 		assertIsUnknownUserAsIllegalState(client);
 	}
 
+	/**
+	 * Deletes the guests of the given HttpSessions in batch calls, e.g. when expired sessions are cleaned up; clients
+	 * that are users are kept. Returns the number of deleted guests.
+	 *
+	 * @methodtype command
+	 */
+	public int deleteGuestsByHttpSessionIds(Collection<String> httpSessionIds) {
+		assertIsNonNullArgument(httpSessionIds);
+
+		List<Client> guests = new ArrayList<Client>();
+		for (String httpSessionId : httpSessionIds) {
+			Client client = httpSessionIdToClientMap.get(httpSessionId);
+			if (client instanceof Guest) {
+				httpSessionIdToClientMap.remove(httpSessionId);
+				idClientMap.remove(client.getId());
+				// the guest must not be written again by the write-behind queue
+				client.resetWriteCount();
+				guests.add(client);
+			}
+		}
+
+		if (!guests.isEmpty()) {
+			deleteObjects(guests);
+		}
+		return guests.size();
+	}
+
 	/**
 	 * @methodtype set
 	 */
@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.model;
+
+import org.wahlzeit.utils.IntBitmap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A process-wide cache of filter results: the visible photos that match a set of filter conditions, shared by all
+ * sessions that use the same conditions. Conditions are normalized, so their order and duplicates do not matter.
+ * Cached results must not be modified; sessions subtract their processed and skipped photos when sampling.
+ *
+ * Results are invalidated by the PhotoTagIndex for exactly those conditions whose terms a change touched. Entries
+ * also expire after a time to live, and the least recently used entries are evicted beyond the maximum size.
+ */
+public class FilterResultCache {
+
+	/**
+	 * System properties (see appengine-web.xml) to configure the bounds of the cache
+	 */
+	public static final String MAX_ENTRIES_PROPERTY = "org.wahlzeit.filterCache.maxEntries";
+	public static final String TTL_PROPERTY = "org.wahlzeit.filterCache.ttlMillis";
+	public static final int DEFAULT_MAX_ENTRIES = 1000;
+	public static final long DEFAULT_TTL_MILLIS = 5 * 60 * 1000;
+
+	/**
+	 *
+	 */
+	protected final int maxEntries;
+	protected final long ttlMillis;
+
+	/**
+	 * The cached results in access order, and the keys of the cached results by term; guarded by this
+	 */
+	protected final LinkedHashMap<List<String>, Entry> entries = new LinkedHashMap<List<String>, Entry>(16, 0.75f, true);
+	protected final Map<String, Set<List<String>>> keysByTerm = new HashMap<String, Set<List<String>>>();
+
+	/**
+	 *
+	 */
+	protected final AtomicLong noHits = new AtomicLong();
+	protected final AtomicLong noMisses = new AtomicLong();
+	protected final AtomicLong noInvalidations = new AtomicLong();
+	protected final AtomicLong noEvictions = new AtomicLong();
+
+	/**
+	 * @methodtype constructor
+	 */
+	public FilterResultCache() {
+		this(Integer.getInteger(MAX_ENTRIES_PROPERTY, DEFAULT_MAX_ENTRIES),
+				Long.getLong(TTL_PROPERTY, DEFAULT_TTL_MILLIS));
+	}
+
+	/**
+	 * @methodtype constructor
+	 */
+	public FilterResultCache(int maxEntries, long ttlMillis) {
+		this.maxEntries = Math.max(1, maxEntries);
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * Returns the conditions sorted and without duplicates.
+	 *
+	 * @methodtype conversion
+	 */
+	public static List<String> asKey(Collection<String> conditions) {
+		return Collections.unmodifiableList(new ArrayList<String>(new TreeSet<String>(conditions)));
+	}
+
+
+	// cache methods ---------------------------------------------------------------------------------------------------
+
+	/**
+	 * Returns the cached result for the normalized conditions, or null if there is none or it has expired.
+	 *
+	 * @methodtype get
+	 */
+	public synchronized IntBitmap get(List<String> key) {
+		Entry entry = entries.get(key);
+		if (entry != null && System.currentTimeMillis() - entry.creationTime > ttlMillis) {
+			removeEntry(key);
+			entry = null;
+		}
+
+		if (entry == null) {
+			noMisses.incrementAndGet();
+			return null;
+		}
+		noHits.incrementAndGet();
+		return entry.photos;
+	}
+
+	/**
+	 * Caches a result, which must not be modified afterwards.
+	 *
+	 * @methodtype set
+	 */
+	public synchronized void put(List<String> key, IntBitmap photos) {
+		removeEntry(key);
+		entries.put(key, new Entry(photos, System.currentTimeMillis()));
+		for (String term : key) {
+			Set<List<String>> keys = keysByTerm.get(term);
+			if (keys == null) {
+				keys = new HashSet<List<String>>();
+				keysByTerm.put(term, keys);
+			}
+			keys.add(key);
+		}
+
+		Iterator<List<String>> eldest = entries.keySet().iterator();
+		while (entries.size() > maxEntries) {
+			List<String> eldestKey = eldest.next();
+			eldest.remove();
+			removeFromTerms(eldestKey);
+			noEvictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Drops all results whose conditions include one of the terms.
+	 *
+	 * @methodtype command
+	 */
+	public synchronized void invalidate(Collection<String> terms) {
+		for (String term : terms) {
+			Set<List<String>> keys = keysByTerm.get(term);
+			if (keys != null) {
+				for (List<String> key : new ArrayList<List<String>>(keys)) {
+					removeEntry(key);
+					noInvalidations.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		keysByTerm.clear();
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void removeEntry(List<String> key) {
+		if (entries.remove(key) != null) {
+			removeFromTerms(key);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void removeFromTerms(List<String> key) {
+		for (String term : key) {
+			Set<List<String>> keys = keysByTerm.get(term);
+			if (keys != null) {
+				keys.remove(key);
+				if (keys.isEmpty()) {
+					keysByTerm.remove(term);
+				}
+			}
+		}
+	}
+
+
+	// metrics ---------------------------------------------------------------------------------------------------------
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoHits() {
+		return noHits.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoMisses() {
+		return noMisses.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public double getHitRate() {
+		long hits = noHits.get();
+		long requests = hits + noMisses.get();
+		return requests == 0 ? 0.0 : (double) hits / requests;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoInvalidations() {
+		return noInvalidations.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoEvictions() {
+		return noEvictions.get();
+	}
+
+	/**
+	 * A cached result
+	 */
+	protected static class Entry {
+
+		protected final IntBitmap photos;
+		protected final long creationTime;
+
+		/**
+		 * @methodtype constructor
+		 */
+		protected Entry(IntBitmap photos, long creationTime) {
+			this.photos = photos;
+			this.creationTime = creationTime;
+		}
+	}
+
+}
@@ -42,6 +42,23 @@ public class Guest extends Client {
 		initialize(userId, userId, EmailAddress.EMPTY, AccessRights.GUEST, null);
 	}
 
+	/**
+	 * Creates a guest for a request without HttpSession; it is registered once the UserSession needs to keep state.
+	 *
+	 * @methodtype factory
+	 */
+	public static Guest createUnregisteredGuest() {
+		return new Guest(GUEST_PREFIX + UserManager.getInstance().getNextClientId());
+	}
+
+	/**
+	 * @methodtype constructor
+	 */
+	protected Guest(String userId) {
+		isRegistered = false;
+		doInitialize(userId, userId, EmailAddress.EMPTY, AccessRights.GUEST, null);
+	}
+
 	/**
 	 * For logging out a user, some settings like the language or the photo size should not change, therefore the
 	 * previousClient is used so set these basic settings in the new <@link>Guest</@link>.
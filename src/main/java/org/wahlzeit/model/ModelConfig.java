@@ -190,6 +190,9 @@ public interface ModelConfig extends Configuration, Serializable {
 	// SHOW_PHOTO_CASE_FORM
 	String getNoFlaggedPhotoCases();
 
+	// SHOW_TOP_PHOTOS_PAGE
+	String getNoTopPhotos();
+
 	// SHOW_ADMIN_MENU_FORM
 	String getPhotoIsUnknown();
 
@@ -20,20 +20,32 @@
 
 package org.wahlzeit.model;
 
-import com.google.api.client.util.ArrayMap;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesServiceFactory;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
 import com.googlecode.objectify.annotation.Ignore;
+import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.OnLoad;
+import com.googlecode.objectify.annotation.OnSave;
 import com.googlecode.objectify.annotation.Parent;
+import org.wahlzeit.model.persistence.ImageBytesStore;
 import org.wahlzeit.services.DataObject;
 import org.wahlzeit.services.EmailAddress;
 import org.wahlzeit.services.Language;
 import org.wahlzeit.services.ObjectManager;
 import org.wahlzeit.utils.DesignPattern;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A photo represents a user-provided (uploaded) photo.
@@ -59,6 +71,7 @@ public class Photo extends DataObject {
 
 	public static final String TAGS = "tags";
 	public static final String OWNER_ID = "ownerId";
+	public static final String MODIFICATION_TIME = "modificationTime";
 
 	public static final String STATUS = "status";
 	public static final String IS_INVISIBLE = "isInvisible";
@@ -72,6 +85,11 @@ public class Photo extends DataObject {
 	public static final int MAX_THUMB_PHOTO_WIDTH = 105;
 	public static final int MAX_THUMB_PHOTO_HEIGHT = 150;
 
+	/**
+	 * How many vote journals a photo remembers the last applied vote of
+	 */
+	public static final int MAX_VOTE_JOURNALS = 16;
+
 	protected PhotoId id = null;
 	
 	/**
@@ -81,10 +99,18 @@ public class Photo extends DataObject {
 	
 	/**
 	 * Each photo can be viewed in different sizes (XS, S, M, L, XL)
-	 * Images are pre-computed in these sizes to optimize bandwidth when requested.
+	 * Images are pre-computed in these sizes to optimize bandwidth when requested. Their bytes are kept in the
+	 * ImageBytesStore, the photo holds one reference to each of them.
+	 */
+	@Ignore
+	transient protected Map<PhotoSize, ImageBytesStore.Handle> images =
+			new ConcurrentHashMap<PhotoSize, ImageBytesStore.Handle>();
+
+	/**
+	 * Sizes that have been looked up in the image storage without success, so they are not requested again
 	 */
 	@Ignore
-	transient protected Map<PhotoSize, Image> images = new ArrayMap<PhotoSize, Image>();
+	transient protected Set<PhotoSize> missingImageSizes = ConcurrentHashMap.newKeySet();
 	
 	/**
 	 *
@@ -116,11 +142,43 @@ public class Photo extends DataObject {
 	protected int praiseSum = 10;
 	protected int noVotes = 1;
 	protected int noVotesAtLastNotification = 1;
+
+	/**
+	 * Counts votes without locking, as photos are praised concurrently; praiseSum and noVotes are only the persisted
+	 * values and are updated from the counter before saving
+	 */
+	@Ignore
+	transient protected PraiseCounter praiseCounter = new PraiseCounter(praiseSum, noVotes);
+
+	/**
+	 * The counter value that has last been written to praiseSum and noVotes
+	 */
+	@Ignore
+	transient protected volatile long savedPraise = PraiseCounter.asLong(praiseSum, noVotes);
+
+	/**
+	 * The sequence number of the last PraiseVotePipeline vote in praiseSum and noVotes, per vote journal, so that
+	 * votes replayed from a journal are not counted twice; only updated from voteSequences before saving
+	 */
+	protected Map<String, Long> appliedVoteSequences = new HashMap<String, Long>();
+
+	/**
+	 * The sequence numbers of the votes counted so far, least recently written journal first; guarded by this, like
+	 * the votes of the pipeline
+	 */
+	@Ignore
+	transient protected Map<String, Long> voteSequences = new LinkedHashMap<String, Long>();
 	
 	/**
 	 *
 	 */
 	protected long creationTime = System.currentTimeMillis();
+
+	/**
+	 * Time of the last save, used to catch up on photos that changed after a catalog snapshot was taken
+	 */
+	@Index
+	protected long modificationTime = 0;
 	
 	/**
 	 * The default type is jpg
@@ -156,17 +214,144 @@ public class Photo extends DataObject {
 	}
 
 	/**
+	 * Images of persisted photos are loaded on first access, so startup only needs to read the photo's metadata.
+	 *
 	 * @methodtype get
 	 */
 	public Image getImage(PhotoSize photoSize) {
-		return images.get(photoSize);
+		Image result = getLoadedImage(photoSize);
+		if (result == null && idLong != null && !missingImageSizes.contains(photoSize)) {
+			result = PhotoManager.getInstance().loadScaledImage(this, photoSize);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the image only if it is already in memory; never accesses the image storage. The image is a heap copy
+	 * of the stored bytes, use getImageBytes to avoid the copy.
+	 *
+	 * @methodtype get
+	 */
+	public Image getLoadedImage(PhotoSize photoSize) {
+		ImageBytesStore.Handle handle = getLoadedImageBytes(photoSize);
+		if (handle == null) {
+			return null;
+		}
+
+		try {
+			return ImagesServiceFactory.makeImage(handle.toByteArray());
+		} finally {
+			handle.release();
+		}
+	}
+
+	/**
+	 * Returns a handle to the bytes of the image, loading them on first access like getImage. The caller holds a
+	 * reference to the handle and has to release it. Returns null if there is no such image.
+	 *
+	 * @methodtype get
+	 */
+	public ImageBytesStore.Handle getImageBytes(PhotoSize photoSize) {
+		ImageBytesStore.Handle result = getLoadedImageBytes(photoSize);
+		if (result == null && idLong != null && !missingImageSizes.contains(photoSize)) {
+			PhotoManager.getInstance().loadScaledImage(this, photoSize);
+			result = getLoadedImageBytes(photoSize);
+		}
+		return result;
+	}
+
+	/**
+	 * Like getImageBytes, but never accesses the image storage. The caller has to release the returned handle.
+	 *
+	 * @methodtype get
+	 */
+	public ImageBytesStore.Handle getLoadedImageBytes(PhotoSize photoSize) {
+		ImageBytesStore.Handle result = images.get(photoSize);
+		if (result != null && !result.retain()) {
+			// the images have been released concurrently, e.g. on eviction
+			images.remove(photoSize, result);
+			result = null;
+		}
+		return result;
+	}
+
+	/**
+	 * Loads the image into memory if it is not there yet; returns false if there is no such image.
+	 *
+	 * @methodtype command
+	 */
+	public boolean loadImage(PhotoSize photoSize) {
+		ImageBytesStore.Handle handle = getImageBytes(photoSize);
+		if (handle == null) {
+			return false;
+		}
+
+		handle.release();
+		return true;
+	}
+
+	/**
+	 * Returns the number of image bytes this photo currently holds in memory.
+	 *
+	 * @methodtype get
+	 */
+	public long getSizeOfLoadedImages() {
+		long result = 0;
+		for (ImageBytesStore.Handle handle : images.values()) {
+			result += handle.getSize();
+		}
+		return result;
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void setImage(PhotoSize photoSize, Image image) {
-		this.images.put(photoSize, image);
+		ImageBytesStore.Handle handle = ImageBytesStore.getInstance().store(id.asInt(), photoSize, image.getImageData());
+		ImageBytesStore.Handle previous = images.put(photoSize, handle);
+		if (previous != null) {
+			previous.release();
+		}
+		missingImageSizes.remove(photoSize);
+	}
+
+	/**
+	 * Drops the images from memory; persisted photos reload them on next access.
+	 *
+	 * @methodtype command
+	 */
+	public void releaseImages() {
+		releaseImages(images);
+	}
+
+	/**
+	 * Releases the given images of a photo, also after the photo itself has been garbage collected.
+	 *
+	 * @methodtype command
+	 */
+	protected static void releaseImages(Map<PhotoSize, ImageBytesStore.Handle> images) {
+		for (PhotoSize photoSize : PhotoSize.values()) {
+			ImageBytesStore.Handle handle = images.remove(photoSize);
+			if (handle != null) {
+				handle.release();
+			}
+		}
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setImageMissing(PhotoSize photoSize) {
+		missingImageSizes.add(photoSize);
+	}
+
+	/**
+	 * Returns the id under which the datastore persists this photo, or null if it has not been saved yet.
+	 *
+	 * @methodtype get
+	 */
+	public Long getDatastoreId() {
+		return idLong;
 	}
 
 	/**
@@ -195,6 +380,9 @@ public class Photo extends DataObject {
 	 */
 	public void setOwnerId(String newName) {
 		ownerId = newName;
+		PhotoMetadataStore.getInstance().updateIfPresent(this);
+		PhotoTagIndex.getInstance().updateIfPresent(this);
+		PhotoLeaderboard.getInstance().update(this);
 		incWriteCount();
 	}
 
@@ -339,16 +527,97 @@ public class Photo extends DataObject {
 	 * @methodtype get
 	 */
 	public double getPraise() {
-		return (double) praiseSum / noVotes;
+		return PraiseCounter.getPraise(praiseCounter.get());
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getPraiseSum() {
+		return PraiseCounter.getPraiseSum(praiseCounter.get());
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNoVotes() {
+		return PraiseCounter.getNoVotes(praiseCounter.get());
+	}
+
+	/**
+	 * Returns the praise sum and the number of votes as one consistent snapshot, packed; see PraiseCounter.
+	 *
+	 * @methodtype get
+	 */
+	public long getPraiseSnapshot() {
+		return praiseCounter.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNoVotesAtLastNotification() {
+		return noVotesAtLastNotification;
 	}
 
 	/**
 	 *
 	 */
 	public void addToPraise(int value) {
-		praiseSum += value;
-		noVotes += 1;
+		praiseCounter.addVote(value);
+		PhotoMetadataStore.getInstance().updatePraise(this);
+		PhotoLeaderboard.getInstance().updatePraise(this);
+		incWriteCount();
+	}
+
+	/**
+	 * Adds the votes the PraiseVotePipeline aggregated, except those that have been added before, e.g. by a batch
+	 * that was saved but not checkpointed. Returns the number of votes added.
+	 */
+	public int addToPraise(PraiseVotePipeline.Aggregate aggregate) {
+		int newVotes;
+		synchronized (this) {
+			String journalId = aggregate.getJournalId();
+			Long lastSequence = journalId == null ? null : voteSequences.get(journalId);
+			long afterSequence = lastSequence == null ? 0 : lastSequence;
+			newVotes = aggregate.getNoVotesAfter(afterSequence);
+			if (newVotes == 0) {
+				return 0;
+			}
+
+			praiseCounter.addVotes(aggregate.getPraiseSumAfter(afterSequence), newVotes);
+			if (journalId != null) {
+				setVoteSequence(journalId, aggregate.getLastSequence());
+			}
+		}
+
+		PhotoMetadataStore.getInstance().updatePraise(this);
+		PhotoLeaderboard.getInstance().updatePraise(this);
 		incWriteCount();
+		return newVotes;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	protected void setVoteSequence(String journalId, long sequence) {
+		// keeps the journals in the order they were last written to, so the one written to now comes last
+		voteSequences.remove(journalId);
+		Iterator<String> it = voteSequences.keySet().iterator();
+		while (voteSequences.size() >= MAX_VOTE_JOURNALS) {
+			// the journal written to least recently belongs to an instance that is long gone
+			it.next();
+			it.remove();
+		}
+		voteSequences.put(journalId, sequence);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized long getVoteSequence(String journalId) {
+		Long result = voteSequences.get(journalId);
+		return result == null ? 0 : result;
 	}
 
 	/**
@@ -370,6 +639,9 @@ public class Photo extends DataObject {
 	 */
 	public void setStatus(PhotoStatus newStatus) {
 		status = newStatus;
+		PhotoMetadataStore.getInstance().updateIfPresent(this);
+		PhotoTagIndex.getInstance().updateIfPresent(this);
+		PhotoLeaderboard.getInstance().update(this);
 		incWriteCount();
 	}
 
@@ -392,6 +664,8 @@ public class Photo extends DataObject {
 	 */
 	public void setTags(Tags newTags) {
 		tags = newTags;
+		PhotoTagIndex.getInstance().updateIfPresent(this);
+		PhotoLeaderboard.getInstance().update(this);
 		incWriteCount();
 	}
 
@@ -402,6 +676,93 @@ public class Photo extends DataObject {
 		return creationTime;
 	}
 
+	/**
+	 * @methodtype get
+	 */
+	public long getModificationTime() {
+		return modificationTime;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	@OnSave
+	protected void updateModificationTime() {
+		modificationTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * The constructor used by Objectify marks the photo as modified; a loaded photo is unmodified, though.
+	 *
+	 * @methodtype set
+	 */
+	@OnLoad
+	protected void resetWriteCountOnLoad() {
+		loadPraise();
+		resetWriteCount();
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	protected synchronized void loadPraise() {
+		praiseCounter.set(praiseSum, noVotes);
+		savedPraise = PraiseCounter.asLong(praiseSum, noVotes);
+		if (appliedVoteSequences == null) {
+			appliedVoteSequences = new HashMap<String, Long>();
+		}
+		voteSequences = new LinkedHashMap<String, Long>(appliedVoteSequences);
+	}
+
+	/**
+	 * Folds the votes counted so far into the persisted fields, together with the sequence numbers of the pipeline
+	 * votes among them.
+	 *
+	 * @methodtype set
+	 */
+	@OnSave
+	protected synchronized void savePraise() {
+		long praise = praiseCounter.get();
+		praiseSum = PraiseCounter.getPraiseSum(praise);
+		noVotes = PraiseCounter.getNoVotes(praise);
+		appliedVoteSequences = new LinkedHashMap<String, Long>(voteSequences);
+		savedPraise = praise;
+	}
+
+	/**
+	 * Votes that were counted while the photo was saved have not been written, so the photo stays modified.
+	 */
+	@Override
+	public void resetWriteCount() {
+		super.resetWriteCount();
+		if (praiseCounter.get() != savedPraise) {
+			incWriteCount();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		savePraise();
+		out.defaultWriteObject();
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		images = new ConcurrentHashMap<PhotoSize, ImageBytesStore.Handle>();
+		missingImageSizes = ConcurrentHashMap.newKeySet();
+		praiseCounter = new PraiseCounter(praiseSum, noVotes);
+		savedPraise = PraiseCounter.asLong(praiseSum, noVotes);
+		if (appliedVoteSequences == null) {
+			appliedVoteSequences = new HashMap<String, Long>();
+		}
+		voteSequences = new LinkedHashMap<String, Long>(appliedVoteSequences);
+	}
+
 
 	public String getEnding() {
 		return ending;
@@ -423,14 +784,15 @@ public class Photo extends DataObject {
 	 * @methodtype boolean query
 	 */
 	public boolean hasNewPraise() {
-		return noVotes > noVotesAtLastNotification;
+		return getNoVotes() > noVotesAtLastNotification;
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void setNoNewPraise() {
-		noVotesAtLastNotification = noVotes;
+		noVotesAtLastNotification = getNoVotes();
+		PhotoMetadataStore.getInstance().updateIfPresent(this);
 		incWriteCount();
 	}
 }
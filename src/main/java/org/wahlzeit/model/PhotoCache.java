@@ -0,0 +1,595 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.model;
+
+import org.wahlzeit.model.persistence.ImageBytesStore;
+import org.wahlzeit.services.LogBuilder;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * A concurrent, size-bounded cache for photos. Every entry is weighed by the bytes of its scaled images, and the sum
+ * of all weights is kept below a configurable budget. Eviction follows the W-TinyLFU scheme: new entries enter a small
+ * LRU admission window; entries leaving the window only replace the main region's LRU victim if they were requested
+ * more often, as estimated by a count-min frequency sketch.
+ *
+ * Dirty photos and photos that have never been saved are pinned, since they could not be reloaded. For evicted photos
+ * the cache remembers their datastore id, so the photo manager can reload them on the next request. An evicted photo
+ * may still be used by a request, so it is only referenced weakly: as long as it is reachable it is handed out again
+ * instead of a second instance, and its images are released once it has been garbage collected.
+ */
+public class PhotoCache<V extends Photo> extends AbstractMap<PhotoId, V> {
+
+	private static final Logger log = Logger.getLogger(PhotoCache.class.getName());
+
+	/**
+	 * System property (see appengine-web.xml) to configure the byte budget of the cache
+	 */
+	public static final String MAX_BYTES_PROPERTY = "org.wahlzeit.photoCache.maxBytes";
+
+	/**
+	 *
+	 */
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	/**
+	 * Approximate heap footprint of a photo without its images
+	 */
+	public static final long ENTRY_OVERHEAD_BYTES = 1024;
+
+	/**
+	 *
+	 */
+	protected static final int WINDOW_PERCENTAGE = 1;
+	protected static final long EXPECTED_ENTRY_BYTES = 64L * 1024;
+
+	/**
+	 *
+	 */
+	protected final long maxBytes;
+	protected final long maxWindowBytes;
+
+	/**
+	 * Entries are read without locking; the eviction policy below is guarded by policyLock
+	 */
+	protected final ConcurrentHashMap<PhotoId, V> entries = new ConcurrentHashMap<PhotoId, V>();
+	protected final ConcurrentHashMap<PhotoId, Long> evictedDatastoreIds = new ConcurrentHashMap<PhotoId, Long>();
+
+	/**
+	 * Evicted photos that may still be in use; collectedPhotos receives them once they have been garbage collected
+	 */
+	protected final ConcurrentHashMap<PhotoId, EvictedPhoto<V>> evictedPhotos =
+			new ConcurrentHashMap<PhotoId, EvictedPhoto<V>>();
+	protected final Set<EvictedPhoto<V>> unreleasedPhotos = ConcurrentHashMap.newKeySet();
+	protected final ReferenceQueue<V> collectedPhotos = new ReferenceQueue<V>();
+
+	/**
+	 * Access-ordered regions, mapping photo ids to entry weights
+	 */
+	protected final ReentrantLock policyLock = new ReentrantLock();
+	protected final LinkedHashMap<PhotoId, Long> window = new LinkedHashMap<PhotoId, Long>(16, 0.75f, true);
+	protected final LinkedHashMap<PhotoId, Long> main = new LinkedHashMap<PhotoId, Long>(16, 0.75f, true);
+	protected long windowBytes = 0;
+	protected long mainBytes = 0;
+
+	/**
+	 *
+	 */
+	protected final FrequencySketch sketch;
+
+	/**
+	 *
+	 */
+	protected final AtomicLong hitCount = new AtomicLong();
+	protected final AtomicLong missCount = new AtomicLong();
+	protected final AtomicLong evictionCount = new AtomicLong();
+
+	/**
+	 * @methodtype constructor
+	 */
+	public PhotoCache() {
+		this(Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES));
+	}
+
+	/**
+	 * @methodtype constructor
+	 */
+	public PhotoCache(long maxBytes) {
+		if (maxBytes <= 0) {
+			throw new IllegalArgumentException("maxBytes must be positive");
+		}
+
+		this.maxBytes = maxBytes;
+		this.maxWindowBytes = Math.max(ENTRY_OVERHEAD_BYTES, maxBytes * WINDOW_PERCENTAGE / 100);
+		this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(256, maxBytes / EXPECTED_ENTRY_BYTES)));
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	@Override
+	public V get(Object key) {
+		V result = entries.get(key);
+		if (result == null) {
+			missCount.incrementAndGet();
+			return null;
+		}
+
+		hitCount.incrementAndGet();
+		PhotoId id = (PhotoId) key;
+		sketch.increment(id);
+		// reordering is best effort, a contended read must not wait for a writer
+		if (policyLock.tryLock()) {
+			try {
+				if (window.get(id) == null) {
+					main.get(id);
+				}
+			} finally {
+				policyLock.unlock();
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	@Override
+	public boolean containsKey(Object key) {
+		return entries.containsKey(key);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	@Override
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Adds or replaces a photo; replacing a photo recomputes its weight, e.g. after images have been attached.
+	 *
+	 * @methodtype command
+	 */
+	@Override
+	public V put(PhotoId id, V photo) {
+		if (id == null || photo == null) {
+			throw new IllegalArgumentException("PhotoCache does not accept null ids or photos");
+		}
+
+		long weight = weigh(photo);
+		policyLock.lock();
+		try {
+			V previous = entries.put(id, photo);
+			evictedDatastoreIds.remove(id);
+			EvictedPhoto<V> evictedPhoto = evictedPhotos.remove(id);
+			if (evictedPhoto != null && evictedPhoto.get() == photo) {
+				// readmitted, its images are in use again
+				unreleasedPhotos.remove(evictedPhoto);
+				evictedPhoto.clear();
+			}
+			sketch.increment(id);
+			removeFromRegions(id);
+			window.put(id, weight);
+			windowBytes += weight;
+			evictEntries();
+			return previous;
+		} finally {
+			policyLock.unlock();
+		}
+	}
+
+	/**
+	 * Recomputes the weight of a cached photo, e.g. after one of its images has been loaded, and evicts if the
+	 * budget is exceeded now.
+	 *
+	 * @methodtype command
+	 */
+	public void refreshWeight(PhotoId id) {
+		V photo = entries.get(id);
+		if (photo == null) {
+			return;
+		}
+
+		long weight = weigh(photo);
+		policyLock.lock();
+		try {
+			if (window.containsKey(id)) {
+				windowBytes += weight - window.put(id, weight);
+			} else if (main.containsKey(id)) {
+				mainBytes += weight - main.put(id, weight);
+			}
+			evictEntries();
+		} finally {
+			policyLock.unlock();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	public V remove(Object key) {
+		policyLock.lock();
+		try {
+			V result = entries.remove(key);
+			if (result != null) {
+				removeFromRegions((PhotoId) key);
+			}
+			return result;
+		} finally {
+			policyLock.unlock();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	public void clear() {
+		policyLock.lock();
+		try {
+			entries.clear();
+			evictedDatastoreIds.clear();
+			evictedPhotos.clear();
+			window.clear();
+			main.clear();
+			windowBytes = 0;
+			mainBytes = 0;
+		} finally {
+			policyLock.unlock();
+		}
+	}
+
+	/**
+	 * Read-only, weakly consistent view of the cached photos; use put and remove for modifications.
+	 *
+	 * @methodtype get
+	 */
+	@Override
+	public Set<Entry<PhotoId, V>> entrySet() {
+		return Collections.unmodifiableSet(entries.entrySet());
+	}
+
+	/**
+	 * Registers a photo that is known, e.g. from a catalog snapshot, but not loaded yet; it is treated like an evicted
+	 * photo and loaded on first access.
+	 *
+	 * @methodtype command
+	 */
+	public void registerUnloaded(PhotoId id, long datastoreId) {
+		if (!entries.containsKey(id)) {
+			evictedDatastoreIds.put(id, datastoreId);
+		}
+	}
+
+	/**
+	 * Returns the instance of a photo that has been evicted from the cache but is still in use, or null if there is no
+	 * such instance. It should be readmitted rather than reloaded, so that there is only ever one instance of a photo.
+	 *
+	 * @methodtype get
+	 */
+	public V getEvictedPhoto(PhotoId id) {
+		EvictedPhoto<V> evictedPhoto = evictedPhotos.get(id);
+		return evictedPhoto == null ? null : evictedPhoto.get();
+	}
+
+	/**
+	 * Returns the datastore id of a photo that has been evicted from the cache, or null if the photo is unknown.
+	 *
+	 * @methodtype get
+	 */
+	public Long getEvictedDatastoreId(PhotoId id) {
+		return evictedDatastoreIds.get(id);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public double getHitRate() {
+		long hits = hitCount.get();
+		long requests = hits + missCount.get();
+		return requests == 0 ? 1.0 : (double) hits / requests;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getWeightedSize() {
+		policyLock.lock();
+		try {
+			return windowBytes + mainBytes;
+		} finally {
+			policyLock.unlock();
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @methodtype get
+	 * @methodproperty primitive
+	 */
+	protected long weigh(V photo) {
+		return ENTRY_OVERHEAD_BYTES + photo.getSizeOfLoadedImages();
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	protected boolean isPinned(V photo) {
+		return photo.isDirty() || photo.getDatastoreId() == null;
+	}
+
+	/**
+	 * @methodtype command
+	 * @methodproperty primitive
+	 */
+	protected void removeFromRegions(PhotoId id) {
+		Long weight = window.remove(id);
+		if (weight != null) {
+			windowBytes -= weight;
+		}
+		weight = main.remove(id);
+		if (weight != null) {
+			mainBytes -= weight;
+		}
+	}
+
+	/**
+	 * Moves the overflow of the admission window into the main region and evicts until the budget is met. An entry
+	 * leaving the window competes with the main region's LRU victim; the less frequently used of both is evicted.
+	 *
+	 * @methodtype command
+	 */
+	protected void evictEntries() {
+		releaseCollectedPhotos();
+
+		List<PhotoId> candidates = new ArrayList<PhotoId>();
+		Iterator<Map.Entry<PhotoId, Long>> windowIterator = window.entrySet().iterator();
+		while (windowBytes > maxWindowBytes && windowIterator.hasNext()) {
+			Map.Entry<PhotoId, Long> entry = windowIterator.next();
+			windowIterator.remove();
+			windowBytes -= entry.getValue();
+			main.put(entry.getKey(), entry.getValue());
+			mainBytes += entry.getValue();
+			candidates.add(entry.getKey());
+		}
+
+		while (windowBytes + mainBytes > maxBytes) {
+			PhotoId candidate = null;
+			while (candidate == null && !candidates.isEmpty()) {
+				candidate = candidates.remove(candidates.size() - 1);
+				if (!main.containsKey(candidate) || isPinned(entries.get(candidate))) {
+					candidate = null;
+				}
+			}
+
+			PhotoId victim = findVictim(main, candidate);
+			if (victim == null) {
+				victim = findVictim(window, null);
+			}
+
+			if (candidate != null && victim != null) {
+				if (sketch.frequency(candidate) > sketch.frequency(victim)) {
+					candidates.add(candidate);
+				} else {
+					victim = candidate;
+				}
+			} else if (victim == null) {
+				victim = candidate;
+			}
+
+			if (victim == null) {
+				log.warning(LogBuilder.createSystemMessage().
+						addMessage("PhotoCache exceeds its budget, all remaining photos are pinned").
+						addParameter("weighted size", windowBytes + mainBytes).toString());
+				return;
+			}
+
+			evict(victim);
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected PhotoId findVictim(LinkedHashMap<PhotoId, Long> region, PhotoId exclude) {
+		for (PhotoId id : region.keySet()) {
+			if (!id.equals(exclude) && !isPinned(entries.get(id))) {
+				return id;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void evict(PhotoId id) {
+		V photo = entries.remove(id);
+		removeFromRegions(id);
+		if (photo != null) {
+			evictedDatastoreIds.put(id, photo.getDatastoreId());
+			EvictedPhoto<V> evictedPhoto = new EvictedPhoto<V>(id, photo, collectedPhotos);
+			evictedPhotos.put(id, evictedPhoto);
+			unreleasedPhotos.add(evictedPhoto);
+			evictionCount.incrementAndGet();
+			log.config(LogBuilder.createSystemMessage().
+					addAction("evict photo from cache").
+					addParameter("photo ID", id.asString()).toString());
+		}
+	}
+
+	/**
+	 * Releases the images of evicted photos that have been garbage collected.
+	 *
+	 * @methodtype command
+	 */
+	@SuppressWarnings("unchecked")
+	protected void releaseCollectedPhotos() {
+		EvictedPhoto<V> evictedPhoto;
+		while ((evictedPhoto = (EvictedPhoto<V>) collectedPhotos.poll()) != null) {
+			evictedPhotos.remove(evictedPhoto.id, evictedPhoto);
+			if (unreleasedPhotos.remove(evictedPhoto)) {
+				Photo.releaseImages(evictedPhoto.images);
+			}
+		}
+	}
+
+	/**
+	 * A weak reference to an evicted photo that keeps the photo's images, so they can be released after the photo
+	 * has been garbage collected.
+	 */
+	protected static class EvictedPhoto<V extends Photo> extends WeakReference<V> {
+
+		protected final PhotoId id;
+		protected final Map<PhotoSize, ImageBytesStore.Handle> images;
+
+		/**
+		 * @methodtype constructor
+		 */
+		protected EvictedPhoto(PhotoId id, V photo, ReferenceQueue<V> queue) {
+			super(photo, queue);
+			this.id = id;
+			this.images = photo.images;
+		}
+	}
+
+	/**
+	 * A count-min sketch with four rows of 4-bit counters, used to estimate how often a photo has been requested.
+	 * All counters are halved periodically so that the estimate favors recent popularity.
+	 */
+	protected static class FrequencySketch {
+
+		protected static final int ROWS = 4;
+		protected static final int MAX_COUNT = 15;
+		protected static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+		protected final byte[][] table;
+		protected final int mask;
+		protected final int sampleSize;
+		protected int additions = 0;
+
+		/**
+		 * @methodtype constructor
+		 */
+		protected FrequencySketch(int expectedEntries) {
+			int width = Integer.highestOneBit(Math.max(16, expectedEntries - 1) << 1);
+			table = new byte[ROWS][width];
+			mask = width - 1;
+			sampleSize = 10 * width;
+		}
+
+		/**
+		 * @methodtype command
+		 */
+		protected synchronized void increment(PhotoId id) {
+			boolean added = false;
+			for (int i = 0; i < ROWS; i++) {
+				int index = indexOf(id, i);
+				if (table[i][index] < MAX_COUNT) {
+					table[i][index]++;
+					added = true;
+				}
+			}
+
+			if (added && ++additions >= sampleSize) {
+				reset();
+			}
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		protected synchronized int frequency(PhotoId id) {
+			int result = MAX_COUNT;
+			for (int i = 0; i < ROWS; i++) {
+				result = Math.min(result, table[i][indexOf(id, i)]);
+			}
+			return result;
+		}
+
+		/**
+		 * @methodtype command
+		 */
+		protected void reset() {
+			for (byte[] row : table) {
+				for (int i = 0; i < row.length; i++) {
+					row[i] = (byte) (row[i] >>> 1);
+				}
+			}
+			additions /= 2;
+		}
+
+		/**
+		 * @methodtype get
+		 * @methodproperty primitive
+		 */
+		protected int indexOf(PhotoId id, int row) {
+			int hash = id.asInt() * SEEDS[row];
+			hash ^= hash >>> 16;
+			return hash & mask;
+		}
+	}
+
+}
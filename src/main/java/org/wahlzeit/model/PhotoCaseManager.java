@@ -27,6 +27,10 @@ import java.util.*;
 
 /**
  * The photo case manager provides access to and manages persistent photo cases.
+ *
+ * Open cases are saved together with updateObjects. Cases are added and removed one per request, so there is nothing
+ * to batch there: an added case is enlisted in the request's unit of work and saved in one batch with the other
+ * entities of the request, and a removed case is a single delete.
  */
 @DesignPattern(name = "Singleton", participants = {})
 public class PhotoCaseManager extends ObjectManager {
@@ -87,6 +91,8 @@ public class PhotoCaseManager extends ObjectManager {
 	}
 
 	/**
+	 * Inside a unit of work, the case is saved with the other entities of the request.
+	 *
 	 * @methodtype command
 	 */
 	public void addPhotoCase(PhotoCase myCase) {
@@ -20,24 +20,30 @@
 
 package org.wahlzeit.model;
 
-import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.StructuredLog;
+import org.wahlzeit.utils.CodecUtil;
+import org.wahlzeit.utils.IntBitmap;
 import org.wahlzeit.utils.StringUtil;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
-import java.util.logging.Logger;
+import java.util.function.IntConsumer;
 
 /**
  * A class to specify a photo filter.
  * A photo filter captures selection ("filtering") criteria for photos.
+ *
+ * Photo filters live in the HttpSession, so they are written with a compact codec instead of default serialization:
+ * photo ids as varints and the processed and skipped photos in their bitmap format.
  */
-public class PhotoFilter implements Serializable {
+public class PhotoFilter implements Externalizable {
 
-	private static Logger log = Logger.getLogger(PhotoFilter.class.getName());
+	private static final StructuredLog log = StructuredLog.getLog(PhotoFilter.class);
 
 	/**
 	 *
@@ -45,6 +51,11 @@ public class PhotoFilter implements Serializable {
 	public static final String USER_NAME = "userName";
 	public static final String TAGS = "tags";
 
+	/**
+	 *
+	 */
+	protected static final byte FORMAT_VERSION = 1;
+
 	/**
 	 *
 	 */
@@ -52,17 +63,22 @@ public class PhotoFilter implements Serializable {
 	protected Tags tags = Tags.EMPTY_TAGS;
 
 	/**
-	 *
+	 * Processed and skipped photos by the int value of their ids
 	 */
 	protected List<PhotoId> displayablePhotoIds;
-	protected List<PhotoId> processedPhotoIds = new LinkedList<PhotoId>();
-	protected List<PhotoId> skippedPhotoIds = new LinkedList<PhotoId>();
+	protected IntBitmap processedPhotoIds = new IntBitmap();
+	protected IntBitmap skippedPhotoIds = new IntBitmap();
 
 	/**
-	 *
+	 * Not written; a restored filter gets a new one
 	 */
 	protected Random randomNumber = new Random(System.currentTimeMillis());
 
+	/**
+	 * Counts modifications, so that the UserSession only writes the filter back to the HttpSession if it changed
+	 */
+	protected transient int writeCount = 0;
+
 	/**
 	 *
 	 */
@@ -81,6 +97,7 @@ public class PhotoFilter implements Serializable {
 	 *
 	 */
 	public void clear() {
+		incWriteCount();
 		setUserName("");
 		setTags(Tags.EMPTY_TAGS);
 		displayablePhotoIds.clear();
@@ -92,6 +109,7 @@ public class PhotoFilter implements Serializable {
 	 */
 	public void setUserName(String newUserName) {
 		userName = newUserName;
+		incWriteCount();
 		resetDisplayablePhotoIds();
 	}
 
@@ -107,9 +125,24 @@ public class PhotoFilter implements Serializable {
 	 */
 	public void setTags(Tags newTags) {
 		tags = newTags;
+		incWriteCount();
 		resetDisplayablePhotoIds();
 	}
 
+	/**
+	 * @methodtype get
+	 */
+	public int getWriteCount() {
+		return writeCount;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void incWriteCount() {
+		writeCount++;
+	}
+
 	/**
 	 *
 	 */
@@ -141,19 +174,31 @@ public class PhotoFilter implements Serializable {
 	 */
 	public void generateDisplayablePhotoIds() {
 		displayablePhotoIds = getFilteredPhotoIds();
+		incWriteCount();
 	}
 
 	/**
-	 * Get a random photo that has not been rated. If possible avoid skipped photos.
+	 * Get a random photo that has not been rated. If possible avoid skipped photos. The photo is drawn uniformly from
+	 * the visible photos that match the filter, without listing them first.
 	 */
 	public PhotoId getRandomDisplayablePhotoId() {
-		if (!displayablePhotoIds.isEmpty()) {
-			int size = displayablePhotoIds.size();
-			int index = ((randomNumber.nextInt() % size) + size) / 2;
-			return displayablePhotoIds.get(index);
+		PhotoManager photoManager = PhotoManager.getInstance();
+		PhotoSampler sampler = new PhotoSampler(randomNumber);
+		List<String> filterConditions = getFilterConditions();
+
+		int result;
+		if (filterConditions.isEmpty()) {
+			result = photoManager.getPhotoTagIndex().sampleVisiblePhoto(sampler, processedPhotoIds, skippedPhotoIds);
 		} else {
-			return PhotoId.NULL_ID;
+			// the candidates are shared with other sessions that use the same conditions
+			IntBitmap candidates = photoManager.getPhotoTagIndex().getSharedVisiblePhotos(filterConditions);
+			result = sampler.sample(candidates, processedPhotoIds, skippedPhotoIds);
+		}
+		if (result < 0) {
+			result = sampler.sample(skippedPhotoIds);
 		}
+
+		return result < 0 ? PhotoId.NULL_ID : PhotoId.getIdFromInt(result);
 	}
 
 	/**
@@ -168,6 +213,7 @@ public class PhotoFilter implements Serializable {
 	 */
 	public void setDisplayablePhotoIds(List<PhotoId> newPhotoIds) {
 		displayablePhotoIds = newPhotoIds;
+		incWriteCount();
 	}
 
 	/**
@@ -175,12 +221,13 @@ public class PhotoFilter implements Serializable {
 	 */
 	public void resetDisplayablePhotoIds() {
 		displayablePhotoIds = new ArrayList<PhotoId>();
+		incWriteCount();
 	}
 
 	/**
-	 *
+	 * Callers that modify the result have to call incWriteCount().
 	 */
-	public List<PhotoId> getProcessedPhotoIds() {
+	public IntBitmap getProcessedPhotoIds() {
 		return processedPhotoIds;
 	}
 
@@ -188,11 +235,7 @@ public class PhotoFilter implements Serializable {
 	 *
 	 */
 	public boolean isProcessedPhotoId(PhotoId photoId) {
-		log.info("photoId: " + photoId.asString());
-		for (PhotoId id : processedPhotoIds) {
-			log.info("Processed id: " + id.asString());
-		}
-		return processedPhotoIds.contains(photoId);
+		return processedPhotoIds.contains(photoId.asInt());
 	}
 
 	/**
@@ -200,8 +243,9 @@ public class PhotoFilter implements Serializable {
 	 */
 	public void addProcessedPhoto(Photo photo) {
 		PhotoId photoId = photo.getId();
-		processedPhotoIds.add(photoId);
-		skippedPhotoIds.remove(photoId);
+		incWriteCount();
+		processedPhotoIds.add(photoId.asInt());
+		skippedPhotoIds.remove(photoId.asInt());
 		if (displayablePhotoIds != null) {
 			displayablePhotoIds.remove(photoId);
 		}
@@ -209,25 +253,28 @@ public class PhotoFilter implements Serializable {
 
 
 	/**
+	 * Callers that modify the result have to call incWriteCount().
+	 *
 	 * @methodtype get
 	 */
-	public List<PhotoId> getSkippedPhotoIds() {
+	public IntBitmap getSkippedPhotoIds() {
 		return skippedPhotoIds;
 	}
 
 	/**
 	 * @methodtype set
 	 */
-	public void setSkippedPhotoIds(List<PhotoId> skippedPhotoIds) {
+	public void setSkippedPhotoIds(IntBitmap skippedPhotoIds) {
 		this.skippedPhotoIds = skippedPhotoIds;
+		incWriteCount();
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void addSkippedPhotoId(PhotoId skippedPhotoId) {
-		if (!skippedPhotoIds.contains(skippedPhotoId)) {
-			skippedPhotoIds.add(skippedPhotoId);
+		if (skippedPhotoIds.add(skippedPhotoId.asInt())) {
+			incWriteCount();
 		}
 	}
 
@@ -236,44 +283,101 @@ public class PhotoFilter implements Serializable {
 	 */
 	protected List<PhotoId> getFilteredPhotoIds() {
 		// get all tags that match the filter conditions
-		List<PhotoId> result = new LinkedList<PhotoId>();
+		List<PhotoId> result = new ArrayList<PhotoId>();
 		int noFilterConditions = getFilterConditions().size();
-		log.config(LogBuilder.createSystemMessage().
-				addParameter("Number of filter conditions", String.valueOf(noFilterConditions)).toString());
+		log.config().addParameter("Number of filter conditions", noFilterConditions).log();
 
-		Collection<PhotoId> candidates;
+		// all candidates are visible; photos that match the filter are found in the tag index
 		if (noFilterConditions == 0) {
-			candidates = PhotoManager.getInstance().getPhotoCache().keySet();
-		} else {
-			List<Tag> tags = new LinkedList<Tag>();
-			candidates = new LinkedList<PhotoId>();
-			for (String condition : getFilterConditions()) {
-				PhotoManager.getInstance().addTagsThatMatchCondition(tags, condition);
-			}
-			// get the list of all photo ids that correspond to the tags
-			for (Tag tag : tags) {
-				candidates.add(PhotoId.getIdFromString(tag.getPhotoId()));
+			for (PhotoId candidateId : PhotoManager.getInstance().getVisiblePhotoIds()) {
+				int id = candidateId.asInt();
+				if (!processedPhotoIds.contains(id) && !skippedPhotoIds.contains(id)) {
+					result.add(candidateId);
+				}
 			}
+		} else {
+			IntBitmap candidates = PhotoManager.getInstance().getVisiblePhotosWithTags(getFilterConditions());
+			candidates.andNot(processedPhotoIds);
+			candidates.andNot(skippedPhotoIds);
+			addPhotoIds(result, candidates);
 		}
 
-		int newPhotos = 0;
-		for (PhotoId candidateId : candidates) {
-			Photo photoCandidate = PhotoManager.getInstance().getPhoto(candidateId);
-			if (!processedPhotoIds.contains(candidateId) && !skippedPhotoIds.contains(candidateId) &&
-					photoCandidate.isVisible()) {
-				result.add(candidateId);
-				++newPhotos;
+		int newPhotos = result.size();
+		if (newPhotos == 0 && !skippedPhotoIds.isEmpty()) {
+			addPhotoIds(result, skippedPhotoIds);
+			newPhotos = result.size();
+		}
+
+		log.config().addParameter("Number of photos to show", newPhotos).log();
+
+		return result;
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	protected void addPhotoIds(final List<PhotoId> photoIds, IntBitmap ids) {
+		ids.forEach(new IntConsumer() {
+			@Override
+			public void accept(int id) {
+				photoIds.add(PhotoId.getIdFromInt(id));
+			}
+		});
+	}
+
+
+	// serialization ---------------------------------------------------------------------------------------------------
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeByte(FORMAT_VERSION);
+		CodecUtil.writeString(out, userName);
+		CodecUtil.writeString(out, tags.asString());
+
+		if (displayablePhotoIds == null) {
+			CodecUtil.writeVarInt(out, 0);
+		} else {
+			CodecUtil.writeVarInt(out, displayablePhotoIds.size() + 1);
+			for (PhotoId photoId : displayablePhotoIds) {
+				CodecUtil.writeVarInt(out, photoId.asInt());
 			}
 		}
-		int skippedPhotos = skippedPhotoIds.size();
-		if (newPhotos == 0 && skippedPhotos > 0) {
-			result.addAll(skippedPhotoIds);
-			newPhotos = skippedPhotos;
+
+		processedPhotoIds.writeTo(out);
+		skippedPhotoIds.writeTo(out);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	public void readExternal(ObjectInput in) throws IOException {
+		byte version = in.readByte();
+		if (version != FORMAT_VERSION) {
+			throw new IOException("unknown photo filter format version: " + version);
 		}
 
-		log.config(LogBuilder.createSystemMessage().addParameter("Number of photos to show", newPhotos)
-				.toString());
+		userName = CodecUtil.readString(in);
+		String tagsString = CodecUtil.readString(in);
+		tags = StringUtil.isNullOrEmptyString(tagsString) ? Tags.EMPTY_TAGS : new Tags(tagsString);
 
-		return result;
+		int noDisplayablePhotoIds = CodecUtil.readVarInt(in) - 1;
+		if (noDisplayablePhotoIds < 0) {
+			displayablePhotoIds = null;
+		} else {
+			displayablePhotoIds = new ArrayList<PhotoId>(noDisplayablePhotoIds);
+			for (int i = 0; i < noDisplayablePhotoIds; i++) {
+				displayablePhotoIds.add(PhotoId.getIdFromInt(CodecUtil.readVarInt(in)));
+			}
+		}
+
+		processedPhotoIds = new IntBitmap();
+		processedPhotoIds.readFrom(in);
+		skippedPhotoIds = new IntBitmap();
+		skippedPhotoIds.readFrom(in);
 	}
+
 }
@@ -155,6 +155,19 @@ public class PhotoId implements Serializable {
 		stringValue = getFromInt(myValue);
 	}
 
+	/**
+	 * Restores the canonical instance, so that identity checks like isNullId() hold for deserialized ids.
+	 *
+	 * @methodtype conversion
+	 */
+	protected Object readResolve() {
+		if (value == 0) {
+			return NULL_ID;
+		}
+		PhotoId result = getIdFromInt(value);
+		return result.isNullId() ? this : result;
+	}
+
 	/**
 	 *
 	 */
@@ -0,0 +1,352 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.model;
+
+import org.wahlzeit.utils.IntBitmap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+
+/**
+ * The best photos by praise, overall and per tag. Each ranking is kept up to date by the setters of Photo, so that a
+ * vote costs O(log size) per ranking and showing the best photos needs no scan over all photos. Only visible photos
+ * with a minimum number of votes are ranked.
+ *
+ * Rankings read the praise from the PhotoMetadataStore and the tags from the PhotoTagIndex while holding their lock;
+ * as every change updates the rankings after those, the last update of a photo always sees its latest state.
+ */
+public class PhotoLeaderboard {
+
+	/**
+	 * System properties (see appengine-web.xml) to configure the leaderboard
+	 */
+	public static final String SIZE_PROPERTY = "org.wahlzeit.leaderboard.size";
+	public static final String MIN_VOTES_PROPERTY = "org.wahlzeit.leaderboard.minVotes";
+	public static final int DEFAULT_SIZE = 20;
+	public static final int DEFAULT_MIN_VOTES = 3;
+
+	/**
+	 * Maximum number of kept rankings; a ranking of a further tag replaces the least recently used one
+	 */
+	public static final int MAX_RANKINGS = 64;
+
+	/**
+	 * The key of the ranking of all photos
+	 */
+	protected static final String ALL_PHOTOS = "";
+
+	/**
+	 *
+	 */
+	private static PhotoLeaderboard instance = null;
+
+	/**
+	 * @methodtype get
+	 */
+	public static synchronized PhotoLeaderboard getInstance() {
+		if (instance == null) {
+			instance = new PhotoLeaderboard(PhotoMetadataStore.getInstance(), PhotoTagIndex.getInstance());
+		}
+		return instance;
+	}
+
+	/**
+	 *
+	 */
+	protected final PhotoMetadataStore photoMetadata;
+	protected final PhotoTagIndex photoTagIndex;
+	protected final int size;
+	protected final int minVotes;
+
+	/**
+	 * Rankings by the term of their tag, or ALL_PHOTOS
+	 */
+	protected final ConcurrentHashMap<String, PhotoRanking> rankings = new ConcurrentHashMap<String, PhotoRanking>();
+
+	/**
+	 * The time of the last request of each ranking, in ticks of the access clock
+	 */
+	protected final ConcurrentHashMap<String, Long> lastAccesses = new ConcurrentHashMap<String, Long>();
+	protected final AtomicLong accessClock = new AtomicLong();
+
+	/**
+	 * @methodtype constructor
+	 */
+	public PhotoLeaderboard(PhotoMetadataStore photoMetadata, PhotoTagIndex photoTagIndex) {
+		this(photoMetadata, photoTagIndex, Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE),
+				Integer.getInteger(MIN_VOTES_PROPERTY, DEFAULT_MIN_VOTES));
+	}
+
+	/**
+	 * @methodtype constructor
+	 */
+	public PhotoLeaderboard(PhotoMetadataStore photoMetadata, PhotoTagIndex photoTagIndex, int size, int minVotes) {
+		this.photoMetadata = photoMetadata;
+		this.photoTagIndex = photoTagIndex;
+		this.size = Math.max(1, size);
+		this.minVotes = minVotes;
+	}
+
+
+	// write methods ---------------------------------------------------------------------------------------------------
+
+	/**
+	 * Updates the rankings of a photo that has been added to the PhotoManager; other photos are ignored.
+	 *
+	 * @methodtype set
+	 */
+	public void update(Photo photo) {
+		PhotoId id = photo.getId();
+		if (id != null && photoTagIndex.contains(id.asInt())) {
+			update(id.asInt());
+		}
+	}
+
+	/**
+	 * Updates all rankings, as a change of the status or the tags may add the photo to or remove it from any of them.
+	 *
+	 * @methodtype set
+	 */
+	public void update(int id) {
+		for (Map.Entry<String, PhotoRanking> entry : rankings.entrySet()) {
+			updateRanking(entry.getKey(), entry.getValue(), id);
+		}
+	}
+
+	/**
+	 * Updates the rankings of a photo after a vote. Praise does not change the tags, so only the ranking of all photos
+	 * and those of the photo's tags are affected.
+	 *
+	 * @methodtype set
+	 */
+	public void updatePraise(Photo photo) {
+		PhotoId id = photo.getId();
+		String[] terms = id == null ? null : photoTagIndex.getTerms(id.asInt());
+		if (terms != null) {
+			updatePraise(id.asInt(), terms);
+		}
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	protected void updatePraise(int id, String[] terms) {
+		PhotoRanking ranking = rankings.get(ALL_PHOTOS);
+		if (ranking != null) {
+			updateRanking(ALL_PHOTOS, ranking, id);
+		}
+		for (String term : terms) {
+			ranking = rankings.get(term);
+			if (ranking != null) {
+				updateRanking(term, ranking, id);
+			}
+		}
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	protected void updateRanking(String term, PhotoRanking ranking, int id) {
+		synchronized (ranking) {
+			PhotoRanking.Entry rankingEntry = makeEntry(term, id);
+			if (rankingEntry != null) {
+				ranking.update(id, rankingEntry.getPraise(), rankingEntry.getNoVotes());
+			} else {
+				ranking.remove(id);
+			}
+		}
+	}
+
+	/**
+	 * Drops all rankings, e.g. after the photos have been reloaded.
+	 *
+	 * @methodtype command
+	 */
+	public synchronized void clear() {
+		rankings.clear();
+		lastAccesses.clear();
+	}
+
+
+	// read methods ----------------------------------------------------------------------------------------------------
+
+	/**
+	 * Returns the ids of the best photos, overall if the tag is empty, in descending order of praise. Tags that no
+	 * photo carries get no ranking, so that requests for arbitrary tags do not replace the rankings of real ones.
+	 *
+	 * @methodtype get
+	 */
+	public List<PhotoId> getTopPhotoIds(String tag) {
+		String term = (tag == null || tag.isEmpty()) ? ALL_PHOTOS : "tg:" + Tags.asTag(tag);
+		if (!ALL_PHOTOS.equals(term) && !photoTagIndex.containsTerm(term)) {
+			return new ArrayList<PhotoId>();
+		}
+
+		PhotoRanking ranking = getRanking(term);
+
+		List<Integer> ids;
+		synchronized (ranking) {
+			ids = ranking.getTop(size);
+			if (ids == null) {
+				ranking.rebuild(getEntries(term));
+				ids = ranking.getTop(size);
+			}
+		}
+
+		List<PhotoId> result = new ArrayList<PhotoId>(ids.size());
+		for (int id : ids) {
+			result.add(PhotoId.getIdFromInt(id));
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the ranking of the term, registering a new one if needed, and marks it as used.
+	 *
+	 * @methodtype get
+	 */
+	protected PhotoRanking getRanking(String term) {
+		PhotoRanking result = rankings.get(term);
+		if (result == null) {
+			result = registerRanking(term);
+		}
+		lastAccesses.put(term, accessClock.incrementAndGet());
+		return result;
+	}
+
+	/**
+	 * Registers a new ranking, evicting the least recently used one if there are too many rankings already; the
+	 * ranking of all photos is never evicted.
+	 *
+	 * @methodtype command
+	 */
+	protected synchronized PhotoRanking registerRanking(String term) {
+		PhotoRanking result = rankings.get(term);
+		if (result == null) {
+			if (rankings.size() >= MAX_RANKINGS) {
+				evictLeastRecentlyUsedRanking();
+			}
+			result = new PhotoRanking(2 * size);
+			lastAccesses.put(term, accessClock.incrementAndGet());
+			rankings.put(term, result);
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void evictLeastRecentlyUsedRanking() {
+		String victim = null;
+		long victimAccess = Long.MAX_VALUE;
+		for (String term : rankings.keySet()) {
+			Long lastAccess = lastAccesses.get(term);
+			long access = lastAccess == null ? 0 : lastAccess;
+			if (!ALL_PHOTOS.equals(term) && access < victimAccess) {
+				victim = term;
+				victimAccess = access;
+			}
+		}
+
+		if (victim != null) {
+			rankings.remove(victim);
+		}
+		// also drops the accesses of rankings that have been evicted while they were requested
+		lastAccesses.keySet().retainAll(rankings.keySet());
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNoRankings() {
+		return rankings.size();
+	}
+
+	/**
+	 * Returns the entries of all eligible photos for a ranking; the candidates come from the tag index.
+	 *
+	 * @methodtype factory
+	 */
+	protected List<PhotoRanking.Entry> getEntries(final String term) {
+		IntBitmap candidates;
+		if (ALL_PHOTOS.equals(term)) {
+			candidates = photoTagIndex.getVisiblePhotos();
+		} else {
+			candidates = photoTagIndex.getSharedVisiblePhotos(Collections.singletonList(term));
+		}
+
+		final List<PhotoRanking.Entry> result = new ArrayList<PhotoRanking.Entry>();
+		candidates.forEach(new IntConsumer() {
+			@Override
+			public void accept(int id) {
+				PhotoRanking.Entry entry = makeEntry(ALL_PHOTOS, id);
+				if (entry != null) {
+					result.add(entry);
+				}
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Returns the entry of a photo, or null if the photo is not eligible for the ranking of the term.
+	 *
+	 * @methodtype factory
+	 */
+	protected PhotoRanking.Entry makeEntry(String term, int id) {
+		if (!photoMetadata.isVisible(id)) {
+			return null;
+		}
+
+		// the sum and the number of votes are read as one snapshot, so that they belong to the same vote
+		long praise = photoMetadata.getPraise(id);
+		int noVotes = PraiseCounter.getNoVotes(praise);
+		if (noVotes < minVotes || noVotes <= 0) {
+			return null;
+		}
+
+		if (!ALL_PHOTOS.equals(term) && !photoTagIndex.hasTerm(term, id)) {
+			return null;
+		}
+
+		return new PhotoRanking.Entry(id, PraiseCounter.getPraise(praise), noVotes);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getMinVotes() {
+		return minVotes;
+	}
+
+}
@@ -21,17 +21,26 @@
 package org.wahlzeit.model;
 
 import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesServiceFactory;
 import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.VoidWork;
 import com.googlecode.objectify.Work;
+import org.wahlzeit.model.persistence.CatalogSnapshot;
+import org.wahlzeit.model.persistence.CatalogSnapshotStore;
+import org.wahlzeit.model.persistence.ImageBytesStore;
 import org.wahlzeit.model.persistence.ImageStorage;
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.services.ObjectManager;
 import org.wahlzeit.services.Persistent;
+import org.wahlzeit.services.WriteBehindQueue;
 import org.wahlzeit.utils.DesignPattern;
+import org.wahlzeit.utils.IntBitmap;
 
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 /**
@@ -48,20 +57,79 @@ public class PhotoManager extends ObjectManager {
 	private static final Logger log = Logger.getLogger(PhotoManager.class.getName());
 
 	/**
-	 * In-memory cache for photos
+	 * Number of photos that are fetched from the datastore with one batch load at startup
 	 */
-	protected Map<PhotoId, Photo> photoCache = new HashMap<PhotoId, Photo>();
+	public static final int LOAD_CHUNK_SIZE = 100;
+
+	/**
+	 *
+	 */
+	public static final String SNAPSHOT_NAME = "photos.snapshot";
+
+	/**
+	 * Saves that happened shortly before a scan of the catalog are caught up again, to tolerate clock skew
+	 */
+	protected static final long SNAPSHOT_CLOCK_SKEW_MILLIS = 60 * 1000;
+
+	/**
+	 * In-memory cache for photos, bounded by the bytes of their images
+	 */
+	protected PhotoCache<Photo> photoCache = new PhotoCache<Photo>();
+
+	/**
+	 * Ids of all known photos, including those that have been evicted from the cache
+	 */
+	protected Set<PhotoId> photoIds = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Metadata of all known photos, for scans that should not touch the Photo objects
+	 */
+	protected PhotoMetadataStore photoMetadata = PhotoMetadataStore.getInstance();
+
+	/**
+	 * Photos by their tags, to find the candidates of a photo filter without datastore queries
+	 */
+	protected PhotoTagIndex photoTagIndex = PhotoTagIndex.getInstance();
+
+	/**
+	 * The best photos by praise, kept up to date as photos are added and praised
+	 */
+	protected PhotoLeaderboard photoLeaderboard = PhotoLeaderboard.getInstance();
+
+	/**
+	 * Catalog metadata of all saved photos, written to the shared catalog snapshot
+	 */
+	protected Map<PhotoId, CatalogSnapshot.PhotoRecord> catalogRecords =
+			new ConcurrentHashMap<PhotoId, CatalogSnapshot.PhotoRecord>();
+
+	/**
+	 * Start time of the last full scan or catch-up query, minus the clock skew; photos that other instances saved
+	 * after it may be unknown here, so it is the high-water mark of the snapshots this instance writes
+	 */
+	protected volatile long catalogSyncTime = 0;
 
 	/**
 	 *
 	 */
 	protected PhotoTagCollector photoTagCollector = null;
 
+	/**
+	 * The tags of each photo as last written to the datastore; photos without entry have not been written since load
+	 */
+	protected Map<PhotoId, Set<String>> persistedTags = new ConcurrentHashMap<PhotoId, Set<String>>();
+
 	/**
 	 *
 	 */
 	public PhotoManager() {
 		photoTagCollector = PhotoFactory.getInstance().createPhotoTagCollector();
+		photoTagIndex.setPhotoTagCollector(photoTagCollector);
+		WriteBehindQueue.getInstance().registerWriter(Photo.class, new WriteBehindQueue.Writer() {
+			@Override
+			public void write(List<Persistent> objects) {
+				updateObjects(objects);
+			}
+		});
 	}
 
 	/**
@@ -120,6 +188,9 @@ public class PhotoManager extends ObjectManager {
 
 		if (result == null) {
 			result = PhotoFactory.getInstance().loadPhoto(id);
+			if (result == null) {
+				result = reloadEvictedPhoto(photoCache, Photo.class, id);
+			}
 			if (result != null) {
 				doAddPhoto(result);
 			}
@@ -128,6 +199,94 @@ public class PhotoManager extends ObjectManager {
 		return result;
 	}
 
+	/**
+	 * @methodtype command
+	 *
+	 * Reloads a photo that has been evicted from the cache; its images are loaded on demand. An evicted instance that
+	 * is still in use is returned instead, so that it is not modified next to a copy. Returns null if the photo has
+	 * never been evicted from the cache.
+	 */
+	protected <P extends Photo> P reloadEvictedPhoto(PhotoCache<P> cache, Class<P> type, PhotoId id) {
+		P evictedPhoto = cache.getEvictedPhoto(id);
+		if (evictedPhoto != null) {
+			return evictedPhoto;
+		}
+
+		Long datastoreId = cache.getEvictedDatastoreId(id);
+		if (datastoreId == null) {
+			return null;
+		}
+
+		log.config(LogBuilder.createSystemMessage().
+				addAction("reload evicted photo").
+				addParameter("photo ID", id.asString()).toString());
+		return readObject(type, applicationRootKey, datastoreId);
+	}
+
+	/**
+	 * Returns the photos with the given ids that exist; photos that have been evicted from the cache are reloaded in
+	 * batch calls instead of one by one.
+	 *
+	 * @methodtype get
+	 */
+	public List<Photo> getPhotosFromIds(Collection<PhotoId> ids) {
+		reloadEvictedPhotos(ids);
+
+		List<Photo> result = new ArrayList<Photo>(ids.size());
+		for (PhotoId id : ids) {
+			Photo photo = getPhotoFromId(id);
+			if (photo != null) {
+				result.add(photo);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void reloadEvictedPhotos(Collection<PhotoId> ids) {
+		reloadEvictedPhotos(photoCache, Photo.class, ids, new Consumer<Photo>() {
+			@Override
+			public void accept(Photo photo) {
+				addLoadedPhoto(photo);
+			}
+		});
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Reloads the photos among the given ids that have been evicted from the cache and hands them to the consumer;
+	 * evicted instances that are still in use are handed over instead of being reloaded.
+	 */
+	protected <P extends Photo> void reloadEvictedPhotos(PhotoCache<P> cache, Class<P> type, Collection<PhotoId> ids,
+														 Consumer<P> consumer) {
+		List<Long> datastoreIds = new ArrayList<Long>();
+		for (PhotoId id : ids) {
+			if (cache.containsKey(id)) {
+				continue;
+			}
+
+			P evictedPhoto = cache.getEvictedPhoto(id);
+			Long datastoreId = cache.getEvictedDatastoreId(id);
+			if (evictedPhoto != null) {
+				consumer.accept(evictedPhoto);
+			} else if (datastoreId != null) {
+				datastoreIds.add(datastoreId);
+			}
+		}
+
+		if (!datastoreIds.isEmpty()) {
+			log.config(LogBuilder.createSystemMessage().
+					addAction("reload evicted photos").
+					addParameter("number of photos", datastoreIds.size()).toString());
+			for (P photo : readObjectsByIds(type, applicationRootKey, datastoreIds).values()) {
+				consumer.accept(photo);
+			}
+		}
+	}
+
 	/**
 	 * @methodtype get
 	 * @methodproperties primitive
@@ -142,6 +301,21 @@ public class PhotoManager extends ObjectManager {
 	 */
 	protected void doAddPhoto(Photo myPhoto) {
 		photoCache.put(myPhoto.getId(), myPhoto);
+		registerPhoto(myPhoto);
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Registers a photo that has been added to the cache with the id set, metadata store, tag index, leaderboard and
+	 * catalog; shared by all subclasses, whatever cache they use.
+	 */
+	protected void registerPhoto(Photo photo) {
+		photoIds.add(photo.getId());
+		photoMetadata.update(photo);
+		photoTagIndex.update(photo);
+		photoLeaderboard.update(photo);
+		updateCatalogRecord(photo);
 	}
 
 	/**
@@ -152,42 +326,192 @@ public class PhotoManager extends ObjectManager {
 	}
 
 	/**
-	 * @methodtype init Loads all Photos from the Datastore and holds them in the cache
+	 * @methodtype init Loads the photo catalog from the shared snapshot, or all Photos from the Datastore if there is
+	 * no snapshot, and writes a fresh snapshot for the next start
 	 */
 	public void init() {
-		loadPhotos();
+		if (!loadPhotosFromSnapshot()) {
+			loadPhotos();
+		}
+		photoLeaderboard.clear();
+		writeCatalogSnapshot();
 	}
 
 	/**
 	 * @methodtype command
 	 *
-	 * Load all persisted photos. Executed when Wahlzeit is restarted.
+	 * Registers the photos of the catalog snapshot without loading them; they are loaded on first access. Photos that
+	 * have been saved after the snapshot's high-water mark are loaded from the datastore. Returns false if there is
+	 * no usable snapshot.
 	 */
-	public void loadPhotos() {
-		Collection<Photo> existingPhotos = ObjectifyService.run(new Work<Collection<Photo>>() {
+	protected boolean loadPhotosFromSnapshot() {
+		CatalogSnapshot snapshot = CatalogSnapshotStore.getInstance().read(SNAPSHOT_NAME);
+		if (snapshot == null) {
+			return false;
+		}
+
+		PhotoCache<? extends Photo> cache = getPhotoCache();
+		for (CatalogSnapshot.PhotoRecord record : snapshot.getPhotoRecords()) {
+			PhotoId id = PhotoId.getIdFromInt(record.getPhotoId());
+			if (!id.isNullId()) {
+				catalogRecords.put(id, record);
+				photoMetadata.update(record);
+				photoTagIndex.update(record);
+				photoIds.add(id);
+				cache.registerUnloaded(id, record.getDatastoreId());
+			}
+		}
+
+		loadPhotosModifiedSince(snapshot.getHighWaterMark());
+
+		log.info(LogBuilder.createSystemMessage().addMessage("Photo catalog loaded from snapshot.")
+				.addParameter("number of photos", snapshot.getPhotoRecords().size()).toString());
+		return true;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void loadPhotosModifiedSince(final long time) {
+		long syncTime = System.currentTimeMillis() - SNAPSHOT_CLOCK_SKEW_MILLIS;
+		Collection<Photo> modifiedPhotos = ObjectifyService.run(new Work<Collection<Photo>>() {
 			@Override
 			public Collection<Photo> run() {
-				Collection<Photo> existingPhotos = new ArrayList<Photo>();
-				readObjects(existingPhotos, Photo.class);
-				return existingPhotos;
+				Collection<Photo> modifiedPhotos = new ArrayList<Photo>();
+				readObjects(modifiedPhotos, Photo.class, Photo.MODIFICATION_TIME + " >=", time);
+				return modifiedPhotos;
 			}
 		});
 
-		for (Photo photo : existingPhotos) {
-			if (!doHasPhoto(photo.getId())) {
-				log.config(LogBuilder.createSystemMessage().
-						addParameter("Load Photo with ID", photo.getIdAsString()).toString());
-				loadScaledImages(photo);
-				doAddPhoto(photo);
-			} else {
-				log.config(LogBuilder.createSystemMessage().
-						addParameter("Already loaded Photo", photo.getIdAsString()).toString());
-			}
+		for (Photo photo : modifiedPhotos) {
+			addLoadedPhoto(photo);
 		}
+		catalogSyncTime = syncTime;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Writes the catalog records of all saved photos to the shared catalog snapshot. Executed after startup, periodically
+	 * and on shutdown. The high-water mark is the time of the last full scan or catch-up query, as only photos saved
+	 * before it are known to be in the catalog.
+	 */
+	public void writeCatalogSnapshot() {
+		long highWaterMark = catalogSyncTime;
+		for (Photo photo : getPhotoCache().values()) {
+			updateCatalogRecord(photo);
+		}
+
+		CatalogSnapshot snapshot = new CatalogSnapshot(highWaterMark, catalogRecords.values(),
+				Collections.<CatalogSnapshot.UserRecord>emptyList());
+		try {
+			CatalogSnapshotStore.getInstance().write(SNAPSHOT_NAME, snapshot);
+		} catch (IOException e) {
+			log.warning(LogBuilder.createSystemMessage().
+					addException("Could not write photo catalog snapshot", e).toString());
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Refreshes the catalog record of a photo; photos that have never been saved have no record.
+	 */
+	protected void updateCatalogRecord(Photo photo) {
+		Long datastoreId = photo.getDatastoreId();
+		if (datastoreId != null) {
+			long praise = photo.getPraiseSnapshot();
+			catalogRecords.put(photo.getId(), new CatalogSnapshot.PhotoRecord(photo.getId().asInt(), datastoreId,
+					photo.getOwnerId(), photo.getStatus().asInt(), PraiseCounter.getPraiseSum(praise),
+					PraiseCounter.getNoVotes(praise), photo.getNoVotesAtLastNotification(), photo.getWidth(),
+					photo.getHeight(), photo.getCreationTime(), photo.getTags().asString()));
+		}
+	}
+
+	/**
+	 * Checks visibility in the metadata store, without loading photos that are not in memory.
+	 *
+	 * @methodtype boolean-query
+	 */
+	public boolean isVisiblePhoto(PhotoId id) {
+		if (photoMetadata.contains(id.asInt())) {
+			return photoMetadata.isVisible(id.asInt());
+		}
+
+		Photo photo = getPhoto(id);
+		return photo != null && photo.isVisible();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public List<PhotoId> getVisiblePhotoIds() {
+		return photoMetadata.getVisiblePhotoIds();
+	}
+
+	/**
+	 * Returns the int ids of the visible photos that carry at least one of the given tags, e.g. "un:name" or "tg:tag".
+	 *
+	 * @methodtype get
+	 */
+	public IntBitmap getVisiblePhotosWithTags(Collection<String> tags) {
+		return photoTagIndex.getVisiblePhotos(tags);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public PhotoTagIndex getPhotoTagIndex() {
+		return photoTagIndex;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public PhotoMetadataStore getPhotoMetadata() {
+		return photoMetadata;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Load all persisted photos. Executed when Wahlzeit is restarted. Only metadata is loaded, images are fetched from
+	 * the image storage on first access, see loadScaledImage.
+	 */
+	public void loadPhotos() {
+		long syncTime = System.currentTimeMillis() - SNAPSHOT_CLOCK_SKEW_MILLIS;
+		ObjectifyService.run(new VoidWork() {
+			@Override
+			public void vrun() {
+				readObjectsInChunks(Photo.class, LOAD_CHUNK_SIZE, new Consumer<List<Photo>>() {
+					@Override
+					public void accept(List<Photo> photos) {
+						for (Photo photo : photos) {
+							addLoadedPhoto(photo);
+						}
+					}
+				});
+			}
+		});
+		catalogSyncTime = syncTime;
 
 		log.info(LogBuilder.createSystemMessage().addMessage("All photos loaded.").toString());
 	}
 
+	/**
+	 * @methodtype command
+	 */
+	protected void addLoadedPhoto(Photo photo) {
+		if (!doHasPhoto(photo.getId())) {
+			log.config(LogBuilder.createSystemMessage().
+					addParameter("Load Photo with ID", photo.getIdAsString()).toString());
+			doAddPhoto(photo);
+		} else {
+			log.config(LogBuilder.createSystemMessage().
+					addParameter("Already loaded Photo", photo.getIdAsString()).toString());
+		}
+	}
+
 	/**
 	 * @methodtype boolean-query
 	 * @methodproperty primitive
@@ -199,34 +523,36 @@ public class PhotoManager extends ObjectManager {
 	/**
 	 * @methodtype command
 	 *
-	 * Loads all scaled Images of this Photo from Google Cloud Storage
+	 * Loads one scaled Image of this Photo from the image storage and attaches it to the photo. Sizes that do not
+	 * exist are remembered, so they are not looked up again. Returns null if the image could not be loaded.
 	 */
-	protected void loadScaledImages(Photo photo) {
+	public Image loadScaledImage(Photo photo, PhotoSize photoSize) {
 		String photoIdAsString = photo.getId().asString();
-		ImageStorage imageStorage = ImageStorage.getInstance();
-
-		for (PhotoSize photoSize : PhotoSize.values()) {
-			log.config(LogBuilder.createSystemMessage().
-					addAction("loading image").
-					addParameter("image size", photoSize.asString()).
-					addParameter("photo ID", photoIdAsString).toString());
-			if (imageStorage.doesImageExist(photoIdAsString, photoSize.asInt())) {
-				try {
-					Serializable rawImage = imageStorage.readImage(photoIdAsString, photoSize.asInt());
-					if (rawImage != null && rawImage instanceof Image) {
-						photo.setImage(photoSize, (Image) rawImage);
-					}
-				} catch (IOException e) {
-					log.warning(LogBuilder.createSystemMessage().
-							addParameter("size", photoSize.asString()).
-							addParameter("photo ID", photoIdAsString).
-							addException("Could not load image although it exists", e).toString());
-				}
+		log.config(LogBuilder.createSystemMessage().
+				addAction("loading image").
+				addParameter("image size", photoSize.asString()).
+				addParameter("photo ID", photoIdAsString).toString());
+
+		Image result = null;
+		try {
+			Serializable rawImage = ImageStorage.getInstance().readImage(photoIdAsString, photoSize.asInt());
+			if (rawImage instanceof Image) {
+				result = (Image) rawImage;
+				photo.setImage(photoSize, result);
+				getPhotoCache().refreshWeight(photo.getId());
 			} else {
 				log.config(LogBuilder.createSystemMessage().
 						addParameter("Size does not exist", photoSize.asString()).toString());
+				photo.setImageMissing(photoSize);
 			}
+		} catch (IOException e) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("size", photoSize.asString()).
+					addParameter("photo ID", photoIdAsString).
+					addException("Could not load image", e).toString());
 		}
+
+		return result;
 	}
 
 	/**
@@ -236,12 +562,78 @@ public class PhotoManager extends ObjectManager {
 		updateObject(photo);
 	}
 
+	/**
+	 * @methodtype command
+	 */
+	public void savePhotos(Collection<? extends Photo> photos) {
+		writeObjects(photos);
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Adds the aggregated votes of a PraiseVotePipeline batch to their photos and writes the photos in one batch.
+	 * Votes for unknown photos are dropped. Votes a photo has been praised with before are skipped, but the photo is
+	 * still written if it has not been saved since; so, once this returns, all votes of the batch are persisted.
+	 */
+	public void applyPraise(Collection<PraiseVotePipeline.Aggregate> aggregates) {
+		List<PhotoId> ids = new ArrayList<PhotoId>(aggregates.size());
+		for (PraiseVotePipeline.Aggregate aggregate : aggregates) {
+			ids.add(aggregate.getPhotoId());
+		}
+
+		Map<PhotoId, Photo> photosById = new HashMap<PhotoId, Photo>();
+		for (Photo photo : getPhotosFromIds(ids)) {
+			photosById.put(photo.getId(), photo);
+		}
+
+		List<Photo> praisedPhotos = new ArrayList<Photo>(photosById.size());
+		for (PraiseVotePipeline.Aggregate aggregate : aggregates) {
+			Photo photo = photosById.get(aggregate.getPhotoId());
+			if (photo != null) {
+				photo.addToPraise(aggregate);
+				praisedPhotos.add(photo);
+			} else {
+				log.warning(LogBuilder.createSystemMessage().
+						addParameter("photo id", aggregate.getPhotoId().asString()).
+						addParameter("number of votes", aggregate.getNoVotes()).
+						addMessage("Dropped votes for unknown photo").toString());
+			}
+		}
+		savePhotos(praisedPhotos);
+	}
+
+	/**
+	 * Updates the dependents of a batch of written photos; their owners are written in one batch.
+	 */
+	@Override
+	protected void updateDependents(Collection<? extends Persistent> objects) {
+		UserManager userManager = UserManager.getInstance();
+		Set<Client> owners = new LinkedHashSet<Client>();
+		for (Persistent obj : objects) {
+			if (obj instanceof Photo) {
+				Photo photo = (Photo) obj;
+				saveScaledImages(photo);
+				updateTags(photo);
+				updateCatalogRecord(photo);
+				if (photo.getOwnerId() != null) {
+					Client owner = userManager.getClientById(photo.getOwnerId());
+					if (owner != null) {
+						owners.add(owner);
+					}
+				}
+			}
+		}
+		userManager.saveClients(owners);
+	}
+
 	@Override
 	protected void updateDependents(Persistent obj) {
 		if (obj instanceof Photo) {
 			Photo photo = (Photo) obj;
 			saveScaledImages(photo);
 			updateTags(photo);
+			updateCatalogRecord(photo);
 			UserManager userManager = UserManager.getInstance();
 			Client owner = userManager.getClientById(photo.getOwnerId());
 			userManager.saveClient(owner);
@@ -271,16 +663,20 @@ public class PhotoManager extends ObjectManager {
 		do{
 			photoSize = PhotoSize.values()[it];
 			it++;
-			Image image = photo.getImage(photoSize);
-			if (image != null) {
+			// images that have not been loaded are already in the storage
+			ImageBytesStore.Handle imageBytes = photo.getLoadedImageBytes(photoSize);
+			if (imageBytes != null) {
 				try {
 					if (!imageStorage.doesImageExist(photoIdAsString, photoSize.asInt())) {
+						Image image = ImagesServiceFactory.makeImage(imageBytes.toByteArray());
 						imageStorage.writeImage(image, photoIdAsString, photoSize.asInt());
 					}
 				} catch (Exception e) {
 					log.warning(LogBuilder.createSystemMessage().
 							addException("Problem when storing image", e).toString());
 					moreSizesExist = false;
+				} finally {
+					imageBytes.release();
 				}
 			} else {
 				log.config(LogBuilder.createSystemMessage().
@@ -292,36 +688,74 @@ public class PhotoManager extends ObjectManager {
 
 	/**
 	 * Removes all tags of the Photo (obj) in the datastore that have been removed by the user and adds all new tags of
-	 * the photo to the datastore.
+	 * the photo to the datastore. Only the difference to the tags last written is applied, in one batch each for
+	 * deleted and added tags; if the tags did not change, e.g. because only the praise did, nothing is written.
 	 */
 	protected void updateTags(Photo photo) {
-		// delete all existing tags, for the case that some have been removed
-		deleteObjects(Tag.class, Tag.PHOTO_ID, photo.getId().asString());
-
-		// add all current tags to the datastore
+		PhotoId photoId = photo.getId();
 		Set<String> tags = new HashSet<String>();
 		photoTagCollector.collect(tags, photo);
-		for (Iterator<String> i = tags.iterator(); i.hasNext(); ) {
-			Tag tag = new Tag(i.next(), photo.getId().asString());
-			log.config(LogBuilder.createSystemMessage().addParameter("Writing Tag", tag.asString()).toString());
-			writeObject(tag);
+
+		Set<String> oldTags = persistedTags.get(photoId);
+		if (tags.equals(oldTags)) {
+			return;
 		}
+
+		// the tag entities are needed to delete tags; if the tags are unknown, some may have to be deleted, too
+		String photoIdAsString = photoId.asString();
+		Set<String> existingTags = oldTags;
+		List<Tag> removedTags = new ArrayList<Tag>();
+		if (oldTags == null || !tags.containsAll(oldTags)) {
+			existingTags = new HashSet<String>();
+			List<Tag> storedTags = new ArrayList<Tag>();
+			readObjects(storedTags, Tag.class, Tag.PHOTO_ID, photoIdAsString);
+			for (Tag tag : storedTags) {
+				// duplicates of a tag are removed, too
+				if (!tags.contains(tag.getText()) || !existingTags.add(tag.getText())) {
+					removedTags.add(tag);
+				}
+			}
+		}
+
+		List<Tag> newTags = new ArrayList<Tag>();
+		for (String text : tags) {
+			if (!existingTags.contains(text)) {
+				Tag tag = new Tag(text, photoIdAsString);
+				log.config(LogBuilder.createSystemMessage().addParameter("Writing Tag", tag.asString()).toString());
+				newTags.add(tag);
+			}
+		}
+
+		if (!removedTags.isEmpty()) {
+			deleteObjects(removedTags);
+		}
+		writeObjects(newTags);
+		persistedTags.put(photoId, tags);
 	}
 
 	/**
 	 *
 	 */
 	public void savePhotos() throws IOException{
-		updateObjects(photoCache.values());
+		WriteBehindQueue.getInstance().flush(Photo.class);
 	}
 
 	/**
 	 * @methodtype get
 	 */
-	public Map<PhotoId, ? extends Photo> getPhotoCache() {
+	public PhotoCache<? extends Photo> getPhotoCache() {
 		return photoCache;
 	}
 
+	/**
+	 * Returns the ids of all known photos; unlike getPhotoCache().keySet() this includes evicted photos.
+	 *
+	 * @methodtype get
+	 */
+	public Set<PhotoId> getPhotoIds() {
+		return Collections.unmodifiableSet(photoIds);
+	}
+
 	/**
 	 *
 	 */
@@ -340,7 +774,6 @@ public class PhotoManager extends ObjectManager {
 	 *
 	 */
 	public Photo getVisiblePhoto(PhotoFilter filter) {
-		filter.generateDisplayablePhotoIds();
 		return getPhotoFromId(filter.getRandomDisplayablePhotoId());
 	}
 
@@ -361,6 +794,8 @@ public class PhotoManager extends ObjectManager {
 		PhotoId id = photo.getId();
 		assertIsNewPhoto(id);
 		doAddPhoto(photo);
+		// a new photo has no tags in the datastore yet
+		persistedTags.put(id, Collections.<String>emptySet());
 
 		GlobalsManager.getInstance().saveGlobals();
 	}
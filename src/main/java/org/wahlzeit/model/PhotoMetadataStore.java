@@ -0,0 +1,469 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.model;
+
+import org.wahlzeit.model.persistence.CatalogSnapshot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A columnar side store of the photo metadata that scans need, kept in primitive arrays indexed by the int value of
+ * the PhotoId. Scans over all photos, e.g. for visible photos or photos with new praise, become loops over arrays
+ * instead of walks over Photo objects, and they include photos that are known but not loaded.
+ *
+ * The store is kept in sync by the PhotoManager when photos are added and by the setters of Photo afterwards. The
+ * praise of a photo changes with every vote, so it is kept apart from the other columns: packed like in the
+ * PraiseCounter, in chunks of atomic longs that are written without taking the lock.
+ */
+public class PhotoMetadataStore {
+
+	/**
+	 *
+	 */
+	protected static final int PRAISE_CHUNK_SHIFT = 10;
+	protected static final int PRAISE_CHUNK_SIZE = 1 << PRAISE_CHUNK_SHIFT;
+	protected static final int INITIAL_CAPACITY = PRAISE_CHUNK_SIZE;
+	protected static final byte NO_STATUS = -1;
+	protected static final int NO_OWNER = -1;
+
+	/**
+	 * Whether a status, given as int, is displayable
+	 */
+	protected static final boolean[] DISPLAYABLE_STATUSES = new boolean[PhotoStatus.values().length];
+
+	static {
+		for (PhotoStatus status : PhotoStatus.values()) {
+			DISPLAYABLE_STATUSES[status.asInt()] = status.isDisplayable();
+		}
+	}
+
+	/**
+	 *
+	 */
+	private static PhotoMetadataStore instance = null;
+
+	/**
+	 * @methodtype get
+	 */
+	public static synchronized PhotoMetadataStore getInstance() {
+		if (instance == null) {
+			instance = new PhotoMetadataStore();
+		}
+		return instance;
+	}
+
+	/**
+	 * The columns; a photo is contained if its status is not NO_STATUS. All fields below are guarded by lock.
+	 */
+	protected final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	protected byte[] statuses = new byte[0];
+	protected int[] noVotesAtLastNotification = new int[0];
+	protected int[] ownerIndexes = new int[0];
+	protected long[] creationTimes = new long[0];
+	protected int size = 0;
+
+	/**
+	 * The praise column, packed like in the PraiseCounter. Chunks are only added, under the write lock, and never
+	 * copied, so that a vote written to a chunk without the lock is not lost when the columns grow.
+	 */
+	protected volatile AtomicLongArray[] praiseChunks = new AtomicLongArray[0];
+
+	/**
+	 * Owner ids are stored once and referenced by their index
+	 */
+	protected final List<String> owners = new ArrayList<String>();
+	protected final Map<String, Integer> ownerIndexOf = new HashMap<String, Integer>();
+
+
+	// write methods ---------------------------------------------------------------------------------------------------
+
+	/**
+	 * @methodtype set
+	 */
+	public void update(Photo photo) {
+		long praise = photo.getPraiseSnapshot();
+		put(photo.getId().asInt(), photo.getStatus().asInt(), photo.getOwnerId(), PraiseCounter.getPraiseSum(praise),
+				PraiseCounter.getNoVotes(praise), photo.getNoVotesAtLastNotification(), photo.getCreationTime());
+	}
+
+	/**
+	 * Stores the metadata of a photo that is only known from the catalog snapshot.
+	 *
+	 * @methodtype set
+	 */
+	public void update(CatalogSnapshot.PhotoRecord record) {
+		put(record.getPhotoId(), record.getStatus(), record.getOwnerId(), record.getPraiseSum(), record.getNoVotes(),
+				record.getNoVotesAtLastNotification(), record.getCreationTime());
+	}
+
+	/**
+	 * Updates the metadata of a photo that is already contained; used by the setters of Photo, so that photos which
+	 * have not been added to the PhotoManager are not stored.
+	 *
+	 * @methodtype set
+	 */
+	public void updateIfPresent(Photo photo) {
+		PhotoId id = photo.getId();
+		if (id != null && contains(id.asInt())) {
+			update(photo);
+		}
+	}
+
+	/**
+	 * Stores the praise of a photo after a vote, without taking the lock, so that votes on different photos do not
+	 * wait for each other. Praise only ever gains votes, so a snapshot with fewer votes than the stored one is older
+	 * and ignored; that way, the last of concurrent updates stores the latest praise.
+	 *
+	 * @methodtype set
+	 */
+	public void updatePraise(Photo photo) {
+		PhotoId id = photo.getId();
+		if (id != null) {
+			updatePraise(id.asInt(), photo.getPraiseSnapshot());
+		}
+	}
+
+	/**
+	 * Ids beyond the capacity belong to photos that are not contained and are ignored; other photos that are not
+	 * contained get their praise replaced when they are put.
+	 *
+	 * @methodtype set
+	 */
+	public void updatePraise(int id, long praise) {
+		AtomicLongArray[] chunks = praiseChunks;
+		int chunk = id >> PRAISE_CHUNK_SHIFT;
+		if (id < 0 || chunk >= chunks.length) {
+			return;
+		}
+
+		AtomicLongArray praiseChunk = chunks[chunk];
+		int index = id & (PRAISE_CHUNK_SIZE - 1);
+		long current = praiseChunk.get(index);
+		while (PraiseCounter.getNoVotes(praise) > PraiseCounter.getNoVotes(current) &&
+				!praiseChunk.compareAndSet(index, current, praise)) {
+			current = praiseChunk.get(index);
+		}
+	}
+
+	/**
+	 * @methodtype set
+	 * @methodproperty primitive
+	 */
+	protected void put(int id, int status, String ownerId, int praiseSum, int noVotesValue,
+					   int noVotesAtLastNotificationValue, long creationTime) {
+		lock.writeLock().lock();
+		try {
+			ensureCapacity(id + 1);
+			long praise = PraiseCounter.asLong(praiseSum, noVotesValue);
+			if (statuses[id] == NO_STATUS) {
+				size++;
+				setPraise(id, praise);
+			} else {
+				// a vote may have stored newer praise since the caller has read it
+				updatePraise(id, praise);
+			}
+			statuses[id] = (byte) status;
+			noVotesAtLastNotification[id] = noVotesAtLastNotificationValue;
+			ownerIndexes[id] = getOwnerIndex(ownerId);
+			creationTimes[id] = creationTime;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void remove(int id) {
+		lock.writeLock().lock();
+		try {
+			if (id >= 0 && id < statuses.length && statuses[id] != NO_STATUS) {
+				statuses[id] = NO_STATUS;
+				size--;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			Arrays.fill(statuses, NO_STATUS);
+			size = 0;
+			owners.clear();
+			ownerIndexOf.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Grows all columns to at least the given capacity, doubling to keep the number of copies low; the capacity stays
+	 * a multiple of the praise chunk size.
+	 *
+	 * @methodtype command
+	 */
+	protected void ensureCapacity(int capacity) {
+		if (capacity <= statuses.length) {
+			return;
+		}
+
+		int newCapacity = Math.max(INITIAL_CAPACITY, statuses.length);
+		while (newCapacity < capacity) {
+			newCapacity *= 2;
+		}
+
+		int oldCapacity = statuses.length;
+		statuses = Arrays.copyOf(statuses, newCapacity);
+		Arrays.fill(statuses, oldCapacity, newCapacity, NO_STATUS);
+		AtomicLongArray[] chunks = Arrays.copyOf(praiseChunks, newCapacity >> PRAISE_CHUNK_SHIFT);
+		for (int i = praiseChunks.length; i < chunks.length; i++) {
+			chunks[i] = new AtomicLongArray(PRAISE_CHUNK_SIZE);
+		}
+		praiseChunks = chunks;
+		noVotesAtLastNotification = Arrays.copyOf(noVotesAtLastNotification, newCapacity);
+		ownerIndexes = Arrays.copyOf(ownerIndexes, newCapacity);
+		creationTimes = Arrays.copyOf(creationTimes, newCapacity);
+	}
+
+	/**
+	 * @methodtype set
+	 * @methodproperty primitive
+	 */
+	protected void setPraise(int id, long praise) {
+		praiseChunks[id >> PRAISE_CHUNK_SHIFT].set(id & (PRAISE_CHUNK_SIZE - 1), praise);
+	}
+
+	/**
+	 * @methodtype get
+	 * @methodproperty primitive
+	 */
+	protected long doGetPraise(int id) {
+		return praiseChunks[id >> PRAISE_CHUNK_SHIFT].get(id & (PRAISE_CHUNK_SIZE - 1));
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected int getOwnerIndex(String ownerId) {
+		if (ownerId == null) {
+			return NO_OWNER;
+		}
+
+		Integer result = ownerIndexOf.get(ownerId);
+		if (result == null) {
+			result = owners.size();
+			owners.add(ownerId);
+			ownerIndexOf.put(ownerId, result);
+		}
+		return result;
+	}
+
+
+	// read methods ----------------------------------------------------------------------------------------------------
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean contains(int id) {
+		lock.readLock().lock();
+		try {
+			return doContains(id);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 * @methodproperty primitive
+	 */
+	protected boolean doContains(int id) {
+		return id >= 0 && id < statuses.length && statuses[id] != NO_STATUS;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the status of the photo, or null if the photo is not contained.
+	 *
+	 * @methodtype get
+	 */
+	public PhotoStatus getStatus(int id) {
+		lock.readLock().lock();
+		try {
+			return doContains(id) ? PhotoStatus.getFromInt(statuses[id]) : null;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isVisible(int id) {
+		lock.readLock().lock();
+		try {
+			return doContains(id) && DISPLAYABLE_STATUSES[statuses[id]];
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the praise sum and the number of votes of the photo as one snapshot, packed like in the PraiseCounter,
+	 * or 0 if the photo is not contained.
+	 *
+	 * @methodtype get
+	 */
+	public long getPraise(int id) {
+		lock.readLock().lock();
+		try {
+			return doContains(id) ? doGetPraise(id) : 0;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getPraiseSum(int id) {
+		return PraiseCounter.getPraiseSum(getPraise(id));
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNoVotes(int id) {
+		return PraiseCounter.getNoVotes(getPraise(id));
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNoVotesAtLastNotification(int id) {
+		lock.readLock().lock();
+		try {
+			return doContains(id) ? noVotesAtLastNotification[id] : 0;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public String getOwnerId(int id) {
+		lock.readLock().lock();
+		try {
+			return (doContains(id) && ownerIndexes[id] != NO_OWNER) ? owners.get(ownerIndexes[id]) : null;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getCreationTime(int id) {
+		lock.readLock().lock();
+		try {
+			return doContains(id) ? creationTimes[id] : 0;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+
+	// scan methods ----------------------------------------------------------------------------------------------------
+
+	/**
+	 * Returns the ids of all visible photos in ascending order.
+	 *
+	 * @methodtype get
+	 */
+	public List<PhotoId> getVisiblePhotoIds() {
+		List<PhotoId> result = new ArrayList<PhotoId>();
+		lock.readLock().lock();
+		try {
+			byte[] statusColumn = statuses;
+			for (int id = 0; id < statusColumn.length; id++) {
+				byte status = statusColumn[id];
+				if (status != NO_STATUS && DISPLAYABLE_STATUSES[status]) {
+					result.add(PhotoId.getIdFromInt(id));
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the int ids of all visible photos that got votes since their owner has last been notified.
+	 *
+	 * @methodtype get
+	 */
+	public int[] getVisiblePhotosWithNewPraise() {
+		int[] result = new int[16];
+		int noResults = 0;
+		lock.readLock().lock();
+		try {
+			byte[] statusColumn = statuses;
+			int[] noVotesAtLastNotificationColumn = noVotesAtLastNotification;
+			for (int id = 0; id < statusColumn.length; id++) {
+				byte status = statusColumn[id];
+				if (status != NO_STATUS && DISPLAYABLE_STATUSES[status] &&
+						PraiseCounter.getNoVotes(doGetPraise(id)) > noVotesAtLastNotificationColumn[id]) {
+					if (noResults == result.length) {
+						result = Arrays.copyOf(result, result.length * 2);
+					}
+					result[noResults++] = id;
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return Arrays.copyOf(result, noResults);
+	}
+
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * A ranking of photos by praise that is maintained incrementally. It keeps the best photos up to its capacity, ordered
+ * by praise, number of votes, and id, so that a vote changes it in O(log capacity) instead of sorting all photos.
+ *
+ * Photos that are not kept all rank at or below the floor. The kept photos that rank above the floor are exactly the
+ * best photos; if fewer than requested are left, e.g. after photos dropped out, the ranking has to be rebuilt. A new
+ * ranking has an unknown floor, so it is rebuilt on first use. Not thread-safe; the PhotoLeaderboard synchronizes.
+ */
+public class PhotoRanking {
+
+	/**
+	 * Ranks above all photos, so that nothing is known to be exact
+	 */
+	protected static final Entry UNKNOWN_FLOOR = new Entry(-1, Double.POSITIVE_INFINITY, Integer.MAX_VALUE);
+
+	/**
+	 *
+	 */
+	protected final int capacity;
+	protected final TreeSet<Entry> entries = new TreeSet<Entry>();
+	protected final Map<Integer, Entry> entriesById = new HashMap<Integer, Entry>();
+
+	/**
+	 * The best photo that is not kept, or null if all photos are kept
+	 */
+	protected Entry floor = UNKNOWN_FLOOR;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public PhotoRanking(int capacity) {
+		this.capacity = Math.max(1, capacity);
+	}
+
+
+	// write methods ---------------------------------------------------------------------------------------------------
+
+	/**
+	 * Sets the praise of a photo; a photo that is not kept is only added if it ranks above the floor.
+	 *
+	 * @methodtype set
+	 */
+	public void update(int id, double praise, int noVotes) {
+		Entry entry = new Entry(id, praise, noVotes);
+		Entry oldEntry = entriesById.remove(id);
+		if (oldEntry != null) {
+			entries.remove(oldEntry);
+		} else if (floor != null && entry.compareTo(floor) >= 0) {
+			return;
+		}
+
+		entries.add(entry);
+		entriesById.put(id, entry);
+		if (entries.size() > capacity) {
+			Entry evicted = entries.pollLast();
+			entriesById.remove(evicted.id);
+			if (floor == null || evicted.compareTo(floor) < 0) {
+				floor = evicted;
+			}
+		}
+	}
+
+	/**
+	 * Removes a photo that is no longer eligible, e.g. because it has been hidden.
+	 *
+	 * @methodtype command
+	 */
+	public void remove(int id) {
+		Entry oldEntry = entriesById.remove(id);
+		if (oldEntry != null) {
+			entries.remove(oldEntry);
+		}
+	}
+
+	/**
+	 * Replaces the ranking with the best of all eligible photos.
+	 *
+	 * @methodtype command
+	 */
+	public void rebuild(List<Entry> allEntries) {
+		List<Entry> sortedEntries = new ArrayList<Entry>(allEntries);
+		Collections.sort(sortedEntries);
+
+		entries.clear();
+		entriesById.clear();
+		for (Entry entry : sortedEntries.subList(0, Math.min(capacity, sortedEntries.size()))) {
+			entries.add(entry);
+			entriesById.put(entry.id, entry);
+		}
+		floor = sortedEntries.size() > capacity ? sortedEntries.get(capacity) : null;
+	}
+
+
+	// read methods ----------------------------------------------------------------------------------------------------
+
+	/**
+	 * Returns the ids of the best photos, at most the given number, or null if the ranking has to be rebuilt first.
+	 *
+	 * @methodtype get
+	 */
+	public List<Integer> getTop(int noPhotos) {
+		List<Integer> result = new ArrayList<Integer>(noPhotos);
+		for (Iterator<Entry> i = entries.iterator(); i.hasNext() && result.size() < noPhotos; ) {
+			Entry entry = i.next();
+			if (floor != null && entry.compareTo(floor) >= 0) {
+				break;
+			}
+			result.add(entry.id);
+		}
+		return (result.size() < noPhotos && floor != null) ? null : result;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * The praise of a photo at the time it was ranked.
+	 */
+	public static class Entry implements Comparable<Entry> {
+
+		/**
+		 *
+		 */
+		protected final int id;
+		protected final double praise;
+		protected final int noVotes;
+
+		/**
+		 * @methodtype constructor
+		 */
+		public Entry(int id, double praise, int noVotes) {
+			this.id = id;
+			this.praise = praise;
+			this.noVotes = noVotes;
+		}
+
+		/**
+		 * Better photos come first; more votes break ties, then lower ids.
+		 */
+		@Override
+		public int compareTo(Entry other) {
+			int result = Double.compare(other.praise, praise);
+			if (result == 0) {
+				result = Integer.compare(other.noVotes, noVotes);
+			}
+			if (result == 0) {
+				result = Integer.compare(id, other.id);
+			}
+			return result;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public int getId() {
+			return id;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public double getPraise() {
+			return praise;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public int getNoVotes() {
+			return noVotes;
+		}
+
+	}
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.model;
+
+import org.wahlzeit.utils.IntBitmap;
+
+import java.util.Random;
+
+/**
+ * Draws a uniformly random photo id from a bitmap of candidates, leaving out excluded ids, e.g. photos that have
+ * already been processed or skipped. Candidates are drawn by rank, so the candidates are never materialized as a
+ * list. Drawn candidates that are excluded are rejected and drawn again; if too many are rejected, as when most
+ * candidates have been processed, the remaining candidates are computed once and drawn from.
+ */
+public class PhotoSampler {
+
+	/**
+	 * Number of draws before the eligible candidates are computed exactly
+	 */
+	protected static final int MAX_REJECTIONS = 16;
+
+	/**
+	 *
+	 */
+	protected final Random random;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public PhotoSampler(Random random) {
+		this.random = random;
+	}
+
+	/**
+	 * Returns a random candidate that is not contained in any of the excluded bitmaps, or -1 if there is none. The
+	 * candidates are not modified.
+	 *
+	 * @methodtype get
+	 */
+	public int sample(IntBitmap candidates, IntBitmap... excluded) {
+		int noCandidates = candidates.getCardinality();
+		if (noCandidates == 0) {
+			return -1;
+		}
+
+		for (int i = 0; i < MAX_REJECTIONS; i++) {
+			int candidate = candidates.select(random.nextInt(noCandidates));
+			if (!isExcluded(candidate, excluded)) {
+				return candidate;
+			}
+		}
+
+		IntBitmap eligible = new IntBitmap(candidates);
+		for (IntBitmap ids : excluded) {
+			eligible.andNot(ids);
+		}
+		int noEligible = eligible.getCardinality();
+		return noEligible == 0 ? -1 : eligible.select(random.nextInt(noEligible));
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	protected boolean isExcluded(int candidate, IntBitmap... excluded) {
+		for (IntBitmap ids : excluded) {
+			if (ids.contains(candidate)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
@@ -33,16 +33,22 @@ public class PhotoTagCollector {
 	 *
 	 */
 	public void collect(Set<String> tags, Photo photo) {
-		String ownerName = photo.getOwnerId();
+		collect(tags, photo.getOwnerId(), photo.getTags());
+	}
+
+	/**
+	 * Collects the tags of a photo that is only known by its owner and tags, e.g. from the catalog snapshot.
+	 */
+	public void collect(Set<String> tags, String ownerName, Tags photoTags) {
 		if (!StringUtil.isNullOrEmptyString(ownerName)) {
 			String ownerNameAsTag = Tags.asTag(ownerName);
 			tags.add("un:" + ownerNameAsTag);
 			tags.add("tg:" + ownerNameAsTag);
 		}
 
-		String[] photoTags = photo.getTags().asArray();
-		for (int i = 0; i < photoTags.length; i++) {
-			tags.add("tg:" + photoTags[i]);
+		String[] photoTagArray = photoTags.asArray();
+		for (int i = 0; i < photoTagArray.length; i++) {
+			tags.add("tg:" + photoTagArray[i]);
 		}
 	}
 
@@ -0,0 +1,369 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.model;
+
+import org.wahlzeit.model.persistence.CatalogSnapshot;
+import org.wahlzeit.utils.IntBitmap;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-memory inverted index from the terms a PhotoTagCollector produces, e.g. "un:name" or "tg:tag", to the int
+ * ids of the photos that carry them, kept as compressed bitmaps. It also knows which photos are visible, so that the
+ * candidates of a photo filter are computed with bitmap operations instead of datastore queries.
+ *
+ * The index is kept in sync by the PhotoManager when photos are added and by the setters of Photo afterwards; it
+ * includes photos that are known from the catalog snapshot only. Filter results are shared through a cache, which
+ * the index invalidates for the terms that a change touches.
+ */
+public class PhotoTagIndex {
+
+	/**
+	 *
+	 */
+	private static PhotoTagIndex instance = null;
+
+	/**
+	 * @methodtype get
+	 */
+	public static synchronized PhotoTagIndex getInstance() {
+		if (instance == null) {
+			instance = new PhotoTagIndex(new PhotoTagCollector());
+		}
+		return instance;
+	}
+
+	/**
+	 * Set by the PhotoManager to the collector of the PhotoFactory in use
+	 */
+	protected volatile PhotoTagCollector photoTagCollector;
+
+	/**
+	 * All fields below are guarded by lock
+	 */
+	protected final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	protected final Map<String, IntBitmap> photosByTerm = new HashMap<String, IntBitmap>();
+	protected final Map<Integer, String[]> termsByPhoto = new HashMap<Integer, String[]>();
+	protected final IntBitmap visiblePhotos = new IntBitmap();
+
+	/**
+	 * Filter results; only written while holding the lock, so that no result computed before a change is cached after
+	 */
+	protected final FilterResultCache filterResultCache = new FilterResultCache();
+
+	/**
+	 * @methodtype constructor
+	 */
+	public PhotoTagIndex(PhotoTagCollector photoTagCollector) {
+		this.photoTagCollector = photoTagCollector;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setPhotoTagCollector(PhotoTagCollector photoTagCollector) {
+		this.photoTagCollector = photoTagCollector;
+	}
+
+
+	// write methods ---------------------------------------------------------------------------------------------------
+
+	/**
+	 * @methodtype set
+	 */
+	public void update(Photo photo) {
+		Set<String> terms = new HashSet<String>();
+		photoTagCollector.collect(terms, photo);
+		put(photo.getId().asInt(), terms, photo.getStatus().isDisplayable());
+	}
+
+	/**
+	 * Indexes a photo that is only known from the catalog snapshot.
+	 *
+	 * @methodtype set
+	 */
+	public void update(CatalogSnapshot.PhotoRecord record) {
+		Set<String> terms = new HashSet<String>();
+		Tags tags = record.getTags() == null ? Tags.EMPTY_TAGS : new Tags(record.getTags());
+		photoTagCollector.collect(terms, record.getOwnerId(), tags);
+		put(record.getPhotoId(), terms, PhotoStatus.getFromInt(record.getStatus()).isDisplayable());
+	}
+
+	/**
+	 * Updates a photo that is already indexed; used by the setters of Photo, so that photos which have not been added
+	 * to the PhotoManager are not indexed.
+	 *
+	 * @methodtype set
+	 */
+	public void updateIfPresent(Photo photo) {
+		PhotoId id = photo.getId();
+		if (id != null && contains(id.asInt())) {
+			update(photo);
+		}
+	}
+
+	/**
+	 * Replaces the terms of a photo, touching only the bitmaps of terms that were added or removed.
+	 *
+	 * @methodtype set
+	 */
+	protected void put(int id, Set<String> terms, boolean isVisible) {
+		lock.writeLock().lock();
+		try {
+			Set<String> changedTerms = new HashSet<String>();
+			String[] oldTerms = termsByPhoto.get(id);
+			if (oldTerms != null) {
+				for (String term : oldTerms) {
+					if (!terms.contains(term)) {
+						removeFromTerm(term, id);
+						changedTerms.add(term);
+					}
+				}
+			}
+
+			Set<String> oldTermSet = oldTerms == null ? null : new HashSet<String>(Arrays.asList(oldTerms));
+			for (String term : terms) {
+				if (oldTermSet == null || !oldTermSet.contains(term)) {
+					IntBitmap photos = photosByTerm.get(term);
+					if (photos == null) {
+						photos = new IntBitmap();
+						photosByTerm.put(term, photos);
+					}
+					photos.add(id);
+					changedTerms.add(term);
+				}
+			}
+			termsByPhoto.put(id, terms.toArray(new String[terms.size()]));
+
+			boolean wasVisible = isVisible ? !visiblePhotos.add(id) : visiblePhotos.remove(id);
+			if (wasVisible != isVisible) {
+				// the photo enters or leaves the results of all its terms
+				changedTerms.addAll(terms);
+				if (oldTermSet != null) {
+					changedTerms.addAll(oldTermSet);
+				}
+			} else if (!isVisible) {
+				// results only contain visible photos
+				changedTerms.clear();
+			}
+			filterResultCache.invalidate(changedTerms);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void remove(int id) {
+		lock.writeLock().lock();
+		try {
+			String[] oldTerms = termsByPhoto.remove(id);
+			if (oldTerms != null) {
+				for (String term : oldTerms) {
+					removeFromTerm(term, id);
+				}
+				if (visiblePhotos.remove(id)) {
+					filterResultCache.invalidate(Arrays.asList(oldTerms));
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void removeFromTerm(String term, int id) {
+		IntBitmap photos = photosByTerm.get(term);
+		if (photos != null) {
+			photos.remove(id);
+			if (photos.isEmpty()) {
+				photosByTerm.remove(term);
+			}
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			photosByTerm.clear();
+			termsByPhoto.clear();
+			visiblePhotos.clear();
+			filterResultCache.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	// read methods ----------------------------------------------------------------------------------------------------
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean contains(int id) {
+		lock.readLock().lock();
+		try {
+			return termsByPhoto.containsKey(id);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNoTerms() {
+		lock.readLock().lock();
+		try {
+			return photosByTerm.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the terms of a photo, or null if the photo is not indexed; the result must not be modified.
+	 *
+	 * @methodtype get
+	 */
+	public String[] getTerms(int id) {
+		lock.readLock().lock();
+		try {
+			return termsByPhoto.get(id);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns whether any photo carries the term.
+	 *
+	 * @methodtype boolean-query
+	 */
+	public boolean containsTerm(String term) {
+		lock.readLock().lock();
+		try {
+			return photosByTerm.containsKey(term);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean hasTerm(String term, int id) {
+		lock.readLock().lock();
+		try {
+			IntBitmap photos = photosByTerm.get(term);
+			return photos != null && photos.contains(id);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the ids of all visible photos as a new bitmap.
+	 *
+	 * @methodtype get
+	 */
+	public IntBitmap getVisiblePhotos() {
+		lock.readLock().lock();
+		try {
+			return new IntBitmap(visiblePhotos);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Draws a random visible photo that is not excluded, without copying the visible photos; returns -1 if there is
+	 * none.
+	 *
+	 * @methodtype get
+	 */
+	public int sampleVisiblePhoto(PhotoSampler sampler, IntBitmap... excluded) {
+		lock.readLock().lock();
+		try {
+			return sampler.sample(visiblePhotos, excluded);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the ids of the visible photos that carry at least one of the terms, as a new bitmap.
+	 *
+	 * @methodtype get
+	 */
+	public IntBitmap getVisiblePhotos(Collection<String> terms) {
+		return new IntBitmap(getSharedVisiblePhotos(terms));
+	}
+
+	/**
+	 * Returns the ids of the visible photos that carry at least one of the terms from the filter result cache; the
+	 * result is shared and must not be modified.
+	 *
+	 * @methodtype get
+	 */
+	public IntBitmap getSharedVisiblePhotos(Collection<String> terms) {
+		List<String> key = FilterResultCache.asKey(terms);
+		lock.readLock().lock();
+		try {
+			IntBitmap result = filterResultCache.get(key);
+			if (result == null) {
+				result = new IntBitmap();
+				for (String term : key) {
+					IntBitmap photos = photosByTerm.get(term);
+					if (photos != null) {
+						result.or(photos);
+					}
+				}
+				result.and(visiblePhotos);
+				filterResultCache.put(key, result);
+			}
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public FilterResultCache getFilterResultCache() {
+		return filterResultCache;
+	}
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.model;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the praise of a photo without locking. The praise sum and the number of votes are packed into a single long,
+ * the sum in the upper and the number of votes in the lower 32 bits, so that a vote is one atomic add and a read
+ * always returns a sum and a number of votes that belong together.
+ */
+public class PraiseCounter {
+
+	/**
+	 * The praise sum and the number of votes, packed
+	 */
+	protected final AtomicLong value;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public PraiseCounter(int praiseSum, int noVotes) {
+		value = new AtomicLong(asLong(praiseSum, noVotes));
+	}
+
+	/**
+	 * Adds a vote with a single atomic add and returns the new snapshot. The number of votes does not carry into the
+	 * sum below 2^32 votes, and a negative praise borrows from the upper bits only.
+	 *
+	 * @methodtype command
+	 */
+	public long addVote(int praise) {
+		return value.addAndGet(((long) praise << 32) + 1);
+	}
+
+	/**
+	 * Adds several votes at once, e.g. the aggregated votes of a batch.
+	 *
+	 * @methodtype command
+	 */
+	public long addVotes(int praiseSum, int noVotes) {
+		return value.addAndGet(((long) praiseSum << 32) + noVotes);
+	}
+
+	/**
+	 * Returns a consistent snapshot of the praise sum and the number of votes, packed.
+	 *
+	 * @methodtype get
+	 */
+	public long get() {
+		return value.get();
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void set(int praiseSum, int noVotes) {
+		value.set(asLong(praiseSum, noVotes));
+	}
+
+
+	// conversions of snapshots ----------------------------------------------------------------------------------------
+
+	/**
+	 * @methodtype conversion
+	 */
+	public static long asLong(int praiseSum, int noVotes) {
+		return ((long) praiseSum << 32) | (noVotes & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	public static int getPraiseSum(long praise) {
+		return (int) (praise >> 32);
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	public static int getNoVotes(long praise) {
+		return (int) praise;
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	public static double getPraise(long praise) {
+		return (double) getPraiseSum(praise) / getNoVotes(praise);
+	}
+
+}
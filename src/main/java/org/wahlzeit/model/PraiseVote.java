@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.model;
+
+/**
+ * A single praise vote as it is journaled and queued by the PraiseVotePipeline, before it is applied to its photo.
+ * Sequence numbers are assigned in journal order, so that a checkpoint can tell which votes have been applied.
+ */
+public class PraiseVote {
+
+	/**
+	 *
+	 */
+	protected final long sequence;
+	protected final int photoId;
+	protected final String clientId;
+	protected final int value;
+	protected final long time;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public PraiseVote(long sequence, int photoId, String clientId, int value, long time) {
+		this.sequence = sequence;
+		this.photoId = photoId;
+		this.clientId = clientId == null ? "" : clientId;
+		this.value = value;
+		this.time = time;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getPhotoId() {
+		return photoId;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public String getClientId() {
+		return clientId;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getValue() {
+		return value;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getTime() {
+		return time;
+	}
+
+}
@@ -0,0 +1,506 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.model;
+
+import org.wahlzeit.model.persistence.VoteJournal;
+import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.SysConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Takes praise votes off the request path. A vote is appended to the local VoteJournal and queued; queued votes are
+ * aggregated per photo over a time window and applied in one batch, so that a popular photo is written once per
+ * window instead of once per vote. After a batch has been written, a checkpoint in the journal marks its votes as
+ * applied; votes after the last checkpoint are replayed on startup. A batch that fails is queued again. Photos save
+ * the sequence number of the last vote they have been praised with, so replaying a batch that was saved but not
+ * checkpointed does not count its votes twice.
+ *
+ * The journal lives in the temporary directory of the instance. A vote that cannot be journaled is applied right
+ * away, within the request, rather than queued where a restart would lose it.
+ *
+ * The queue is applied at the end of a request once the window has passed, by the flushWriteBehind agent, and on
+ * shutdown. If the queue is full, the submitting request applies it before adding its vote, which slows down voting
+ * instead of growing the queue without bound.
+ */
+public class PraiseVotePipeline {
+
+	private static final Logger log = Logger.getLogger(PraiseVotePipeline.class.getName());
+
+	/**
+	 * System properties (see appengine-web.xml) to configure the pipeline
+	 */
+	public static final String WINDOW_PROPERTY = "org.wahlzeit.votes.windowMillis";
+	public static final String QUEUE_CAPACITY_PROPERTY = "org.wahlzeit.votes.queueCapacity";
+	public static final String SYNCHRONOUS_JOURNAL_PROPERTY = "org.wahlzeit.votes.synchronousJournal";
+	public static final long DEFAULT_WINDOW_MILLIS = 1000;
+	public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+	/**
+	 *
+	 */
+	public static final String JOURNAL_FILE_NAME = "votes.journal";
+
+	/**
+	 *
+	 */
+	private static PraiseVotePipeline instance = null;
+
+	/**
+	 * @methodtype get
+	 */
+	public static synchronized PraiseVotePipeline getInstance() {
+		if (instance == null) {
+			File file = new File(SysConfig.getInstanceTempDir(), JOURNAL_FILE_NAME);
+			instance = new PraiseVotePipeline(new VoteJournal(file, Boolean.getBoolean(SYNCHRONOUS_JOURNAL_PROPERTY)),
+					new Applier() {
+						@Override
+						public void apply(Collection<Aggregate> aggregates) {
+							PhotoManager.getInstance().applyPraise(aggregates);
+						}
+					}, Long.getLong(WINDOW_PROPERTY, DEFAULT_WINDOW_MILLIS),
+					Integer.getInteger(QUEUE_CAPACITY_PROPERTY, DEFAULT_QUEUE_CAPACITY));
+		}
+		return instance;
+	}
+
+	/**
+	 *
+	 */
+	protected final VoteJournal journal;
+	protected final Applier applier;
+	protected final long windowMillis;
+	protected final int queueCapacity;
+
+	/**
+	 * Whether the journal could be opened; if not, all votes are applied right away
+	 */
+	protected final boolean isJournaled;
+
+	/**
+	 * All fields below are guarded by queueLock; votes are journaled and queued in the same order
+	 */
+	protected final Object queueLock = new Object();
+	protected List<PraiseVote> queuedVotes = new ArrayList<PraiseVote>();
+	protected long nextSequence;
+	protected long windowStartTime = 0;
+
+	/**
+	 *
+	 */
+	protected final ReentrantLock applyLock = new ReentrantLock();
+
+	/**
+	 *
+	 */
+	protected final AtomicLong noSubmittedVotes = new AtomicLong();
+	protected final AtomicLong noAppliedVotes = new AtomicLong();
+	protected final AtomicLong noAppliedBatches = new AtomicLong();
+	protected final AtomicLong noPhotoUpdates = new AtomicLong();
+	protected final AtomicLong noBackpressureEvents = new AtomicLong();
+	protected final AtomicLong noUnjournaledVotes = new AtomicLong();
+	protected final AtomicLong noFailedBatches = new AtomicLong();
+
+	/**
+	 * Opens the journal and queues the votes that have not been applied before.
+	 *
+	 * @methodtype constructor
+	 */
+	public PraiseVotePipeline(VoteJournal journal, Applier applier, long windowMillis, int queueCapacity) {
+		this.journal = journal;
+		this.applier = applier;
+		this.windowMillis = windowMillis;
+		this.queueCapacity = Math.max(1, queueCapacity);
+
+		boolean isOpen = false;
+		try {
+			queuedVotes.addAll(journal.open());
+			isOpen = true;
+		} catch (IOException ex) {
+			log.severe(LogBuilder.createSystemMessage().
+					addException("Could not open vote journal, votes are applied synchronously", ex).toString());
+		}
+		isJournaled = isOpen;
+		nextSequence = journal.getLastSequence() + 1;
+
+		if (!queuedVotes.isEmpty()) {
+			log.info(LogBuilder.createSystemMessage().addMessage("Votes to replay from journal.")
+					.addParameter("number of votes", queuedVotes.size()).toString());
+		}
+	}
+
+
+	// queue methods ---------------------------------------------------------------------------------------------------
+
+	/**
+	 * Journals and queues a vote; it is applied to the photo with the next batch. A vote that cannot be journaled is
+	 * applied right away; if that fails, too, the exception is passed on to the caller.
+	 *
+	 * @methodtype command
+	 */
+	public void submit(PhotoId photoId, String clientId, int value) {
+		if (getQueueDepth() >= queueCapacity) {
+			noBackpressureEvents.incrementAndGet();
+			apply();
+		}
+
+		PraiseVote vote;
+		boolean isQueued = false;
+		synchronized (queueLock) {
+			vote = new PraiseVote(nextSequence++, photoId.asInt(), clientId, value, System.currentTimeMillis());
+			if (isJournaled) {
+				try {
+					journal.append(vote);
+					if (queuedVotes.isEmpty()) {
+						windowStartTime = vote.getTime();
+					}
+					queuedVotes.add(vote);
+					isQueued = true;
+				} catch (IOException ex) {
+					log.warning(LogBuilder.createSystemMessage().
+							addParameter("photo id", photoId.asString()).
+							addException("Could not journal vote, applying it synchronously", ex).toString());
+				}
+			}
+		}
+		noSubmittedVotes.incrementAndGet();
+
+		if (!isQueued) {
+			applyUnjournaled(vote);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void applyUnjournaled(PraiseVote vote) {
+		Aggregate aggregate = new Aggregate(PhotoId.getIdFromInt(vote.getPhotoId()), null);
+		aggregate.add(vote);
+		applier.apply(Collections.singletonList(aggregate));
+
+		noUnjournaledVotes.incrementAndGet();
+		noAppliedVotes.incrementAndGet();
+		noPhotoUpdates.incrementAndGet();
+	}
+
+	/**
+	 * Applies the queued votes if the window of the oldest one has passed; meant to be called at the end of a
+	 * request. Returns immediately if another thread is applying votes.
+	 *
+	 * @methodtype command
+	 */
+	public void applyIfDue() {
+		boolean isDue;
+		synchronized (queueLock) {
+			isDue = !queuedVotes.isEmpty() && System.currentTimeMillis() - windowStartTime >= windowMillis;
+		}
+		if (isDue && applyLock.tryLock()) {
+			try {
+				doApply();
+			} finally {
+				applyLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Applies all queued votes.
+	 *
+	 * @methodtype command
+	 */
+	public void apply() {
+		applyLock.lock();
+		try {
+			doApply();
+		} finally {
+			applyLock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the queued votes out of the queue, adds them up per photo, and applies them. The checkpoint is only
+	 * written once the applier has persisted the batch; if the applier fails, the votes are put back at the head of
+	 * the queue and retried after another window. Votes that a photo has already been praised with are skipped by
+	 * the photo, so a retry or a replay never counts them twice.
+	 *
+	 * @methodtype command
+	 */
+	protected void doApply() {
+		List<PraiseVote> votes;
+		synchronized (queueLock) {
+			if (queuedVotes.isEmpty()) {
+				return;
+			}
+			votes = queuedVotes;
+			queuedVotes = new ArrayList<PraiseVote>();
+		}
+
+		Map<Integer, Aggregate> aggregates = aggregate(votes, journal.getId());
+		try {
+			applier.apply(aggregates.values());
+		} catch (RuntimeException ex) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("number of votes", votes.size()).
+					addException("Could not apply batch of votes, queued it again", ex).toString());
+			noFailedBatches.incrementAndGet();
+			requeue(votes);
+			return;
+		}
+
+		try {
+			journal.checkpoint(votes.get(votes.size() - 1).getSequence());
+		} catch (IOException ex) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("number of votes", votes.size()).
+					addException("Could not checkpoint applied votes, they are skipped on replay", ex).toString());
+		}
+
+		noAppliedVotes.addAndGet(votes.size());
+		noAppliedBatches.incrementAndGet();
+		noPhotoUpdates.addAndGet(aggregates.size());
+	}
+
+	/**
+	 * Puts the votes of a failed batch back in front of the votes queued since, so that the queue stays in journal
+	 * order and a later checkpoint does not cover them before they have been applied.
+	 *
+	 * @methodtype command
+	 */
+	protected void requeue(List<PraiseVote> votes) {
+		synchronized (queueLock) {
+			votes.addAll(queuedVotes);
+			queuedVotes = votes;
+			windowStartTime = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	protected static Map<Integer, Aggregate> aggregate(List<PraiseVote> votes, String journalId) {
+		Map<Integer, Aggregate> result = new LinkedHashMap<Integer, Aggregate>();
+		for (PraiseVote vote : votes) {
+			Aggregate aggregate = result.get(vote.getPhotoId());
+			if (aggregate == null) {
+				aggregate = new Aggregate(PhotoId.getIdFromInt(vote.getPhotoId()), journalId);
+				result.put(vote.getPhotoId(), aggregate);
+			}
+			aggregate.add(vote);
+		}
+		return result;
+	}
+
+
+	// metrics ---------------------------------------------------------------------------------------------------------
+
+	/**
+	 * @methodtype get
+	 */
+	public int getQueueDepth() {
+		synchronized (queueLock) {
+			return queuedVotes.size();
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoSubmittedVotes() {
+		return noSubmittedVotes.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoAppliedVotes() {
+		return noAppliedVotes.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoAppliedBatches() {
+		return noAppliedBatches.get();
+	}
+
+	/**
+	 * Returns how many photo updates the applied votes took; fewer than votes if votes were aggregated.
+	 *
+	 * @methodtype get
+	 */
+	public long getNoPhotoUpdates() {
+		return noPhotoUpdates.get();
+	}
+
+	/**
+	 * Returns how often a submitting request had to apply the queue because it was full.
+	 *
+	 * @methodtype get
+	 */
+	public long getNoBackpressureEvents() {
+		return noBackpressureEvents.get();
+	}
+
+	/**
+	 * Returns how many votes have been applied right away because they could not be journaled.
+	 *
+	 * @methodtype get
+	 */
+	public long getNoUnjournaledVotes() {
+		return noUnjournaledVotes.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoFailedBatches() {
+		return noFailedBatches.get();
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isJournaled() {
+		return isJournaled;
+	}
+
+	/**
+	 * The votes of one photo within a batch, added up. The votes are kept, so that a photo can skip those it has
+	 * already been praised with.
+	 */
+	public static class Aggregate {
+
+		/**
+		 *
+		 */
+		protected final PhotoId photoId;
+		protected final String journalId;
+		protected final List<PraiseVote> votes = new ArrayList<PraiseVote>();
+		protected int praiseSum = 0;
+		protected int noVotes = 0;
+		protected long lastSequence = 0;
+
+		/**
+		 * @param journalId the id of the journal the votes are from, or null if they have not been journaled
+		 * @methodtype constructor
+		 */
+		public Aggregate(PhotoId photoId, String journalId) {
+			this.photoId = photoId;
+			this.journalId = journalId;
+		}
+
+		/**
+		 * @methodtype command
+		 */
+		protected void add(PraiseVote vote) {
+			votes.add(vote);
+			praiseSum += vote.getValue();
+			noVotes++;
+			lastSequence = Math.max(lastSequence, vote.getSequence());
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public PhotoId getPhotoId() {
+			return photoId;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public String getJournalId() {
+			return journalId;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public long getLastSequence() {
+			return lastSequence;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public int getPraiseSumAfter(long sequence) {
+			int result = 0;
+			for (PraiseVote vote : votes) {
+				if (vote.getSequence() > sequence) {
+					result += vote.getValue();
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public int getNoVotesAfter(long sequence) {
+			int result = 0;
+			for (PraiseVote vote : votes) {
+				if (vote.getSequence() > sequence) {
+					result++;
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public int getPraiseSum() {
+			return praiseSum;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public int getNoVotes() {
+			return noVotes;
+		}
+
+	}
+
+	/**
+	 * Applies the aggregated votes of a batch to the photos and persists them.
+	 */
+	public interface Applier {
+
+		/**
+		 * Returns once all aggregates are persisted; throws if any of them may not be.
+		 *
+		 * @methodtype command
+		 */
+		void apply(Collection<Aggregate> aggregates);
+	}
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.model;
+
+import org.wahlzeit.utils.CodecUtil;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The form arguments a UserSession saves between requests. They are kept in the HttpSession, so they are written with
+ * a compact codec instead of default serialization: the values, almost always strings, are tagged with their type
+ * rather than described by class descriptors.
+ */
+public class SavedArgs extends HashMap<String, Object> implements Externalizable {
+
+	/**
+	 *
+	 */
+	protected static final byte FORMAT_VERSION = 1;
+
+	/**
+	 * Value types
+	 */
+	protected static final int NULL_VALUE = 0;
+	protected static final int STRING_VALUE = 1;
+	protected static final int STRING_ARRAY_VALUE = 2;
+	protected static final int OBJECT_VALUE = 3;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public SavedArgs() {
+		// required by Externalizable
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeByte(FORMAT_VERSION);
+		CodecUtil.writeVarInt(out, size());
+		for (Map.Entry<String, Object> entry : entrySet()) {
+			CodecUtil.writeString(out, entry.getKey());
+			Object value = entry.getValue();
+			if (value == null) {
+				CodecUtil.writeVarInt(out, NULL_VALUE);
+			} else if (value instanceof String) {
+				CodecUtil.writeVarInt(out, STRING_VALUE);
+				CodecUtil.writeString(out, (String) value);
+			} else if (value instanceof String[]) {
+				String[] values = (String[]) value;
+				CodecUtil.writeVarInt(out, STRING_ARRAY_VALUE);
+				CodecUtil.writeVarInt(out, values.length);
+				for (String element : values) {
+					CodecUtil.writeString(out, element);
+				}
+			} else {
+				CodecUtil.writeVarInt(out, OBJECT_VALUE);
+				out.writeObject(value);
+			}
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		byte version = in.readByte();
+		if (version != FORMAT_VERSION) {
+			throw new IOException("unknown saved args format version: " + version);
+		}
+
+		clear();
+		int noEntries = CodecUtil.readVarInt(in);
+		for (int i = 0; i < noEntries; i++) {
+			String key = CodecUtil.readString(in);
+			int type = CodecUtil.readVarInt(in);
+			switch (type) {
+				case NULL_VALUE:
+					put(key, null);
+					break;
+				case STRING_VALUE:
+					put(key, CodecUtil.readString(in));
+					break;
+				case STRING_ARRAY_VALUE:
+					String[] values = new String[CodecUtil.readVarInt(in)];
+					for (int j = 0; j < values.length; j++) {
+						values[j] = CodecUtil.readString(in);
+					}
+					put(key, values);
+					break;
+				case OBJECT_VALUE:
+					put(key, in.readObject());
+					break;
+				default:
+					throw new IOException("unknown saved arg type: " + type);
+			}
+		}
+	}
+
+}
@@ -22,16 +22,24 @@ package org.wahlzeit.model;
 
 import com.googlecode.objectify.ObjectifyService;
 import com.googlecode.objectify.Work;
+import org.wahlzeit.model.persistence.CatalogSnapshot;
+import org.wahlzeit.model.persistence.CatalogSnapshotStore;
 import org.wahlzeit.services.EmailAddress;
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.services.mailing.EmailService;
 import org.wahlzeit.services.mailing.EmailServiceManager;
 import org.wahlzeit.utils.DesignPattern;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 
@@ -76,8 +84,177 @@ public class UserManager extends ClientManager {
 		return instance;
 	}
 
+	/**
+	 *
+	 */
+	public static final String SNAPSHOT_NAME = "users.snapshot";
+
+	/**
+	 * Saves that happened shortly before a scan of the catalog are caught up again, to tolerate clock skew
+	 */
+	protected static final long SNAPSHOT_CLOCK_SKEW_MILLIS = 60 * 1000;
+
+	/**
+	 * Ids and nicknames of users that are known from the catalog snapshot but have not been loaded yet
+	 */
+	protected Map<String, String> unloadedUsers = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * Start time of the last full scan or catch-up query, minus the clock skew; users that other instances saved
+	 * after it may be unknown here, so it is the high-water mark of the snapshots this instance writes
+	 */
+	protected volatile long catalogSyncTime = 0;
+
+	/**
+	 * Loads the user catalog from the shared snapshot, or all users from the datastore if there is no snapshot, and
+	 * writes a fresh snapshot for the next start.
+	 */
 	public void init() {
-		loadExistingUsers();
+		long syncTime = System.currentTimeMillis() - SNAPSHOT_CLOCK_SKEW_MILLIS;
+		if (!loadUsersFromSnapshot()) {
+			loadExistingUsers();
+		}
+		catalogSyncTime = syncTime;
+		writeCatalogSnapshot();
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Registers the users of the catalog snapshot and their nicknames without loading them; they are loaded on first
+	 * access. Users that have been saved after the snapshot's high-water mark are loaded from the datastore. Returns
+	 * false if there is no usable snapshot.
+	 */
+	protected boolean loadUsersFromSnapshot() {
+		final CatalogSnapshot snapshot = CatalogSnapshotStore.getInstance().read(SNAPSHOT_NAME);
+		if (snapshot == null) {
+			return false;
+		}
+
+		Collection<User> modifiedUsers = ObjectifyService.run(new Work<Collection<User>>() {
+			@Override
+			public Collection<User> run() {
+				Collection<User> modifiedUsers = new ArrayList<User>();
+				readObjects(modifiedUsers, User.class, Client.MODIFICATION_TIME + " >=", snapshot.getHighWaterMark());
+				return modifiedUsers;
+			}
+		});
+
+		Set<String> modifiedUserIds = new HashSet<String>();
+		for (User user : modifiedUsers) {
+			modifiedUserIds.add(user.getId());
+		}
+
+		for (CatalogSnapshot.UserRecord record : snapshot.getUserRecords()) {
+			if (!modifiedUserIds.contains(record.getId()) && !idClientMap.containsKey(record.getId())) {
+				unloadedUsers.put(record.getId(), record.getNickName());
+				listOfUsedNicknames.add(record.getNickName());
+			}
+		}
+
+		for (User user : modifiedUsers) {
+			if (!hasClientById(user.getId())) {
+				doAddClient(user);
+			}
+		}
+
+		log.info(LogBuilder.createSystemMessage().addMessage("User catalog loaded from snapshot.")
+				.addParameter("number of users", snapshot.getUserRecords().size()).toString());
+		return true;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Writes the ids and nicknames of all known users to the shared catalog snapshot. The high-water mark is the time of
+	 * the last full scan or catch-up query, as only users saved before it are known to be in the catalog.
+	 */
+	public void writeCatalogSnapshot() {
+		long highWaterMark = catalogSyncTime;
+		List<CatalogSnapshot.UserRecord> records = new ArrayList<CatalogSnapshot.UserRecord>();
+		for (Client client : idClientMap.values()) {
+			if (client instanceof User) {
+				records.add(new CatalogSnapshot.UserRecord(client.getId(), client.getNickName()));
+			}
+		}
+		for (Map.Entry<String, String> entry : unloadedUsers.entrySet()) {
+			records.add(new CatalogSnapshot.UserRecord(entry.getKey(), entry.getValue()));
+		}
+
+		try {
+			CatalogSnapshotStore.getInstance().write(SNAPSHOT_NAME,
+					new CatalogSnapshot(highWaterMark, Collections.<CatalogSnapshot.PhotoRecord>emptyList(), records));
+		} catch (IOException e) {
+			log.warning(LogBuilder.createSystemMessage().
+					addException("Could not write user catalog snapshot", e).toString());
+		}
+	}
+
+	/**
+	 * Loads users that are only known from the catalog snapshot on first access.
+	 *
+	 * @methodtype get
+	 * @methodproperty primitive
+	 */
+	@Override
+	protected Client doGetClientById(String name) {
+		Client result = super.doGetClientById(name);
+		if (result == null && unloadedUsers.containsKey(name)) {
+			result = loadUnloadedUser(name);
+		}
+		return result;
+	}
+
+	/**
+	 * Loads the users among the given ids that are only known from the catalog snapshot in batch calls, e.g. before
+	 * accessing many users one by one.
+	 *
+	 * @methodtype command
+	 */
+	public synchronized void loadUsers(Collection<String> ids) {
+		final List<String> unloadedIds = new ArrayList<String>();
+		for (String id : ids) {
+			if (unloadedUsers.containsKey(id) && super.doGetClientById(id) == null) {
+				unloadedIds.add(id);
+			}
+		}
+		if (unloadedIds.isEmpty()) {
+			return;
+		}
+
+		Map<String, User> loadedUsers = ObjectifyService.run(new Work<Map<String, User>>() {
+			@Override
+			public Map<String, User> run() {
+				return readObjectsByIds(User.class, applicationRootKey, unloadedIds);
+			}
+		});
+		for (String id : unloadedIds) {
+			User user = loadedUsers.get(id);
+			if (user != null) {
+				idClientMap.put(id, user);
+			}
+			unloadedUsers.remove(id);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected synchronized Client loadUnloadedUser(final String id) {
+		Client result = super.doGetClientById(id);
+		if (result == null && unloadedUsers.containsKey(id)) {
+			result = ObjectifyService.run(new Work<User>() {
+				@Override
+				public User run() {
+					return readObject(User.class, applicationRootKey, id);
+				}
+			});
+			if (result != null) {
+				idClientMap.put(id, result);
+			}
+			unloadedUsers.remove(id);
+		}
+		return result;
 	}
 
 	/**
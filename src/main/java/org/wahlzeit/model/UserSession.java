@@ -23,11 +23,15 @@ package org.wahlzeit.model;
 import org.wahlzeit.services.Language;
 import org.wahlzeit.services.Session;
 import org.wahlzeit.utils.HtmlUtil;
+import org.wahlzeit.utils.IntBitmap;
 
 import javax.servlet.http.HttpSession;
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
@@ -36,6 +40,14 @@ import java.util.logging.Logger;
  * Wrapper class for {@link HttpSession} to provide a readable interface for Wahlzeit.
  *
  * {@link HttpSession}s are managed automatically by Google App Engine.
+ *
+ * Every setAttribute() of an HttpSession makes App Engine write the session through to memcache and the datastore.
+ * Therefore, the attributes are read into a request-scoped buffer and only the changed ones are written back, once
+ * each, by flushAttributes() at the end of the request; a request that changes nothing does not write the session.
+ *
+ * Requests without HttpSession, e.g. anonymous GETs, get a UserSession with an HttpSessionFactory and an unregistered
+ * Guest instead. The HttpSession is created and the Guest registered only if the request changes state that has to be
+ * kept for later requests, so that crawlers do not leave sessions and guests behind.
  */
 public class UserSession extends Session implements Serializable {
 
@@ -52,63 +64,263 @@ public class UserSession extends Session implements Serializable {
 	public static final String SAVED_ARGS = "savedArgs";
 	public static final String INITIALIZED = "initialized";
 	public static final String ANONYMOUS_CLIENT = "anon";
+	public static final String TOP_PHOTOS_TAG = "topPhotosTag";
+
+
+	/**
+	 * Attributes that are only used within a request, and thus do not require an HttpSession
+	 */
+	protected static final Set<String> REQUEST_SCOPED_ATTRIBUTES =
+			Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(Photo.ID, TOP_PHOTOS_TAG)));
 
 
 	private static Logger log = Logger.getLogger(UserSession.class.getName());
 
 	protected HttpSession httpSession;
 
+	/**
+	 * Creates the HttpSession of a request without one; null once there is an HttpSession
+	 */
+	protected transient HttpSessionFactory httpSessionFactory;
+
+	/**
+	 * The unregistered guest of a request without HttpSession, and its write count after initialization
+	 */
+	protected transient Client sessionlessClient;
+	protected transient int sessionlessClientWriteCount = 0;
+
+	/**
+	 * The attributes read or set during this request, including null values, and the names of the changed ones
+	 */
+	protected final Map<String, Object> attributes = new HashMap<String, Object>();
+	protected final Set<String> changedAttributes = new LinkedHashSet<String>();
+
+	/**
+	 * The write count of the photo filter when it was read or written, to detect modifications in place
+	 */
+	protected int photoFilterWriteCount = 0;
+
 	/**
 	 *
 	 */
 	public UserSession(String myName, String mySiteUrl, HttpSession myHttpSession, String myLanguage) {
 		httpSession = myHttpSession;
 		initialize(myName);
-		if (httpSession.getAttribute(INITIALIZED) == null) {
-			httpSession.setAttribute(SITE_URL, mySiteUrl);
-			httpSession.setAttribute(PHOTO_FILTER, PhotoFactory.getInstance().createPhotoFilter());
+		if (getAttribute(INITIALIZED) == null) {
+			setAttribute(SITE_URL, mySiteUrl);
+			setAttribute(PHOTO_FILTER, PhotoFactory.getInstance().createPhotoFilter());
 
 			setClient(new Guest());
-			try {
-				Language language = Language.getFromIsoCode(myLanguage);
-				getClient().setLanguage(language);
-			} catch (IllegalArgumentException e) {
-				// default language of guest is english
-			}
+			initializeLanguage(getClient(), myLanguage);
 
 			clearDisplayedPhotos();
 			clearPraisedPhotos();
 			clearSavedArgs();
-			httpSession.setAttribute(INITIALIZED, INITIALIZED);
+			setAttribute(INITIALIZED, INITIALIZED);
+
+		}
+	}
+
+	/**
+	 * Creates a UserSession for a request without HttpSession; the initial attributes are only buffered.
+	 */
+	public UserSession(String mySiteUrl, HttpSessionFactory myHttpSessionFactory, String myLanguage) {
+		httpSessionFactory = myHttpSessionFactory;
+		initialize(NO_SESSION);
+
+		putAttribute(SITE_URL, mySiteUrl);
+		putAttribute(PHOTO_FILTER, PhotoFactory.getInstance().createPhotoFilter());
+		putAttribute(PRAISED_PHOTOS, new IntBitmap());
+		putAttribute(SAVED_ARGS, new SavedArgs());
+
+		sessionlessClient = Guest.createUnregisteredGuest();
+		initializeLanguage(sessionlessClient, myLanguage);
+		sessionlessClientWriteCount = sessionlessClient.writeCount;
+	}
+
+	/**
+	 * @methodtype initialization
+	 */
+	protected void initializeLanguage(Client client, String myLanguage) {
+		try {
+			Language language = Language.getFromIsoCode(myLanguage);
+			client.setLanguage(language);
+		} catch (IllegalArgumentException e) {
+			// default language of guest is english
+		}
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean hasHttpSession() {
+		return httpSession != null;
+	}
+
+	/**
+	 * Creates the HttpSession of a request without one, writes the buffered attributes to it, and registers the guest.
+	 *
+	 * @methodtype command
+	 */
+	protected void ensureHttpSession() {
+		if (httpSession != null) {
+			return;
+		}
+
+		httpSession = httpSessionFactory.createHttpSession();
+		httpSessionFactory = null;
+		for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+			if (entry.getValue() != null) {
+				changedAttributes.add(entry.getKey());
+			}
+		}
+		initialize(httpSession.getId());
+		putAttribute(INITIALIZED, INITIALIZED);
+		markAttributeChanged(INITIALIZED);
+
+		if (sessionlessClient != null) {
+			Client client = sessionlessClient;
+			sessionlessClient = null;
+			client.register();
+			setClient(client);
+		}
+	}
+
+	/**
+	 * Returns whether a request without HttpSession changed state that has to be kept for later requests.
+	 *
+	 * @methodtype boolean-query
+	 */
+	protected boolean needsHttpSession() {
+		if (sessionlessClient != null && sessionlessClient.writeCount != sessionlessClientWriteCount) {
+			return true;
+		}
+		for (String name : changedAttributes) {
+			if (!REQUEST_SCOPED_ATTRIBUTES.contains(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
 
+	/**
+	 * @methodtype get
+	 */
+	protected Object getAttribute(String name) {
+		if (attributes.containsKey(name)) {
+			return attributes.get(name);
 		}
+
+		Object result = httpSession == null ? null : httpSession.getAttribute(name);
+		putAttribute(name, result);
+		return result;
+	}
+
+	/**
+	 * Buffers the attribute; it is written to the HttpSession by flushAttributes() if it is not equal to the current
+	 * value. Callers that modified an attribute in place have to call markAttributeChanged() instead.
+	 *
+	 * @methodtype set
+	 */
+	protected void setAttribute(String name, Object value) {
+		Object oldValue = getAttribute(name);
+		if (value == null ? oldValue != null : !value.equals(oldValue)) {
+			putAttribute(name, value);
+			changedAttributes.add(name);
+		}
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	protected void markAttributeChanged(String name) {
+		changedAttributes.add(name);
+	}
+
+	/**
+	 * @methodtype set
+	 * @methodproperty primitive
+	 */
+	protected void putAttribute(String name, Object value) {
+		attributes.put(name, value);
+		if (value instanceof PhotoFilter) {
+			photoFilterWriteCount = ((PhotoFilter) value).getWriteCount();
+		}
+	}
+
+	/**
+	 * Writes the changed attributes to the HttpSession, at most one setAttribute() each; meant to be called before the
+	 * response is committed, since it may create the HttpSession, and at the end of a request.
+	 *
+	 * @methodtype command
+	 */
+	public void flushAttributes() {
+		Object photoFilter = attributes.get(PHOTO_FILTER);
+		boolean isPhotoFilterModified = photoFilter instanceof PhotoFilter &&
+				((PhotoFilter) photoFilter).getWriteCount() != photoFilterWriteCount;
+		if (isPhotoFilterModified) {
+			changedAttributes.add(PHOTO_FILTER);
+		}
+
+		if (httpSession == null) {
+			if (!needsHttpSession()) {
+				changedAttributes.clear();
+				return;
+			}
+			ensureHttpSession();
+		}
+
+		for (String name : changedAttributes) {
+			Object value = attributes.get(name);
+			if (value == null) {
+				httpSession.removeAttribute(name);
+			} else {
+				httpSession.setAttribute(name, value);
+			}
+			if (value instanceof PhotoFilter) {
+				photoFilterWriteCount = ((PhotoFilter) value).getWriteCount();
+			}
+		}
+		changedAttributes.clear();
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean hasChangedAttributes() {
+		return !changedAttributes.isEmpty();
 	}
 
 	/**
 	 *
 	 */
 	public void clearDisplayedPhotos() {
-		PhotoFilter photoFilter = (PhotoFilter) httpSession.getAttribute(PHOTO_FILTER);
+		PhotoFilter photoFilter = (PhotoFilter) getAttribute(PHOTO_FILTER);
 		if (photoFilter != null) {
 			photoFilter.clear();
-			httpSession.setAttribute(PHOTO_FILTER, photoFilter);
 		} else {
 			log.warning("No PhotoFilter found in HttpSession to clear.");
 		}
 	}
 
 	/**
-	 *
+	 * The praised photos are kept as a bitmap of their int ids rather than a set of photos, to keep the session small.
 	 */
 	public void clearPraisedPhotos() {
-		httpSession.setAttribute(PRAISED_PHOTOS, new HashSet<Photo>());
+		Object praisedPhotos = getAttribute(PRAISED_PHOTOS);
+		if (!(praisedPhotos instanceof IntBitmap) || !((IntBitmap) praisedPhotos).isEmpty()) {
+			setAttribute(PRAISED_PHOTOS, new IntBitmap());
+		}
 	}
 
 	/**
 	 * @methodtype init
 	 */
 	public void clearSavedArgs() {
-		httpSession.setAttribute(SAVED_ARGS, new HashMap<String, Object>());
+		Object savedArgs = getAttribute(SAVED_ARGS);
+		if (!(savedArgs instanceof SavedArgs) || !((SavedArgs) savedArgs).isEmpty()) {
+			setAttribute(SAVED_ARGS, new SavedArgs());
+		}
 	}
 
 	/**
@@ -123,31 +335,34 @@ public class UserSession extends Session implements Serializable {
 	 * @methodtype get
 	 */
 	public String getSiteUrl() {
-		return (String) httpSession.getAttribute(SITE_URL);
+		return (String) getAttribute(SITE_URL);
 	}
 
 	@Override
 	protected void notifyNameChanged() {
-		httpSession.setAttribute(Session.NAME, super.getName());
+		if (httpSession != null) {
+			setAttribute(Session.NAME, super.getName());
+		}
 	}
 
 	/**
 	 * @methodtype convert Returns some signifier of current user
 	 */
 	public String getClientId() {
-		return (String) httpSession.getAttribute(CLIENT_ID);
-	}
-
-	@Override
-	protected void notifyProcessingTimeChanged() {
-		httpSession.setAttribute(Session.PROCESSING_TIME, super.getProcessingTime());
+		if (sessionlessClient != null) {
+			return sessionlessClient.getId();
+		}
+		return (String) getAttribute(CLIENT_ID);
 	}
 
 	/**
 	 * @methodtype get
 	 */
 	public Client getClient() {
-		String clientName = (String) httpSession.getAttribute(CLIENT_ID);
+		if (sessionlessClient != null) {
+			return sessionlessClient;
+		}
+		String clientName = (String) getAttribute(CLIENT_ID);
 		return UserManager.getInstance().getClientById(clientName);
 	}
 
@@ -155,7 +370,13 @@ public class UserSession extends Session implements Serializable {
 	 * @methodtype set
 	 */
 	public void setClient(Client newClient) {
-		String previousClientId = (String) httpSession.getAttribute(CLIENT_ID);
+		if (httpSession == null) {
+			// the unregistered guest is replaced, not registered
+			sessionlessClient = null;
+			ensureHttpSession();
+		}
+
+		String previousClientId = (String) getAttribute(CLIENT_ID);
 		if (previousClientId != null) {
 			Client previousClient = UserManager.getInstance().getClientById(previousClientId);
 			if (previousClient instanceof Guest) {
@@ -163,7 +384,7 @@ public class UserSession extends Session implements Serializable {
 			}
 		}
 
-		httpSession.setAttribute(CLIENT_ID, newClient.getId());
+		setAttribute(CLIENT_ID, newClient.getId());
 		UserManager.getInstance().addHttpSessionIdToClientMapping(httpSession.getId(), newClient);
 	}
 
@@ -171,30 +392,41 @@ public class UserSession extends Session implements Serializable {
 	 *
 	 */
 	public PhotoFilter getPhotoFilter() {
-		return (PhotoFilter) httpSession.getAttribute(PHOTO_FILTER);
+		return (PhotoFilter) getAttribute(PHOTO_FILTER);
 	}
 
 	/**
 	 * @methodtype boolean query
 	 */
 	public boolean hasPraisedPhoto(Photo photo) {
-		Set praisedPhotos = (Set) httpSession.getAttribute(PRAISED_PHOTOS);
-		if (praisedPhotos != null) {
-			return praisedPhotos.contains(photo);
+		Object praisedPhotos = getAttribute(PRAISED_PHOTOS);
+		if (praisedPhotos instanceof IntBitmap) {
+			return ((IntBitmap) praisedPhotos).contains(photo.getId().asInt());
 		} else {
 			log.warning("Found no set of praised Photos to search for Photo.");
 			return false;
 		}
 	}
 
+	/**
+	 *
+	 */
+	public void addPraisedPhoto(Photo photo) {
+		Object praisedPhotos = getAttribute(PRAISED_PHOTOS);
+		IntBitmap praisedPhotoIds = praisedPhotos instanceof IntBitmap ? (IntBitmap) praisedPhotos : new IntBitmap();
+		if (praisedPhotoIds.add(photo.getId().asInt())) {
+			putAttribute(PRAISED_PHOTOS, praisedPhotoIds);
+			markAttributeChanged(PRAISED_PHOTOS);
+		}
+	}
+
 	/**
 	 *
 	 */
 	public void addProcessedPhoto(Photo photo) {
-		PhotoFilter photoFilter = (PhotoFilter) httpSession.getAttribute(PHOTO_FILTER);
+		PhotoFilter photoFilter = (PhotoFilter) getAttribute(PHOTO_FILTER);
 		if (photoFilter != null) {
 			photoFilter.addProcessedPhoto(photo);
-			httpSession.setAttribute(PHOTO_FILTER, photoFilter);
 		} else {
 			log.warning("No PhotoFilter found in HttpSession to add Photo.");
 		}
@@ -204,70 +436,86 @@ public class UserSession extends Session implements Serializable {
 	 * @methodtype get
 	 */
 	public String getHeading() {
-		return (String) httpSession.getAttribute(HEADING);
+		return (String) getAttribute(HEADING);
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void setHeading(String myHeading) {
-		httpSession.setAttribute(HEADING, myHeading);
+		setAttribute(HEADING, myHeading);
 	}
 
 	/**
 	 * @methodtype get
 	 */
 	public String getMessage() {
-		return (String) httpSession.getAttribute(MESSAGE);
+		return (String) getAttribute(MESSAGE);
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void setMessage(String myMessage) {
-		httpSession.setAttribute(MESSAGE, HtmlUtil.asP(myMessage));
+		setAttribute(MESSAGE, HtmlUtil.asP(myMessage));
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void setTwoLineMessage(String msg1, String msg2) {
-		httpSession.setAttribute(MESSAGE, HtmlUtil.asP(msg1) + HtmlUtil.asP(msg2));
+		setAttribute(MESSAGE, HtmlUtil.asP(msg1) + HtmlUtil.asP(msg2));
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void setThreeLineMessage(String msg1, String msg2, String msg3) {
-		httpSession.setAttribute(MESSAGE, HtmlUtil.asP(msg1) + HtmlUtil.asP(msg2) + HtmlUtil.asP(msg3));
+		setAttribute(MESSAGE, HtmlUtil.asP(msg1) + HtmlUtil.asP(msg2) + HtmlUtil.asP(msg3));
 	}
 
 	/**
 	 * @methodtype get
 	 */
 	public PhotoId getPhotoId() {
-		return (PhotoId) httpSession.getAttribute(Photo.ID);
+		return (PhotoId) getAttribute(Photo.ID);
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void setPhotoId(PhotoId newPhotoId) {
-		httpSession.setAttribute(Photo.ID, newPhotoId);
+		setAttribute(Photo.ID, newPhotoId);
+	}
+
+	/**
+	 * Returns the tag of the best photos page of the current request, or null for the best photos overall.
+	 *
+	 * @methodtype get
+	 */
+	public String getTopPhotosTag() {
+		return (String) getAttribute(TOP_PHOTOS_TAG);
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setTopPhotosTag(String newTag) {
+		setAttribute(TOP_PHOTOS_TAG, newTag);
 	}
 
 	/**
 	 * @methodtype get
 	 */
 	public PhotoCase getPhotoCase() {
-		return (PhotoCase) httpSession.getAttribute(PHOTO_CASE);
+		return (PhotoCase) getAttribute(PHOTO_CASE);
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void setPhotoCase(PhotoCase photoCase) {
-		httpSession.setAttribute(PHOTO_CASE, photoCase);
+		setAttribute(PHOTO_CASE, photoCase);
 	}
 
 	/**
@@ -287,7 +535,7 @@ public class UserSession extends Session implements Serializable {
 	 * @methodtype get
 	 */
 	public Object getSavedArg(String key) {
-		Map<String, Object> savedArgs = (Map<String, Object>) httpSession.getAttribute(SAVED_ARGS);
+		Map<String, Object> savedArgs = (Map<String, Object>) getAttribute(SAVED_ARGS);
 		return savedArgs.get(key);
 	}
 
@@ -334,15 +582,28 @@ public class UserSession extends Session implements Serializable {
 	 */
 	public void setSavedArg(String key, Object value) {
 		Map<String, Object> savedArgs = getSavedArgs();
-		savedArgs.put(key, value);
-		httpSession.setAttribute(SAVED_ARGS, savedArgs);
+		if (value == null ? savedArgs.get(key) != null : !value.equals(savedArgs.get(key))) {
+			savedArgs.put(key, value);
+			markAttributeChanged(SAVED_ARGS);
+		}
 	}
 
 	/**
 	 * @methodtype get
 	 */
 	public Map<String, Object> getSavedArgs() {
-		return (Map<String, Object>) httpSession.getAttribute(SAVED_ARGS);
+		return (Map<String, Object>) getAttribute(SAVED_ARGS);
+	}
+
+	/**
+	 * Creates the HttpSession for a request that did not have one.
+	 */
+	public interface HttpSessionFactory {
+
+		/**
+		 * @methodtype factory
+		 */
+		HttpSession createHttpSession();
 	}
 
 }
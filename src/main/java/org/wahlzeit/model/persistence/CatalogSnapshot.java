@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.model.persistence;
+
+import org.wahlzeit.services.LogBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A compact binary snapshot of the catalog metadata, i.e. of photos and users, that lets a new instance start from a
+ * snapshot instead of scanning all entities in the datastore. Entities that changed after the snapshot's high-water
+ * mark have to be caught up from the datastore. Snapshots are shared by all instances through the
+ * CatalogSnapshotStore.
+ *
+ * The encoding consists of a header (magic, version, high-water mark), the photo and user sections, and a CRC32 of
+ * all preceding bytes. An outdated or corrupt encoding is reported as null, so callers fall back to a full scan.
+ */
+public class CatalogSnapshot {
+
+	private static final Logger log = Logger.getLogger(CatalogSnapshot.class.getName());
+
+	/**
+	 *
+	 */
+	protected static final int MAGIC = 0x575a4353; // "WZCS"
+	protected static final int VERSION = 1;
+	protected static final int HEADER_SIZE = 4 + 4 + 8;
+	protected static final int CHECKSUM_SIZE = 8;
+
+	/**
+	 *
+	 */
+	protected final long highWaterMark;
+	protected final List<PhotoRecord> photoRecords;
+	protected final List<UserRecord> userRecords;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public CatalogSnapshot(long highWaterMark, Collection<PhotoRecord> photoRecords,
+						   Collection<UserRecord> userRecords) {
+		this.highWaterMark = highWaterMark;
+		this.photoRecords = Collections.unmodifiableList(new ArrayList<PhotoRecord>(photoRecords));
+		this.userRecords = Collections.unmodifiableList(new ArrayList<UserRecord>(userRecords));
+	}
+
+	/**
+	 * Entities modified at or after this time (in ms) may be missing from or outdated in the snapshot.
+	 *
+	 * @methodtype get
+	 */
+	public long getHighWaterMark() {
+		return highWaterMark;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public List<PhotoRecord> getPhotoRecords() {
+		return photoRecords;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public List<UserRecord> getUserRecords() {
+		return userRecords;
+	}
+
+
+	// write methods ---------------------------------------------------------------------------------------------------
+
+	/**
+	 * @methodtype conversion
+	 */
+	public byte[] asBytes() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(highWaterMark);
+
+		out.writeInt(photoRecords.size());
+		for (PhotoRecord record : photoRecords) {
+			out.writeInt(record.photoId);
+			out.writeLong(record.datastoreId);
+			writeString(out, record.ownerId);
+			out.writeInt(record.status);
+			out.writeInt(record.praiseSum);
+			out.writeInt(record.noVotes);
+			out.writeInt(record.noVotesAtLastNotification);
+			out.writeInt(record.width);
+			out.writeInt(record.height);
+			out.writeLong(record.creationTime);
+			writeString(out, record.tags);
+		}
+
+		out.writeInt(userRecords.size());
+		for (UserRecord record : userRecords) {
+			writeString(out, record.id);
+			writeString(out, record.nickName);
+		}
+		out.flush();
+
+		CRC32 checksum = new CRC32();
+		checksum.update(bytes.toByteArray());
+		out.writeLong(checksum.getValue());
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	protected static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] data = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(data.length);
+			out.write(data);
+		}
+	}
+
+
+	// read methods ----------------------------------------------------------------------------------------------------
+
+	/**
+	 * Decodes the snapshot from the remaining bytes of the buffer. Returns null if it is not usable.
+	 *
+	 * @param source where the bytes come from, for the log
+	 * @methodtype factory
+	 */
+	public static CatalogSnapshot readFrom(ByteBuffer bytes, String source) {
+		try {
+			ByteBuffer buffer = bytes.slice();
+			int size = buffer.remaining();
+			if (size < HEADER_SIZE + CHECKSUM_SIZE) {
+				throw new IOException("invalid snapshot size " + size);
+			}
+
+			assertValidChecksum(buffer, size - CHECKSUM_SIZE);
+
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				throw new IOException("unknown snapshot format");
+			}
+			long highWaterMark = buffer.getLong();
+
+			int noPhotos = buffer.getInt();
+			List<PhotoRecord> photoRecords = new ArrayList<PhotoRecord>(noPhotos);
+			for (int i = 0; i < noPhotos; i++) {
+				int photoId = buffer.getInt();
+				long datastoreId = buffer.getLong();
+				String ownerId = readString(buffer);
+				int status = buffer.getInt();
+				int praiseSum = buffer.getInt();
+				int noVotes = buffer.getInt();
+				int noVotesAtLastNotification = buffer.getInt();
+				int width = buffer.getInt();
+				int height = buffer.getInt();
+				long creationTime = buffer.getLong();
+				String tags = readString(buffer);
+				photoRecords.add(new PhotoRecord(photoId, datastoreId, ownerId, status, praiseSum, noVotes,
+						noVotesAtLastNotification, width, height, creationTime, tags));
+			}
+
+			int noUsers = buffer.getInt();
+			List<UserRecord> userRecords = new ArrayList<UserRecord>(noUsers);
+			for (int i = 0; i < noUsers; i++) {
+				userRecords.add(new UserRecord(readString(buffer), readString(buffer)));
+			}
+
+			return new CatalogSnapshot(highWaterMark, photoRecords, userRecords);
+		} catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("source", source).
+					addException("Could not read catalog snapshot", e).toString());
+			return null;
+		}
+	}
+
+	/**
+	 * @methodtype assertion
+	 */
+	protected static void assertValidChecksum(ByteBuffer buffer, int length) throws IOException {
+		CRC32 checksum = new CRC32();
+		ByteBuffer content = buffer.duplicate();
+		content.limit(length);
+		checksum.update(content);
+		if (checksum.getValue() != buffer.getLong(length)) {
+			throw new IOException("snapshot checksum mismatch");
+		}
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	protected static String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+
+		byte[] data = new byte[length];
+		buffer.get(data);
+		return new String(data, StandardCharsets.UTF_8);
+	}
+
+
+	// records ---------------------------------------------------------------------------------------------------------
+
+	/**
+	 * The catalog metadata of one photo; the datastore id allows loading the complete photo on demand.
+	 */
+	public static class PhotoRecord {
+
+		protected final int photoId;
+		protected final long datastoreId;
+		protected final String ownerId;
+		protected final int status;
+		protected final int praiseSum;
+		protected final int noVotes;
+		protected final int noVotesAtLastNotification;
+		protected final int width;
+		protected final int height;
+		protected final long creationTime;
+		protected final String tags;
+
+		/**
+		 * @methodtype constructor
+		 */
+		public PhotoRecord(int photoId, long datastoreId, String ownerId, int status, int praiseSum, int noVotes,
+						   int noVotesAtLastNotification, int width, int height, long creationTime, String tags) {
+			this.photoId = photoId;
+			this.datastoreId = datastoreId;
+			this.ownerId = ownerId;
+			this.status = status;
+			this.praiseSum = praiseSum;
+			this.noVotes = noVotes;
+			this.noVotesAtLastNotification = noVotesAtLastNotification;
+			this.width = width;
+			this.height = height;
+			this.creationTime = creationTime;
+			this.tags = tags;
+		}
+
+		public int getPhotoId() {
+			return photoId;
+		}
+
+		public long getDatastoreId() {
+			return datastoreId;
+		}
+
+		public String getOwnerId() {
+			return ownerId;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		public int getPraiseSum() {
+			return praiseSum;
+		}
+
+		public int getNoVotes() {
+			return noVotes;
+		}
+
+		public int getNoVotesAtLastNotification() {
+			return noVotesAtLastNotification;
+		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public int getHeight() {
+			return height;
+		}
+
+		public long getCreationTime() {
+			return creationTime;
+		}
+
+		public String getTags() {
+			return tags;
+		}
+	}
+
+	/**
+	 * The catalog metadata of one user, enough to know that the user exists and which nickname is taken.
+	 */
+	public static class UserRecord {
+
+		protected final String id;
+		protected final String nickName;
+
+		/**
+		 * @methodtype constructor
+		 */
+		public UserRecord(String id, String nickName) {
+			this.id = id;
+			this.nickName = nickName;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public String getNickName() {
+			return nickName;
+		}
+	}
+
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.model.persistence;
+
+import com.google.appengine.api.appidentity.AppIdentityServiceFactory;
+import com.google.appengine.tools.cloudstorage.GcsFileMetadata;
+import com.google.appengine.tools.cloudstorage.GcsFileOptions;
+import com.google.appengine.tools.cloudstorage.GcsFilename;
+import com.google.appengine.tools.cloudstorage.GcsInputChannel;
+import com.google.appengine.tools.cloudstorage.GcsService;
+import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
+import com.google.appengine.tools.cloudstorage.RetryParams;
+import org.wahlzeit.services.LogBuilder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+
+/**
+ * Keeps catalog snapshots in Google Cloud Storage, so that they outlive the instance that wrote them and a new
+ * instance can start from the snapshot of any other. An object is replaced as a whole, so readers never see a
+ * partially written snapshot; with several instances writing, the last snapshot wins, which is consistent with its
+ * own high-water mark.
+ */
+public class CatalogSnapshotStore {
+
+	private static final Logger log = Logger.getLogger(CatalogSnapshotStore.class.getName());
+
+	/**
+	 * System property (see appengine-web.xml) of the bucket; the default bucket of the application is used without it
+	 */
+	public static final String BUCKET_PROPERTY = "org.wahlzeit.catalogSnapshot.bucket";
+
+	/**
+	 *
+	 */
+	protected static final String OBJECT_PREFIX = "catalog/";
+	protected static final String MIME_TYPE = "application/octet-stream";
+
+	/**
+	 *
+	 */
+	private static CatalogSnapshotStore instance = null;
+
+	/**
+	 * @methodtype get
+	 */
+	public static synchronized CatalogSnapshotStore getInstance() {
+		if (instance == null) {
+			String bucketName = System.getProperty(BUCKET_PROPERTY);
+			if (bucketName == null || bucketName.isEmpty()) {
+				bucketName = AppIdentityServiceFactory.getAppIdentityService().getDefaultGcsBucketName();
+			}
+			instance = new CatalogSnapshotStore(GcsServiceFactory.createGcsService(RetryParams.getDefaultInstance()),
+					bucketName);
+		}
+		return instance;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public static synchronized void setInstance(CatalogSnapshotStore newInstance) {
+		instance = newInstance;
+	}
+
+	/**
+	 *
+	 */
+	protected final GcsService gcsService;
+	protected final String bucketName;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public CatalogSnapshotStore(GcsService gcsService, String bucketName) {
+		this.gcsService = gcsService;
+		this.bucketName = bucketName;
+	}
+
+	/**
+	 * Replaces the snapshot of the given name.
+	 *
+	 * @methodtype command
+	 */
+	public void write(String name, CatalogSnapshot snapshot) throws IOException {
+		GcsFilename filename = getFilename(name);
+		GcsFileOptions options = new GcsFileOptions.Builder().mimeType(MIME_TYPE).build();
+		gcsService.createOrReplace(filename, options, ByteBuffer.wrap(snapshot.asBytes()));
+
+		log.config(LogBuilder.createSystemMessage().addAction("wrote catalog snapshot")
+				.addParameter("object", filename.getObjectName())
+				.addParameter("photos", snapshot.getPhotoRecords().size())
+				.addParameter("users", snapshot.getUserRecords().size()).toString());
+	}
+
+	/**
+	 * Returns the snapshot of the given name, or null if there is no usable one.
+	 *
+	 * @methodtype factory
+	 */
+	public CatalogSnapshot read(String name) {
+		GcsFilename filename = getFilename(name);
+		try {
+			GcsFileMetadata metadata = gcsService.getMetadata(filename);
+			if (metadata == null) {
+				return null;
+			}
+			if (metadata.getLength() > Integer.MAX_VALUE) {
+				throw new IOException("invalid snapshot size " + metadata.getLength());
+			}
+
+			ByteBuffer buffer = ByteBuffer.allocate((int) metadata.getLength());
+			try (GcsInputChannel channel = gcsService.openReadChannel(filename, 0)) {
+				while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+					// read on
+				}
+			}
+			buffer.flip();
+			return CatalogSnapshot.readFrom(buffer, filename.getObjectName());
+		} catch (IOException e) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("object", filename.getObjectName()).
+					addException("Could not read catalog snapshot", e).toString());
+			return null;
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected GcsFilename getFilename(String name) {
+		return new GcsFilename(bucketName, OBJECT_PREFIX + name);
+	}
+
+}
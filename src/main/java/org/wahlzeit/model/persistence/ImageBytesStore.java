@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.model.persistence;
+
+import org.wahlzeit.model.PhotoSize;
+import org.wahlzeit.services.LogBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Abstract super class for stores that keep the encoded bytes of scaled images in memory, keyed by photo id and
+ * photo size. Stored bytes are accessed through reference-counted handles: whoever stores or retains a handle has to
+ * release it, and the bytes are freed once the last reference is gone.
+ */
+public abstract class ImageBytesStore {
+
+	private static final Logger log = Logger.getLogger(ImageBytesStore.class.getName());
+	private static ImageBytesStore instance = null;
+
+	/**
+	 * @methodtype get
+	 */
+	public static synchronized ImageBytesStore getInstance() {
+		if (instance == null) {
+			setInstance(new SlabImageBytesStore());
+		}
+		return instance;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public static synchronized void setInstance(ImageBytesStore newInstance) {
+		log.config(LogBuilder.createSystemMessage().
+				addAction("set ImageBytesStore instance").
+				addParameter("instance", newInstance).toString());
+		instance = newInstance;
+	}
+
+	/**
+	 * Copies the given bytes into the store. The returned handle holds one reference that belongs to the caller.
+	 *
+	 * @methodtype factory
+	 */
+	public Handle store(int photoId, PhotoSize photoSize, byte[] data) {
+		if (data == null) {
+			throw new IllegalArgumentException("image data must not be null");
+		}
+		return doStore(photoId, photoSize, data);
+	}
+
+	/**
+	 * @methodtype factory
+	 * @methodproperty hook
+	 */
+	protected abstract Handle doStore(int photoId, PhotoSize photoSize, byte[] data);
+
+	/**
+	 * Frees the memory of a handle whose last reference has been released.
+	 *
+	 * @methodtype command
+	 * @methodproperty hook
+	 */
+	protected abstract void free(Handle handle);
+
+	/**
+	 * @methodtype get
+	 */
+	public abstract long getLiveBytes();
+
+	/**
+	 * @methodtype get
+	 */
+	public abstract long getAllocatedBytes();
+
+
+	// handles ---------------------------------------------------------------------------------------------------------
+
+	/**
+	 * A reference-counted handle to the bytes of one stored image. Stores may move the bytes, e.g. during compaction,
+	 * so the content must always be accessed through the handle and only while holding a reference.
+	 */
+	public static class Handle {
+
+		protected final ImageBytesStore store;
+		protected final int photoId;
+		protected final PhotoSize photoSize;
+		protected final int size;
+		protected final AtomicInteger refCount = new AtomicInteger(1);
+
+		/**
+		 * Read-only view of the stored bytes; replaced when the bytes are moved
+		 */
+		protected volatile ByteBuffer buffer;
+
+		/**
+		 * @methodtype constructor
+		 */
+		protected Handle(ImageBytesStore store, int photoId, PhotoSize photoSize, ByteBuffer buffer) {
+			this.store = store;
+			this.photoId = photoId;
+			this.photoSize = photoSize;
+			this.size = buffer.remaining();
+			this.buffer = buffer;
+		}
+
+		/**
+		 * Adds a reference; returns false if the handle has already been freed.
+		 *
+		 * @methodtype command
+		 */
+		public boolean retain() {
+			int count;
+			do {
+				count = refCount.get();
+				if (count <= 0) {
+					return false;
+				}
+			} while (!refCount.compareAndSet(count, count + 1));
+			return true;
+		}
+
+		/**
+		 * @methodtype command
+		 */
+		public void release() {
+			int count = refCount.decrementAndGet();
+			if (count == 0) {
+				store.free(this);
+			} else if (count < 0) {
+				throw new IllegalStateException("image handle released too often");
+			}
+		}
+
+		/**
+		 * @methodtype boolean-query
+		 */
+		public boolean isLive() {
+			return refCount.get() > 0;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public int getPhotoId() {
+			return photoId;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public PhotoSize getPhotoSize() {
+			return photoSize;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public int getSize() {
+			return size;
+		}
+
+		/**
+		 * Returns an independent read-only view of the bytes, valid even if the store moves them afterwards.
+		 *
+		 * @methodtype get
+		 */
+		public ByteBuffer asByteBuffer() {
+			return buffer.duplicate();
+		}
+
+		/**
+		 * Copies the bytes to the heap, for APIs that can only handle byte arrays.
+		 *
+		 * @methodtype conversion
+		 */
+		public byte[] toByteArray() {
+			byte[] result = new byte[size];
+			asByteBuffer().get(result);
+			return result;
+		}
+
+		/**
+		 * Writes the bytes to the given stream, in chunks of the channel's transfer buffer rather than as one copy.
+		 *
+		 * @methodtype command
+		 */
+		public void writeTo(OutputStream out) throws IOException {
+			WritableByteChannel channel = Channels.newChannel(out);
+			ByteBuffer source = asByteBuffer();
+			while (source.hasRemaining()) {
+				channel.write(source);
+			}
+		}
+	}
+
+}
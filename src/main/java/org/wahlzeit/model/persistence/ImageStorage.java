@@ -1,12 +1,11 @@
 package org.wahlzeit.model.persistence;
 
 import org.wahlzeit.model.PhotoSize;
-import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.StructuredLog;
 
 import java.io.IOException;
 import java.io.Serializable;
 import java.security.InvalidParameterException;
-import java.util.logging.Logger;
 
 /**
  * Abstract super class that offers a convenient interface for all kinds of storage types to store images.
@@ -15,7 +14,7 @@ import java.util.logging.Logger;
  */
 public abstract class ImageStorage {
 
-	private static final Logger log = Logger.getLogger(ImageStorage.class.getName());
+	private static final StructuredLog log = StructuredLog.getLog(ImageStorage.class);
 	private static ImageStorage instance = null;
 
 	/**
@@ -34,9 +33,9 @@ public abstract class ImageStorage {
 	 * @methodtype set
 	 */
 	public static void setInstance(ImageStorage newInstance) {
-		log.config(LogBuilder.createSystemMessage().
+		log.config().
 				addAction("set ImageStorage instance").
-				addParameter("instance", newInstance).toString());
+				addParameter("instance", newInstance).log();
 		instance = newInstance;
 	}
 
@@ -57,11 +56,11 @@ public abstract class ImageStorage {
 		assertValidPhotoId(photoIdAsString);
 		PhotoSize.assertIsValidPhotoSizeAsInt(size);
 
-		log.config(LogBuilder.createSystemMessage().
+		log.config().
 				addAction("write image to storage").
 				addParameter("image", image).
 				addParameter("photo id", photoIdAsString).
-				addParameter("size", size).toString());
+				addParameter("size", size).log();
 
 		doWriteImage(image, photoIdAsString, size);
 	}
@@ -90,10 +89,10 @@ public abstract class ImageStorage {
 		assertValidPhotoId(photoIdAsString);
 		PhotoSize.assertIsValidPhotoSizeAsInt(size);
 
-		log.config(LogBuilder.createSystemMessage().
+		log.config().
 				addAction("read image from storage").
 				addParameter("photo id", photoIdAsString).
-				addParameter("size", size).toString());
+				addParameter("size", size).log();
 
 		return doReadImage(photoIdAsString, size);
 	}
@@ -122,10 +121,10 @@ public abstract class ImageStorage {
 		assertValidPhotoId(photoIdAsString);
 		PhotoSize.assertIsValidPhotoSizeAsInt(size);
 
-		log.config(LogBuilder.createSystemMessage().
+		log.config().
 				addAction("check if image exists in storage").
 				addParameter("photo id", photoIdAsString).
-				addParameter("size", size).toString());
+				addParameter("size", size).log();
 
 		return doDoesImageExist(photoIdAsString, size);
 	}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.model.persistence;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+/**
+ * Where an interrupted cleanup of expired sessions stopped, stored in the datastore, so that the next run resumes
+ * there no matter which instance it runs on. The expiry time of the interrupted run is kept with the cursor, as the
+ * cursor only fits a query with the same filter.
+ */
+@Entity
+public class SessionCleanupCheckpoint {
+
+	/**
+	 * There is only one checkpoint
+	 */
+	public static final Long DEFAULT_ID = 1L;
+
+	/**
+	 *
+	 */
+	@Id
+	private Long id = DEFAULT_ID;
+
+	private long expiresBefore;
+	private String cursor;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public SessionCleanupCheckpoint() {
+		// just for Objectify to load it from Datastore
+	}
+
+	/**
+	 * @methodtype constructor
+	 */
+	public SessionCleanupCheckpoint(long expiresBefore, Cursor cursor) {
+		this.expiresBefore = expiresBefore;
+		this.cursor = cursor.toWebSafeString();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getExpiresBefore() {
+		return expiresBefore;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public Cursor getCursor() {
+		return Cursor.fromWebSafeString(cursor);
+	}
+
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.model.persistence;
+
+import org.wahlzeit.model.PhotoSize;
+import org.wahlzeit.services.LogBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Keeps image bytes off the heap, in direct buffers ("slabs") of a fixed size. Images are appended to the current
+ * slab; freed space is not reused in place. Instead, slabs whose live bytes dropped below a threshold are compacted:
+ * their remaining images are copied into the current slab and the old slab is dropped. Moving an image only replaces
+ * the buffer of its handle, so readers that already obtained a view keep reading the old, unchanged memory.
+ *
+ * Images larger than a slab get a slab of their own. If the budget for slabs is exhausted even after compaction,
+ * images are kept on the heap, so storing never fails.
+ */
+public class SlabImageBytesStore extends ImageBytesStore {
+
+	private static final Logger log = Logger.getLogger(SlabImageBytesStore.class.getName());
+
+	/**
+	 * System properties (see appengine-web.xml) to configure the slab size and the budget for all slabs
+	 */
+	public static final String SLAB_BYTES_PROPERTY = "org.wahlzeit.imageStore.slabBytes";
+	public static final String MAX_BYTES_PROPERTY = "org.wahlzeit.imageStore.maxBytes";
+	public static final int DEFAULT_SLAB_BYTES = 4 * 1024 * 1024;
+	public static final long DEFAULT_MAX_BYTES = 128L * 1024 * 1024;
+
+	/**
+	 * Slabs with less live bytes than this percentage of their capacity are compacted
+	 */
+	protected static final int COMPACTION_THRESHOLD_PERCENTAGE = 50;
+
+	/**
+	 *
+	 */
+	protected final int slabBytes;
+	protected final long maxBytes;
+
+	/**
+	 * All fields below are guarded by this
+	 */
+	protected final List<Slab> slabs = new ArrayList<Slab>();
+	protected final Map<Handle, Slab> slabOfHandle = new IdentityHashMap<Handle, Slab>();
+	protected Slab currentSlab = null;
+	protected long allocatedBytes = 0;
+	protected long liveBytes = 0;
+	protected boolean compacting = false;
+
+	/**
+	 *
+	 */
+	protected final AtomicLong compactionCount = new AtomicLong();
+	protected final AtomicLong heapFallbackCount = new AtomicLong();
+
+	/**
+	 * @methodtype constructor
+	 */
+	public SlabImageBytesStore() {
+		this(Integer.getInteger(SLAB_BYTES_PROPERTY, DEFAULT_SLAB_BYTES),
+				Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES));
+	}
+
+	/**
+	 * @methodtype constructor
+	 */
+	public SlabImageBytesStore(int slabBytes, long maxBytes) {
+		if (slabBytes <= 0 || maxBytes < slabBytes) {
+			throw new IllegalArgumentException("slabBytes must be positive and not exceed maxBytes");
+		}
+
+		this.slabBytes = slabBytes;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	@Override
+	protected synchronized Handle doStore(int photoId, PhotoSize photoSize, byte[] data) {
+		Slab slab = findSlabFor(data.length);
+		if (slab == null) {
+			compact();
+			slab = findSlabFor(data.length);
+		}
+
+		Handle result;
+		if (slab == null) {
+			heapFallbackCount.incrementAndGet();
+			log.warning(LogBuilder.createSystemMessage().
+					addMessage("image store budget exhausted, keeping image on the heap").
+					addParameter("allocated bytes", allocatedBytes).toString());
+			result = new Handle(this, photoId, photoSize, ByteBuffer.wrap(data.clone()).asReadOnlyBuffer());
+		} else {
+			result = new Handle(this, photoId, photoSize, slab.append(ByteBuffer.wrap(data)));
+			slab.handles.add(result);
+			slab.liveBytes += data.length;
+			slabOfHandle.put(result, slab);
+			liveBytes += data.length;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a slab with enough free space, allocating a new one within the budget, or null if there is none.
+	 *
+	 * @methodtype get
+	 */
+	protected Slab findSlabFor(int length) {
+		if (length > slabBytes) {
+			return allocateSlab(length);
+		}
+
+		if (currentSlab == null || currentSlab.getRemaining() < length) {
+			Slab slab = allocateSlab(slabBytes);
+			if (slab == null) {
+				return null;
+			}
+			retire(currentSlab);
+			currentSlab = slab;
+		}
+		return currentSlab;
+	}
+
+	/**
+	 * While compacting, one slab more than the budget may be allocated, since compaction needs a target slab before it
+	 * can drop the sparse ones.
+	 *
+	 * @methodtype factory
+	 */
+	protected Slab allocateSlab(int capacity) {
+		if (allocatedBytes + capacity > maxBytes + (compacting ? slabBytes : 0)) {
+			return null;
+		}
+
+		Slab result = new Slab(ByteBuffer.allocateDirect(capacity));
+		slabs.add(result);
+		allocatedBytes += capacity;
+		return result;
+	}
+
+	/**
+	 * Drops a slab that will not receive new images and whose images have all been freed.
+	 *
+	 * @methodtype command
+	 */
+	protected void retire(Slab slab) {
+		if (slab != null && slab != currentSlab && slab.handles.isEmpty()) {
+			slabs.remove(slab);
+			allocatedBytes -= slab.getCapacity();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	protected synchronized void free(Handle handle) {
+		Slab slab = slabOfHandle.remove(handle);
+		if (slab != null) {
+			slab.handles.remove(handle);
+			slab.liveBytes -= handle.getSize();
+			liveBytes -= handle.getSize();
+			retire(slab);
+		}
+	}
+
+	/**
+	 * Moves the live images of sparsely used slabs into the current slab and drops the sparse slabs. Compaction stops
+	 * when no new slab fits into the budget.
+	 *
+	 * @methodtype command
+	 */
+	public synchronized void compact() {
+		List<Slab> sparseSlabs = new ArrayList<Slab>();
+		for (Slab slab : slabs) {
+			if (slab != currentSlab && slab.liveBytes * 100 < slab.getCapacity() * COMPACTION_THRESHOLD_PERCENTAGE) {
+				sparseSlabs.add(slab);
+			}
+		}
+
+		int noMovedImages;
+		compacting = true;
+		try {
+			noMovedImages = moveImages(sparseSlabs);
+		} finally {
+			compacting = false;
+		}
+
+		compactionCount.incrementAndGet();
+		log.config(LogBuilder.createSystemMessage().addAction("compact image store")
+				.addParameter("moved images", noMovedImages)
+				.addParameter("allocated bytes", allocatedBytes)
+				.addParameter("live bytes", liveBytes).toString());
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected int moveImages(List<Slab> sparseSlabs) {
+		int result = 0;
+		for (Slab slab : sparseSlabs) {
+			for (Handle handle : new ArrayList<Handle>(slab.handles)) {
+				Slab target = handle.getSize() > slabBytes ? null : findSlabFor(handle.getSize());
+				if (target == null || target == slab) {
+					break;
+				}
+
+				handle.buffer = target.append(handle.asByteBuffer());
+				slab.handles.remove(handle);
+				slab.liveBytes -= handle.getSize();
+				target.handles.add(handle);
+				target.liveBytes += handle.getSize();
+				slabOfHandle.put(handle, target);
+				result++;
+			}
+			retire(slab);
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	@Override
+	public synchronized long getLiveBytes() {
+		return liveBytes;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	@Override
+	public synchronized long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized int getNumberOfSlabs() {
+		return slabs.size();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getCompactionCount() {
+		return compactionCount.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getHeapFallbackCount() {
+		return heapFallbackCount.get();
+	}
+
+	/**
+	 * A direct buffer that images are appended to; the memory of an appended image is never written again.
+	 */
+	protected static class Slab {
+
+		protected final ByteBuffer memory;
+		protected final Set<Handle> handles = new HashSet<Handle>();
+		protected int top = 0;
+		protected long liveBytes = 0;
+
+		/**
+		 * @methodtype constructor
+		 */
+		protected Slab(ByteBuffer memory) {
+			this.memory = memory;
+		}
+
+		/**
+		 * Copies the remaining bytes of the source behind the last image and returns a read-only view of the copy.
+		 *
+		 * @methodtype command
+		 */
+		protected ByteBuffer append(ByteBuffer source) {
+			int length = source.remaining();
+			ByteBuffer target = memory.duplicate();
+			target.position(top);
+			target.put(source);
+
+			ByteBuffer result = memory.duplicate();
+			result.position(top);
+			result.limit(top + length);
+			top += length;
+			return result.slice().asReadOnlyBuffer();
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		protected int getRemaining() {
+			return memory.capacity() - top;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		protected int getCapacity() {
+			return memory.capacity();
+		}
+	}
+
+}
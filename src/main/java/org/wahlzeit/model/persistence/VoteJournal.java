@@ -0,0 +1,373 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.model.persistence;
+
+import org.wahlzeit.model.PraiseVote;
+import org.wahlzeit.services.LogBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A local append-only journal of praise votes, so that votes which have been accepted but not yet applied to the
+ * datastore survive a restart of the instance. Checkpoints record up to which sequence number votes have been
+ * applied; on open, the votes after the last checkpoint are returned for replay.
+ *
+ * Each record consists of a type, a sequence number, the vote for vote records, and a CRC32 of the preceding bytes. A
+ * torn or corrupt tail, e.g. after a crash during an append, is cut off. Once all votes have been applied and the
+ * file has grown beyond its compaction size, it is replaced by a file of just the id and a checkpoint, which is
+ * written and forced next to it first, so that a crash leaves either the old or the compacted journal.
+ *
+ * A journal has a random id, recorded in the file, as sequence numbers are only unique within one journal. Photos
+ * remember the last sequence number they have been praised with per journal id, so that replayed votes that had
+ * already been saved are not counted twice.
+ */
+public class VoteJournal {
+
+	private static final Logger log = Logger.getLogger(VoteJournal.class.getName());
+
+	/**
+	 *
+	 */
+	protected static final byte VOTE_RECORD = 1;
+	protected static final byte CHECKPOINT_RECORD = 2;
+	protected static final byte ID_RECORD = 3;
+	protected static final int CHECKSUM_SIZE = 4;
+	protected static final String TEMP_FILE_SUFFIX = ".tmp";
+
+	/**
+	 *
+	 */
+	public static final long DEFAULT_COMPACTION_SIZE = 1024 * 1024;
+
+	/**
+	 *
+	 */
+	protected final File file;
+	protected final boolean isSynchronous;
+	protected final long compactionSize;
+
+	/**
+	 * All fields below are guarded by this
+	 */
+	protected FileChannel channel;
+	protected long lastSequence = 0;
+	protected long lastCheckpoint = 0;
+	protected long id = 0;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public VoteJournal(File file, boolean isSynchronous) {
+		this(file, isSynchronous, DEFAULT_COMPACTION_SIZE);
+	}
+
+	/**
+	 * @param isSynchronous whether appends are forced to the storage device, not only handed to the operating system
+	 * @methodtype constructor
+	 */
+	public VoteJournal(File file, boolean isSynchronous, long compactionSize) {
+		this.file = file;
+		this.isSynchronous = isSynchronous;
+		this.compactionSize = compactionSize;
+	}
+
+	/**
+	 * Reads the journal, cuts off a corrupt tail, and opens it for appending. Returns the votes that have not been
+	 * applied yet, in journal order.
+	 *
+	 * @methodtype command
+	 */
+	public synchronized List<PraiseVote> open() throws IOException {
+		File directory = file.getAbsoluteFile().getParentFile();
+		if (directory != null && !directory.exists() && !directory.mkdirs()) {
+			throw new IOException("could not create directory " + directory);
+		}
+
+		List<PraiseVote> votes = new ArrayList<PraiseVote>();
+		long validLength = 0;
+		if (file.isFile()) {
+			ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+			validLength = readRecords(buffer, votes);
+		}
+
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		if (channel.size() > validLength) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("file", file.getPath()).
+					addParameter("discarded bytes", channel.size() - validLength).
+					addMessage("Cut off corrupt tail of vote journal").toString());
+			channel.truncate(validLength);
+		}
+		channel.position(validLength);
+
+		if (id == 0) {
+			id = createId();
+			write(channel, createIdRecord());
+		}
+
+		List<PraiseVote> result = new ArrayList<PraiseVote>();
+		for (PraiseVote vote : votes) {
+			if (vote.getSequence() > lastCheckpoint) {
+				result.add(vote);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the length of the valid records.
+	 *
+	 * @methodtype helper
+	 */
+	protected long readRecords(ByteBuffer buffer, List<PraiseVote> votes) {
+		int validLength = 0;
+		try {
+			while (buffer.hasRemaining()) {
+				int start = buffer.position();
+				byte type = buffer.get();
+				long sequence = buffer.getLong();
+				PraiseVote vote = null;
+				if (type == VOTE_RECORD) {
+					int photoId = buffer.getInt();
+					int value = buffer.getInt();
+					long time = buffer.getLong();
+					byte[] clientId = new byte[buffer.getShort() & 0xFFFF];
+					buffer.get(clientId);
+					vote = new PraiseVote(sequence, photoId, new String(clientId, StandardCharsets.UTF_8), value, time);
+				} else if (type != CHECKPOINT_RECORD && type != ID_RECORD) {
+					break;
+				}
+
+				CRC32 checksum = new CRC32();
+				checksum.update(buffer.array(), start, buffer.position() - start);
+				if ((int) checksum.getValue() != buffer.getInt()) {
+					break;
+				}
+
+				validLength = buffer.position();
+				if (type == ID_RECORD) {
+					// the id is stored in the sequence number field
+					id = sequence;
+					continue;
+				}
+
+				if (vote != null) {
+					votes.add(vote);
+				} else {
+					lastCheckpoint = Math.max(lastCheckpoint, sequence);
+				}
+				lastSequence = Math.max(lastSequence, sequence);
+			}
+		} catch (BufferUnderflowException ex) {
+			// torn tail
+		}
+		return validLength;
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	protected long createId() {
+		long result = 0;
+		while (result == 0) {
+			result = new SecureRandom().nextLong();
+		}
+		return result;
+	}
+
+
+	// write methods ---------------------------------------------------------------------------------------------------
+
+	/**
+	 * @methodtype command
+	 */
+	public synchronized void append(PraiseVote vote) throws IOException {
+		assertIsOpen();
+
+		byte[] clientId = vote.getClientId().getBytes(StandardCharsets.UTF_8);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(40 + clientId.length);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(VOTE_RECORD);
+		out.writeLong(vote.getSequence());
+		out.writeInt(vote.getPhotoId());
+		out.writeInt(vote.getValue());
+		out.writeLong(vote.getTime());
+		out.writeShort(clientId.length);
+		out.write(clientId);
+		write(channel, asRecord(bytes, out));
+
+		lastSequence = Math.max(lastSequence, vote.getSequence());
+	}
+
+	/**
+	 * Records that all votes up to the given sequence number have been applied, and compacts the journal if nothing
+	 * is left to replay.
+	 *
+	 * @methodtype command
+	 */
+	public synchronized void checkpoint(long sequence) throws IOException {
+		assertIsOpen();
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(CHECKPOINT_RECORD);
+		out.writeLong(sequence);
+		byte[] checkpoint = asRecord(bytes, out);
+
+		if (sequence >= lastSequence && channel.size() >= compactionSize) {
+			compact(checkpoint);
+		} else {
+			write(channel, checkpoint);
+		}
+
+		lastCheckpoint = Math.max(lastCheckpoint, sequence);
+		lastSequence = Math.max(lastSequence, sequence);
+	}
+
+	/**
+	 * Replaces the journal by one of just the id and the given checkpoint. The compacted journal is forced to the
+	 * storage device before it is renamed over the journal, so that the id is never recorded without the checkpoint.
+	 *
+	 * @methodtype command
+	 */
+	protected void compact(byte[] checkpoint) throws IOException {
+		File tempFile = new File(file.getPath() + TEMP_FILE_SUFFIX);
+		try (FileChannel tempChannel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			byte[] idRecord = createIdRecord();
+			ByteBuffer buffer = ByteBuffer.allocate(idRecord.length + checkpoint.length);
+			buffer.put(idRecord);
+			buffer.put(checkpoint);
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				tempChannel.write(buffer);
+			}
+			tempChannel.force(false);
+		}
+
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+		channel.close();
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+		channel.position(channel.size());
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	protected byte[] createIdRecord() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(ID_RECORD);
+		out.writeLong(id);
+		return asRecord(bytes, out);
+	}
+
+	/**
+	 * Appends the checksum of the bytes written so far and returns the record.
+	 *
+	 * @methodtype conversion
+	 */
+	protected byte[] asRecord(ByteArrayOutputStream bytes, DataOutputStream out) throws IOException {
+		out.flush();
+		CRC32 checksum = new CRC32();
+		checksum.update(bytes.toByteArray());
+		out.writeInt((int) checksum.getValue());
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	protected void write(FileChannel target, byte[] record) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(record);
+		while (buffer.hasRemaining()) {
+			target.write(buffer);
+		}
+		if (isSynchronous) {
+			target.force(false);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public synchronized void close() throws IOException {
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+	}
+
+	/**
+	 * @methodtype assertion
+	 */
+	protected void assertIsOpen() throws IOException {
+		if (channel == null) {
+			throw new IOException("vote journal is not open: " + file.getPath());
+		}
+	}
+
+
+	// read methods ----------------------------------------------------------------------------------------------------
+
+	/**
+	 * Returns the highest sequence number in the journal, so that new votes continue after it.
+	 *
+	 * @methodtype get
+	 */
+	public synchronized long getLastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * Returns the id of the journal, which is known once it has been opened.
+	 *
+	 * @methodtype get
+	 */
+	public synchronized String getId() {
+		return Long.toHexString(id);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized long getSize() throws IOException {
+		return channel == null ? 0 : channel.size();
+	}
+
+}
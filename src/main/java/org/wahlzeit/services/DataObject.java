@@ -48,15 +48,17 @@ public abstract class DataObject implements Persistent, Serializable {
 	/**
 	 *
 	 */
-	public final void resetWriteCount() {
+	public void resetWriteCount() {
 		writeCount = 0;
+		WriteBehindQueue.getInstance().forget(this);
 	}
 
 	/**
-	 *
+	 * Also queues the object, so that it is persisted with the next flush of the write-behind queue.
 	 */
 	public final void incWriteCount() {
 		writeCount++;
+		WriteBehindQueue.getInstance().markDirty(this);
 	}
 
 	/**
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.wahlzeit.services;
+
+import com.google.apphosting.api.ApiProxy;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Wraps the ApiProxy delegate of the runtime to count the datastore RPCs of the current request in its
+ * DatastoreStats. All datastore access, through Objectify or the low-level API, ends up here, so the counts include
+ * the calls of cascading saves and of code outside the ObjectManager. Other services are passed on untouched.
+ */
+public class DatastoreAccountingDelegate implements ApiProxy.Delegate<ApiProxy.Environment> {
+
+	/**
+	 * Installs the accounting delegate, unless there is no delegate yet or it is installed already.
+	 *
+	 * @methodtype command
+	 */
+	@SuppressWarnings("unchecked")
+	public static synchronized void install() {
+		ApiProxy.Delegate<ApiProxy.Environment> current = ApiProxy.getDelegate();
+		if (current != null && !(current instanceof DatastoreAccountingDelegate)) {
+			ApiProxy.setDelegate(new DatastoreAccountingDelegate(current));
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected final ApiProxy.Delegate<ApiProxy.Environment> delegate;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public DatastoreAccountingDelegate(ApiProxy.Delegate<ApiProxy.Environment> delegate) {
+		this.delegate = delegate;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected DatastoreStats getStats(String packageName) {
+		return DatastoreStats.DATASTORE_PACKAGE.equals(packageName) ? DatastoreStats.getCurrent() : null;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	public byte[] makeSyncCall(ApiProxy.Environment environment, String packageName, String methodName,
+							   byte[] request) throws ApiProxy.ApiProxyException {
+		DatastoreStats stats = getStats(packageName);
+		if (stats != null) {
+			stats.recordCall(methodName, request);
+		}
+		byte[] result = delegate.makeSyncCall(environment, packageName, methodName, request);
+		if (stats != null) {
+			stats.recordResponse(result);
+		}
+		return result;
+	}
+
+	/**
+	 * The response is counted when it is taken from the future, for the stats of the request that made the call.
+	 *
+	 * @methodtype command
+	 */
+	@Override
+	public Future<byte[]> makeAsyncCall(ApiProxy.Environment environment, String packageName, String methodName,
+										byte[] request, ApiProxy.ApiConfig apiConfig) {
+		final DatastoreStats stats = getStats(packageName);
+		if (stats != null) {
+			stats.recordCall(methodName, request);
+		}
+		final Future<byte[]> result = delegate.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+		if (stats == null) {
+			return result;
+		}
+
+		return new Future<byte[]>() {
+			private boolean isCounted = false;
+
+			@Override
+			public boolean cancel(boolean mayInterruptIfRunning) {
+				return result.cancel(mayInterruptIfRunning);
+			}
+
+			@Override
+			public boolean isCancelled() {
+				return result.isCancelled();
+			}
+
+			@Override
+			public boolean isDone() {
+				return result.isDone();
+			}
+
+			@Override
+			public byte[] get() throws InterruptedException, ExecutionException {
+				return count(result.get());
+			}
+
+			@Override
+			public byte[] get(long timeout, TimeUnit unit)
+					throws InterruptedException, ExecutionException, TimeoutException {
+				return count(result.get(timeout, unit));
+			}
+
+			private synchronized byte[] count(byte[] response) {
+				if (!isCounted) {
+					isCounted = true;
+					stats.recordResponse(response);
+				}
+				return response;
+			}
+		};
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	public void log(ApiProxy.Environment environment, ApiProxy.LogRecord record) {
+		delegate.log(environment, record);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	public void flushLogs(ApiProxy.Environment environment) {
+		delegate.flushLogs(environment);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	@Override
+	public List<Thread> getRequestThreads(ApiProxy.Environment environment) {
+		return delegate.getRequestThreads(environment);
+	}
+
+}
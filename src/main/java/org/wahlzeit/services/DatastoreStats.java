@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.wahlzeit.services;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the datastore calls of a request, by kind, with the entities and bytes they moved. Calls are counted by the
+ * DatastoreAccountingDelegate for the stats of the current thread, entities by the ObjectManager. A load or query
+ * that is repeated with an identical request within one request is counted and logged, as it usually means that a
+ * loop loads what it could have loaded once (N+1).
+ *
+ * The same class sums up the stats of many requests, e.g. per handler in the MetricsRegistry.
+ */
+public class DatastoreStats {
+
+	private static final StructuredLog log = StructuredLog.getLog(DatastoreStats.class);
+
+	/**
+	 *
+	 */
+	private static final LogSite REPEATED_CALL_SITE = log.site("repeatedCall");
+
+	/**
+	 * The package and method names of datastore RPCs
+	 */
+	public static final String DATASTORE_PACKAGE = "datastore_v3";
+	protected static final String GET_METHOD = "Get";
+	protected static final String RUN_QUERY_METHOD = "RunQuery";
+	protected static final String NEXT_METHOD = "Next";
+	protected static final String PUT_METHOD = "Put";
+	protected static final String DELETE_METHOD = "Delete";
+
+	/**
+	 *
+	 */
+	private static final ThreadLocal<DatastoreStats> threadLocalStats = new ThreadLocal<DatastoreStats>();
+
+	/**
+	 * Starts counting the calls of the current thread for the given request.
+	 *
+	 * @methodtype command
+	 */
+	public static DatastoreStats begin(String requestName) {
+		DatastoreStats result = new DatastoreStats(requestName);
+		threadLocalStats.set(result);
+		return result;
+	}
+
+	/**
+	 * Returns the stats of the current request, or null outside of a request.
+	 *
+	 * @methodtype get
+	 */
+	public static DatastoreStats getCurrent() {
+		return threadLocalStats.get();
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public static void end() {
+		threadLocalStats.remove();
+	}
+
+	/**
+	 * Adds entities that have been loaded, saved, or deleted to the stats of the current request, if any.
+	 *
+	 * @methodtype command
+	 */
+	public static void recordEntities(int noEntities) {
+		DatastoreStats stats = threadLocalStats.get();
+		if (stats != null) {
+			stats.noEntities.addAndGet(noEntities);
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected final String name;
+	protected final AtomicLong noRequests = new AtomicLong();
+	protected final AtomicLong noLoads = new AtomicLong();
+	protected final AtomicLong noQueries = new AtomicLong();
+	protected final AtomicLong noSaves = new AtomicLong();
+	protected final AtomicLong noDeletes = new AtomicLong();
+	protected final AtomicLong noOtherCalls = new AtomicLong();
+	protected final AtomicLong noEntities = new AtomicLong();
+	protected final AtomicLong noBytes = new AtomicLong();
+	protected final AtomicLong noRepeatedCalls = new AtomicLong();
+
+	/**
+	 * The loads and queries of the request so far, by their serialized request; each is guarded by itself
+	 */
+	protected final Set<ByteBuffer> loadCalls = new HashSet<ByteBuffer>();
+	protected final Set<ByteBuffer> queryCalls = new HashSet<ByteBuffer>();
+
+	/**
+	 * @methodtype constructor
+	 */
+	public DatastoreStats(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Counts a call by its method; async calls may be counted on another thread than the one that made them.
+	 *
+	 * @methodtype command
+	 */
+	public void recordCall(String methodName, byte[] request) {
+		if (request != null) {
+			noBytes.addAndGet(request.length);
+		}
+
+		if (GET_METHOD.equals(methodName)) {
+			noLoads.incrementAndGet();
+			checkRepeatedCall(loadCalls, methodName, request);
+		} else if (RUN_QUERY_METHOD.equals(methodName)) {
+			noQueries.incrementAndGet();
+			checkRepeatedCall(queryCalls, methodName, request);
+		} else if (NEXT_METHOD.equals(methodName)) {
+			noQueries.incrementAndGet();
+		} else if (PUT_METHOD.equals(methodName)) {
+			noSaves.incrementAndGet();
+		} else if (DELETE_METHOD.equals(methodName)) {
+			noDeletes.incrementAndGet();
+		} else {
+			noOtherCalls.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void recordResponse(byte[] response) {
+		if (response != null) {
+			noBytes.addAndGet(response.length);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void checkRepeatedCall(Set<ByteBuffer> calls, String methodName, byte[] request) {
+		if (request == null) {
+			return;
+		}
+
+		boolean isRepeated;
+		synchronized (calls) {
+			isRepeated = !calls.add(ByteBuffer.wrap(request));
+		}
+		if (isRepeated) {
+			noRepeatedCalls.incrementAndGet();
+			log.warning(REPEATED_CALL_SITE).addMessage("repeated identical datastore call").
+					addParameter("method", methodName).
+					addParameter("request", name).log();
+		}
+	}
+
+	/**
+	 * Adds the counts of a finished request.
+	 *
+	 * @methodtype command
+	 */
+	public void add(DatastoreStats other) {
+		noRequests.incrementAndGet();
+		noLoads.addAndGet(other.getNoLoads());
+		noQueries.addAndGet(other.getNoQueries());
+		noSaves.addAndGet(other.getNoSaves());
+		noDeletes.addAndGet(other.getNoDeletes());
+		noOtherCalls.addAndGet(other.getNoOtherCalls());
+		noEntities.addAndGet(other.getNoEntities());
+		noBytes.addAndGet(other.getNoBytes());
+		noRepeatedCalls.addAndGet(other.getNoRepeatedCalls());
+	}
+
+
+	// read methods ----------------------------------------------------------------------------------------------------
+
+	/**
+	 * @methodtype get
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the number of requests added; 0 for the stats of a single request.
+	 *
+	 * @methodtype get
+	 */
+	public long getNoRequests() {
+		return noRequests.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoLoads() {
+		return noLoads.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoQueries() {
+		return noQueries.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoSaves() {
+		return noSaves.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoDeletes() {
+		return noDeletes.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoOtherCalls() {
+		return noOtherCalls.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoCalls() {
+		return getNoLoads() + getNoQueries() + getNoSaves() + getNoDeletes() + getNoOtherCalls();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoEntities() {
+		return noEntities.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoBytes() {
+		return noBytes.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoRepeatedCalls() {
+		return noRepeatedCalls.get();
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	public String asHeaderValue() {
+		return "loads=" + getNoLoads() + "; queries=" + getNoQueries() + "; saves=" + getNoSaves() +
+				"; deletes=" + getNoDeletes() + "; other=" + getNoOtherCalls() + "; entities=" + getNoEntities() +
+				"; bytes=" + getNoBytes() + "; repeated=" + getNoRepeatedCalls();
+	}
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.wahlzeit.services;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in microseconds with log-linear buckets, as in HdrHistogram: values below 32 have a
+ * bucket each, larger values are split into 16 buckets per power of two, so that percentiles are accurate to about
+ * 6%. Recording is a few atomic increments without allocation or locking; readers see a consistent enough snapshot.
+ */
+public class LatencyHistogram {
+
+	/**
+	 *
+	 */
+	protected static final int LINEAR_BUCKETS = 32;
+	protected static final int SUB_BUCKET_BITS = 4;
+	protected static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	protected static final int MAX_MAGNITUDE = 40;
+	protected static final long MAX_VALUE = (1L << (MAX_MAGNITUDE + 1)) - 1;
+	protected static final int NO_BUCKETS = getBucketIndex(MAX_VALUE) + 1;
+
+	/**
+	 * Returns the bucket of a value in microseconds; values above MAX_VALUE share the last bucket.
+	 *
+	 * @methodtype conversion
+	 */
+	protected static int getBucketIndex(long value) {
+		if (value < LINEAR_BUCKETS) {
+			return (int) Math.max(0, value);
+		}
+
+		long clamped = Math.min(value, MAX_VALUE);
+		int magnitude = 63 - Long.numberOfLeadingZeros(clamped);
+		int shift = magnitude - SUB_BUCKET_BITS;
+		int subBucket = (int) (clamped >>> shift) - SUB_BUCKETS;
+		return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * Returns the largest value in microseconds that falls into the bucket.
+	 *
+	 * @methodtype conversion
+	 */
+	protected static long getBucketUpperBound(int index) {
+		if (index < LINEAR_BUCKETS) {
+			return index;
+		}
+
+		int offset = index - LINEAR_BUCKETS;
+		int shift = offset / SUB_BUCKETS + 1;
+		long subBucket = offset % SUB_BUCKETS + SUB_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+
+	/**
+	 *
+	 */
+	protected final AtomicLongArray counts = new AtomicLongArray(NO_BUCKETS);
+	protected final AtomicLong count = new AtomicLong();
+	protected final AtomicLong totalMicros = new AtomicLong();
+	protected final AtomicLong maxMicros = new AtomicLong();
+
+	/**
+	 * @methodtype command
+	 */
+	public void recordNanos(long nanos) {
+		recordMicros(nanos / 1000);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void recordMicros(long micros) {
+		long value = Math.max(0, micros);
+		counts.incrementAndGet(getBucketIndex(value));
+		count.incrementAndGet();
+		totalMicros.addAndGet(value);
+		long max;
+		do {
+			max = maxMicros.get();
+		} while (value > max && !maxMicros.compareAndSet(max, value));
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getMaxMicros() {
+		return maxMicros.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public double getMeanMicros() {
+		long noValues = count.get();
+		return noValues == 0 ? 0.0 : (double) totalMicros.get() / noValues;
+	}
+
+	/**
+	 * Returns the value at the given percentile, e.g. 99.0, as the upper bound of its bucket, but at most the maximum.
+	 *
+	 * @methodtype get
+	 */
+	public long getPercentileMicros(double percentile) {
+		long noValues = 0;
+		long[] snapshot = new long[NO_BUCKETS];
+		for (int i = 0; i < NO_BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			noValues += snapshot[i];
+		}
+		if (noValues == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * noValues));
+		long seen = 0;
+		for (int i = 0; i < NO_BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(getBucketUpperBound(i), maxMicros.get());
+			}
+		}
+		return maxMicros.get();
+	}
+
+}
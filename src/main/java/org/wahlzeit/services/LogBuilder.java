@@ -14,6 +14,9 @@ import java.io.StringWriter;
  * <code>Formatter</code> could not be used
  *
  * (see https://stackoverflow.com/questions/30345665/how-to-customize-logging-for-google-app-engine-java).
+ *
+ * A LogBuilder builds its message even if the level is disabled; hot paths use a StructuredLog instead, which writes
+ * messages in the same format.
  * 
  * @review
  */
@@ -60,20 +63,8 @@ public class LogBuilder {
 	protected static LogBuilder doCreateMessage(String level) {
 		LogBuilder result = new LogBuilder();
 		Session session = SessionManager.getThreadLocalSession();
-		String sessionName;
-		String clientName;
-		if (session != null) {
-			sessionName = session.getName();
-			Client client = UserManager.getInstance().getClientById(session.getClientId());
-			if (client != null) {
-				clientName = client.getNickName();
-			} else {
-				clientName = UserSession.ANONYMOUS_CLIENT;
-			}
-		} else {
-			sessionName = Session.NO_SESSION;
-			clientName = UserSession.ANONYMOUS_CLIENT;
-		}
+		String sessionName = getSessionName(session);
+		String clientName = getClientName(session);
 
 		result.add(LEVEL + NAME_VALUE_SEPARATOR + level);
 		result.add(SESSION + NAME_VALUE_SEPARATOR + sessionName);
@@ -82,6 +73,24 @@ public class LogBuilder {
 		return result;
 	}
 
+	/**
+	 * @methodtype get
+	 */
+	protected static String getSessionName(Session session) {
+		return session != null ? session.getName() : Session.NO_SESSION;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected static String getClientName(Session session) {
+		Client client = null;
+		if (session != null) {
+			client = UserManager.getInstance().getClientById(session.getClientId());
+		}
+		return client != null ? client.getNickName() : UserSession.ANONYMOUS_CLIENT;
+	}
+
 	/**
 	 * @methodtype set
 	 */
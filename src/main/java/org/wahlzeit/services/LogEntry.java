@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.wahlzeit.services;
+
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A log message under construction, created by a StructuredLog. The methods mirror those of the LogBuilder and
+ * append to a buffer that is reused by the next entry of the same thread; the disabled entry ignores all calls.
+ *
+ * If messages of the site of the entry have been suppressed before, their number is added to the message.
+ *
+ * Exceptions are handed to the logger instead of being rendered into the message, so their stack trace is only
+ * formatted by a handler that publishes the record.
+ */
+public class LogEntry {
+
+	/**
+	 * Shared by all threads, hence immutable
+	 */
+	public static final LogEntry DISABLED = new LogEntry(false);
+
+	/**
+	 * Buffers that grew beyond this are not kept for the next entry
+	 */
+	protected static final int MAX_RETAINED_CAPACITY = 8 * 1024;
+
+	/**
+	 *
+	 */
+	protected static final String SUPPRESSED_MESSAGES = "suppressed messages";
+
+	/**
+	 *
+	 */
+	protected final boolean isEnabled;
+	protected StringBuilder parameters = new StringBuilder(128);
+	protected StringBuilder message = new StringBuilder(256);
+
+	/**
+	 * The state of the entry in use
+	 */
+	protected boolean isInUse = false;
+	protected Logger logger;
+	protected Level level;
+	protected String messageLevel;
+	protected Throwable thrown;
+	protected long noSuppressedMessages;
+
+	/**
+	 * @methodtype constructor
+	 */
+	protected LogEntry() {
+		this(true);
+	}
+
+	/**
+	 * @methodtype constructor
+	 */
+	protected LogEntry(boolean isEnabled) {
+		this.isEnabled = isEnabled;
+	}
+
+	/**
+	 * @methodtype init
+	 */
+	protected void start(Logger myLogger, Level myLevel, String myMessageLevel, long myNoSuppressedMessages) {
+		isInUse = true;
+		logger = myLogger;
+		level = myLevel;
+		messageLevel = myMessageLevel;
+		thrown = null;
+		noSuppressedMessages = myNoSuppressedMessages;
+		parameters.setLength(0);
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isEnabled() {
+		return isEnabled;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	protected boolean isInUse() {
+		return isInUse;
+	}
+
+
+	// add-methods -----------------------------------------------------------------------------------------------------
+
+	/**
+	 * @methodtype mutate
+	 */
+	protected StringBuilder startPart() {
+		if (parameters.length() > 0) {
+			parameters.append(LogBuilder.INFO_SEPARATOR);
+		}
+		return parameters;
+	}
+
+	/**
+	 * @methodtype mutate
+	 */
+	protected StringBuilder startParameter(String name) {
+		return startPart().append(name).append(LogBuilder.NAME_VALUE_SEPARATOR);
+	}
+
+	/**
+	 * @methodtype mutate
+	 */
+	public LogEntry addParameter(String name, int value) {
+		if (isEnabled) {
+			startParameter(name).append(value);
+		}
+		return this;
+	}
+
+	/**
+	 * @methodtype mutate
+	 */
+	public LogEntry addParameter(String name, long value) {
+		if (isEnabled) {
+			startParameter(name).append(value);
+		}
+		return this;
+	}
+
+	/**
+	 * @methodtype mutate
+	 */
+	public LogEntry addParameter(String name, boolean value) {
+		if (isEnabled) {
+			startParameter(name).append(value);
+		}
+		return this;
+	}
+
+	/**
+	 * @methodtype mutate
+	 */
+	public LogEntry addParameter(String name, String value) {
+		if (isEnabled) {
+			startParameter(name).append(value);
+		}
+		return this;
+	}
+
+	/**
+	 * Converts the value only if the entry is enabled.
+	 *
+	 * @methodtype mutate
+	 */
+	public LogEntry addParameter(String name, Object value) {
+		if (isEnabled) {
+			startParameter(name).append(value);
+		}
+		return this;
+	}
+
+	/**
+	 * Computes the value only if the entry is enabled.
+	 *
+	 * @methodtype mutate
+	 */
+	public LogEntry addParameter(String name, Supplier<?> value) {
+		if (isEnabled) {
+			startParameter(name).append(value.get());
+		}
+		return this;
+	}
+
+	/**
+	 * @methodtype mutate
+	 */
+	public LogEntry addMessage(String text) {
+		if (isEnabled) {
+			startPart().append(text);
+		}
+		return this;
+	}
+
+	/**
+	 * @methodtype mutate
+	 */
+	public LogEntry addAction(String action) {
+		if (isEnabled) {
+			startParameter(LogBuilder.ACTION).append(action);
+		}
+		return this;
+	}
+
+	/**
+	 * Adds the reason to the message; the exception itself is passed on to the logger.
+	 *
+	 * @methodtype mutate
+	 */
+	public LogEntry addException(String reason, Throwable throwable) {
+		if (isEnabled) {
+			startParameter(LogBuilder.EXCEPTION_REASON).append(reason);
+			thrown = throwable;
+		}
+		return this;
+	}
+
+
+	// log-method ------------------------------------------------------------------------------------------------------
+
+	/**
+	 * Resolves the session and client, writes the message, and releases the entry for reuse.
+	 *
+	 * @methodtype command
+	 */
+	public void log() {
+		if (!isEnabled) {
+			return;
+		}
+
+		Session session = SessionManager.getThreadLocalSession();
+		message.setLength(0);
+		message.append(LogBuilder.LEVEL).append(LogBuilder.NAME_VALUE_SEPARATOR).append(messageLevel);
+		message.append(LogBuilder.INFO_SEPARATOR).append(LogBuilder.SESSION).append(LogBuilder.NAME_VALUE_SEPARATOR);
+		message.append(LogBuilder.getSessionName(session));
+		message.append(LogBuilder.INFO_SEPARATOR).append(LogBuilder.CLIENT).append(LogBuilder.NAME_VALUE_SEPARATOR);
+		message.append(LogBuilder.getClientName(session));
+		if (parameters.length() > 0) {
+			message.append(LogBuilder.INFO_SEPARATOR).append(parameters);
+		}
+		if (noSuppressedMessages > 0) {
+			message.append(LogBuilder.INFO_SEPARATOR).append(SUPPRESSED_MESSAGES);
+			message.append(LogBuilder.NAME_VALUE_SEPARATOR).append(noSuppressedMessages);
+		}
+
+		Logger currentLogger = logger;
+		Level currentLevel = level;
+		Throwable currentThrown = thrown;
+		String text = message.toString();
+		release();
+
+		// the source is given explicitly, so that no stack walk is needed to infer it
+		currentLogger.logp(currentLevel, currentLogger.getName(), null, text, currentThrown);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void release() {
+		logger = null;
+		level = null;
+		messageLevel = null;
+		thrown = null;
+		if (parameters.capacity() > MAX_RETAINED_CAPACITY) {
+			parameters = new StringBuilder(128);
+		}
+		if (message.capacity() > MAX_RETAINED_CAPACITY) {
+			message = new StringBuilder(256);
+		}
+		isInUse = false;
+	}
+
+}
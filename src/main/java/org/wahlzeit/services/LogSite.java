@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.wahlzeit.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.LogManager;
+
+/**
+ * A call site of a high-frequency log statement, which samples and rate limits its messages. Of the messages that
+ * pass the level check, only every n-th is written, and at most a given number per second; the number of messages
+ * suppressed since the last written one is added to that message.
+ *
+ * Sites are configured in logging.properties, by the name of the site followed by ".sampleRate" and
+ * ".maxPerSecond", e.g. "org.wahlzeit.services.ObjectManager.readObject.maxPerSecond = 10". Without configuration,
+ * all messages are written.
+ */
+public class LogSite {
+
+	/**
+	 * Property suffixes (see logging.properties)
+	 */
+	public static final String SAMPLE_RATE_SUFFIX = ".sampleRate";
+	public static final String MAX_PER_SECOND_SUFFIX = ".maxPerSecond";
+	public static final int DEFAULT_SAMPLE_RATE = 1;
+	public static final int NO_MAX_PER_SECOND = 0;
+
+	/**
+	 * All sites by name
+	 */
+	private static final Map<String, LogSite> sites = new ConcurrentHashMap<String, LogSite>();
+
+	/**
+	 * Returns the site of the given name, creating it from its configuration if needed.
+	 *
+	 * @methodtype get
+	 */
+	public static LogSite getSite(String name) {
+		LogSite result = sites.get(name);
+		if (result == null) {
+			LogManager logManager = LogManager.getLogManager();
+			LogSite site = new LogSite(name, getIntProperty(logManager, name + SAMPLE_RATE_SUFFIX, DEFAULT_SAMPLE_RATE),
+					getIntProperty(logManager, name + MAX_PER_SECOND_SUFFIX, NO_MAX_PER_SECOND));
+			result = sites.putIfAbsent(name, site);
+			if (result == null) {
+				result = site;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected static int getIntProperty(LogManager logManager, String name, int defaultValue) {
+		String value = logManager.getProperty(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException ex) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Returns all sites ordered by name.
+	 *
+	 * @methodtype get
+	 */
+	public static List<LogSite> getSites() {
+		List<LogSite> result = new ArrayList<LogSite>(sites.values());
+		Collections.sort(result, new Comparator<LogSite>() {
+			@Override
+			public int compare(LogSite site, LogSite other) {
+				return site.getName().compareTo(other.getName());
+			}
+		});
+		return result;
+	}
+
+	/**
+	 *
+	 */
+	protected final String name;
+	protected final int sampleRate;
+	protected final int maxPerSecond;
+
+	/**
+	 *
+	 */
+	protected final AtomicLong noCalls = new AtomicLong();
+	protected final AtomicLong noWrittenMessages = new AtomicLong();
+	protected final AtomicLong noSuppressedMessages = new AtomicLong();
+	protected final AtomicLong noPendingSuppressedMessages = new AtomicLong();
+
+	/**
+	 * The current second and the number of messages written in it
+	 */
+	protected volatile long currentSecond = 0;
+	protected final AtomicLong noMessagesInSecond = new AtomicLong();
+
+	/**
+	 * @methodtype constructor
+	 */
+	public LogSite(String name, int sampleRate, int maxPerSecond) {
+		this.name = name;
+		this.sampleRate = Math.max(1, sampleRate);
+		this.maxPerSecond = Math.max(NO_MAX_PER_SECOND, maxPerSecond);
+	}
+
+	/**
+	 * Returns whether the next message is to be written, counting it as written or suppressed.
+	 *
+	 * @methodtype command
+	 */
+	public boolean tryAcquire() {
+		long callNo = noCalls.getAndIncrement();
+		if (sampleRate > 1 && callNo % sampleRate != 0) {
+			return suppress();
+		}
+
+		if (maxPerSecond != NO_MAX_PER_SECOND) {
+			long second = getCurrentSecond();
+			if (second != currentSecond) {
+				synchronized (this) {
+					if (second != currentSecond) {
+						noMessagesInSecond.set(0);
+						currentSecond = second;
+					}
+				}
+			}
+			if (noMessagesInSecond.incrementAndGet() > maxPerSecond) {
+				return suppress();
+			}
+		}
+
+		noWrittenMessages.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected long getCurrentSecond() {
+		return System.currentTimeMillis() / 1000;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected boolean suppress() {
+		noSuppressedMessages.incrementAndGet();
+		noPendingSuppressedMessages.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Returns the number of messages suppressed since the last call, for the summary in the next written message.
+	 *
+	 * @methodtype command
+	 */
+	public long takeSuppressedMessages() {
+		return noPendingSuppressedMessages.get() == 0 ? 0 : noPendingSuppressedMessages.getAndSet(0);
+	}
+
+
+	// metrics ---------------------------------------------------------------------------------------------------------
+
+	/**
+	 * @methodtype get
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getMaxPerSecond() {
+		return maxPerSecond;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoWrittenMessages() {
+		return noWrittenMessages.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoSuppressedMessages() {
+		return noSuppressedMessages.get();
+	}
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.wahlzeit.services;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The registry of the request latency histograms, by servlet, handler, and outcome, and of the datastore calls of
+ * the requests, by servlet and handler. Both are created on first use and live as long as the instance; throughput
+ * is computed over the time since the registry was created.
+ */
+public class MetricsRegistry {
+
+	/**
+	 * Outcomes of a request: answered directly, redirected, or failed
+	 */
+	public static final String RENDER = "render";
+	public static final String REDIRECT = "redirect";
+	public static final String ERROR = "error";
+
+	/**
+	 *
+	 */
+	protected static final String NAME_SEPARATOR = ".";
+
+	/**
+	 *
+	 */
+	private static final MetricsRegistry instance = new MetricsRegistry();
+
+	/**
+	 * Not synchronized, since every request records its latency here.
+	 *
+	 * @methodtype get
+	 */
+	public static MetricsRegistry getInstance() {
+		return instance;
+	}
+
+	/**
+	 *
+	 */
+	protected final ConcurrentHashMap<String, LatencyHistogram> histograms =
+			new ConcurrentHashMap<String, LatencyHistogram>();
+	protected final ConcurrentHashMap<String, DatastoreStats> datastoreStats =
+			new ConcurrentHashMap<String, DatastoreStats>();
+	protected final long startTime = System.currentTimeMillis();
+
+	/**
+	 * Returns the histogram of the given name, e.g. "MainServlet.showPhoto.render".
+	 *
+	 * @methodtype get
+	 */
+	public LatencyHistogram getHistogram(String name) {
+		LatencyHistogram result = histograms.get(name);
+		if (result == null) {
+			LatencyHistogram histogram = new LatencyHistogram();
+			result = histograms.putIfAbsent(name, histogram);
+			if (result == null) {
+				result = histogram;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the datastore stats of the given name, e.g. "MainServlet.showPhoto".
+	 *
+	 * @methodtype get
+	 */
+	public DatastoreStats getDatastoreStats(String name) {
+		DatastoreStats result = datastoreStats.get(name);
+		if (result == null) {
+			DatastoreStats stats = new DatastoreStats(name);
+			result = datastoreStats.putIfAbsent(name, stats);
+			if (result == null) {
+				result = stats;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Records the latency of a request that started at the given System.nanoTime(), and the datastore calls it made
+	 * so far if they are counted; the handler may be null.
+	 *
+	 * @methodtype command
+	 */
+	public void recordRequest(String servlet, String handler, String outcome, long startNanos) {
+		String name = asName(servlet, handler);
+		getHistogram(name + NAME_SEPARATOR + outcome).recordNanos(System.nanoTime() - startNanos);
+
+		DatastoreStats stats = DatastoreStats.getCurrent();
+		if (stats != null) {
+			getDatastoreStats(name).add(stats);
+		}
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected static String asName(String servlet, String handler) {
+		if (handler == null || handler.length() == 0) {
+			return servlet;
+		}
+		return servlet + NAME_SEPARATOR + handler;
+	}
+
+	/**
+	 * Returns all histograms ordered by name.
+	 *
+	 * @methodtype get
+	 */
+	public Map<String, LatencyHistogram> getHistograms() {
+		return new TreeMap<String, LatencyHistogram>(histograms);
+	}
+
+	/**
+	 * Returns all datastore stats ordered by name.
+	 *
+	 * @methodtype get
+	 */
+	public Map<String, DatastoreStats> getAllDatastoreStats() {
+		return new TreeMap<String, DatastoreStats>(datastoreStats);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public double getUptimeSeconds() {
+		return Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+	}
+
+}
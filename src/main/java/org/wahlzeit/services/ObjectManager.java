@@ -22,11 +22,15 @@ package org.wahlzeit.services;
 
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.googlecode.objectify.cmd.LoadType;
 import org.wahlzeit.utils.DesignPattern;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.logging.Logger;
+import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * An ObjectManager creates/reads/updates/deletes Persistent (objects) from Google Datastore.
@@ -40,7 +44,20 @@ public abstract class ObjectManager {
 	 */
 	public static final Key applicationRootKey = KeyFactory.createKey("Application", "Wahlzeit");
 
-	private static final Logger log = Logger.getLogger(ObjectManager.class.getName());
+	private static final StructuredLog log = StructuredLog.getLog(ObjectManager.class);
+
+	/**
+	 * Sites of the statements that log every datastore call, sampled as configured in logging.properties
+	 */
+	private static final LogSite READ_OBJECT_SITE = log.site("readObject");
+	private static final LogSite READ_OBJECTS_SITE = log.site("readObjects");
+	private static final LogSite WRITE_OBJECT_SITE = log.site("writeObject");
+	private static final LogSite DELETE_OBJECT_SITE = log.site("deleteObject");
+
+	/**
+	 * Maximum number of entities per batch call, the limit of the datastore for puts and deletes
+	 */
+	public static final int MAX_BATCH_SIZE = 500;
 
 
 	/**
@@ -50,9 +67,21 @@ public abstract class ObjectManager {
 		assertIsNonNullArgument(type, "type");
 		assertIsNonNullArgument(id, "id");
 
-		log.config(LogBuilder.createSystemMessage().
-				addMessage("Load Type " + type.toString() + " with ID " + id + " from datastore.").toString());
-		return OfyService.ofy().load().type(type).id(id).now();
+		log.config(READ_OBJECT_SITE).addParameter("Datastore: load entity of type", type.getName()).
+				addParameter("id", id).log();
+		return recordLoaded(OfyService.ofy().load().type(type).id(id).now());
+	}
+
+	/**
+	 * Counts a loaded entity for the datastore stats of the current request.
+	 *
+	 * @methodtype helper
+	 */
+	protected static <E> E recordLoaded(E object) {
+		if (object != null) {
+			DatastoreStats.recordEntities(1);
+		}
+		return object;
 	}
 
 	/**
@@ -71,9 +100,35 @@ public abstract class ObjectManager {
 		assertIsNonNullArgument(type, "type");
 		assertIsNonNullArgument(id, "id");
 
-		log.config(LogBuilder.createSystemMessage().
-				addMessage("Load Type " + type.toString() + " with ID " + id + " from datastore.").toString());
-		return OfyService.ofy().load().type(type).id(id).now();
+		log.config(READ_OBJECT_SITE).addParameter("Datastore: load entity of type", type.getName()).
+				addParameter("id", id).log();
+		return recordLoaded(OfyService.ofy().load().type(type).id(id).now());
+	}
+
+	/**
+	 * Reads the Entity with the given id that is stored below the given parent key, e.g. the applicationRootKey
+	 */
+	protected <E> E readObject(Class<E> type, Key parent, Long id) throws IllegalArgumentException {
+		assertIsNonNullArgument(type, "type");
+		assertIsNonNullArgument(parent, "parent");
+		assertIsNonNullArgument(id, "id");
+
+		log.config(READ_OBJECT_SITE).addParameter("Datastore: load entity of type", type.getName()).
+				addParameter("id", id).log();
+		return recordLoaded(OfyService.ofy().load().type(type).parent(parent).id(id).now());
+	}
+
+	/**
+	 * Reads the Entity with the given name that is stored below the given parent key, e.g. the applicationRootKey
+	 */
+	protected <E> E readObject(Class<E> type, Key parent, String id) throws IllegalArgumentException {
+		assertIsNonNullArgument(type, "type");
+		assertIsNonNullArgument(parent, "parent");
+		assertIsNonNullArgument(id, "id");
+
+		log.config(READ_OBJECT_SITE).addParameter("Datastore: load entity of type", type.getName()).
+				addParameter("id", id).log();
+		return recordLoaded(OfyService.ofy().load().type(type).parent(parent).id(id).now());
 	}
 
 	/**
@@ -85,12 +140,11 @@ public abstract class ObjectManager {
 		assertIsNonNullArgument(parameterName, "parameterName");
 		assertIsNonNullArgument(value, "value");
 
-		log.config(LogBuilder.createSystemMessage().
-				addMessage("Load Type " + type.toString() + " with parameter " +
-						parameterName + " == " + value + " from datastore.").toString());
+		log.config(READ_OBJECT_SITE).addParameter("Datastore: load entity of type", type.getName()).
+				addParameter(parameterName, value).log();
 
-		return OfyService.ofy().load().type(type).ancestor(applicationRootKey).filter(parameterName, value).first()
-				.now();
+		return recordLoaded(OfyService.ofy().load().type(type).ancestor(applicationRootKey).
+				filter(parameterName, value).first().now());
 	}
 
 	/**
@@ -100,14 +154,85 @@ public abstract class ObjectManager {
 		assertIsNonNullArgument(result, "result");
 		assertIsNonNullArgument(type, "type");
 
-		log.config(LogBuilder.createSystemMessage().
-				addParameter("Datastore: load all entities of type", type.getName()).toString());
 		List<E> objects = OfyService.ofy().load().type(type).ancestor(applicationRootKey).list();
-		log.config(LogBuilder.createSystemMessage().
-				addParameter("Datastore: number of loaded objects", objects.size()).toString());
+		DatastoreStats.recordEntities(objects.size());
+		log.config(READ_OBJECTS_SITE).addParameter("Datastore: load all entities of type", type.getName()).
+				addParameter("number of loaded objects", objects.size()).log();
 		result.addAll(objects);
 	}
 
+	/**
+	 * Reads the entities with the given ids in batch calls; ids that do not exist are missing from the result.
+	 */
+	protected <E, S> Map<S, E> readObjectsByIds(Class<E> type, Collection<S> ids) {
+		return readObjectsByIds(type, null, ids);
+	}
+
+	/**
+	 * Reads the entities with the given ids that are stored below the given parent key, e.g. the applicationRootKey,
+	 * in batch calls; ids that do not exist are missing from the result.
+	 */
+	protected <E, S> Map<S, E> readObjectsByIds(Class<E> type, Key parent, Collection<S> ids) {
+		assertIsNonNullArgument(type, "type");
+		assertIsNonNullArgument(ids, "ids");
+
+		log.config(READ_OBJECTS_SITE).addParameter("Datastore: load entities by id of type", type.getName()).
+				addParameter("number of ids", ids.size()).log();
+		Map<S, E> result = new LinkedHashMap<S, E>();
+		for (List<S> chunk : partition(ids)) {
+			LoadType<E> loadType = OfyService.ofy().load().type(type);
+			Map<S, E> loaded = (parent == null) ? loadType.ids(chunk) : loadType.parent(parent).ids(chunk);
+			result.putAll(loaded);
+			DatastoreStats.recordEntities(loaded.size());
+		}
+		return result;
+	}
+
+	/**
+	 * Reads all Entities of the specified type in chunks of the given size and hands each chunk to the consumer. Keys
+	 * are streamed by a keys-only query; the batch load of the next chunk is started before the previous chunk is handed
+	 * over, so that fetching from the datastore overlaps with processing the loaded entities.
+	 */
+	protected <E> void readObjectsInChunks(Class<E> type, int chunkSize, Consumer<List<E>> consumer) {
+		assertIsNonNullArgument(type, "type");
+		assertIsNonNullArgument(consumer, "consumer");
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("chunkSize should be positive");
+		}
+
+		log.config().addParameter("Datastore: load all entities in chunks of type", type.getName()).log();
+		Map<com.googlecode.objectify.Key<E>, E> pendingChunk = null;
+		List<com.googlecode.objectify.Key<E>> keys = new ArrayList<com.googlecode.objectify.Key<E>>(chunkSize);
+		Iterable<com.googlecode.objectify.Key<E>> allKeys = OfyService.ofy().load().type(type).
+				ancestor(applicationRootKey).chunk(chunkSize).keys().iterable();
+		for (com.googlecode.objectify.Key<E> key : allKeys) {
+			keys.add(key);
+			if (keys.size() == chunkSize) {
+				// batch loads are asynchronous until their result is accessed
+				Map<com.googlecode.objectify.Key<E>, E> nextChunk = OfyService.ofy().load().keys(keys);
+				handOverChunk(pendingChunk, consumer);
+				pendingChunk = nextChunk;
+				keys = new ArrayList<com.googlecode.objectify.Key<E>>(chunkSize);
+			}
+		}
+
+		Map<com.googlecode.objectify.Key<E>, E> lastChunk = keys.isEmpty() ? null : OfyService.ofy().load().keys(keys);
+		handOverChunk(pendingChunk, consumer);
+		handOverChunk(lastChunk, consumer);
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	private <E> void handOverChunk(Map<com.googlecode.objectify.Key<E>, E> chunk, Consumer<List<E>> consumer) {
+		if (chunk != null) {
+			List<E> objects = new ArrayList<E>(chunk.values());
+			log.config().addParameter("Datastore: number of loaded objects in chunk", objects.size()).log();
+			DatastoreStats.recordEntities(objects.size());
+			consumer.accept(objects);
+		}
+	}
+
 	/**
 	 * Reads all Entities of the specified type, where the given property matches the wanted value e.g.
 	 * readObject(User.class) to get a list of all clients
@@ -118,13 +243,12 @@ public abstract class ObjectManager {
 		assertIsNonNullArgument(propertyName, "propertyName");
 		assertIsNonNullArgument(value, "value");
 
-		log.info(LogBuilder.createSystemMessage().
-				addMessage("Datastore: Load all Entities of type " + type.toString() + " where parameter "
-						+ propertyName + " = " + value.toString() + " from datastore.").toString());
 		List<E> objects = OfyService.ofy().load().type(type).
 				ancestor(applicationRootKey).filter(propertyName, value).list();
-		log.config(LogBuilder.createSystemMessage().
-				addParameter("Datastore: number of loaded objects", objects.size()).toString());
+		DatastoreStats.recordEntities(objects.size());
+		log.info(READ_OBJECTS_SITE).addParameter("Datastore: load all entities of type", type.getName()).
+				addParameter(propertyName, value).
+				addParameter("number of loaded objects", objects.size()).log();
 		result.addAll(objects);
 	}
 
@@ -132,9 +256,7 @@ public abstract class ObjectManager {
 	 * Updates all entities of the given collection in the datastore.
 	 */
 	protected void updateObjects(Collection<? extends Persistent> collection) {
-		for (Persistent object : collection) {
-			updateObject(object);
-		}
+		writeObjects(collection);
 	}
 
 	/**
@@ -145,20 +267,53 @@ public abstract class ObjectManager {
 	}
 
 	/**
-	 * Writes the given entity to the datastore.
+	 * Writes the given entity to the datastore. Inside a UnitOfWork, the entity is only enlisted and saved with the
+	 * other entities of the request when the unit of work commits.
 	 */
 	protected void writeObject(Persistent object) {
 		assertIsNonNullArgument(object, "object");
 
-		if (object.isDirty()) {
-			log.info(LogBuilder.createSystemMessage().
-					addParameter("Datastore: Write object of type", object).toString());
+		UnitOfWork unitOfWork = UnitOfWork.getCurrent();
+		if (unitOfWork != null && object.isDirty()) {
+			log.info(WRITE_OBJECT_SITE).addParameter("Datastore: Enlist object of type", object).log();
+			unitOfWork.enlist(this, object);
+		} else if (object.isDirty()) {
+			log.info(WRITE_OBJECT_SITE).addParameter("Datastore: Write object of type", object).log();
 			OfyService.ofy().save().entity(object).now();
+			DatastoreStats.recordEntities(1);
 			updateDependents(object);
 			object.resetWriteCount();
 		} else {
-			log.info(LogBuilder.createSystemMessage().
-					addParameter("Datastore: No need to update object", object).toString());
+			log.info(WRITE_OBJECT_SITE).addParameter("Datastore: No need to update object", object).log();
+		}
+	}
+
+	/**
+	 * Writes the dirty entities of the given collection to the datastore, in batch calls of at most MAX_BATCH_SIZE
+	 * entities. Dependents are updated after each batch, then the write counts are reset.
+	 */
+	protected void writeObjects(Collection<? extends Persistent> collection) {
+		assertIsNonNullArgument(collection, "collection");
+
+		List<Persistent> dirtyObjects = new ArrayList<Persistent>();
+		for (Persistent object : collection) {
+			if (object.isDirty()) {
+				dirtyObjects.add(object);
+			}
+		}
+		if (dirtyObjects.isEmpty()) {
+			return;
+		}
+
+		log.info().addParameter("Datastore: Write objects", dirtyObjects.size()).
+				addParameter("unchanged objects", collection.size() - dirtyObjects.size()).log();
+		for (List<Persistent> batch : partition(dirtyObjects)) {
+			OfyService.ofy().save().entities(batch).now();
+			DatastoreStats.recordEntities(batch.size());
+			updateDependents(batch);
+			for (Persistent object : batch) {
+				object.resetWriteCount();
+			}
 		}
 	}
 
@@ -169,14 +324,25 @@ public abstract class ObjectManager {
 		// overwrite if your object has additional dependencies
 	}
 
+	/**
+	 * Updates all dependencies of a batch of written objects; overwrite to update them in batches, too.
+	 */
+	protected void updateDependents(Collection<? extends Persistent> objects) {
+		for (Persistent object : objects) {
+			updateDependents(object);
+		}
+	}
+
 	/**
 	 * Deletes the given entity from the datastore.
 	 */
 	protected <E> void deleteObject(E object) {
 		assertIsNonNullArgument(object, "object");
 
-		log.config(LogBuilder.createSystemMessage().addParameter("Datastore: delete entity", object).toString());
+		log.config(DELETE_OBJECT_SITE).addParameter("Datastore: delete entity", object).log();
+		forgetInUnitOfWork(object);
 		OfyService.ofy().delete().entity(object).now();
+		DatastoreStats.recordEntities(1);
 	}
 
 	/**
@@ -188,12 +354,63 @@ public abstract class ObjectManager {
 		assertIsNonNullArgument(propertyName, "propertyName");
 		assertIsNonNullArgument(value, "value");
 
-		log.info(LogBuilder.createSystemMessage().
-				addMessage("Datastore: delete entities of type " + type
-						+ " where property " + propertyName + " == " + value).toString());
+		log.info().addParameter("Datastore: delete entities of type", type.getName()).
+				addParameter(propertyName, value).log();
 		List<com.googlecode.objectify.Key<E>> keys = OfyService.ofy().load().type(type).
 				ancestor(applicationRootKey).filter(propertyName, value).keys().list();
-		OfyService.ofy().delete().keys(keys);
+		for (List<com.googlecode.objectify.Key<E>> batch : partition(keys)) {
+			OfyService.ofy().delete().keys(batch).now();
+			DatastoreStats.recordEntities(batch.size());
+		}
+	}
+
+	/**
+	 * Deletes the given entities from the datastore in batch calls.
+	 */
+	protected void deleteObjects(Collection<?> objects) {
+		assertIsNonNullArgument(objects, "objects");
+
+		log.config().addParameter("Datastore: delete entities", objects.size()).log();
+		for (Object object : objects) {
+			forgetInUnitOfWork(object);
+		}
+		for (List<?> batch : partition(objects)) {
+			OfyService.ofy().delete().entities(batch).now();
+			DatastoreStats.recordEntities(batch.size());
+		}
+	}
+
+	/**
+	 * Removes a deleted entity from the current unit of work, if any, so that it is not saved again on commit.
+	 *
+	 * @methodtype command
+	 */
+	protected static void forgetInUnitOfWork(Object object) {
+		UnitOfWork unitOfWork = UnitOfWork.getCurrent();
+		if (unitOfWork != null) {
+			unitOfWork.forget(object);
+		}
+	}
+
+	/**
+	 * Splits the collection into lists of at most MAX_BATCH_SIZE elements.
+	 *
+	 * @methodtype helper
+	 */
+	protected static <T> List<List<T>> partition(Collection<T> collection) {
+		List<List<T>> result = new ArrayList<List<T>>();
+		List<T> batch = new ArrayList<T>(Math.min(collection.size(), MAX_BATCH_SIZE));
+		for (T element : collection) {
+			batch.add(element);
+			if (batch.size() == MAX_BATCH_SIZE) {
+				result.add(batch);
+				batch = new ArrayList<T>(MAX_BATCH_SIZE);
+			}
+		}
+		if (!batch.isEmpty()) {
+			result.add(batch);
+		}
+		return result;
 	}
 
 	/**
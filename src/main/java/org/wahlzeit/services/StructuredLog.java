@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.wahlzeit.services;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A level-gated facade for structured log messages in the format of the LogBuilder. The level is checked before any
+ * work is done: a disabled statement returns a shared no-op entry, so typed parameters are neither converted nor
+ * concatenated, and the session and client names are only resolved for messages that are actually written.
+ *
+ * Enabled entries are taken from a per-thread pool and reused, so a message costs one String and no builders. An
+ * entry is only valid until its log() method is called.
+ *
+ * Statements that are executed per element or per request pass a LogSite, which samples and rate limits them.
+ */
+public class StructuredLog {
+
+	/**
+	 * The reusable entry of each thread
+	 */
+	private static final ThreadLocal<LogEntry> threadLocalEntry = new ThreadLocal<LogEntry>() {
+		@Override
+		protected LogEntry initialValue() {
+			return new LogEntry();
+		}
+	};
+
+	/**
+	 * @methodtype factory
+	 */
+	public static StructuredLog getLog(Class<?> type) {
+		return new StructuredLog(Logger.getLogger(type.getName()));
+	}
+
+	/**
+	 *
+	 */
+	protected final Logger logger;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public StructuredLog(Logger logger) {
+		this.logger = logger;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public Logger getLogger() {
+		return logger;
+	}
+
+	/**
+	 * Returns the site of the given name below the name of the logger, e.g. readObject of the ObjectManager logger is
+	 * configured as "org.wahlzeit.services.ObjectManager.readObject".
+	 *
+	 * @methodtype get
+	 */
+	public LogSite site(String name) {
+		return LogSite.getSite(logger.getName() + "." + name);
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isLoggable(Level level) {
+		return logger.isLoggable(level);
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isConfigEnabled() {
+		return logger.isLoggable(Level.CONFIG);
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isInfoEnabled() {
+		return logger.isLoggable(Level.INFO);
+	}
+
+
+	// create-methods --------------------------------------------------------------------------------------------------
+
+	/**
+	 * @methodtype factory
+	 */
+	public LogEntry config() {
+		return system(Level.CONFIG);
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	public LogEntry info() {
+		return system(Level.INFO);
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	public LogEntry warning() {
+		return system(Level.WARNING);
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	public LogEntry severe() {
+		return system(Level.SEVERE);
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	public LogEntry userInfo() {
+		return user(Level.INFO);
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	public LogEntry config(LogSite site) {
+		return createEntry(Level.CONFIG, LogBuilder.SYSTEM_LEVEL, site);
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	public LogEntry info(LogSite site) {
+		return createEntry(Level.INFO, LogBuilder.SYSTEM_LEVEL, site);
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	public LogEntry warning(LogSite site) {
+		return createEntry(Level.WARNING, LogBuilder.SYSTEM_LEVEL, site);
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	public LogEntry userInfo(LogSite site) {
+		return createEntry(Level.INFO, LogBuilder.USER_LEVEL, site);
+	}
+
+	/**
+	 * Creates an entry for a system message, see LogBuilder.createSystemMessage().
+	 *
+	 * @methodtype factory
+	 */
+	public LogEntry system(Level level) {
+		return createEntry(level, LogBuilder.SYSTEM_LEVEL, null);
+	}
+
+	/**
+	 * Creates an entry for a user message, see LogBuilder.createUserMessage().
+	 *
+	 * @methodtype factory
+	 */
+	public LogEntry user(Level level) {
+		return createEntry(level, LogBuilder.USER_LEVEL, null);
+	}
+
+	/**
+	 * Returns the disabled entry if the level is not loggable, the entry of the current thread otherwise. An entry
+	 * created while the entry of the thread is in use, e.g. by a toString() that logs, is not pooled. Messages of a
+	 * site are only counted if their level is loggable.
+	 *
+	 * @methodtype factory
+	 */
+	protected LogEntry createEntry(Level level, String messageLevel, LogSite site) {
+		if (!logger.isLoggable(level) || (site != null && !site.tryAcquire())) {
+			return LogEntry.DISABLED;
+		}
+
+		LogEntry result = threadLocalEntry.get();
+		if (result.isInUse()) {
+			result = new LogEntry();
+		}
+		result.start(logger, level, messageLevel, site == null ? 0 : site.takeSuppressedMessages());
+		return result;
+	}
+
+}
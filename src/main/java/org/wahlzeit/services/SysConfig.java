@@ -169,4 +169,12 @@ public class SysConfig extends AbstractConfig {
 		return getInstance().tempDir;
 	}
 
+	/**
+	 * Returns the directory of java.io.tmpdir, the only one that is writable on App Engine standard. Its files are
+	 * local to the instance and lost when the instance stops.
+	 */
+	public static File getInstanceTempDir() {
+		return new File(System.getProperty("java.io.tmpdir"));
+	}
+
 }
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.services;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the entities a request writes and saves them once, before its response is sent. Inside a unit of work,
+ * ObjectManager.writeObject only enlists the entity; an entity that is written several times is enlisted once. On
+ * commit, the enlisted entities are saved in one batch per ObjectManager, and its dependents are updated once per
+ * entity.
+ *
+ * Dependents that are written while updating dependents are enlisted again and saved in the next round, so that they
+ * are still saved after the entities they depend on. Rounds end as no dirty entities are left.
+ */
+public class UnitOfWork {
+
+	private static final StructuredLog log = StructuredLog.getLog(UnitOfWork.class);
+
+	/**
+	 *
+	 */
+	private static final ThreadLocal<UnitOfWork> threadLocalUnitOfWork = new ThreadLocal<UnitOfWork>();
+
+	/**
+	 * Starts a unit of work for the current thread; returns null if one has been started already, as the outermost
+	 * unit of work commits.
+	 *
+	 * @methodtype command
+	 */
+	public static UnitOfWork begin() {
+		if (threadLocalUnitOfWork.get() != null) {
+			return null;
+		}
+
+		UnitOfWork result = new UnitOfWork();
+		threadLocalUnitOfWork.set(result);
+		return result;
+	}
+
+	/**
+	 * Returns the unit of work of the current thread, or null outside of a request.
+	 *
+	 * @methodtype get
+	 */
+	public static UnitOfWork getCurrent() {
+		return threadLocalUnitOfWork.get();
+	}
+
+	/**
+	 * Commits the unit of work of the current thread and ends it; it ends even if the commit fails.
+	 *
+	 * @methodtype command
+	 */
+	public static void end() {
+		UnitOfWork unitOfWork = threadLocalUnitOfWork.get();
+		if (unitOfWork != null) {
+			try {
+				unitOfWork.commit();
+			} finally {
+				threadLocalUnitOfWork.remove();
+			}
+		}
+	}
+
+	/**
+	 * The enlisted entities, in the order they have been enlisted first, with the manager that writes them
+	 */
+	protected Map<Persistent, ObjectManager> enlistedObjects = new LinkedHashMap<Persistent, ObjectManager>();
+
+	/**
+	 *
+	 */
+	protected int noEnlistments = 0;
+	protected int noCoalescedEnlistments = 0;
+	protected int noRounds = 0;
+
+	/**
+	 * @methodtype command
+	 */
+	public void enlist(ObjectManager manager, Persistent object) {
+		noEnlistments++;
+		if (enlistedObjects.put(object, manager) != null) {
+			noCoalescedEnlistments++;
+		}
+	}
+
+	/**
+	 * Removes an entity that has been deleted, so that it is not saved again.
+	 *
+	 * @methodtype command
+	 */
+	public void forget(Object object) {
+		enlistedObjects.remove(object);
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isEnlisted(Persistent object) {
+		return enlistedObjects.containsKey(object);
+	}
+
+	/**
+	 * Saves the enlisted entities in rounds, until updating dependents enlists no more entities. If a batch fails,
+	 * the other batches are saved nonetheless, and then the first failure is thrown, so that the request fails as it
+	 * did when each write was saved right away. The entities of a failed batch stay modified.
+	 *
+	 * @methodtype command
+	 */
+	public void commit() {
+		RuntimeException failure = null;
+		while (!enlistedObjects.isEmpty()) {
+			noRounds++;
+			Map<ObjectManager, List<Persistent>> batches = new LinkedHashMap<ObjectManager, List<Persistent>>();
+			for (Map.Entry<Persistent, ObjectManager> entry : enlistedObjects.entrySet()) {
+				List<Persistent> batch = batches.get(entry.getValue());
+				if (batch == null) {
+					batch = new ArrayList<Persistent>();
+					batches.put(entry.getValue(), batch);
+				}
+				batch.add(entry.getKey());
+			}
+			enlistedObjects = new LinkedHashMap<Persistent, ObjectManager>();
+
+			for (Map.Entry<ObjectManager, List<Persistent>> entry : batches.entrySet()) {
+				try {
+					entry.getKey().writeObjects(entry.getValue());
+				} catch (RuntimeException ex) {
+					log.warning().addParameter("batch size", entry.getValue().size()).
+							addException("Could not write batch of unit of work", ex).log();
+					if (failure == null) {
+						failure = ex;
+					}
+				}
+			}
+		}
+
+		if (noEnlistments > 0) {
+			log.config().addAction("commit unit of work").
+					addParameter("enlistments", noEnlistments).
+					addParameter("coalesced enlistments", noCoalescedEnlistments).
+					addParameter("rounds", noRounds).log();
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+
+	// metrics ---------------------------------------------------------------------------------------------------------
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNoEnlistedObjects() {
+		return enlistedObjects.size();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNoEnlistments() {
+		return noEnlistments;
+	}
+
+	/**
+	 * Returns how many writes did not add a save, because the entity was enlisted already.
+	 *
+	 * @methodtype get
+	 */
+	public int getNoCoalescedEnlistments() {
+		return noCoalescedEnlistments;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNoRounds() {
+		return noRounds;
+	}
+
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.services;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Collects modified objects and persists them later, in batches. Objects register themselves when their write count
+ * is incremented; an object that is modified again before it has been flushed is queued only once, so many
+ * modifications result in a single datastore write.
+ *
+ * The queue is flushed at the end of a request once its oldest object has been queued for the flush interval or the
+ * batch size is reached. Since an instance that receives no more requests would keep its queue, the queue is also
+ * flushed when an object is queued while the oldest one is overdue. The flushWriteBehind agent and the shutdown hook
+ * flush it as well, but neither is guaranteed to run on a given instance. Objects are written by the writer
+ * registered for their type, usually an ObjectManager, so that dependents are updated as well.
+ */
+public class WriteBehindQueue {
+
+	private static final Logger log = Logger.getLogger(WriteBehindQueue.class.getName());
+
+	/**
+	 * System properties (see appengine-web.xml) to configure when the queue is flushed
+	 */
+	public static final String FLUSH_INTERVAL_PROPERTY = "org.wahlzeit.writeBehind.flushIntervalMillis";
+	public static final String BATCH_SIZE_PROPERTY = "org.wahlzeit.writeBehind.batchSize";
+	public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 10 * 1000;
+	public static final int DEFAULT_BATCH_SIZE = 100;
+
+	/**
+	 *
+	 */
+	private static final Writer NO_WRITER = new Writer() {
+		@Override
+		public void write(List<Persistent> objects) {
+			// types without writer are not queued
+		}
+	};
+
+	/**
+	 *
+	 */
+	private static final WriteBehindQueue instance = new WriteBehindQueue();
+
+	/**
+	 * Not synchronized, since every modification of a persistent object goes through here.
+	 *
+	 * @methodtype get
+	 */
+	public static WriteBehindQueue getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Writers by the type they have been registered for, and resolved writers by concrete type
+	 */
+	protected final Map<Class<?>, Writer> writers = new ConcurrentHashMap<Class<?>, Writer>();
+	protected final Map<Class<?>, Writer> resolvedWriters = new ConcurrentHashMap<Class<?>, Writer>();
+
+	/**
+	 * The queued objects; values are unused
+	 */
+	protected final Map<Persistent, Boolean> dirtyObjects = new ConcurrentHashMap<Persistent, Boolean>();
+
+	/**
+	 *
+	 */
+	protected final ReentrantLock flushLock = new ReentrantLock();
+	protected final long flushIntervalMillis;
+	protected final int batchSize;
+
+	/**
+	 * When the oldest queued object has been queued, or 0 if the queue is empty
+	 */
+	protected final AtomicLong oldestMarkTime = new AtomicLong();
+
+	/**
+	 *
+	 */
+	protected final AtomicLong noMarks = new AtomicLong();
+	protected final AtomicLong noCoalescedMarks = new AtomicLong();
+	protected final AtomicLong noFlushes = new AtomicLong();
+	protected final AtomicLong noWrittenObjects = new AtomicLong();
+	protected final AtomicLong totalFlushNanos = new AtomicLong();
+	protected final AtomicLong maxFlushNanos = new AtomicLong();
+	protected volatile long lastFlushNanos = 0;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public WriteBehindQueue() {
+		this(Long.getLong(FLUSH_INTERVAL_PROPERTY, DEFAULT_FLUSH_INTERVAL_MILLIS),
+				Integer.getInteger(BATCH_SIZE_PROPERTY, DEFAULT_BATCH_SIZE));
+	}
+
+	/**
+	 * @methodtype constructor
+	 */
+	public WriteBehindQueue(long flushIntervalMillis, int batchSize) {
+		this.flushIntervalMillis = flushIntervalMillis;
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * Registers the writer that persists objects of the given type and its subtypes.
+	 *
+	 * @methodtype command
+	 */
+	public void registerWriter(Class<? extends Persistent> type, Writer writer) {
+		writers.put(type, writer);
+		resolvedWriters.clear();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected Writer getWriter(Class<?> type) {
+		Writer result = resolvedWriters.get(type);
+		if (result == null) {
+			result = NO_WRITER;
+			for (Class<?> current = type; current != null && result == NO_WRITER; current = current.getSuperclass()) {
+				Writer writer = writers.get(current);
+				if (writer != null) {
+					result = writer;
+				}
+			}
+			resolvedWriters.put(type, result);
+		}
+		return result;
+	}
+
+
+	// queue methods ---------------------------------------------------------------------------------------------------
+
+	/**
+	 * Queues a modified object. If the oldest queued object is overdue, the other objects are flushed right away;
+	 * the given object is never written here, as it may be in the middle of a modification.
+	 *
+	 * @methodtype command
+	 */
+	public void markDirty(Persistent object) {
+		if (getWriter(object.getClass()) != NO_WRITER) {
+			noMarks.incrementAndGet();
+			if (dirtyObjects.put(object, Boolean.TRUE) != null) {
+				noCoalescedMarks.incrementAndGet();
+			}
+			oldestMarkTime.compareAndSet(0, System.currentTimeMillis());
+
+			if (isOverdue() && !flushLock.isHeldByCurrentThread() && flushLock.tryLock()) {
+				try {
+					doFlush(null, object);
+				} finally {
+					flushLock.unlock();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes an object that has been written otherwise.
+	 *
+	 * @methodtype command
+	 */
+	public void forget(Persistent object) {
+		dirtyObjects.remove(object);
+	}
+
+	/**
+	 * Flushes the queue if the flush interval has passed or a batch is complete; meant to be called at the end of a
+	 * request. Returns immediately if another thread is flushing.
+	 *
+	 * @methodtype command
+	 */
+	public void flushIfDue() {
+		boolean isDue = dirtyObjects.size() >= batchSize || isOverdue();
+		if (isDue && flushLock.tryLock()) {
+			try {
+				doFlush(null, null);
+			} finally {
+				flushLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Returns whether the oldest queued object has been queued for the flush interval.
+	 *
+	 * @methodtype boolean-query
+	 */
+	protected boolean isOverdue() {
+		long markTime = oldestMarkTime.get();
+		return markTime != 0 && System.currentTimeMillis() - markTime >= flushIntervalMillis;
+	}
+
+	/**
+	 * Writes all queued objects.
+	 *
+	 * @methodtype command
+	 */
+	public void flush() {
+		flush(null);
+	}
+
+	/**
+	 * Writes the queued objects of the given type and its subtypes, or all queued objects if the type is null.
+	 *
+	 * @methodtype command
+	 */
+	public void flush(Class<? extends Persistent> type) {
+		flushLock.lock();
+		try {
+			doFlush(type, null);
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the queued objects out of the queue before writing them, so that modifications during the flush queue
+	 * them again. Objects whose write failed, and the excluded object, stay queued and count as queued from now on.
+	 *
+	 * @methodtype command
+	 */
+	protected void doFlush(Class<? extends Persistent> type, Persistent exclude) {
+		long startTime = System.nanoTime();
+		oldestMarkTime.set(0);
+
+		Map<Writer, List<Persistent>> batches = new LinkedHashMap<Writer, List<Persistent>>();
+		for (Iterator<Persistent> i = dirtyObjects.keySet().iterator(); i.hasNext(); ) {
+			Persistent object = i.next();
+			if ((type == null || type.isInstance(object)) && object != exclude) {
+				i.remove();
+				if (object.isDirty()) {
+					Writer writer = getWriter(object.getClass());
+					List<Persistent> batch = batches.get(writer);
+					if (batch == null) {
+						batch = new ArrayList<Persistent>();
+						batches.put(writer, batch);
+					}
+					batch.add(object);
+				}
+			}
+		}
+
+		int noObjects = 0;
+		for (Map.Entry<Writer, List<Persistent>> entry : batches.entrySet()) {
+			List<Persistent> objects = entry.getValue();
+			for (int from = 0; from < objects.size(); from += batchSize) {
+				List<Persistent> batch = objects.subList(from, Math.min(from + batchSize, objects.size()));
+				noObjects += writeBatch(entry.getKey(), batch);
+			}
+		}
+
+		if (!dirtyObjects.isEmpty()) {
+			oldestMarkTime.compareAndSet(0, System.currentTimeMillis());
+		}
+
+		long duration = System.nanoTime() - startTime;
+		noFlushes.incrementAndGet();
+		noWrittenObjects.addAndGet(noObjects);
+		totalFlushNanos.addAndGet(duration);
+		lastFlushNanos = duration;
+		long max;
+		do {
+			max = maxFlushNanos.get();
+		} while (duration > max && !maxFlushNanos.compareAndSet(max, duration));
+
+		if (noObjects > 0) {
+			log.config(LogBuilder.createSystemMessage().addAction("flush write-behind queue")
+					.addParameter("written objects", noObjects)
+					.addParameter("duration in ms", duration / 1000000)
+					.addParameter("queue depth", dirtyObjects.size()).toString());
+		}
+	}
+
+	/**
+	 * Returns the number of objects written.
+	 *
+	 * @methodtype command
+	 */
+	protected int writeBatch(Writer writer, List<Persistent> batch) {
+		try {
+			writer.write(batch);
+			return batch.size();
+		} catch (RuntimeException ex) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("batch size", batch.size()).
+					addException("Could not write batch, queueing it again", ex).toString());
+			for (Persistent object : batch) {
+				if (object.isDirty()) {
+					dirtyObjects.put(object, Boolean.TRUE);
+				}
+			}
+			return 0;
+		}
+	}
+
+
+	// metrics ---------------------------------------------------------------------------------------------------------
+
+	/**
+	 * @methodtype get
+	 */
+	public int getQueueDepth() {
+		return dirtyObjects.size();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoMarks() {
+		return noMarks.get();
+	}
+
+	/**
+	 * Returns how many modifications did not add a write, because the object was queued already.
+	 *
+	 * @methodtype get
+	 */
+	public long getNoCoalescedMarks() {
+		return noCoalescedMarks.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoFlushes() {
+		return noFlushes.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoWrittenObjects() {
+		return noWrittenObjects.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getLastFlushMillis() {
+		return lastFlushNanos / 1000000;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getMaxFlushMillis() {
+		return maxFlushNanos.get() / 1000000;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public double getAverageFlushMillis() {
+		long flushes = noFlushes.get();
+		return flushes == 0 ? 0.0 : totalFlushNanos.get() / 1000000.0 / flushes;
+	}
+
+	/**
+	 * Persists a batch of objects of the type it has been registered for.
+	 */
+	public interface Writer {
+
+		/**
+		 * @methodtype command
+		 */
+		void write(List<Persistent> objects);
+	}
+
+}
@@ -21,10 +21,14 @@
 package org.wahlzeit.servlets;
 
 import org.wahlzeit.main.ServiceMain;
+import org.wahlzeit.model.PraiseVotePipeline;
 import org.wahlzeit.model.UserSession;
+import org.wahlzeit.services.DatastoreStats;
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.services.Session;
 import org.wahlzeit.services.SessionManager;
+import org.wahlzeit.services.UnitOfWork;
+import org.wahlzeit.services.WriteBehindQueue;
 import org.wahlzeit.utils.StringUtil;
 import org.wahlzeit.webparts.WebPart;
 
@@ -47,6 +51,12 @@ public abstract class AbstractServlet extends HttpServlet {
 
 	private static final Logger log = Logger.getLogger(AbstractServlet.class.getName());
 	private static final long serialVersionUID = 42L; // any does; class never serialized
+
+	/**
+	 *
+	 */
+	public static final String DATASTORE_STATS_HEADER = "X-Wahlzeit-Datastore";
+
 	/**
 	 *
 	 */
@@ -80,13 +90,17 @@ public abstract class AbstractServlet extends HttpServlet {
 		request.setCharacterEncoding("UTF-8");
 		response.setCharacterEncoding("UTF-8");
 
-		UserSession us = ensureUserSession(request);
+		UserSession us = ensureUserSession(request, false);
 		SessionManager.setThreadLocalSession(us);
 
 		if (ServiceMain.getInstance().isShuttingDown() || (us == null)) {
 			displayNullPage(request, response);
 		} else {
 			myGet(request, response);
+			commitUnitOfWork();
+			us.flushAttributes();
+			PraiseVotePipeline.getInstance().applyIfDue();
+			WriteBehindQueue.getInstance().flushIfDue();
 		}
 
 		SessionManager.dropThreadLocalSession();
@@ -99,13 +113,17 @@ public abstract class AbstractServlet extends HttpServlet {
 		request.setCharacterEncoding("UTF-8");
 		response.setCharacterEncoding("UTF-8");
 
-		UserSession us = ensureUserSession(request);
+		UserSession us = ensureUserSession(request, true);
 		SessionManager.setThreadLocalSession(us);
 
 		if (ServiceMain.getInstance().isShuttingDown() || (us == null)) {
 			displayNullPage(request, response);
 		} else {
 			myPost(request, response);
+			commitUnitOfWork();
+			us.flushAttributes();
+			PraiseVotePipeline.getInstance().applyIfDue();
+			WriteBehindQueue.getInstance().flushIfDue();
 		}
 
 		SessionManager.dropThreadLocalSession();
@@ -120,15 +138,25 @@ public abstract class AbstractServlet extends HttpServlet {
 	}
 
 	/**
-	 *
+	 * Requests that do not require a session, i.e. GETs, get a UserSession that creates the HttpSession only once
+	 * they change state.
 	 */
-	protected UserSession ensureUserSession(HttpServletRequest request) {
-		HttpSession httpSession = request.getSession();
-
-		String sessionName = httpSession.getId();
+	protected UserSession ensureUserSession(final HttpServletRequest request, boolean isSessionRequired) {
+		HttpSession httpSession = request.getSession(isSessionRequired);
 		String siteUrl = getSiteUrl(request); // @TODO Application
+		String language = request.getLocale().getLanguage();
 
-		UserSession result = new UserSession(sessionName, siteUrl, httpSession, request.getLocale().getLanguage());
+		UserSession result;
+		if (httpSession != null) {
+			result = new UserSession(httpSession.getId(), siteUrl, httpSession, language);
+		} else {
+			result = new UserSession(siteUrl, new UserSession.HttpSessionFactory() {
+				@Override
+				public HttpSession createHttpSession() {
+					return request.getSession(true);
+				}
+			}, language);
+		}
 
 		return result;
 	}
@@ -168,6 +196,9 @@ public abstract class AbstractServlet extends HttpServlet {
 	 *
 	 */
 	protected void redirectRequest(HttpServletResponse response, String link) throws IOException {
+		commitUnitOfWork();
+		flushUserSession(SessionManager.getThreadLocalSession());
+		addDatastoreStatsHeader(response);
 		response.setContentType("text/html");
 		String newTarget = new String("/" + link + ".html");
 		log.config(LogBuilder.createSystemMessage().addParameter("Redirect to", newTarget).toString());
@@ -178,6 +209,9 @@ public abstract class AbstractServlet extends HttpServlet {
 	 *
 	 */
 	protected void configureResponse(Session ctx, HttpServletResponse response, WebPart result) throws IOException {
+		commitUnitOfWork();
+		flushUserSession(ctx);
+		addDatastoreStatsHeader(response);
 		long processingTime = ctx.getProcessingTime();
 		result.addString("processingTime", StringUtil.asStringInSeconds((processingTime == 0) ? 1 : processingTime));
 		log.config(LogBuilder.createSystemMessage().
@@ -192,6 +226,39 @@ public abstract class AbstractServlet extends HttpServlet {
 		response.setStatus(HttpServletResponse.SC_OK);
 	}
 
+	/**
+	 * Saves the entities the handler has written before the response is committed, so that a failing save fails the
+	 * request instead of following a success page, and so that the saves count for the handler's metrics and the
+	 * datastore header. doGet and doPost commit again after myGet and myPost, for servlets that write their response
+	 * themselves.
+	 */
+	protected void commitUnitOfWork() {
+		UnitOfWork unitOfWork = UnitOfWork.getCurrent();
+		if (unitOfWork != null) {
+			unitOfWork.commit();
+		}
+	}
+
+	/**
+	 * Flushes the session attributes before the response is committed, so that a newly created HttpSession gets its
+	 * cookie.
+	 */
+	protected void flushUserSession(Session ctx) {
+		if (ctx instanceof UserSession) {
+			((UserSession) ctx).flushAttributes();
+		}
+	}
+
+	/**
+	 * Shows the datastore calls of the request so far during development, before the response is committed.
+	 */
+	protected void addDatastoreStatsHeader(HttpServletResponse response) {
+		DatastoreStats stats = DatastoreStats.getCurrent();
+		if (stats != null && !ServiceMain.getInstance().isInProduction()) {
+			response.setHeader(DATASTORE_STATS_HEADER, stats.asHeaderValue());
+		}
+	}
+
 	/**
 	 *
 	 */
@@ -22,6 +22,7 @@ package org.wahlzeit.servlets;
 
 import org.wahlzeit.agents.AgentManager;
 import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.MetricsRegistry;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -37,6 +38,11 @@ public class AgentServlet extends HttpServlet {
 
 	private static Logger log = Logger.getLogger(AgentServlet.class.getName());
 
+	/**
+	 *
+	 */
+	protected static final String SERVLET_NAME = "AgentServlet";
+
 	/**
 	 * @methodtype command
 	 */
@@ -44,19 +50,26 @@ public class AgentServlet extends HttpServlet {
 	protected void doGet(HttpServletRequest request, HttpServletResponse response)
 			throws ServletException, IOException {
 
+		long startNanos = System.nanoTime();
 		String requestUri = request.getRequestURI();
 		int nameStart = requestUri.lastIndexOf("/") + 1;
 		int nameEnd = requestUri.length();
 		String agentName = requestUri.substring(nameStart, nameEnd);
 		log.config(LogBuilder.createSystemMessage().addParameter("agent name", agentName).toString());
 
+		String outcome = MetricsRegistry.RENDER;
 		try {
 			AgentManager.getInstance().startAgent(agentName);
 			response.setStatus(200);
 		} catch (Exception e) {
 			log.warning(LogBuilder.createSystemMessage().addException("Problem when starting the agent", e).toString());
 			response.setStatus(299);
+			outcome = MetricsRegistry.ERROR;
 		}
+
+		// only known agents get a histogram of their own
+		String handlerName = AgentManager.getInstance().getAgent(agentName) != null ? agentName : null;
+		MetricsRegistry.getInstance().recordRequest(SERVLET_NAME, handlerName, outcome, startNanos);
 	}
 
 
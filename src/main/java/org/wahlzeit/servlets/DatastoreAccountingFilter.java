@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.wahlzeit.servlets;
+
+import org.wahlzeit.services.DatastoreAccountingDelegate;
+import org.wahlzeit.services.DatastoreStats;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+
+/**
+ * A filter that counts the datastore calls of each request, see DatastoreStats. The servlets add the counts to the
+ * MetricsRegistry by handler, and MainServlet shows them in a response header during development.
+ */
+public class DatastoreAccountingFilter implements Filter {
+
+	/**
+	 * @methodtype init
+	 */
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException {
+		DatastoreAccountingDelegate.install();
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+			throws IOException, ServletException {
+		String requestName = request instanceof HttpServletRequest ?
+				((HttpServletRequest) request).getRequestURI() : request.getClass().getSimpleName();
+		DatastoreStats.begin(requestName);
+		try {
+			chain.doFilter(request, response);
+		} finally {
+			DatastoreStats.end();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	public void destroy() {
+		// the delegate stays installed for the lifetime of the runtime
+	}
+
+}
@@ -33,8 +33,11 @@ import org.wahlzeit.handlers.WebPageHandler;
 import org.wahlzeit.handlers.WebPartHandlerManager;
 import org.wahlzeit.model.User;
 import org.wahlzeit.model.UserSession;
-import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.LogEntry;
+import org.wahlzeit.services.LogSite;
+import org.wahlzeit.services.MetricsRegistry;
 import org.wahlzeit.services.SessionManager;
+import org.wahlzeit.services.StructuredLog;
 import org.wahlzeit.webparts.WebPart;
 
 import javax.servlet.ServletException;
@@ -46,7 +49,6 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.logging.Logger;
 
 
 /**
@@ -54,7 +56,20 @@ import java.util.logging.Logger;
  */
 public class MainServlet extends AbstractServlet {
 
-	private static final Logger log = Logger.getLogger(MainServlet.class.getName());
+	private static final StructuredLog log = StructuredLog.getLog(MainServlet.class);
+
+	/**
+	 * Sites of the statements that log every request, sampled as configured in logging.properties
+	 */
+	private static final LogSite REQUEST_SITE = log.site("request");
+	private static final LogSite REQUEST_ARGS_SITE = log.site("requestArgs");
+
+	/**
+	 * Latencies are recorded by handler name; requests for unknown links share one name
+	 */
+	protected static final String SERVLET_NAME = "MainServlet";
+	protected static final String UNKNOWN_HANDLER = "unknown";
+
 	/**
 	 *
 	 */
@@ -65,8 +80,8 @@ public class MainServlet extends AbstractServlet {
 	 */
 	public void myPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
 		long startTime = System.currentTimeMillis();
+		long startNanos = System.nanoTime();
 
-		UserSession us = (UserSession) SessionManager.getThreadLocalSession();
 		String link = request.getRequestURI();
 		int linkStart = link.lastIndexOf("/") + 1;
 		int linkEnd = link.indexOf(".form");
@@ -75,14 +90,32 @@ public class MainServlet extends AbstractServlet {
 		} else {
 			link = PartUtil.NULL_FORM_NAME;
 		}
-		log.info(LogBuilder.createUserMessage().addParameter("posted to", link).toString());
+		log.userInfo(REQUEST_SITE).addParameter("posted to", link).log();
 
+		WebFormHandler formHandler = WebPartHandlerManager.getWebFormHandler(link);
+		String outcome = MetricsRegistry.ERROR;
+		try {
+			handlePostRequest(request, response, formHandler, startTime);
+			outcome = MetricsRegistry.REDIRECT;
+		} finally {
+			MetricsRegistry.getInstance().recordRequest(SERVLET_NAME, formHandler != null ? link : UNKNOWN_HANDLER,
+					outcome, startNanos);
+		}
+	}
+
+	/**
+	 * Handles the post, which always ends with a redirect.
+	 */
+	protected void handlePostRequest(HttpServletRequest request, HttpServletResponse response,
+									 WebFormHandler formHandler, long startTime) throws ServletException, IOException {
+		UserSession us = (UserSession) SessionManager.getThreadLocalSession();
 		Map args = getRequestArgs(request, us);
-		log.info(LogBuilder.createSystemMessage().
-				addParameter("POST arguments", getRequestArgsAsString(us, args)).toString());
+		LogEntry argsEntry = log.info(REQUEST_ARGS_SITE);
+		if (argsEntry.isEnabled()) {
+			argsEntry.addParameter("POST arguments", getRequestArgsAsString(us, args)).log();
+		}
 
-		WebFormHandler formHandler = WebPartHandlerManager.getWebFormHandler(link);
-		link = PartUtil.DEFAULT_PAGE_NAME;
+		String link = PartUtil.DEFAULT_PAGE_NAME;
 		if (formHandler != null) {
 			link = formHandler.handlePost(us, args);
 		}
@@ -97,8 +130,8 @@ public class MainServlet extends AbstractServlet {
 	 */
 	public void myGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
 		long startTime = System.currentTimeMillis();
+		long startNanos = System.nanoTime();
 
-		UserSession us = (UserSession) SessionManager.getThreadLocalSession();
 		String link = request.getRequestURI();
 		int linkStart = link.lastIndexOf("/") + 1;
 		int linkEnd = link.indexOf(".html");
@@ -107,29 +140,48 @@ public class MainServlet extends AbstractServlet {
 		}
 
 		link = link.substring(linkStart, linkEnd);
-		log.info(LogBuilder.createUserMessage().addParameter("requested URI", request.getRequestURI()).toString());
-
+		log.userInfo(REQUEST_SITE).addParameter("requested URI", request.getRequestURI()).log();
 
 		WebPageHandler handler = WebPartHandlerManager.getWebPageHandler(link);
+		String outcome = MetricsRegistry.ERROR;
+		try {
+			outcome = handleGetRequest(request, response, link, handler, startTime);
+		} finally {
+			MetricsRegistry.getInstance().recordRequest(SERVLET_NAME, handler != null ? link : UNKNOWN_HANDLER,
+					outcome, startNanos);
+		}
+	}
+
+	/**
+	 * Handles the get and returns whether the page was rendered or redirected.
+	 */
+	protected String handleGetRequest(HttpServletRequest request, HttpServletResponse response, String link,
+									  WebPageHandler handler, long startTime) throws ServletException, IOException {
+		UserSession us = (UserSession) SessionManager.getThreadLocalSession();
+		String result = MetricsRegistry.REDIRECT;
 		String newLink = PartUtil.DEFAULT_PAGE_NAME;
 		if (handler != null) {
 			Map args = getRequestArgs(request, us);
-			log.info(LogBuilder.createSystemMessage().
-					addParameter("GET arguments", getRequestArgsAsString(us, args)).toString());
+			LogEntry argsEntry = log.info(REQUEST_ARGS_SITE);
+			if (argsEntry.isEnabled()) {
+				argsEntry.addParameter("GET arguments", getRequestArgsAsString(us, args)).log();
+			}
 			newLink = handler.handleGet(us, link, args);
 		}
 
 		if (newLink.equals(link)) { // no redirect necessary
-			WebPart result = handler.makeWebPart(us);
+			WebPart webPart = handler.makeWebPart(us);
 			us.addProcessingTime(System.currentTimeMillis() - startTime);
-			configureResponse(us, response, result);
+			configureResponse(us, response, webPart);
 			us.clearSavedArgs(); // saved args go from post to next get
 			us.resetProcessingTime();
+			result = MetricsRegistry.RENDER;
 		} else {
 			redirectRequest(response, newLink);
 			us.addProcessingTime(System.currentTimeMillis() - startTime);
 		}
 		SessionManager.dropThreadLocalSession();
+		return result;
 	}
 
 	/**
@@ -166,15 +218,15 @@ public class MainServlet extends AbstractServlet {
 					User user = (User) us.getClient();
 					user.setUploadedImage(image);
 					result.put("fileName", filename);
-					log.config(LogBuilder.createSystemMessage().addParameter("Uploaded image", filename).toString());
+					log.config().addParameter("Uploaded image", filename).log();
 				} else {
 					String key = fileItemStream.getFieldName();
 					InputStream is = fileItemStream.openStream();
 					String value = CharStreams.toString(new InputStreamReader(is, Charsets.UTF_8));
 					result.put(key, value);
-					log.config(LogBuilder.createSystemMessage().
+					log.config().
 							addParameter("Key of uploaded parameter", key).
-							addParameter("value", value).toString());
+							addParameter("value", value).log();
 				}
 			}
 		} catch (Exception ex) {
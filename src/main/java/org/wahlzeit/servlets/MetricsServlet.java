@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.wahlzeit.servlets;
+
+import org.wahlzeit.services.DatastoreStats;
+import org.wahlzeit.services.LatencyHistogram;
+import org.wahlzeit.services.MetricsRegistry;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A servlet that shows the request latencies and datastore calls of the MetricsRegistry, as text or, with
+ * "format=json", as JSON.
+ * Like the other administrative URLs, it is restricted to administrators in web.xml.
+ */
+public class MetricsServlet extends HttpServlet {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 42L; // any one does; class never serialized
+
+	/**
+	 *
+	 */
+	public static final String FORMAT = "format";
+	public static final String JSON_FORMAT = "json";
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException {
+
+		MetricsRegistry registry = MetricsRegistry.getInstance();
+		boolean isJson = JSON_FORMAT.equals(request.getParameter(FORMAT));
+		response.setCharacterEncoding("UTF-8");
+		response.setContentType(isJson ? "application/json" : "text/plain");
+
+		PrintWriter out = response.getWriter();
+		if (isJson) {
+			writeJson(out, registry);
+		} else {
+			writeText(out, registry);
+		}
+		out.close();
+		response.setStatus(HttpServletResponse.SC_OK);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void writeText(PrintWriter out, MetricsRegistry registry) {
+		double uptime = registry.getUptimeSeconds();
+		out.println(String.format(Locale.US, "%-60s %10s %10s %10s %10s %10s", "request", "count", "per second",
+				"p50 ms", "p99 ms", "max ms"));
+		for (Map.Entry<String, LatencyHistogram> entry : registry.getHistograms().entrySet()) {
+			LatencyHistogram histogram = entry.getValue();
+			out.println(String.format(Locale.US, "%-60s %10d %10.3f %10.3f %10.3f %10.3f", entry.getKey(),
+					histogram.getCount(), histogram.getCount() / uptime,
+					asMillis(histogram.getPercentileMicros(50.0)), asMillis(histogram.getPercentileMicros(99.0)),
+					asMillis(histogram.getMaxMicros())));
+		}
+
+		out.println();
+		out.println(String.format(Locale.US, "%-60s %10s %10s %10s %10s %10s %10s %10s %10s", "datastore calls",
+				"requests", "loads", "queries", "saves", "deletes", "entities", "bytes", "repeated"));
+		for (Map.Entry<String, DatastoreStats> entry : registry.getAllDatastoreStats().entrySet()) {
+			DatastoreStats stats = entry.getValue();
+			out.println(String.format(Locale.US, "%-60s %10d %10d %10d %10d %10d %10d %10d %10d", entry.getKey(),
+					stats.getNoRequests(), stats.getNoLoads(), stats.getNoQueries(), stats.getNoSaves(),
+					stats.getNoDeletes(), stats.getNoEntities(), stats.getNoBytes(), stats.getNoRepeatedCalls()));
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void writeJson(PrintWriter out, MetricsRegistry registry) {
+		double uptime = registry.getUptimeSeconds();
+		out.print(String.format(Locale.US, "{\"uptimeSeconds\":%.3f,\"requests\":{", uptime));
+		boolean isFirst = true;
+		for (Map.Entry<String, LatencyHistogram> entry : registry.getHistograms().entrySet()) {
+			LatencyHistogram histogram = entry.getValue();
+			if (!isFirst) {
+				out.print(",");
+			}
+			isFirst = false;
+			out.print(String.format(Locale.US,
+					"\"%s\":{\"count\":%d,\"perSecond\":%.3f,\"p50Millis\":%.3f,\"p99Millis\":%.3f," +
+							"\"maxMillis\":%.3f,\"meanMillis\":%.3f}",
+					asJsonString(entry.getKey()), histogram.getCount(), histogram.getCount() / uptime,
+					asMillis(histogram.getPercentileMicros(50.0)), asMillis(histogram.getPercentileMicros(99.0)),
+					asMillis(histogram.getMaxMicros()), histogram.getMeanMicros() / 1000.0));
+		}
+		out.print("},\"datastore\":{");
+		isFirst = true;
+		for (Map.Entry<String, DatastoreStats> entry : registry.getAllDatastoreStats().entrySet()) {
+			DatastoreStats stats = entry.getValue();
+			if (!isFirst) {
+				out.print(",");
+			}
+			isFirst = false;
+			out.print(String.format(Locale.US,
+					"\"%s\":{\"requests\":%d,\"loads\":%d,\"queries\":%d,\"saves\":%d,\"deletes\":%d," +
+							"\"other\":%d,\"entities\":%d,\"bytes\":%d,\"repeated\":%d}",
+					asJsonString(entry.getKey()), stats.getNoRequests(), stats.getNoLoads(), stats.getNoQueries(),
+					stats.getNoSaves(), stats.getNoDeletes(), stats.getNoOtherCalls(), stats.getNoEntities(),
+					stats.getNoBytes(), stats.getNoRepeatedCalls()));
+		}
+		out.println("}}");
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected static String asJsonString(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected static double asMillis(long micros) {
+		return micros / 1000.0;
+	}
+
+}
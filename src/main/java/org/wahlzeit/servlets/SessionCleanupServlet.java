@@ -1,32 +1,73 @@
 package org.wahlzeit.servlets;
 
-import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.Key;
-import org.wahlzeit.model.Client;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.apphosting.api.ApiProxy;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.cmd.Query;
 import org.wahlzeit.model.Guest;
 import org.wahlzeit.model.UserManager;
+import org.wahlzeit.model.persistence.SessionCleanupCheckpoint;
 import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.ObjectManager;
 import org.wahlzeit.services.OfyService;
 
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
 
 /**
  * This servlet is run to cleanup expired sessions.
+ *
+ * The keys of the expired sessions are streamed by a keys-only query and deleted in chunks, together with their
+ * guests. If the request deadline comes near, the cleanup stops and stores a SessionCleanupCheckpoint in the
+ * datastore, from which the next run resumes, on whichever instance it runs.
  */
 public class SessionCleanupServlet extends HttpServlet {
 
 	private static final String SESSION_ENTITY_TYPE = "_ah_SESSION";
 	private static final String EXPIRES_PROP = "_expires";
 
+	/**
+	 * System properties (see appengine-web.xml) to configure the chunk size and the time kept in reserve before the
+	 * request deadline
+	 */
+	public static final String CHUNK_SIZE_PROPERTY = "org.wahlzeit.sessionCleanup.chunkSize";
+	public static final String DEADLINE_RESERVE_PROPERTY = "org.wahlzeit.sessionCleanup.deadlineReserveMillis";
+	public static final int DEFAULT_CHUNK_SIZE = ObjectManager.MAX_BATCH_SIZE;
+	public static final long DEFAULT_DEADLINE_RESERVE_MILLIS = 10 * 1000;
+
 	private static final Logger log = Logger.getLogger(SessionCleanupServlet.class.getName());
 
+	/**
+	 *
+	 */
+	protected final int chunkSize;
+	protected final long deadlineReserveMillis;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public SessionCleanupServlet() {
+		this(Integer.getInteger(CHUNK_SIZE_PROPERTY, DEFAULT_CHUNK_SIZE),
+				Long.getLong(DEADLINE_RESERVE_PROPERTY, DEFAULT_DEADLINE_RESERVE_MILLIS));
+	}
+
+	/**
+	 * @methodtype constructor
+	 */
+	protected SessionCleanupServlet(int chunkSize, long deadlineReserveMillis) {
+		this.chunkSize = Math.max(1, chunkSize);
+		this.deadlineReserveMillis = deadlineReserveMillis;
+	}
+
 	@Override
-	public void service(HttpServletRequest request, HttpServletResponse response) {
+	public void service(HttpServletRequest request, HttpServletResponse response) throws IOException {
 		if ("clear".equals(request.getQueryString())) {
 			clearAll(response);
 		}
@@ -36,35 +77,116 @@ public class SessionCleanupServlet extends HttpServlet {
 	 * Clears all {@link HttpSession}s in the datastore that are expired and if they are guest sessions, deletes the
 	 * corresponding {@link Guest} object, too.
 	 */
-	private void clearAll(HttpServletResponse response) {
-
-		List<Object> killList = OfyService.ofy().load().
-				kind(SESSION_ENTITY_TYPE).
-				filter(EXPIRES_PROP + " <", System.currentTimeMillis()).list();
-
-		log.config(LogBuilder.createSystemMessage().
-				addParameter("number of old sessions to delete from datastore", killList.size()).toString());
-
+	private void clearAll(HttpServletResponse response) throws IOException {
+		long startTime = System.currentTimeMillis();
+		Progress progress = new Progress();
 		try {
-			for (Object o : killList) {
-				Entity httpSessionEntity = (Entity) o;
-				Key key = httpSessionEntity.getKey();
-				// GAE does not use session id as key name, instead "_ahs<sessionId>"
-				String sessionId = key.getName().substring(4);
-				log.config(LogBuilder.createSystemMessage().
-						addAction("delete session").
-						addParameter("session id", sessionId).toString());
-				Client client = UserManager.getInstance().getClientByHttpSessionId(sessionId);
-				if (client != null && client instanceof Guest) {
-					UserManager.getInstance().deleteClient(client);
-				}
-				OfyService.ofy().delete().entity(httpSessionEntity).now();
-			}
+			cleanUp(startTime, progress);
 			response.setStatus(HttpServletResponse.SC_OK);
 		} catch (Exception e) {
-			log.config(LogBuilder.createSystemMessage().
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("deleted sessions", progress.noSessions).
 					addException("problem when deleting session and guest", e).toString());
 			response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
 		}
+
+		long duration = Math.max(1, System.currentTimeMillis() - startTime);
+		long sessionsPerSecond = progress.noSessions * 1000L / duration;
+		log.info(LogBuilder.createSystemMessage().addAction("clean up sessions").
+				addParameter("deleted sessions", progress.noSessions).
+				addParameter("deleted guests", progress.noGuests).
+				addParameter("sessions per second", sessionsPerSecond).
+				addParameter("duration in ms", duration).
+				addParameter("complete", progress.isComplete).toString());
+
+		response.setContentType("text/plain");
+		PrintWriter out = response.getWriter();
+		out.println("deleted sessions: " + progress.noSessions);
+		out.println("deleted guests: " + progress.noGuests);
+		out.println("sessions per second: " + sessionsPerSecond);
+		out.println("complete: " + progress.isComplete);
+		out.close();
 	}
+
+	/**
+	 * Deletes the sessions that expired before now, or resumes the interrupted cleanup of the stored checkpoint, until
+	 * all are deleted or the deadline comes near. Then the checkpoint is stored, or deleted if the cleanup is complete.
+	 *
+	 * @methodtype command
+	 */
+	protected void cleanUp(long now, Progress progress) {
+		SessionCleanupCheckpoint start = OfyService.ofy().load().type(SessionCleanupCheckpoint.class).
+				id(SessionCleanupCheckpoint.DEFAULT_ID).now();
+		long expiresBefore = start != null ? start.getExpiresBefore() : now;
+
+		// the query must not change between runs, or the cursor of the checkpoint does not fit
+		Query<Object> query = OfyService.ofy().load().kind(SESSION_ENTITY_TYPE).
+				filter(EXPIRES_PROP + " <", expiresBefore).chunk(chunkSize);
+		if (start != null) {
+			query = query.startAt(start.getCursor());
+		}
+		QueryResultIterator<Key<Object>> keys = query.keys().iterable().iterator();
+
+		List<Key<Object>> chunk = new ArrayList<Key<Object>>(chunkSize);
+		while (!progress.isComplete && !isDeadlineNear()) {
+			chunk.clear();
+			while (chunk.size() < chunkSize && keys.hasNext()) {
+				chunk.add(keys.next());
+			}
+			progress.isComplete = chunk.size() < chunkSize;
+			if (!chunk.isEmpty()) {
+				progress.noGuests += deleteChunk(chunk);
+				progress.noSessions += chunk.size();
+			}
+		}
+
+		if (!progress.isComplete) {
+			OfyService.ofy().save().entity(new SessionCleanupCheckpoint(expiresBefore, keys.getCursor())).now();
+		} else if (start != null) {
+			OfyService.ofy().delete().type(SessionCleanupCheckpoint.class).id(SessionCleanupCheckpoint.DEFAULT_ID).
+					now();
+		}
+	}
+
+	/**
+	 * Deletes the sessions with the given keys and their guests in batch calls; returns the number of deleted guests.
+	 */
+	protected int deleteChunk(List<Key<Object>> chunk) {
+		List<String> sessionIds = new ArrayList<String>(chunk.size());
+		for (Key<Object> key : chunk) {
+			// GAE does not use session id as key name, instead "_ahs<sessionId>"
+			sessionIds.add(key.getName().substring(4));
+		}
+
+		int result = UserManager.getInstance().deleteGuestsByHttpSessionIds(sessionIds);
+		OfyService.ofy().delete().keys(chunk).now();
+
+		log.config(LogBuilder.createSystemMessage().
+				addAction("delete sessions").
+				addParameter("sessions", chunk.size()).
+				addParameter("guests", result).toString());
+		return result;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	protected boolean isDeadlineNear() {
+		ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+		return environment != null && environment.getRemainingMillis() < deadlineReserveMillis;
+	}
+
+	/**
+	 * What a run of the cleanup has done so far
+	 */
+	protected static class Progress {
+
+		/**
+		 *
+		 */
+		protected int noSessions = 0;
+		protected int noGuests = 0;
+		protected boolean isComplete = false;
+	}
+
 }
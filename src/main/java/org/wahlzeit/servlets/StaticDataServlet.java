@@ -5,8 +5,10 @@ import org.apache.http.HttpStatus;
 import org.wahlzeit.model.Photo;
 import org.wahlzeit.model.PhotoManager;
 import org.wahlzeit.model.PhotoSize;
+import org.wahlzeit.model.persistence.ImageBytesStore;
 import org.wahlzeit.model.persistence.ImageStorage;
 import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.MetricsRegistry;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -26,10 +28,18 @@ public class StaticDataServlet extends AbstractServlet {
 
 	Logger log = Logger.getLogger(StaticDataServlet.class.getName());
 
+	/**
+	 *
+	 */
+	protected static final String SERVLET_NAME = "StaticDataServlet";
+	protected static final String IMAGE_TYPE = "image";
+
 	@Override
 	public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		long startNanos = System.nanoTime();
+		String type = request.getParameter("type");
+		String outcome = MetricsRegistry.ERROR;
 		try {
-			String type = request.getParameter("type");
 			String photoId = request.getParameter("photoId");
 			String sizeString = request.getParameter("size");
 			int size = Integer.valueOf(sizeString);
@@ -39,12 +49,26 @@ public class StaticDataServlet extends AbstractServlet {
 					addParameter("photoId", photoId).
 					addParameter("size", size).toString());
 
-			if ("image".equals(type)) {
-				Image image = getImage(photoId, size);
-				if (image != null) {
+			if (IMAGE_TYPE.equals(type)) {
+				Photo photo = PhotoManager.getInstance().getPhoto(photoId);
+				ImageBytesStore.Handle imageBytes = photo != null ? photo.getImageBytes(PhotoSize.getFromInt(size)) : null;
+				Image image = photo == null ? getStoredImage(photoId, size) : null;
+				if (imageBytes != null) {
+					// written from the image store, without copying the image to the heap first
+					try {
+						response.setContentLength(imageBytes.getSize());
+						imageBytes.writeTo(response.getOutputStream());
+					} finally {
+						imageBytes.release();
+					}
+					response.getOutputStream().flush();
+					response.setStatus(HttpStatus.SC_OK);
+					outcome = MetricsRegistry.RENDER;
+				} else if (image != null) {
 					response.getOutputStream().write(image.getImageData());
 					response.getOutputStream().flush();
 					response.setStatus(HttpStatus.SC_OK);
+					outcome = MetricsRegistry.RENDER;
 				} else {
 					log.warning(LogBuilder.createSystemMessage().addMessage("image not found").toString());
 					response.setStatus(HttpStatus.SC_NOT_FOUND);
@@ -58,32 +82,29 @@ public class StaticDataServlet extends AbstractServlet {
 		} catch (Exception e) {
 			log.severe(LogBuilder.createSystemMessage().addException("Problem when loading image", e).toString());
 		}
+
+		// other types share one histogram
+		String handlerName = IMAGE_TYPE.equals(type) ? IMAGE_TYPE : null;
+		MetricsRegistry.getInstance().recordRequest(SERVLET_NAME, handlerName, outcome, startNanos);
 	}
 
 	/**
 	 * @methodtype command
 	 *
-	 * Loads image either from the <@link>PhotoManager</@link> or from the <@link>ImageStorage</@link>. If image does
-	 * not exist, null is returned.
+	 * Loads the image of a photo that is unknown to the <@link>PhotoManager</@link> from the
+	 * <@link>ImageStorage</@link>. If image does not exist, null is returned. Known photos load their images on first
+	 * access, so the storage is only read directly for unknown photos.
 	 */
-	private Image getImage(String photoId, int size) {
+	private Image getStoredImage(String photoId, int size) {
 		Image image = null;
-		Photo photo = PhotoManager.getInstance().getPhoto(photoId);
-		if (photo != null) {
-			PhotoSize photoSize = PhotoSize.getFromInt(size);
-			image = photo.getImage(photoSize);
+		Serializable rawImage = null;
+		try {
+			rawImage = ImageStorage.getInstance().readImage(photoId, size);
+		} catch (IOException e) {
+			log.warning(LogBuilder.createSystemMessage().addException("Problem when reading image.", e).toString());
 		}
-		// if not in cache load from Google Cloud Storage
-		if (image == null) {
-			Serializable rawImage = null;
-			try {
-				rawImage = ImageStorage.getInstance().readImage(photoId, size);
-			} catch (IOException e) {
-				log.warning(LogBuilder.createSystemMessage().addException("Problem when reading image.", e).toString());
-			}
-			if (rawImage != null && rawImage instanceof Image) {
-				image = (Image) rawImage;
-			}
+		if (rawImage != null && rawImage instanceof Image) {
+			image = (Image) rawImage;
 		}
 		return image;
 	}
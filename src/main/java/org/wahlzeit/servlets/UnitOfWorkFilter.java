@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.servlets;
+
+import org.wahlzeit.services.StructuredLog;
+import org.wahlzeit.services.UnitOfWork;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+
+/**
+ * A filter that runs each request in a UnitOfWork, so that the entities the request writes are saved once, in
+ * batches. AbstractServlet commits the unit of work before it sends the response; this filter only saves what is
+ * left at the end of the request, e.g. after a handler failed or from a servlet that does not commit, and logs it,
+ * as the writes before a failure have always been persisted. It is mapped after the DatastoreAccountingFilter, so
+ * that the calls of such a commit are still counted for the request.
+ */
+public class UnitOfWorkFilter implements Filter {
+
+	private static final StructuredLog log = StructuredLog.getLog(UnitOfWorkFilter.class);
+
+	/**
+	 * @methodtype init
+	 */
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException {
+		// nothing to initialize
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+			throws IOException, ServletException {
+		if (UnitOfWork.begin() == null) {
+			chain.doFilter(request, response);
+			return;
+		}
+
+		try {
+			chain.doFilter(request, response);
+		} finally {
+			endUnitOfWork(request);
+		}
+	}
+
+	/**
+	 * The response has been sent already, so a failing commit can only be logged.
+	 *
+	 * @methodtype command
+	 */
+	protected void endUnitOfWork(ServletRequest request) {
+		int noLeftovers = UnitOfWork.getCurrent().getNoEnlistedObjects();
+		if (noLeftovers > 0) {
+			String uri = request instanceof HttpServletRequest ? ((HttpServletRequest) request).getRequestURI() : "";
+			log.warning().addParameter("request", uri).
+					addParameter("enlisted objects", noLeftovers).
+					addMessage("Saving writes left after the response").log();
+		}
+
+		try {
+			UnitOfWork.end();
+		} catch (RuntimeException ex) {
+			log.warning().addParameter("enlisted objects", noLeftovers).
+					addException("Could not save writes left after the response", ex).log();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	public void destroy() {
+		// nothing to destroy
+	}
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A set of utility functions for compact binary encodings, as used by the Externalizable session state.
+ */
+public class CodecUtil {
+
+	/**
+	 * Writes a non-negative int in 1 to 5 bytes, 7 bits per byte, low bits first.
+	 *
+	 * @methodtype conversion
+	 */
+	public static void writeVarInt(DataOutput out, int value) throws IOException {
+		if (value < 0) {
+			throw new IllegalArgumentException("negative value: " + value);
+		}
+		while (value >= 0x80) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	public static int readVarInt(DataInput in) throws IOException {
+		int result = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.readUnsignedByte();
+			result |= (b & 0x7F) << shift;
+			if (b < 0x80) {
+				return result;
+			}
+		}
+		throw new IOException("malformed varint");
+	}
+
+	/**
+	 * Writes a string that may be null as its UTF-8 length + 1, or 0 for null, followed by its UTF-8 bytes.
+	 *
+	 * @methodtype conversion
+	 */
+	public static void writeString(DataOutput out, String value) throws IOException {
+		if (value == null) {
+			writeVarInt(out, 0);
+		} else {
+			byte[] data = value.getBytes(StandardCharsets.UTF_8);
+			writeVarInt(out, data.length + 1);
+			out.write(data);
+		}
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	public static String readString(DataInput in) throws IOException {
+		int length = readVarInt(in);
+		if (length == 0) {
+			return null;
+		}
+		byte[] data = new byte[length - 1];
+		in.readFully(data);
+		return new String(data, StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,828 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A compressed set of non-negative ints, organized like a Roaring bitmap: the values are split into chunks by their
+ * upper 16 bits, and each chunk keeps its lower 16 bits either as a sorted array, while the chunk is sparse, or as a
+ * bitmap of 2^16 bits, once it holds more than MAX_ARRAY_SIZE values. Both representations take at most 8 KB per
+ * chunk, and set operations work chunk by chunk.
+ *
+ * Bitmaps serialize into the same compact form, both for the session and as byte array for datastore entities.
+ * Instances are not thread-safe.
+ */
+public class IntBitmap implements Serializable {
+
+	/**
+	 * A chunk with more values is kept as bitmap; at this size, array and bitmap take the same memory
+	 */
+	protected static final int MAX_ARRAY_SIZE = 4096;
+
+	/**
+	 * First byte of the serialized form, to recognize data written by other versions
+	 */
+	protected static final byte FORMAT_VERSION = 1;
+
+	/**
+	 * The upper 16 bits of the chunks, sorted, and the chunks themselves; serialized by writeTo
+	 */
+	protected transient char[] keys = new char[0];
+	protected transient Container[] containers = new Container[0];
+	protected transient int noContainers = 0;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public IntBitmap() {
+		// do nothing
+	}
+
+	/**
+	 * @methodtype constructor
+	 */
+	public IntBitmap(IntBitmap other) {
+		keys = Arrays.copyOf(other.keys, other.noContainers);
+		containers = new Container[other.noContainers];
+		for (int i = 0; i < other.noContainers; i++) {
+			containers[i] = other.containers[i].copy();
+		}
+		noContainers = other.noContainers;
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected static char highBits(int value) {
+		return (char) (value >>> 16);
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected static char lowBits(int value) {
+		return (char) value;
+	}
+
+
+	// element methods -------------------------------------------------------------------------------------------------
+
+	/**
+	 * Returns true if the value has not been contained before.
+	 *
+	 * @methodtype command
+	 */
+	public boolean add(int value) {
+		assertIsValidValue(value);
+
+		char key = highBits(value);
+		int index = indexOfKey(key);
+		if (index < 0) {
+			index = -index - 1;
+			insertContainer(index, key, new ArrayContainer());
+		}
+
+		Container container = containers[index];
+		int oldCardinality = container.getCardinality();
+		containers[index] = container.add(lowBits(value));
+		return containers[index].getCardinality() != oldCardinality;
+	}
+
+	/**
+	 * Returns true if the value has been contained.
+	 *
+	 * @methodtype command
+	 */
+	public boolean remove(int value) {
+		int index = indexOfKey(highBits(value));
+		if (index < 0) {
+			return false;
+		}
+
+		char lowBits = lowBits(value);
+		Container container = containers[index];
+		if (!container.contains(lowBits)) {
+			return false;
+		}
+
+		containers[index] = container.remove(lowBits);
+		if (containers[index].getCardinality() == 0) {
+			removeContainer(index);
+		}
+		return true;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean contains(int value) {
+		int index = indexOfKey(highBits(value));
+		return index >= 0 && containers[index].contains(lowBits(value));
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getCardinality() {
+		int result = 0;
+		for (int i = 0; i < noContainers; i++) {
+			result += containers[i].getCardinality();
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the value with the given rank, i.e. the value that has rank smaller values in the bitmap. Takes time in
+	 * the number of chunks, not in the number of values, so it can be used to draw random values.
+	 *
+	 * @methodtype get
+	 */
+	public int select(int rank) {
+		if (rank >= 0) {
+			int remaining = rank;
+			for (int i = 0; i < noContainers; i++) {
+				int cardinality = containers[i].getCardinality();
+				if (remaining < cardinality) {
+					return (keys[i] << 16) | containers[i].select(remaining);
+				}
+				remaining -= cardinality;
+			}
+		}
+		throw new IndexOutOfBoundsException("no value with rank " + rank);
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isEmpty() {
+		return noContainers == 0;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void clear() {
+		keys = new char[0];
+		containers = new Container[0];
+		noContainers = 0;
+	}
+
+	/**
+	 * Calls the consumer for all values in ascending order.
+	 *
+	 * @methodtype command
+	 */
+	public void forEach(IntConsumer consumer) {
+		for (int i = 0; i < noContainers; i++) {
+			containers[i].forEach(keys[i] << 16, consumer);
+		}
+	}
+
+	/**
+	 * Returns all values in ascending order.
+	 *
+	 * @methodtype conversion
+	 */
+	public int[] toArray() {
+		final int[] result = new int[getCardinality()];
+		forEach(new IntConsumer() {
+			private int next = 0;
+
+			@Override
+			public void accept(int value) {
+				result[next++] = value;
+			}
+		});
+		return result;
+	}
+
+
+	// set operations --------------------------------------------------------------------------------------------------
+
+	/**
+	 * Adds all values of the other bitmap to this one.
+	 *
+	 * @methodtype command
+	 */
+	public void or(IntBitmap other) {
+		char[] newKeys = new char[noContainers + other.noContainers];
+		Container[] newContainers = new Container[newKeys.length];
+		int size = 0;
+		int i = 0;
+		int j = 0;
+		while (i < noContainers || j < other.noContainers) {
+			if (j == other.noContainers || (i < noContainers && keys[i] < other.keys[j])) {
+				newKeys[size] = keys[i];
+				newContainers[size++] = containers[i++];
+			} else if (i == noContainers || other.keys[j] < keys[i]) {
+				newKeys[size] = other.keys[j];
+				newContainers[size++] = other.containers[j++].copy();
+			} else {
+				newKeys[size] = keys[i];
+				newContainers[size++] = containers[i++].or(other.containers[j++]);
+			}
+		}
+		setContainers(newKeys, newContainers, size);
+	}
+
+	/**
+	 * Keeps only the values that are contained in the other bitmap, too.
+	 *
+	 * @methodtype command
+	 */
+	public void and(IntBitmap other) {
+		int size = 0;
+		int j = 0;
+		for (int i = 0; i < noContainers; i++) {
+			while (j < other.noContainers && other.keys[j] < keys[i]) {
+				j++;
+			}
+			if (j < other.noContainers && other.keys[j] == keys[i]) {
+				Container container = containers[i].and(other.containers[j]);
+				if (container.getCardinality() > 0) {
+					keys[size] = keys[i];
+					containers[size++] = container;
+				}
+			}
+		}
+		setContainers(keys, containers, size);
+	}
+
+	/**
+	 * Removes all values that are contained in the other bitmap.
+	 *
+	 * @methodtype command
+	 */
+	public void andNot(IntBitmap other) {
+		int size = 0;
+		int j = 0;
+		for (int i = 0; i < noContainers; i++) {
+			while (j < other.noContainers && other.keys[j] < keys[i]) {
+				j++;
+			}
+			Container container = containers[i];
+			if (j < other.noContainers && other.keys[j] == keys[i]) {
+				container = container.andNot(other.containers[j]);
+			}
+			if (container.getCardinality() > 0) {
+				keys[size] = keys[i];
+				containers[size++] = container;
+			}
+		}
+		setContainers(keys, containers, size);
+	}
+
+
+	// serialization ---------------------------------------------------------------------------------------------------
+
+	/**
+	 * @methodtype factory
+	 */
+	public static IntBitmap fromByteArray(byte[] bytes) {
+		IntBitmap result = new IntBitmap();
+		if (bytes != null && bytes.length > 0) {
+			try {
+				result.readFrom(new DataInputStream(new ByteArrayInputStream(bytes)));
+			} catch (IOException ex) {
+				throw new IllegalArgumentException("invalid bitmap data", ex);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	public byte[] toByteArray() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			writeTo(new DataOutputStream(bytes));
+		} catch (IOException ex) {
+			throw new IllegalStateException("could not write to byte array", ex);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Writes the chunks as key, cardinality - 1 and then either the sorted values or the 1024 words of the bitmap.
+	 *
+	 * @methodtype command
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeByte(FORMAT_VERSION);
+		out.writeInt(noContainers);
+		for (int i = 0; i < noContainers; i++) {
+			out.writeChar(keys[i]);
+			out.writeChar(containers[i].getCardinality() - 1);
+			if (containers[i] instanceof ArrayContainer) {
+				ArrayContainer container = (ArrayContainer) containers[i];
+				for (int j = 0; j < container.cardinality; j++) {
+					out.writeChar(container.values[j]);
+				}
+			} else {
+				for (long word : ((BitmapContainer) containers[i]).words) {
+					out.writeLong(word);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void readFrom(DataInput in) throws IOException {
+		byte version = in.readByte();
+		if (version != FORMAT_VERSION) {
+			throw new IOException("unknown bitmap format version: " + version);
+		}
+
+		int size = in.readInt();
+		char[] newKeys = new char[size];
+		Container[] newContainers = new Container[size];
+		for (int i = 0; i < size; i++) {
+			newKeys[i] = in.readChar();
+			int cardinality = in.readChar() + 1;
+			if (cardinality <= MAX_ARRAY_SIZE) {
+				char[] values = new char[cardinality];
+				for (int j = 0; j < cardinality; j++) {
+					values[j] = in.readChar();
+				}
+				newContainers[i] = new ArrayContainer(values, cardinality);
+			} else {
+				BitmapContainer container = new BitmapContainer();
+				for (int j = 0; j < container.words.length; j++) {
+					container.words[j] = in.readLong();
+				}
+				container.cardinality = cardinality;
+				newContainers[i] = container;
+			}
+		}
+		setContainers(newKeys, newContainers, size);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		writeTo(out);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		readFrom(in);
+	}
+
+
+	// container management --------------------------------------------------------------------------------------------
+
+	/**
+	 * Returns the index of the container, or (-(insertion point) - 1) if there is none.
+	 *
+	 * @methodtype get
+	 */
+	protected int indexOfKey(char key) {
+		return Arrays.binarySearch(keys, 0, noContainers, key);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void insertContainer(int index, char key, Container container) {
+		if (noContainers == keys.length) {
+			int newLength = Math.max(4, noContainers * 2);
+			keys = Arrays.copyOf(keys, newLength);
+			containers = Arrays.copyOf(containers, newLength);
+		}
+		System.arraycopy(keys, index, keys, index + 1, noContainers - index);
+		System.arraycopy(containers, index, containers, index + 1, noContainers - index);
+		keys[index] = key;
+		containers[index] = container;
+		noContainers++;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void removeContainer(int index) {
+		System.arraycopy(keys, index + 1, keys, index, noContainers - index - 1);
+		System.arraycopy(containers, index + 1, containers, index, noContainers - index - 1);
+		noContainers--;
+		containers[noContainers] = null;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	protected void setContainers(char[] newKeys, Container[] newContainers, int size) {
+		Arrays.fill(newContainers, size, newContainers.length, null);
+		keys = newKeys;
+		containers = newContainers;
+		noContainers = size;
+	}
+
+	/**
+	 * @methodtype assertion
+	 */
+	protected void assertIsValidValue(int value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("value must not be negative: " + value);
+		}
+	}
+
+
+	// containers ------------------------------------------------------------------------------------------------------
+
+	/**
+	 * The lower 16 bits of one chunk. Modifications may return another container, e.g. when an array grows too large,
+	 * which replaces the modified one; the argument of a set operation is never modified.
+	 */
+	protected abstract static class Container {
+
+		/**
+		 * @methodtype get
+		 */
+		protected abstract int getCardinality();
+
+		/**
+		 * @methodtype boolean-query
+		 */
+		protected abstract boolean contains(char value);
+
+		/**
+		 * Returns the lower 16 bits of the value with the given rank in this chunk.
+		 *
+		 * @methodtype get
+		 */
+		protected abstract int select(int rank);
+
+		/**
+		 * @methodtype command
+		 */
+		protected abstract Container add(char value);
+
+		/**
+		 * @methodtype command
+		 */
+		protected abstract Container remove(char value);
+
+		/**
+		 * @methodtype command
+		 */
+		protected abstract Container or(Container other);
+
+		/**
+		 * @methodtype command
+		 */
+		protected abstract Container and(Container other);
+
+		/**
+		 * @methodtype command
+		 */
+		protected abstract Container andNot(Container other);
+
+		/**
+		 * @methodtype command
+		 */
+		protected abstract void forEach(int highBits, IntConsumer consumer);
+
+		/**
+		 * @methodtype factory
+		 */
+		protected abstract Container copy();
+	}
+
+	/**
+	 * A sparse chunk, as sorted array of at most MAX_ARRAY_SIZE values.
+	 */
+	protected static class ArrayContainer extends Container {
+
+		protected char[] values;
+		protected int cardinality;
+
+		/**
+		 * @methodtype constructor
+		 */
+		protected ArrayContainer() {
+			this(new char[4], 0);
+		}
+
+		/**
+		 * @methodtype constructor
+		 */
+		protected ArrayContainer(char[] values, int cardinality) {
+			this.values = values;
+			this.cardinality = cardinality;
+		}
+
+		@Override
+		protected int getCardinality() {
+			return cardinality;
+		}
+
+		@Override
+		protected boolean contains(char value) {
+			return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+		}
+
+		@Override
+		protected int select(int rank) {
+			return values[rank];
+		}
+
+		@Override
+		protected Container add(char value) {
+			int index = Arrays.binarySearch(values, 0, cardinality, value);
+			if (index >= 0) {
+				return this;
+			}
+			if (cardinality == MAX_ARRAY_SIZE) {
+				return toBitmapContainer().add(value);
+			}
+
+			index = -index - 1;
+			if (cardinality == values.length) {
+				values = Arrays.copyOf(values, Math.min(MAX_ARRAY_SIZE, Math.max(4, cardinality * 2)));
+			}
+			System.arraycopy(values, index, values, index + 1, cardinality - index);
+			values[index] = value;
+			cardinality++;
+			return this;
+		}
+
+		@Override
+		protected Container remove(char value) {
+			int index = Arrays.binarySearch(values, 0, cardinality, value);
+			if (index >= 0) {
+				System.arraycopy(values, index + 1, values, index, cardinality - index - 1);
+				cardinality--;
+			}
+			return this;
+		}
+
+		@Override
+		protected Container or(Container other) {
+			if (other instanceof BitmapContainer) {
+				return other.copy().or(this);
+			}
+
+			ArrayContainer otherArray = (ArrayContainer) other;
+			char[] merged = new char[cardinality + otherArray.cardinality];
+			int size = 0;
+			int i = 0;
+			int j = 0;
+			while (i < cardinality || j < otherArray.cardinality) {
+				if (j == otherArray.cardinality || (i < cardinality && values[i] < otherArray.values[j])) {
+					merged[size++] = values[i++];
+				} else if (i == cardinality || otherArray.values[j] < values[i]) {
+					merged[size++] = otherArray.values[j++];
+				} else {
+					merged[size++] = values[i++];
+					j++;
+				}
+			}
+
+			ArrayContainer result = new ArrayContainer(merged, size);
+			return size > MAX_ARRAY_SIZE ? result.toBitmapContainer() : result;
+		}
+
+		@Override
+		protected Container and(Container other) {
+			char[] result = new char[cardinality];
+			int size = 0;
+			for (int i = 0; i < cardinality; i++) {
+				if (other.contains(values[i])) {
+					result[size++] = values[i];
+				}
+			}
+			return new ArrayContainer(result, size);
+		}
+
+		@Override
+		protected Container andNot(Container other) {
+			int size = 0;
+			for (int i = 0; i < cardinality; i++) {
+				if (!other.contains(values[i])) {
+					values[size++] = values[i];
+				}
+			}
+			cardinality = size;
+			return this;
+		}
+
+		@Override
+		protected void forEach(int highBits, IntConsumer consumer) {
+			for (int i = 0; i < cardinality; i++) {
+				consumer.accept(highBits | values[i]);
+			}
+		}
+
+		@Override
+		protected Container copy() {
+			return new ArrayContainer(Arrays.copyOf(values, Math.max(1, cardinality)), cardinality);
+		}
+
+		/**
+		 * @methodtype conversion
+		 */
+		protected BitmapContainer toBitmapContainer() {
+			BitmapContainer result = new BitmapContainer();
+			for (int i = 0; i < cardinality; i++) {
+				result.words[values[i] >>> 6] |= 1L << values[i];
+			}
+			result.cardinality = cardinality;
+			return result;
+		}
+	}
+
+	/**
+	 * A dense chunk, as bitmap of 2^16 bits.
+	 */
+	protected static class BitmapContainer extends Container {
+
+		protected final long[] words = new long[1 << 10];
+		protected int cardinality = 0;
+
+		@Override
+		protected int getCardinality() {
+			return cardinality;
+		}
+
+		@Override
+		protected boolean contains(char value) {
+			return (words[value >>> 6] & (1L << value)) != 0;
+		}
+
+		@Override
+		protected int select(int rank) {
+			int remaining = rank;
+			for (int i = 0; i < words.length; i++) {
+				int bitCount = Long.bitCount(words[i]);
+				if (remaining < bitCount) {
+					long word = words[i];
+					for (int j = 0; j < remaining; j++) {
+						word &= word - 1;
+					}
+					return (i << 6) | Long.numberOfTrailingZeros(word);
+				}
+				remaining -= bitCount;
+			}
+			throw new IndexOutOfBoundsException("no value with rank " + rank);
+		}
+
+		@Override
+		protected Container add(char value) {
+			long word = words[value >>> 6];
+			long newWord = word | (1L << value);
+			if (newWord != word) {
+				words[value >>> 6] = newWord;
+				cardinality++;
+			}
+			return this;
+		}
+
+		@Override
+		protected Container remove(char value) {
+			long word = words[value >>> 6];
+			long newWord = word & ~(1L << value);
+			if (newWord != word) {
+				words[value >>> 6] = newWord;
+				cardinality--;
+			}
+			return shrinkIfSparse();
+		}
+
+		@Override
+		protected Container or(Container other) {
+			if (other instanceof ArrayContainer) {
+				ArrayContainer otherArray = (ArrayContainer) other;
+				for (int i = 0; i < otherArray.cardinality; i++) {
+					add(otherArray.values[i]);
+				}
+			} else {
+				long[] otherWords = ((BitmapContainer) other).words;
+				for (int i = 0; i < words.length; i++) {
+					words[i] |= otherWords[i];
+				}
+				recount();
+			}
+			return this;
+		}
+
+		@Override
+		protected Container and(Container other) {
+			if (other instanceof ArrayContainer) {
+				return other.and(this);
+			}
+
+			long[] otherWords = ((BitmapContainer) other).words;
+			for (int i = 0; i < words.length; i++) {
+				words[i] &= otherWords[i];
+			}
+			recount();
+			return shrinkIfSparse();
+		}
+
+		@Override
+		protected Container andNot(Container other) {
+			if (other instanceof ArrayContainer) {
+				ArrayContainer otherArray = (ArrayContainer) other;
+				for (int i = 0; i < otherArray.cardinality; i++) {
+					char value = otherArray.values[i];
+					words[value >>> 6] &= ~(1L << value);
+				}
+			} else {
+				long[] otherWords = ((BitmapContainer) other).words;
+				for (int i = 0; i < words.length; i++) {
+					words[i] &= ~otherWords[i];
+				}
+			}
+			recount();
+			return shrinkIfSparse();
+		}
+
+		@Override
+		protected void forEach(int highBits, IntConsumer consumer) {
+			for (int i = 0; i < words.length; i++) {
+				long word = words[i];
+				while (word != 0) {
+					consumer.accept(highBits | (i << 6) | Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+		}
+
+		@Override
+		protected Container copy() {
+			BitmapContainer result = new BitmapContainer();
+			System.arraycopy(words, 0, result.words, 0, words.length);
+			result.cardinality = cardinality;
+			return result;
+		}
+
+		/**
+		 * @methodtype command
+		 */
+		protected void recount() {
+			int result = 0;
+			for (long word : words) {
+				result += Long.bitCount(word);
+			}
+			cardinality = result;
+		}
+
+		/**
+		 * @methodtype conversion
+		 */
+		protected Container shrinkIfSparse() {
+			if (cardinality > MAX_ARRAY_SIZE) {
+				return this;
+			}
+
+			final char[] values = new char[Math.max(1, cardinality)];
+			forEach(0, new IntConsumer() {
+				private int next = 0;
+
+				@Override
+				public void accept(int value) {
+					values[next++] = (char) value;
+				}
+			});
+			return new ArrayContainer(values, cardinality);
+		}
+	}
+
+}
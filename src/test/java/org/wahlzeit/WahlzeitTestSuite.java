@@ -23,8 +23,10 @@ package org.wahlzeit;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 import org.wahlzeit.handlers.HandlersTestSuite;
+import org.wahlzeit.main.MainTestSuite;
 import org.wahlzeit.model.ModelTestSuite;
 import org.wahlzeit.services.ServicesTestSuite;
+import org.wahlzeit.servlets.ServletsTestSuite;
 import org.wahlzeit.utils.UtilsTestSuite;
 
 @RunWith(Suite.class)
@@ -33,6 +35,8 @@ import org.wahlzeit.utils.UtilsTestSuite;
 		ModelTestSuite.class,
 		ServicesTestSuite.class,
 		HandlersTestSuite.class,
+		MainTestSuite.class,
+		ServletsTestSuite.class,
 })
 public class WahlzeitTestSuite {
 }
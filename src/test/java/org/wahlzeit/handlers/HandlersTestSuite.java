@@ -26,6 +26,7 @@ import org.junit.runners.Suite;
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
 		TellFriendTest.class,
+		ShowTopPhotosPageHandlerTest.class,
 })
 public class HandlersTestSuite {
 }
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package org.wahlzeit.handlers;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.junit.rules.TestRule;
+import org.wahlzeit.model.UserManager;
+import org.wahlzeit.model.UserSession;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
+
+import javax.servlet.http.HttpSession;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Test cases for the {@link ShowTopPhotosPageHandler} class.
+ */
+public class ShowTopPhotosPageHandlerTest {
+
+	@Rule
+	public TestRule chain = RuleChain.
+			outerRule(new LocalDatastoreServiceTestConfigProvider()).
+			around(new RegisteredOfyEnvironmentProvider());
+
+	private int noCreatedSessions = 0;
+
+	private UserSession createSessionlessUserSession() {
+		return new UserSession("", new UserSession.HttpSessionFactory() {
+			@Override
+			public HttpSession createHttpSession() {
+				noCreatedSessions++;
+				return mock(HttpSession.class);
+			}
+		}, "en");
+	}
+
+	private void assertNoSessionCreated(UserSession us) {
+		us.flushAttributes();
+		assertEquals(0, noCreatedSessions);
+		assertFalse(us.hasHttpSession());
+		assertFalse(UserManager.getInstance().hasClientById(us.getClientId()));
+	}
+
+	@Test
+	public void testAnonymousRequestCreatesNoSession() {
+		UserSession us = createSessionlessUserSession();
+		ShowTopPhotosPageHandler handler = new ShowTopPhotosPageHandler();
+
+		assertEquals("top", handler.handleGet(us, "top", new HashMap<String, String>()));
+		assertNull(us.getTopPhotosTag());
+		assertNoSessionCreated(us);
+	}
+
+	@Test
+	public void testAnonymousRequestWithTagCreatesNoSession() {
+		UserSession us = createSessionlessUserSession();
+		ShowTopPhotosPageHandler handler = new ShowTopPhotosPageHandler();
+		Map<String, String> args = new HashMap<String, String>();
+		args.put(ShowTopPhotosPageHandler.TAG, "beach");
+
+		assertEquals("top", handler.handleGet(us, "top", args));
+		assertEquals("beach", us.getTopPhotosTag());
+		assertTrue(us.getSavedArgs().isEmpty());
+		assertNoSessionCreated(us);
+	}
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.main;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for the {@link StartupOrchestrator} class.
+ */
+public class StartupOrchestratorTest {
+
+	private StartupOrchestrator orchestrator;
+	private List<String> ranPhases;
+
+	@Before
+	public void setup() {
+		orchestrator = new StartupOrchestrator();
+		ranPhases = Collections.synchronizedList(new ArrayList<String>());
+	}
+
+	private Runnable record(final String name) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				ranPhases.add(name);
+			}
+		};
+	}
+
+	private Runnable failWith(final String message) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				throw new IllegalStateException(message);
+			}
+		};
+	}
+
+	@Test
+	public void testRunsPhasesAfterTheirDependencies() throws Exception {
+		orchestrator.addPhase("config", record("config"));
+		orchestrator.addPhase("users", record("users"), "config");
+		orchestrator.addPhase("photos", record("photos"), "config");
+		orchestrator.addPhase("cases", record("cases"), "users", "photos");
+
+		orchestrator.run();
+
+		assertEquals(4, ranPhases.size());
+		assertEquals("config", ranPhases.get(0));
+		assertEquals("cases", ranPhases.get(3));
+	}
+
+	@Test
+	public void testRunsIndependentPhasesConcurrently() throws Exception {
+		final CountDownLatch bothStarted = new CountDownLatch(2);
+		Runnable waitForOther = new Runnable() {
+			@Override
+			public void run() {
+				bothStarted.countDown();
+				try {
+					if (!bothStarted.await(10, TimeUnit.SECONDS)) {
+						throw new IllegalStateException("phases did not run concurrently");
+					}
+				} catch (InterruptedException ex) {
+					throw new IllegalStateException(ex);
+				}
+			}
+		};
+		orchestrator.addPhase("users", waitForOther);
+		orchestrator.addPhase("photos", waitForOther);
+
+		orchestrator.run();
+
+		assertEquals(0, bothStarted.getCount());
+	}
+
+	@Test
+	public void testSkipsPhasesOfFailedDependencyAndRethrowsFailure() {
+		orchestrator.addPhase("config", failWith("config failed"));
+		orchestrator.addPhase("users", record("users"), "config");
+		orchestrator.addPhase("photos", record("photos"));
+
+		try {
+			orchestrator.run();
+			fail("expected the failure of the config phase");
+		} catch (Exception ex) {
+			assertEquals("config failed", ex.getMessage());
+		}
+
+		assertEquals(Collections.singletonList("photos"), ranPhases);
+		assertEquals(-1, orchestrator.getPhaseDurationMillis("users"));
+		assertTrue(orchestrator.getPhaseDurationMillis("config") >= 0);
+	}
+
+	@Test
+	public void testRethrowsFirstFailureInPhaseOrder() {
+		orchestrator.addPhase("config", failWith("config failed"));
+		orchestrator.addPhase("photos", failWith("photos failed"));
+
+		try {
+			orchestrator.run();
+			fail("expected the failure of the config phase");
+		} catch (Exception ex) {
+			assertEquals("config failed", ex.getMessage());
+		}
+	}
+
+	@Test
+	public void testReportListsAllPhases() throws Exception {
+		orchestrator.addPhase("config", failWith("config failed"));
+		orchestrator.addPhase("users", record("users"), "config");
+		orchestrator.addPhase("photos", record("photos"));
+
+		try {
+			orchestrator.run();
+		} catch (Exception ex) {
+			// reported below
+		}
+
+		String report = orchestrator.getReport();
+		assertTrue(report.contains("config: started at "));
+		assertTrue(report.contains("failed after "));
+		assertTrue(report.contains("users: skipped"));
+		assertTrue(report.contains("photos: started at "));
+		assertTrue(report.contains("total: "));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsUnknownDependency() {
+		orchestrator.addPhase("users", record("users"), "config");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsDuplicatePhase() {
+		orchestrator.addPhase("config", record("config"));
+		orchestrator.addPhase("config", record("config"));
+	}
+
+}
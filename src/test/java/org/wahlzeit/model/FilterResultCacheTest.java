@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.model;
+
+import org.junit.Test;
+import org.wahlzeit.utils.IntBitmap;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for the {@link FilterResultCache} class.
+ */
+public class FilterResultCacheTest {
+
+	private static IntBitmap createBitmap(int... values) {
+		IntBitmap result = new IntBitmap();
+		for (int value : values) {
+			result.add(value);
+		}
+		return result;
+	}
+
+	@Test
+	public void testKeyIsNormalized() {
+		assertEquals(FilterResultCache.asKey(Arrays.asList("tg:b", "un:a", "tg:b")),
+				FilterResultCache.asKey(Arrays.asList("un:a", "tg:b")));
+	}
+
+	@Test
+	public void testHitsAndMisses() {
+		FilterResultCache cache = new FilterResultCache(10, 60000);
+		List<String> key = FilterResultCache.asKey(Collections.singleton("tg:beach"));
+		assertNull(cache.get(key));
+
+		IntBitmap photos = createBitmap(1, 2);
+		cache.put(key, photos);
+		assertSame(photos, cache.get(key));
+
+		assertEquals(1, cache.getNoHits());
+		assertEquals(1, cache.getNoMisses());
+		assertEquals(0.5, cache.getHitRate(), 0.0);
+	}
+
+	@Test
+	public void testInvalidatesOnlyAffectedConditions() {
+		FilterResultCache cache = new FilterResultCache(10, 60000);
+		List<String> beach = FilterResultCache.asKey(Collections.singleton("tg:beach"));
+		List<String> beachOrAlice = FilterResultCache.asKey(Arrays.asList("tg:beach", "un:alice"));
+		List<String> mountain = FilterResultCache.asKey(Collections.singleton("tg:mountain"));
+		cache.put(beach, createBitmap(1));
+		cache.put(beachOrAlice, createBitmap(1, 2));
+		cache.put(mountain, createBitmap(3));
+
+		cache.invalidate(Collections.singleton("tg:beach"));
+
+		assertNull(cache.get(beach));
+		assertNull(cache.get(beachOrAlice));
+		assertNotNull(cache.get(mountain));
+		assertEquals(2, cache.getNoInvalidations());
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() {
+		FilterResultCache cache = new FilterResultCache(2, 60000);
+		List<String> first = FilterResultCache.asKey(Collections.singleton("tg:first"));
+		List<String> second = FilterResultCache.asKey(Collections.singleton("tg:second"));
+		List<String> third = FilterResultCache.asKey(Collections.singleton("tg:third"));
+		cache.put(first, createBitmap(1));
+		cache.put(second, createBitmap(2));
+		cache.get(first);
+		cache.put(third, createBitmap(3));
+
+		assertEquals(2, cache.size());
+		assertNotNull(cache.get(first));
+		assertNull(cache.get(second));
+		assertEquals(1, cache.getNoEvictions());
+	}
+
+	@Test
+	public void testExpiresEntries() {
+		FilterResultCache cache = new FilterResultCache(10, -1);
+		List<String> key = FilterResultCache.asKey(Collections.singleton("tg:beach"));
+		cache.put(key, createBitmap(1));
+
+		assertNull(cache.get(key));
+		assertEquals(0, cache.size());
+	}
+
+}
@@ -33,13 +33,24 @@ import org.wahlzeit.model.persistence.PersistenceTestSuite;
 		BeachTypeTest.class,
 		CartesianCoordinateTest.class,
 		CoordinateEqualityTest.class,
+		FilterResultCacheTest.class,
 		FlagReasonTest.class,
 		GenderTest.class,
 		GuestTest.class,
 		LocationTest.class,
+		PhotoCacheTest.class,
 		PhotoFilterTest.class,
+		PhotoManagerTest.class,
+		PhotoMetadataStoreTest.class,
+		PhotoRankingTest.class,
+		PhotoSamplerTest.class,
+		PhotoTagIndexTest.class,
+		PraiseCounterTest.class,
+		PraiseVotePipelineTest.class,
+		SessionCodecTest.class,
 		SphericCoordinateTest.class,
 		TagsTest.class,
+		UserSessionTest.class,
 		UserStatusTest.class,
 		ValueTest.class,
 
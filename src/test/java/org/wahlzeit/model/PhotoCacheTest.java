@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.model;
+
+import com.google.appengine.api.images.ImagesServiceFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.wahlzeit.model.persistence.ImageBytesStore;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for the {@link PhotoCache} class.
+ */
+public class PhotoCacheTest {
+
+	private static final long BUDGET = 4 * PhotoCache.ENTRY_OVERHEAD_BYTES;
+
+	private PhotoCache<Photo> photoCache;
+
+	@Before
+	public void setup() {
+		photoCache = new PhotoCache<Photo>(BUDGET);
+	}
+
+	private Photo createSavedPhoto(int id) {
+		Photo photo = new Photo(new PhotoId(id));
+		photo.idLong = (long) id;
+		photo.resetWriteCount();
+		return photo;
+	}
+
+	@Test
+	public void testCountsHitsAndMisses() {
+		Photo photo = createSavedPhoto(1);
+		photoCache.put(photo.getId(), photo);
+
+		assertSame(photo, photoCache.get(photo.getId()));
+		assertNull(photoCache.get(new PhotoId(2)));
+
+		assertEquals(1, photoCache.getHitCount());
+		assertEquals(1, photoCache.getMissCount());
+		assertEquals(0.5, photoCache.getHitRate(), 0.0);
+	}
+
+	@Test
+	public void testWeighsImageBytes() {
+		Photo photo = createSavedPhoto(1);
+		photo.setImage(PhotoSize.THUMB, ImagesServiceFactory.makeImage(new byte[100]));
+		photo.setImage(PhotoSize.MEDIUM, ImagesServiceFactory.makeImage(new byte[500]));
+		photoCache.put(photo.getId(), photo);
+
+		assertEquals(PhotoCache.ENTRY_OVERHEAD_BYTES + 600, photoCache.getWeightedSize());
+	}
+
+	@Test
+	public void testRefreshWeightAfterImageLoaded() {
+		Photo photo = createSavedPhoto(1);
+		photoCache.put(photo.getId(), photo);
+		assertEquals(PhotoCache.ENTRY_OVERHEAD_BYTES, photoCache.getWeightedSize());
+
+		photo.setImage(PhotoSize.THUMB, ImagesServiceFactory.makeImage(new byte[100]));
+		photoCache.refreshWeight(photo.getId());
+
+		assertEquals(PhotoCache.ENTRY_OVERHEAD_BYTES + 100, photoCache.getWeightedSize());
+	}
+
+	@Test
+	public void testEvictsWhenOverBudget() {
+		for (int i = 1; i <= 10; i++) {
+			Photo photo = createSavedPhoto(i);
+			photoCache.put(photo.getId(), photo);
+		}
+
+		assertTrue(photoCache.getWeightedSize() <= BUDGET);
+		assertEquals(4, photoCache.size());
+		assertEquals(6, photoCache.getEvictionCount());
+
+		for (int i = 1; i <= 10; i++) {
+			PhotoId id = new PhotoId(i);
+			if (!photoCache.containsKey(id)) {
+				assertEquals(Long.valueOf(i), photoCache.getEvictedDatastoreId(id));
+			}
+		}
+	}
+
+	@Test
+	public void testFrequentlyUsedPhotoSurvivesScan() {
+		Photo popular = createSavedPhoto(1);
+		photoCache.put(popular.getId(), popular);
+		for (int i = 0; i < 10; i++) {
+			photoCache.get(popular.getId());
+		}
+
+		for (int i = 2; i <= 50; i++) {
+			Photo photo = createSavedPhoto(i);
+			photoCache.put(photo.getId(), photo);
+		}
+
+		assertTrue(photoCache.containsKey(popular.getId()));
+	}
+
+	@Test
+	public void testDirtyPhotosAreNotEvicted() {
+		Photo dirty = createSavedPhoto(1);
+		dirty.incWriteCount();
+		photoCache.put(dirty.getId(), dirty);
+
+		for (int i = 2; i <= 20; i++) {
+			Photo photo = createSavedPhoto(i);
+			photoCache.put(photo.getId(), photo);
+		}
+
+		assertTrue(photoCache.containsKey(dirty.getId()));
+		assertNull(photoCache.getEvictedDatastoreId(dirty.getId()));
+	}
+
+	@Test
+	public void testReinsertForgetsEviction() {
+		for (int i = 1; i <= 10; i++) {
+			Photo photo = createSavedPhoto(i);
+			photoCache.put(photo.getId(), photo);
+		}
+
+		PhotoId evicted = null;
+		for (int i = 1; i <= 10 && evicted == null; i++) {
+			if (!photoCache.containsKey(new PhotoId(i))) {
+				evicted = new PhotoId(i);
+			}
+		}
+
+		assertNotNull(evicted);
+		photoCache.put(evicted, createSavedPhoto(evicted.asInt()));
+		assertNull(photoCache.getEvictedDatastoreId(evicted));
+	}
+
+	private void evict(PhotoId id) {
+		for (int i = 100; photoCache.containsKey(id); i++) {
+			Photo photo = createSavedPhoto(i);
+			photoCache.put(photo.getId(), photo);
+			photoCache.put(photo.getId(), photo);
+		}
+	}
+
+	@Test
+	public void testEvictedPhotoInUseKeepsItsImages() {
+		Photo photo = createSavedPhoto(1);
+		photo.setImage(PhotoSize.THUMB, ImagesServiceFactory.makeImage(new byte[100]));
+		photoCache.put(photo.getId(), photo);
+
+		evict(photo.getId());
+
+		ImageBytesStore.Handle handle = photo.getLoadedImageBytes(PhotoSize.THUMB);
+		assertNotNull(handle);
+		handle.release();
+		assertSame(photo, photoCache.getEvictedPhoto(photo.getId()));
+
+		// readmitting the photo must not release its images either, even if it is evicted again right away
+		photoCache.put(photo.getId(), photo);
+		assertTrue(photo.images.get(PhotoSize.THUMB).isLive());
+	}
+
+	@Test
+	public void testImagesOfCollectedPhotoAreReleased() throws Exception {
+		PhotoId id = new PhotoId(1);
+		ImageBytesStore.Handle handle = putPhotoWithImage(id);
+
+		evict(id);
+		for (int i = 0; i < 100 && handle.isLive(); i++) {
+			System.gc();
+			Thread.sleep(10);
+			photoCache.refreshWeight(photoCache.keySet().iterator().next());
+		}
+
+		assertFalse(handle.isLive());
+		assertNull(photoCache.getEvictedPhoto(id));
+		assertEquals(Long.valueOf(1), photoCache.getEvictedDatastoreId(id));
+	}
+
+	/**
+	 * Keeps no reference to the photo, only to its image
+	 */
+	private ImageBytesStore.Handle putPhotoWithImage(PhotoId id) {
+		Photo photo = createSavedPhoto(id.asInt());
+		photo.setImage(PhotoSize.THUMB, ImagesServiceFactory.makeImage(new byte[100]));
+		photoCache.put(id, photo);
+		return photo.images.get(PhotoSize.THUMB);
+	}
+
+}
@@ -46,7 +46,7 @@ public class PhotoFilterTest {
 		assertEquals("", photoFilter.userName);
 		assertEquals(Tags.EMPTY_TAGS, photoFilter.tags);
 
-		assertEquals(0, photoFilter.processedPhotoIds.size());
+		assertTrue(photoFilter.processedPhotoIds.isEmpty());
 		assertEquals(0, photoFilter.displayablePhotoIds.size());
 	}
 
@@ -73,8 +73,8 @@ public class PhotoFilterTest {
 		photoFilter.displayablePhotoIds.add(new PhotoId(3));
 		assertTrue(photoFilter.displayablePhotoIds.size() == 1);
 
-		photoFilter.processedPhotoIds.add(new PhotoId(2));
-		assertTrue(photoFilter.processedPhotoIds.size() == 1);
+		photoFilter.processedPhotoIds.add(2);
+		assertTrue(photoFilter.processedPhotoIds.getCardinality() == 1);
 
 		photoFilter.clear();
 
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.model;
+
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.junit.rules.TestRule;
+import org.wahlzeit.services.Persistent;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for the tag updates of the {@link PhotoManager} class.
+ */
+public class PhotoManagerTest {
+
+	@Rule
+	public TestRule chain = RuleChain.
+			outerRule(new LocalDatastoreServiceTestConfigProvider()).
+			around(new RegisteredOfyEnvironmentProvider());
+
+	private Closeable ofyCloseable;
+	private TestPhotoManager photoManager;
+	private Photo photo;
+
+	@Before
+	public void setup() {
+		ofyCloseable = ObjectifyService.begin();
+		photoManager = new TestPhotoManager();
+		photo = new Photo(PhotoId.getIdFromInt(4711));
+	}
+
+	@After
+	public void tearDown() {
+		ofyCloseable.close();
+	}
+
+	private List<String> readStoredTags(TestPhotoManager manager) {
+		List<Tag> tags = new ArrayList<Tag>();
+		manager.readTags(tags, photo.getId().asString());
+		List<String> result = new ArrayList<String>();
+		for (Tag tag : tags) {
+			result.add(tag.getText());
+		}
+		Collections.sort(result);
+		return result;
+	}
+
+	@Test
+	public void testUnchangedTagsAreNotWrittenAgain() {
+		photo.setTags(new Tags("beach, sun"));
+		photoManager.updateTags(photo);
+		photoManager.resetCounts();
+
+		photo.setTags(new Tags("sun, beach"));
+		photoManager.updateTags(photo);
+
+		assertEquals(0, photoManager.noReads);
+		assertTrue(photoManager.deletedBatchSizes.isEmpty());
+		assertTrue(photoManager.writtenBatchSizes.isEmpty());
+		assertEquals(Arrays.asList("tg:beach", "tg:sun"), readStoredTags(photoManager));
+	}
+
+	@Test
+	public void testAddedTagsAreWrittenWithoutRead() {
+		photo.setTags(new Tags("beach"));
+		photoManager.updateTags(photo);
+		photoManager.resetCounts();
+
+		photo.setTags(new Tags("beach, sun, sea"));
+		photoManager.updateTags(photo);
+
+		assertEquals(0, photoManager.noReads);
+		assertTrue(photoManager.deletedBatchSizes.isEmpty());
+		assertEquals(Collections.singletonList(2), photoManager.writtenBatchSizes);
+		assertEquals(Arrays.asList("tg:beach", "tg:sea", "tg:sun"), readStoredTags(photoManager));
+	}
+
+	@Test
+	public void testRemovedTagsAreReadAndDeleted() {
+		photo.setTags(new Tags("beach, sun, sea"));
+		photoManager.updateTags(photo);
+		photoManager.resetCounts();
+
+		photo.setTags(new Tags("sun, rain"));
+		photoManager.updateTags(photo);
+
+		assertEquals(1, photoManager.noReads);
+		assertEquals(Collections.singletonList(2), photoManager.deletedBatchSizes);
+		assertEquals(Collections.singletonList(1), photoManager.writtenBatchSizes);
+		assertEquals(Arrays.asList("tg:rain", "tg:sun"), readStoredTags(photoManager));
+	}
+
+	@Test
+	public void testUnknownTagsAreReadAndDuplicatesRemoved() {
+		String photoId = photo.getId().asString();
+		photoManager.writeObjects(Arrays.asList(new Tag("tg:beach", photoId), new Tag("tg:beach", photoId),
+				new Tag("tg:rain", photoId)));
+
+		// a new manager, e.g. after a restart, does not know which tags have been written
+		TestPhotoManager restartedManager = new TestPhotoManager();
+		photo.setTags(new Tags("beach, sun"));
+		restartedManager.updateTags(photo);
+
+		assertEquals(1, restartedManager.noReads);
+		assertEquals(Collections.singletonList(2), restartedManager.deletedBatchSizes);
+		assertEquals(Collections.singletonList(1), restartedManager.writtenBatchSizes);
+		assertEquals(Arrays.asList("tg:beach", "tg:sun"), readStoredTags(restartedManager));
+	}
+
+	@Test
+	public void testPhotoWithoutTagsWritesNothing() {
+		photoManager.updateTags(photo);
+		photoManager.resetCounts();
+
+		photoManager.updateTags(photo);
+
+		assertEquals(0, photoManager.noReads);
+		assertTrue(photoManager.writtenBatchSizes.isEmpty());
+		assertTrue(readStoredTags(photoManager).isEmpty());
+	}
+
+	/**
+	 * Counts the datastore operations of updateTags; tags have no dependents.
+	 */
+	private static class TestPhotoManager extends PhotoManager {
+
+		private int noReads = 0;
+		private final List<Integer> deletedBatchSizes = new ArrayList<Integer>();
+		private final List<Integer> writtenBatchSizes = new ArrayList<Integer>();
+
+		private void resetCounts() {
+			noReads = 0;
+			deletedBatchSizes.clear();
+			writtenBatchSizes.clear();
+		}
+
+		private void readTags(Collection<Tag> result, String photoId) {
+			super.readObjects(result, Tag.class, Tag.PHOTO_ID, photoId);
+		}
+
+		@Override
+		protected <E> void readObjects(Collection<E> result, Class<E> type, String propertyName, Object value) {
+			noReads++;
+			super.readObjects(result, type, propertyName, value);
+		}
+
+		@Override
+		protected void deleteObjects(Collection<?> objects) {
+			deletedBatchSizes.add(objects.size());
+			super.deleteObjects(objects);
+		}
+
+		@Override
+		protected void writeObjects(Collection<? extends Persistent> collection) {
+			Set<Persistent> dirtyObjects = new HashSet<Persistent>();
+			for (Persistent object : collection) {
+				if (object.isDirty()) {
+					dirtyObjects.add(object);
+				}
+			}
+			if (!dirtyObjects.isEmpty()) {
+				writtenBatchSizes.add(dirtyObjects.size());
+			}
+			super.writeObjects(collection);
+		}
+
+		@Override
+		protected void updateDependents(Collection<? extends Persistent> objects) {
+			// tags have no dependents
+		}
+	}
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.model;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for the {@link PhotoMetadataStore} class.
+ */
+public class PhotoMetadataStoreTest {
+
+	private PhotoMetadataStore store;
+
+	@Before
+	public void setup() {
+		store = new PhotoMetadataStore();
+		// scans return the canonical PhotoId instances, which only exist up to the current id
+		if (PhotoId.getCurrentIdAsInt() < 10) {
+			PhotoId.setCurrentIdFromInt(10);
+		}
+	}
+
+	private Photo createPhoto(int id, String ownerId, PhotoStatus status) {
+		Photo photo = new Photo(new PhotoId(id));
+		photo.ownerId = ownerId;
+		photo.status = status;
+		return photo;
+	}
+
+	@Test
+	public void testStoresColumnsOfPhoto() {
+		Photo photo = createPhoto(5, "alice", PhotoStatus.VISIBLE);
+		photo.praiseSum = 42;
+		photo.noVotes = 7;
+		photo.noVotesAtLastNotification = 3;
+		photo.loadPraise();
+		store.update(photo);
+
+		assertTrue(store.contains(5));
+		assertFalse(store.contains(4));
+		assertEquals(1, store.size());
+		assertEquals(PhotoStatus.VISIBLE, store.getStatus(5));
+		assertEquals(42, store.getPraiseSum(5));
+		assertEquals(7, store.getNoVotes(5));
+		assertEquals(3, store.getNoVotesAtLastNotification(5));
+		assertEquals("alice", store.getOwnerId(5));
+		assertEquals(photo.getCreationTime(), store.getCreationTime(5));
+	}
+
+	@Test
+	public void testGrowsBeyondInitialCapacity() {
+		int id = PhotoMetadataStore.INITIAL_CAPACITY * 3 + 1;
+		store.update(createPhoto(id, "bob", PhotoStatus.FLAGGED));
+
+		assertTrue(store.contains(id));
+		assertEquals(PhotoStatus.FLAGGED, store.getStatus(id));
+		assertFalse(store.isVisible(id));
+	}
+
+	@Test
+	public void testScansVisiblePhotos() {
+		store.update(createPhoto(1, "alice", PhotoStatus.VISIBLE));
+		store.update(createPhoto(2, "alice", PhotoStatus.INVISIBLE));
+		store.update(createPhoto(3, "bob", PhotoStatus.VISIBLE));
+		store.update(createPhoto(4, "bob", PhotoStatus.DELETED));
+
+		assertEquals(Arrays.asList(new PhotoId(1), new PhotoId(3)), store.getVisiblePhotoIds());
+	}
+
+	@Test
+	public void testScansPhotosWithNewPraise() {
+		Photo praised = createPhoto(1, "alice", PhotoStatus.VISIBLE);
+		praised.noVotes = 5;
+		praised.loadPraise();
+		Photo notified = createPhoto(2, "alice", PhotoStatus.VISIBLE);
+		Photo invisible = createPhoto(3, "bob", PhotoStatus.MODERATED);
+		invisible.noVotes = 5;
+		invisible.loadPraise();
+		store.update(praised);
+		store.update(notified);
+		store.update(invisible);
+
+		assertArrayEquals(new int[]{1}, store.getVisiblePhotosWithNewPraise());
+	}
+
+	@Test
+	public void testUpdatePraiseKeepsLatestSnapshot() {
+		store.update(createPhoto(1, "alice", PhotoStatus.VISIBLE));
+
+		store.updatePraise(1, PraiseCounter.asLong(30, 6));
+		store.updatePraise(1, PraiseCounter.asLong(25, 5));
+
+		assertEquals(PraiseCounter.asLong(30, 6), store.getPraise(1));
+		assertEquals(30, store.getPraiseSum(1));
+		assertEquals(6, store.getNoVotes(1));
+
+		// a setter holding an older snapshot does not undo the vote
+		store.update(createPhoto(1, "alice", PhotoStatus.FLAGGED));
+		assertEquals(6, store.getNoVotes(1));
+		assertEquals(PhotoStatus.FLAGGED, store.getStatus(1));
+	}
+
+	@Test
+	public void testUpdatePraiseIgnoresUnknownPhotos() {
+		store.updatePraise(PhotoMetadataStore.INITIAL_CAPACITY * 2, PraiseCounter.asLong(5, 1));
+
+		assertEquals(0, store.size());
+		assertEquals(0, store.getPraise(PhotoMetadataStore.INITIAL_CAPACITY * 2));
+	}
+
+	@Test
+	public void testRemove() {
+		store.update(createPhoto(1, "alice", PhotoStatus.VISIBLE));
+		store.remove(1);
+
+		assertFalse(store.contains(1));
+		assertEquals(0, store.size());
+		assertNull(store.getStatus(1));
+		assertTrue(store.getVisiblePhotoIds().isEmpty());
+	}
+
+}
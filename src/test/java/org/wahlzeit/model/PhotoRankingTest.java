@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.model;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for the {@link PhotoRanking} and {@link PhotoLeaderboard} classes.
+ */
+public class PhotoRankingTest {
+
+	private PhotoRanking ranking;
+
+	@Before
+	public void setup() {
+		ranking = new PhotoRanking(4);
+	}
+
+	@Test
+	public void testNewRankingNeedsRebuild() {
+		assertNull(ranking.getTop(2));
+		ranking.update(1, 5.0, 3);
+		assertNull(ranking.getTop(2));
+		assertEquals(0, ranking.size());
+	}
+
+	@Test
+	public void testRebuildKeepsCapacity() {
+		List<PhotoRanking.Entry> entries = new ArrayList<PhotoRanking.Entry>();
+		for (int id = 0; id < 10; id++) {
+			entries.add(new PhotoRanking.Entry(id, id, 3));
+		}
+		ranking.rebuild(entries);
+
+		assertEquals(4, ranking.size());
+		assertEquals(Arrays.asList(9, 8, 7), ranking.getTop(3));
+		assertNull(ranking.getTop(5));
+	}
+
+	@Test
+	public void testTiesAreBrokenByVotesAndId() {
+		ranking.rebuild(Collections.<PhotoRanking.Entry>emptyList());
+		ranking.update(3, 5.0, 3);
+		ranking.update(2, 5.0, 4);
+		ranking.update(1, 5.0, 3);
+
+		assertEquals(Arrays.asList(2, 1, 3), ranking.getTop(3));
+	}
+
+	@Test
+	public void testUpdatesReorder() {
+		ranking.rebuild(Collections.<PhotoRanking.Entry>emptyList());
+		ranking.update(1, 3.0, 3);
+		ranking.update(2, 4.0, 3);
+		ranking.update(1, 5.0, 4);
+
+		assertEquals(Arrays.asList(1, 2), ranking.getTop(5));
+
+		ranking.remove(1);
+		assertEquals(Arrays.asList(2), ranking.getTop(5));
+	}
+
+	@Test
+	public void testPhotoBelowFloorIsNotAdded() {
+		List<PhotoRanking.Entry> entries = new ArrayList<PhotoRanking.Entry>();
+		for (int id = 0; id < 5; id++) {
+			entries.add(new PhotoRanking.Entry(id, id + 1, 3));
+		}
+		ranking.rebuild(entries);
+
+		ranking.update(10, 0.5, 3);
+		assertEquals(4, ranking.size());
+		assertEquals(Arrays.asList(4, 3), ranking.getTop(2));
+
+		ranking.update(10, 9.0, 3);
+		assertEquals(Arrays.asList(10, 4), ranking.getTop(2));
+	}
+
+	@Test
+	public void testRandomUpdatesMatchFullSort() {
+		Random random = new Random(23);
+		Map<Integer, PhotoRanking.Entry> allEntries = new HashMap<Integer, PhotoRanking.Entry>();
+		ranking.rebuild(new ArrayList<PhotoRanking.Entry>(allEntries.values()));
+
+		for (int i = 0; i < 5000; i++) {
+			int id = random.nextInt(50);
+			if (random.nextInt(10) == 0) {
+				allEntries.remove(id);
+				ranking.remove(id);
+			} else {
+				PhotoRanking.Entry entry = new PhotoRanking.Entry(id, random.nextInt(10), 3 + random.nextInt(3));
+				allEntries.put(id, entry);
+				ranking.update(id, entry.getPraise(), entry.getNoVotes());
+			}
+
+			List<Integer> top = ranking.getTop(2);
+			if (top == null) {
+				ranking.rebuild(new ArrayList<PhotoRanking.Entry>(allEntries.values()));
+				top = ranking.getTop(2);
+			}
+			assertEquals(getTopBySorting(allEntries, 2), top);
+		}
+	}
+
+	private static List<Integer> getTopBySorting(Map<Integer, PhotoRanking.Entry> entries, int noPhotos) {
+		List<PhotoRanking.Entry> sortedEntries = new ArrayList<PhotoRanking.Entry>(entries.values());
+		Collections.sort(sortedEntries);
+		List<Integer> result = new ArrayList<Integer>();
+		for (PhotoRanking.Entry entry : sortedEntries.subList(0, Math.min(noPhotos, sortedEntries.size()))) {
+			result.add(entry.getId());
+		}
+		return result;
+	}
+
+	@Test
+	public void testLeaderboardRanksEligiblePhotos() {
+		PhotoMetadataStore metadata = new PhotoMetadataStore();
+		PhotoTagIndex index = new PhotoTagIndex(new PhotoTagCollector());
+		PhotoLeaderboard leaderboard = new PhotoLeaderboard(metadata, index, 2, 3);
+
+		int visible = PhotoStatus.VISIBLE.asInt();
+		addPhoto(metadata, index, 1, visible, 40, 10, "sea");
+		addPhoto(metadata, index, 2, visible, 30, 10, "sand");
+		addPhoto(metadata, index, 3, visible, 20, 10, "sea");
+		addPhoto(metadata, index, 4, visible, 50, 2, "sea");
+		addPhoto(metadata, index, 5, PhotoStatus.INVISIBLE.asInt(), 50, 10, "sea");
+
+		assertEquals(Arrays.asList(PhotoId.getIdFromInt(1), PhotoId.getIdFromInt(2)),
+				leaderboard.getTopPhotoIds(""));
+		assertEquals(Arrays.asList(PhotoId.getIdFromInt(1), PhotoId.getIdFromInt(3)),
+				leaderboard.getTopPhotoIds("sea"));
+
+		// photo 4 reaches the minimum number of votes
+		metadata.put(4, visible, null, 75, 3, 0, 0);
+		leaderboard.update(4);
+		assertEquals(Arrays.asList(PhotoId.getIdFromInt(4), PhotoId.getIdFromInt(1)),
+				leaderboard.getTopPhotoIds("sea"));
+
+		// photo 1 is hidden
+		metadata.put(1, PhotoStatus.INVISIBLE.asInt(), null, 40, 10, 0, 0);
+		index.put(1, new HashSet<String>(Arrays.asList("tg:sea")), false);
+		leaderboard.update(1);
+		assertEquals(Arrays.asList(PhotoId.getIdFromInt(4), PhotoId.getIdFromInt(3)),
+				leaderboard.getTopPhotoIds("sea"));
+		assertEquals(Arrays.asList(PhotoId.getIdFromInt(4), PhotoId.getIdFromInt(2)),
+				leaderboard.getTopPhotoIds(""));
+	}
+
+	@Test
+	public void testUnknownTagsGetNoRanking() {
+		PhotoMetadataStore metadata = new PhotoMetadataStore();
+		PhotoTagIndex index = new PhotoTagIndex(new PhotoTagCollector());
+		PhotoLeaderboard leaderboard = new PhotoLeaderboard(metadata, index, 2, 3);
+		addPhoto(metadata, index, 1, PhotoStatus.VISIBLE.asInt(), 40, 10, "sea");
+
+		for (int i = 0; i < 2 * PhotoLeaderboard.MAX_RANKINGS; i++) {
+			assertTrue(leaderboard.getTopPhotoIds("junk" + i).isEmpty());
+		}
+
+		assertEquals(0, leaderboard.getNoRankings());
+		assertEquals(Collections.singletonList(PhotoId.getIdFromInt(1)), leaderboard.getTopPhotoIds("sea"));
+		assertEquals(1, leaderboard.getNoRankings());
+	}
+
+	@Test
+	public void testLeastRecentlyUsedRankingIsEvicted() {
+		PhotoMetadataStore metadata = new PhotoMetadataStore();
+		PhotoTagIndex index = new PhotoTagIndex(new PhotoTagCollector());
+		PhotoLeaderboard leaderboard = new PhotoLeaderboard(metadata, index, 2, 3);
+		for (int i = 0; i < PhotoLeaderboard.MAX_RANKINGS; i++) {
+			addPhoto(metadata, index, i + 1, PhotoStatus.VISIBLE.asInt(), 40, 10, "tag" + i);
+		}
+
+		leaderboard.getTopPhotoIds("");
+		for (int i = 0; i < PhotoLeaderboard.MAX_RANKINGS - 1; i++) {
+			leaderboard.getTopPhotoIds("tag" + i);
+		}
+		assertEquals(PhotoLeaderboard.MAX_RANKINGS, leaderboard.getNoRankings());
+
+		// tag0 is used again, so tag1 is the least recently used ranking
+		leaderboard.getTopPhotoIds("tag0");
+		String lastTag = "tag" + (PhotoLeaderboard.MAX_RANKINGS - 1);
+		assertEquals(Collections.singletonList(PhotoId.getIdFromInt(PhotoLeaderboard.MAX_RANKINGS)),
+				leaderboard.getTopPhotoIds(lastTag));
+
+		assertEquals(PhotoLeaderboard.MAX_RANKINGS, leaderboard.getNoRankings());
+		assertTrue(leaderboard.rankings.containsKey(""));
+		assertTrue(leaderboard.rankings.containsKey("tg:tag0"));
+		assertFalse(leaderboard.rankings.containsKey("tg:tag1"));
+		assertTrue(leaderboard.rankings.containsKey("tg:" + lastTag));
+
+		// an evicted ranking is rebuilt on request
+		assertEquals(Collections.singletonList(PhotoId.getIdFromInt(2)), leaderboard.getTopPhotoIds("tag1"));
+	}
+
+	private static void addPhoto(PhotoMetadataStore metadata, PhotoTagIndex index, int id, int status,
+			int praiseSum, int noVotes, String tag) {
+		metadata.put(id, status, null, praiseSum, noVotes, 0, 0);
+		index.put(id, new HashSet<String>(Arrays.asList("tg:" + tag)), PhotoStatus.getFromInt(status).isDisplayable());
+	}
+
+}
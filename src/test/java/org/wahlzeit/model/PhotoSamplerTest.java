@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.model;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.wahlzeit.utils.IntBitmap;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for the {@link PhotoSampler} class.
+ */
+public class PhotoSamplerTest {
+
+	private PhotoSampler sampler;
+
+	@Before
+	public void setup() {
+		sampler = new PhotoSampler(new Random(17));
+	}
+
+	private static IntBitmap createBitmap(int from, int to) {
+		IntBitmap result = new IntBitmap();
+		for (int i = from; i < to; i++) {
+			result.add(i);
+		}
+		return result;
+	}
+
+	@Test
+	public void testEmptyCandidates() {
+		assertEquals(-1, sampler.sample(new IntBitmap()));
+	}
+
+	@Test
+	public void testAllCandidatesExcluded() {
+		IntBitmap candidates = createBitmap(0, 100);
+		assertEquals(-1, sampler.sample(candidates, createBitmap(0, 50), createBitmap(50, 100)));
+		assertEquals(100, candidates.getCardinality());
+	}
+
+	@Test
+	public void testNeverReturnsExcludedCandidates() {
+		IntBitmap candidates = createBitmap(0, 1000);
+		IntBitmap excluded = createBitmap(0, 995);
+		for (int i = 0; i < 200; i++) {
+			int sample = sampler.sample(candidates, excluded);
+			assertTrue(sample >= 995 && sample < 1000);
+		}
+	}
+
+	@Test
+	public void testSamplesUniformly() {
+		IntBitmap candidates = new IntBitmap();
+		for (int i = 0; i < 10; i++) {
+			// spread the candidates over several chunks
+			candidates.add(i * 40000);
+		}
+		IntBitmap excluded = new IntBitmap();
+		excluded.add(0);
+
+		int[] counts = new int[10];
+		int noSamples = 90000;
+		for (int i = 0; i < noSamples; i++) {
+			counts[sampler.sample(candidates, excluded) / 40000]++;
+		}
+
+		assertEquals(0, counts[0]);
+		for (int i = 1; i < counts.length; i++) {
+			assertEquals(noSamples / 9.0, counts[i], noSamples / 9.0 * 0.05);
+		}
+	}
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.model;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for the {@link PhotoTagIndex} class.
+ */
+public class PhotoTagIndexTest {
+
+	private PhotoTagIndex index;
+
+	@Before
+	public void setup() {
+		index = new PhotoTagIndex(new PhotoTagCollector());
+	}
+
+	private Photo createPhoto(int id, String ownerId, String tags, PhotoStatus status) {
+		Photo photo = new Photo(new PhotoId(id));
+		photo.ownerId = ownerId;
+		photo.tags = new Tags(tags);
+		photo.status = status;
+		return photo;
+	}
+
+	@Test
+	public void testFindsVisiblePhotosByTag() {
+		index.update(createPhoto(1, "alice", "beach,sunset", PhotoStatus.VISIBLE));
+		index.update(createPhoto(2, "bob", "sunset", PhotoStatus.VISIBLE));
+		index.update(createPhoto(3, "bob", "beach", PhotoStatus.FLAGGED));
+
+		assertArrayEquals(new int[] {1, 2}, index.getVisiblePhotos(Collections.singleton("tg:sunset")).toArray());
+		assertArrayEquals(new int[] {1}, index.getVisiblePhotos(Collections.singleton("tg:beach")).toArray());
+		assertArrayEquals(new int[] {2}, index.getVisiblePhotos(Collections.singleton("un:bob")).toArray());
+		assertArrayEquals(new int[] {1, 2},
+				index.getVisiblePhotos(Arrays.asList("un:alice", "tg:sunset")).toArray());
+		assertTrue(index.getVisiblePhotos(Collections.singleton("tg:unknown")).isEmpty());
+	}
+
+	@Test
+	public void testRetaggingUpdatesTerms() {
+		Photo photo = createPhoto(1, "alice", "beach", PhotoStatus.VISIBLE);
+		index.update(photo);
+		photo.tags = new Tags("mountain");
+		index.updateIfPresent(photo);
+
+		assertTrue(index.getVisiblePhotos(Collections.singleton("tg:beach")).isEmpty());
+		assertArrayEquals(new int[] {1}, index.getVisiblePhotos(Collections.singleton("tg:mountain")).toArray());
+		// un:alice, tg:alice and tg:mountain
+		assertEquals(3, index.getNoTerms());
+	}
+
+	@Test
+	public void testStatusChangeUpdatesVisibility() {
+		Photo photo = createPhoto(1, "alice", "beach", PhotoStatus.VISIBLE);
+		index.update(photo);
+		photo.status = PhotoStatus.DELETED;
+		index.updateIfPresent(photo);
+
+		assertTrue(index.getVisiblePhotos(Collections.singleton("tg:beach")).isEmpty());
+		assertTrue(index.contains(1));
+	}
+
+	@Test
+	public void testChangesInvalidateCachedResults() {
+		Photo photo = createPhoto(1, "alice", "beach", PhotoStatus.VISIBLE);
+		index.update(photo);
+		index.update(createPhoto(2, "bob", "mountain", PhotoStatus.VISIBLE));
+		assertArrayEquals(new int[] {1}, index.getSharedVisiblePhotos(Collections.singleton("tg:beach")).toArray());
+		assertArrayEquals(new int[] {2}, index.getSharedVisiblePhotos(Collections.singleton("tg:mountain")).toArray());
+
+		photo.status = PhotoStatus.FLAGGED;
+		index.updateIfPresent(photo);
+		assertTrue(index.getSharedVisiblePhotos(Collections.singleton("tg:beach")).isEmpty());
+
+		// the result for the untouched term is still cached
+		index.getSharedVisiblePhotos(Collections.singleton("tg:mountain"));
+		assertEquals(1, index.getFilterResultCache().getNoHits());
+	}
+
+	@Test
+	public void testUpdateIfPresentIgnoresUnknownPhotos() {
+		index.updateIfPresent(createPhoto(7, "alice", "beach", PhotoStatus.VISIBLE));
+
+		assertFalse(index.contains(7));
+		assertEquals(0, index.getNoTerms());
+	}
+
+	@Test
+	public void testRemove() {
+		index.update(createPhoto(1, "alice", "beach", PhotoStatus.VISIBLE));
+		index.remove(1);
+
+		assertFalse(index.contains(1));
+		assertEquals(0, index.getNoTerms());
+	}
+
+}
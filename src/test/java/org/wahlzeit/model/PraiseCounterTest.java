@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.model;
+
+import com.google.appengine.api.images.ImagesServiceFactory;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for the {@link PraiseCounter} class and the praise of {@link Photo}.
+ */
+public class PraiseCounterTest {
+
+	private static final int NO_THREADS = 8;
+	private static final int NO_VOTES_PER_THREAD = 20000;
+
+	@Test
+	public void testPacking() {
+		long praise = PraiseCounter.asLong(-7, 12);
+		assertEquals(-7, PraiseCounter.getPraiseSum(praise));
+		assertEquals(12, PraiseCounter.getNoVotes(praise));
+
+		PraiseCounter counter = new PraiseCounter(10, 1);
+		counter.addVote(-3);
+		counter.addVote(5);
+		assertEquals(12, PraiseCounter.getPraiseSum(counter.get()));
+		assertEquals(3, PraiseCounter.getNoVotes(counter.get()));
+		assertEquals(4.0, PraiseCounter.getPraise(counter.get()), 0.0);
+	}
+
+	@Test
+	public void testConcurrentVotesAreNotLost() throws Exception {
+		final PraiseCounter counter = new PraiseCounter(10, 1);
+		runConcurrently(new VoteTask() {
+			@Override
+			public void vote(int value) {
+				counter.addVote(value);
+				long praise = counter.get();
+				assertTrue(PraiseCounter.getPraiseSum(praise) >= PraiseCounter.getNoVotes(praise));
+			}
+		});
+
+		assertEquals(1 + NO_THREADS * NO_VOTES_PER_THREAD, PraiseCounter.getNoVotes(counter.get()));
+		assertEquals(10 + getExpectedPraiseSum(), PraiseCounter.getPraiseSum(counter.get()));
+	}
+
+	@Test
+	public void testConcurrentPhotoPraiseIsNotLost() throws Exception {
+		final Photo photo = new Photo();
+		runConcurrently(new VoteTask() {
+			@Override
+			public void vote(int value) {
+				photo.addToPraise(value);
+				double praise = photo.getPraise();
+				assertTrue(praise >= 1.0 && praise <= 10.0);
+			}
+		});
+
+		assertEquals(1 + NO_THREADS * NO_VOTES_PER_THREAD, photo.getNoVotes());
+		assertEquals(10 + getExpectedPraiseSum(), photo.getPraiseSum());
+		assertTrue(photo.hasNewPraise());
+	}
+
+	@Test
+	public void testVoteDuringSaveKeepsPhotoModified() {
+		Photo photo = new Photo();
+		photo.savePraise();
+		photo.addToPraise(5);
+		photo.resetWriteCount();
+		assertTrue(photo.isDirty());
+
+		photo.savePraise();
+		photo.resetWriteCount();
+		assertFalse(photo.isDirty());
+		assertEquals(15, photo.praiseSum);
+		assertEquals(2, photo.noVotes);
+	}
+
+	@Test
+	public void testDeserializedPhotoKeepsPraiseAndTakesImages() throws Exception {
+		Photo photo = new Photo();
+		photo.addToPraise(5);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(photo);
+		}
+		Photo copy;
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			copy = (Photo) in.readObject();
+		}
+
+		assertEquals(15, copy.getPraiseSum());
+		assertEquals(2, copy.getNoVotes());
+		assertNull(copy.getLoadedImageBytes(PhotoSize.THUMB));
+		assertEquals(0, copy.getSizeOfLoadedImages());
+
+		copy.setImageMissing(PhotoSize.MEDIUM);
+		copy.setImage(PhotoSize.THUMB, ImagesServiceFactory.makeImage(new byte[100]));
+		assertEquals(100, copy.getSizeOfLoadedImages());
+		copy.releaseImages();
+	}
+
+	private static long getExpectedPraiseSum() {
+		long result = 0;
+		for (int i = 0; i < NO_VOTES_PER_THREAD; i++) {
+			result += 1 + i % 10;
+		}
+		return result * NO_THREADS;
+	}
+
+	private static void runConcurrently(final VoteTask task) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(NO_THREADS);
+		final CountDownLatch start = new CountDownLatch(1);
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (int i = 0; i < NO_THREADS; i++) {
+				results.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						start.await();
+						for (int j = 0; j < NO_VOTES_PER_THREAD; j++) {
+							task.vote(1 + j % 10);
+						}
+						return null;
+					}
+				}));
+			}
+			start.countDown();
+			for (Future<Void> result : results) {
+				result.get(60, TimeUnit.SECONDS);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private interface VoteTask {
+		void vote(int value);
+	}
+
+}
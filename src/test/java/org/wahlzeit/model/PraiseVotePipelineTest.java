@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.model;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wahlzeit.model.persistence.VoteJournal;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for the {@link PraiseVotePipeline} class.
+ */
+public class PraiseVotePipelineTest {
+
+	private File file;
+	private List<PraiseVotePipeline.Aggregate> applied;
+	private boolean isFailing;
+	private PhotoId photoId1;
+	private PhotoId photoId2;
+	private PhotoId photoId3;
+
+	@Before
+	public void setup() throws Exception {
+		file = File.createTempFile("votes", ".journal");
+		assertTrue(file.delete());
+		applied = new ArrayList<PraiseVotePipeline.Aggregate>();
+		isFailing = false;
+		photoId1 = PhotoId.getNextId();
+		photoId2 = PhotoId.getNextId();
+		photoId3 = PhotoId.getNextId();
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	private PraiseVotePipeline createPipeline(int queueCapacity) {
+		return new PraiseVotePipeline(new VoteJournal(file, false), new PraiseVotePipeline.Applier() {
+			@Override
+			public void apply(Collection<PraiseVotePipeline.Aggregate> aggregates) {
+				if (isFailing) {
+					throw new IllegalStateException("datastore unavailable");
+				}
+				applied.addAll(aggregates);
+			}
+		}, 60 * 1000, queueCapacity);
+	}
+
+	@Test
+	public void testVotesAreAggregatedPerPhoto() {
+		PraiseVotePipeline pipeline = createPipeline(100);
+		pipeline.submit(photoId1, "a", 5);
+		pipeline.submit(photoId2, "a", 3);
+		pipeline.submit(photoId1, "b", 9);
+		assertEquals(3, pipeline.getQueueDepth());
+
+		pipeline.applyIfDue();
+		assertTrue(applied.isEmpty());
+
+		pipeline.apply();
+		assertEquals(0, pipeline.getQueueDepth());
+		assertEquals(2, applied.size());
+		assertEquals(photoId1, applied.get(0).getPhotoId());
+		assertEquals(14, applied.get(0).getPraiseSum());
+		assertEquals(2, applied.get(0).getNoVotes());
+		assertEquals(3, applied.get(1).getPraiseSum());
+		assertEquals(3, pipeline.getNoAppliedVotes());
+		assertEquals(2, pipeline.getNoPhotoUpdates());
+	}
+
+	@Test
+	public void testUnappliedVotesAreReplayedAfterRestart() {
+		PraiseVotePipeline pipeline = createPipeline(100);
+		pipeline.submit(photoId1, "a", 5);
+		pipeline.apply();
+		pipeline.submit(photoId2, "a", 7);
+
+		applied.clear();
+		pipeline = createPipeline(100);
+		assertEquals(1, pipeline.getQueueDepth());
+		pipeline.apply();
+		assertEquals(1, applied.size());
+		assertEquals(photoId2, applied.get(0).getPhotoId());
+		assertEquals(7, applied.get(0).getPraiseSum());
+
+		pipeline.submit(photoId3, "a", 1);
+		pipeline.apply();
+		assertEquals(0, createPipeline(100).getQueueDepth());
+	}
+
+	@Test
+	public void testFailedBatchIsNotCheckpointed() {
+		PraiseVotePipeline pipeline = createPipeline(100);
+		pipeline.submit(photoId1, "a", 5);
+		isFailing = true;
+		pipeline.apply();
+		assertEquals(1, pipeline.getQueueDepth());
+		assertEquals(0, pipeline.getNoAppliedVotes());
+		assertEquals(1, pipeline.getNoFailedBatches());
+
+		isFailing = false;
+		assertEquals(1, createPipeline(100).getQueueDepth());
+	}
+
+	@Test
+	public void testFailedBatchIsRetriedBeforeLaterVotes() {
+		PraiseVotePipeline pipeline = createPipeline(100);
+		pipeline.submit(photoId1, "a", 5);
+		pipeline.submit(photoId2, "a", 3);
+		isFailing = true;
+		pipeline.apply();
+
+		isFailing = false;
+		pipeline.submit(photoId1, "b", 7);
+		assertEquals(3, pipeline.getQueueDepth());
+		pipeline.apply();
+
+		assertEquals(2, applied.size());
+		assertEquals(photoId1, applied.get(0).getPhotoId());
+		assertEquals(12, applied.get(0).getPraiseSum());
+		assertEquals(3, applied.get(0).getLastSequence());
+		assertEquals(3, pipeline.getNoAppliedVotes());
+		assertEquals(0, createPipeline(100).getQueueDepth());
+	}
+
+	@Test
+	public void testReplayedVotesAreNotCountedTwice() {
+		PraiseVotePipeline pipeline = createPipeline(100);
+		pipeline.submit(photoId1, "a", 5);
+		pipeline.submit(photoId1, "b", 3);
+		Photo photo = new Photo();
+		PraiseVotePipeline.Aggregate aggregate = PraiseVotePipeline.aggregate(pipeline.queuedVotes,
+				pipeline.journal.getId()).get(photoId1.asInt());
+
+		// the photo is saved, but the checkpoint is lost
+		assertEquals(2, photo.addToPraise(aggregate));
+		photo.savePraise();
+		Photo savedPhoto = new Photo();
+		savedPhoto.praiseSum = photo.praiseSum;
+		savedPhoto.noVotes = photo.noVotes;
+		savedPhoto.appliedVoteSequences = photo.appliedVoteSequences;
+		savedPhoto.loadPraise();
+
+		pipeline = createPipeline(100);
+		pipeline.submit(photoId1, "c", 9);
+		aggregate = PraiseVotePipeline.aggregate(pipeline.queuedVotes, pipeline.journal.getId()).get(photoId1.asInt());
+		assertEquals(3, aggregate.getNoVotes());
+		assertEquals(1, savedPhoto.addToPraise(aggregate));
+		assertEquals(0, savedPhoto.addToPraise(aggregate));
+		assertEquals(4, savedPhoto.getNoVotes());
+		assertEquals(10 + 5 + 3 + 9, savedPhoto.getPraiseSum());
+		assertEquals(3, savedPhoto.getVoteSequence(pipeline.journal.getId()));
+	}
+
+	@Test
+	public void testLeastRecentlyWrittenJournalIsForgotten() {
+		Photo photo = new Photo();
+		for (int i = 0; i <= Photo.MAX_VOTE_JOURNALS; i++) {
+			photo.addToPraise(createAggregate("journal" + i, i + 1));
+			if (i == 0) {
+				// the first journal keeps being written to, the second one is the one written to least recently
+				continue;
+			}
+			photo.addToPraise(createAggregate("journal0", i + 1));
+		}
+
+		assertEquals(Photo.MAX_VOTE_JOURNALS + 1, photo.getVoteSequence("journal0"));
+		assertEquals(0, photo.getVoteSequence("journal1"));
+		for (int i = 2; i <= Photo.MAX_VOTE_JOURNALS; i++) {
+			assertEquals(i + 1, photo.getVoteSequence("journal" + i));
+		}
+
+		photo.savePraise();
+		Photo savedPhoto = new Photo();
+		savedPhoto.appliedVoteSequences = photo.appliedVoteSequences;
+		savedPhoto.loadPraise();
+		savedPhoto.addToPraise(createAggregate("journal" + (Photo.MAX_VOTE_JOURNALS + 1), 1));
+
+		assertEquals(Photo.MAX_VOTE_JOURNALS + 1, savedPhoto.getVoteSequence("journal0"));
+		assertEquals(0, savedPhoto.getVoteSequence("journal2"));
+		assertEquals(1, savedPhoto.getVoteSequence("journal" + (Photo.MAX_VOTE_JOURNALS + 1)));
+	}
+
+	private PraiseVotePipeline.Aggregate createAggregate(String journalId, long sequence) {
+		PraiseVotePipeline.Aggregate aggregate = new PraiseVotePipeline.Aggregate(photoId1, journalId);
+		aggregate.add(new PraiseVote(sequence, photoId1.asInt(), "client", 5, 0));
+		return aggregate;
+	}
+
+	@Test
+	public void testVotesAreAppliedSynchronouslyWithoutJournal() throws Exception {
+		// the journal cannot be created below a regular file
+		assertTrue(file.createNewFile());
+		PraiseVotePipeline pipeline = new PraiseVotePipeline(new VoteJournal(new File(file, "votes"), false),
+				new PraiseVotePipeline.Applier() {
+					@Override
+					public void apply(Collection<PraiseVotePipeline.Aggregate> aggregates) {
+						if (isFailing) {
+							throw new IllegalStateException("datastore unavailable");
+						}
+						applied.addAll(aggregates);
+					}
+				}, 60 * 1000, 100);
+		assertFalse(pipeline.isJournaled());
+
+		pipeline.submit(photoId1, "a", 5);
+		assertEquals(0, pipeline.getQueueDepth());
+		assertEquals(1, applied.size());
+		assertNull(applied.get(0).getJournalId());
+		assertEquals(1, pipeline.getNoUnjournaledVotes());
+
+		isFailing = true;
+		try {
+			pipeline.submit(photoId1, "b", 5);
+			fail("vote should not be accepted");
+		} catch (IllegalStateException ex) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testFullQueueIsAppliedBySubmitter() {
+		PraiseVotePipeline pipeline = createPipeline(2);
+		pipeline.submit(photoId1, "a", 5);
+		pipeline.submit(photoId1, "b", 5);
+		assertTrue(applied.isEmpty());
+
+		pipeline.submit(photoId1, "c", 5);
+		assertEquals(1, pipeline.getNoBackpressureEvents());
+		assertEquals(1, applied.size());
+		assertEquals(2, applied.get(0).getNoVotes());
+		assertEquals(1, pipeline.getQueueDepth());
+	}
+
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.model;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.wahlzeit.utils.IntBitmap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for the compact encoding of the session state, i.e. {@link PhotoFilter}, {@link SavedArgs} and the
+ * praised photos, including a size and time benchmark against default serialization of the previous state.
+ */
+public class SessionCodecTest {
+
+	private static final Logger log = Logger.getLogger(SessionCodecTest.class.getName());
+
+	private static final int NO_PHOTOS = 200;
+	private static final int NO_ROUNDS = 200;
+
+	private List<PhotoId> photoIds;
+
+	@Before
+	public void setUp() {
+		photoIds = new ArrayList<PhotoId>();
+		for (int i = 0; i < NO_PHOTOS; i++) {
+			photoIds.add(PhotoId.getNextId());
+		}
+	}
+
+	@Test
+	public void testPhotoFilterRoundTrip() throws Exception {
+		PhotoFilter filter = createPhotoFilter();
+
+		PhotoFilter copy = (PhotoFilter) copy(filter);
+
+		assertEquals("someone", copy.getUserName());
+		assertEquals(filter.getTags().asString(), copy.getTags().asString());
+		assertEquals(filter.getDisplayablePhotoIds(), copy.getDisplayablePhotoIds());
+		assertSame(photoIds.get(0), copy.getDisplayablePhotoIds().get(0));
+		assertArrayEquals(filter.getProcessedPhotoIds().toArray(), copy.getProcessedPhotoIds().toArray());
+		assertArrayEquals(filter.getSkippedPhotoIds().toArray(), copy.getSkippedPhotoIds().toArray());
+		assertNotNull(copy.getRandomDisplayablePhotoId());
+	}
+
+	@Test
+	public void testPhotoFilterWithoutDisplayablePhotos() throws Exception {
+		PhotoFilter filter = new PhotoFilter();
+		filter.setDisplayablePhotoIds(null);
+
+		PhotoFilter copy = (PhotoFilter) copy(filter);
+
+		assertNull(copy.getDisplayablePhotoIds());
+		assertEquals(Tags.EMPTY_TAGS, copy.getTags());
+		assertTrue(copy.getProcessedPhotoIds().isEmpty());
+	}
+
+	@Test
+	public void testSavedArgsRoundTrip() throws Exception {
+		SavedArgs args = createSavedArgs();
+		args.put("none", null);
+		args.put("many", new String[] {"a", null, "ü"});
+		args.put("number", 42);
+
+		SavedArgs copy = (SavedArgs) copy(args);
+
+		assertEquals(args.size(), copy.size());
+		assertEquals("Beach at dawn", copy.get(Photo.DESCRIPTION));
+		assertTrue(copy.containsKey("none"));
+		assertNull(copy.get("none"));
+		assertArrayEquals(new String[] {"a", null, "ü"}, (String[]) copy.get("many"));
+		assertEquals(42, copy.get("number"));
+	}
+
+	@Test
+	public void testPhotoIdKeepsIdentity() throws Exception {
+		assertSame(photoIds.get(7), copy(photoIds.get(7)));
+		assertTrue(((PhotoId) copy(PhotoId.NULL_ID)).isNullId());
+	}
+
+	@Test
+	public void testSessionStateIsAnOrderOfMagnitudeSmaller() throws Exception {
+		Serializable[] legacyState = createLegacySessionState();
+		Serializable[] compactState = createSessionState();
+
+		int legacySize = 0;
+		int compactSize = 0;
+		for (int i = 0; i < legacyState.length; i++) {
+			legacySize += serialize(legacyState[i]).length;
+			compactSize += serialize(compactState[i]).length;
+		}
+
+		long legacyNanos = measure(legacyState);
+		long compactNanos = measure(compactState);
+
+		log.info("session state: default serialization " + legacySize + " bytes, " + legacyNanos / 1000 +
+				" us per round trip; compact codec " + compactSize + " bytes, " + compactNanos / 1000 +
+				" us per round trip");
+
+		assertTrue("compact size " + compactSize + " vs. " + legacySize, compactSize * 10 <= legacySize);
+	}
+
+	/**
+	 * The state of a session that has browsed all photos, encoded as before: a filter with default serialization,
+	 * the praised photos as a set of photos, and the saved args as a plain map.
+	 */
+	private Serializable[] createLegacySessionState() {
+		HashMap<String, Serializable> filter = new HashMap<String, Serializable>();
+		filter.put("userName", "someone");
+		filter.put("tags", new Tags("beach, sunset"));
+		filter.put("displayablePhotoIds", new ArrayList<PhotoId>(photoIds));
+		filter.put("processedPhotoIds", new ArrayList<PhotoId>(photoIds.subList(0, NO_PHOTOS / 2)));
+		filter.put("skippedPhotoIds", new ArrayList<PhotoId>(photoIds.subList(NO_PHOTOS / 2, NO_PHOTOS)));
+
+		HashSet<Photo> praisedPhotos = new HashSet<Photo>();
+		for (PhotoId photoId : photoIds.subList(0, NO_PHOTOS / 2)) {
+			Photo photo = new Photo(photoId);
+			photo.setOwnerId("someone");
+			photo.setTags(new Tags("beach, sunset"));
+			praisedPhotos.add(photo);
+		}
+
+		HashMap<String, Object> savedArgs = new HashMap<String, Object>(createSavedArgs());
+
+		return new Serializable[] {filter, praisedPhotos, savedArgs};
+	}
+
+	/**
+	 *
+	 */
+	private Serializable[] createSessionState() {
+		IntBitmap praisedPhotos = new IntBitmap();
+		for (PhotoId photoId : photoIds.subList(0, NO_PHOTOS / 2)) {
+			praisedPhotos.add(photoId.asInt());
+		}
+		return new Serializable[] {createPhotoFilter(), praisedPhotos, createSavedArgs()};
+	}
+
+	/**
+	 *
+	 */
+	private PhotoFilter createPhotoFilter() {
+		PhotoFilter result = new PhotoFilter();
+		result.setUserName("someone");
+		result.setTags(new Tags("beach, sunset"));
+		result.setDisplayablePhotoIds(new ArrayList<PhotoId>(photoIds));
+		for (PhotoId photoId : photoIds.subList(0, NO_PHOTOS / 2)) {
+			result.getProcessedPhotoIds().add(photoId.asInt());
+		}
+		for (PhotoId photoId : photoIds.subList(NO_PHOTOS / 2, NO_PHOTOS)) {
+			result.addSkippedPhotoId(photoId);
+		}
+		return result;
+	}
+
+	/**
+	 *
+	 */
+	private SavedArgs createSavedArgs() {
+		SavedArgs result = new SavedArgs();
+		result.put(Photo.DESCRIPTION, "Beach at dawn");
+		result.put(Photo.TAGS, "beach, sunset");
+		return result;
+	}
+
+	/**
+	 * Returns the average nanoseconds to serialize and deserialize the given state.
+	 */
+	private long measure(Serializable[] state) throws Exception {
+		for (int i = 0; i < NO_ROUNDS; i++) {
+			for (Serializable attribute : state) {
+				copy(attribute);
+			}
+		}
+
+		long startTime = System.nanoTime();
+		for (int i = 0; i < NO_ROUNDS; i++) {
+			for (Serializable attribute : state) {
+				copy(attribute);
+			}
+		}
+		return (System.nanoTime() - startTime) / NO_ROUNDS;
+	}
+
+	private static Object copy(Serializable object) throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialize(object)));
+		return in.readObject();
+	}
+
+	private static byte[] serialize(Serializable object) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(object);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+}
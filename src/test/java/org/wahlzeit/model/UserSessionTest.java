@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.model;
+
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.junit.rules.TestRule;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
+
+import javax.servlet.http.HttpSession;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test cases for the buffered attribute writes and the lazily created HttpSession of the {@link UserSession} class.
+ */
+public class UserSessionTest {
+
+	@Rule
+	public TestRule chain = RuleChain.
+			outerRule(new LocalDatastoreServiceTestConfigProvider()).
+			around(new RegisteredOfyEnvironmentProvider());
+
+	private HttpSession httpSession;
+	private PhotoFilter photoFilter;
+	private UserSession userSession;
+
+	@Before
+	public void setUp() {
+		httpSession = mock(HttpSession.class);
+		when(httpSession.getAttribute(UserSession.INITIALIZED)).thenReturn(UserSession.INITIALIZED);
+		when(httpSession.getAttribute(UserSession.NAME)).thenReturn("session");
+		photoFilter = new PhotoFilter();
+		when(httpSession.getAttribute(UserSession.PHOTO_FILTER)).thenReturn(photoFilter);
+		when(httpSession.getAttribute(UserSession.SAVED_ARGS)).thenReturn(new SavedArgs());
+
+		userSession = new UserSession("session", "", httpSession, "en");
+	}
+
+	@Test
+	public void testReadOnlyRequestDoesNotWriteSession() {
+		userSession.getPhotoFilter().getRandomDisplayablePhotoId();
+		userSession.getSavedArg(Photo.ID);
+		userSession.getMessage();
+		userSession.clearSavedArgs();
+		userSession.addProcessingTime(10);
+
+		assertFalse(userSession.hasChangedAttributes());
+		userSession.flushAttributes();
+
+		verify(httpSession, never()).setAttribute(anyString(), any());
+		verify(httpSession, never()).removeAttribute(anyString());
+	}
+
+	@Test
+	public void testChangedAttributeIsWrittenOnce() {
+		userSession.setSavedArg(Photo.ID, "x1");
+		userSession.setSavedArg(Photo.TAGS, "beach");
+		userSession.setSavedArg(Photo.ID, "x2");
+		assertEquals("x2", userSession.getSavedArg(Photo.ID));
+
+		userSession.setMessage("first");
+		userSession.setMessage("second");
+		assertTrue(userSession.getMessage().contains("second"));
+
+		userSession.flushAttributes();
+		userSession.flushAttributes();
+
+		verify(httpSession, times(1)).setAttribute(UserSession.SAVED_ARGS, userSession.getSavedArgs());
+		verify(httpSession, times(2)).setAttribute(anyString(), any());
+		verify(httpSession, times(1)).setAttribute(UserSession.MESSAGE, userSession.getMessage());
+	}
+
+	@Test
+	public void testPhotoFilterModifiedInPlaceIsWritten() {
+		userSession.getPhotoFilter().setTags(new Tags("beach"));
+		userSession.getPhotoFilter().addSkippedPhotoId(PhotoId.getNextId());
+
+		userSession.flushAttributes();
+
+		verify(httpSession, times(1)).setAttribute(UserSession.PHOTO_FILTER, photoFilter);
+	}
+
+	@Test
+	public void testUnchangedValueIsNotWritten() {
+		userSession.setSavedArg(Photo.ID, null);
+		userSession.setHeading(null);
+		userSession.flushAttributes();
+
+		verify(httpSession, never()).setAttribute(anyString(), any());
+	}
+
+	@Test
+	public void testSessionlessReadOnlyRequestCreatesNoSession() {
+		CountingHttpSessionFactory factory = new CountingHttpSessionFactory();
+		UserSession sessionless = new UserSession("", factory, "de");
+
+		assertFalse(sessionless.hasHttpSession());
+		Client guest = sessionless.getClient();
+		assertFalse(guest.isRegistered());
+		assertEquals(guest.getId(), sessionless.getClientId());
+		assertNotNull(sessionless.getPhotoFilter());
+		assertTrue(sessionless.getSavedArgs().isEmpty());
+		sessionless.setPhotoId(PhotoId.getNextId());
+		sessionless.clearSavedArgs();
+
+		sessionless.flushAttributes();
+
+		assertEquals(0, factory.noCreatedSessions);
+		assertFalse(sessionless.hasHttpSession());
+		assertFalse(UserManager.getInstance().hasClientById(guest.getId()));
+	}
+
+	@Test
+	public void testSessionlessStateChangeCreatesSession() {
+		CountingHttpSessionFactory factory = new CountingHttpSessionFactory();
+		final UserSession sessionless = new UserSession("", factory, "en");
+		Client guest = sessionless.getClient();
+		PhotoFilter filter = sessionless.getPhotoFilter();
+
+		filter.setTags(new Tags("beach"));
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				// registers the guest
+				sessionless.flushAttributes();
+				sessionless.flushAttributes();
+				return null;
+			}
+		});
+
+		assertEquals(1, factory.noCreatedSessions);
+		assertTrue(sessionless.hasHttpSession());
+		assertTrue(guest.isRegistered());
+		assertSame(guest, sessionless.getClient());
+		verify(httpSession, times(1)).setAttribute(UserSession.PHOTO_FILTER, filter);
+		verify(httpSession, times(1)).setAttribute(UserSession.CLIENT_ID, guest.getId());
+		verify(httpSession, times(1)).setAttribute(UserSession.INITIALIZED, UserSession.INITIALIZED);
+	}
+
+	/**
+	 *
+	 */
+	private class CountingHttpSessionFactory implements UserSession.HttpSessionFactory {
+
+		private int noCreatedSessions = 0;
+
+		@Override
+		public HttpSession createHttpSession() {
+			noCreatedSessions++;
+			when(httpSession.getId()).thenReturn("sessionless" + noCreatedSessions);
+			return httpSession;
+		}
+	}
+
+}
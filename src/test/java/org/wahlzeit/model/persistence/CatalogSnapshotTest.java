@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.model.persistence;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for the {@link CatalogSnapshot} class.
+ */
+public class CatalogSnapshotTest {
+
+	private static byte[] createSnapshot() throws Exception {
+		List<CatalogSnapshot.PhotoRecord> photoRecords = Arrays.asList(
+				new CatalogSnapshot.PhotoRecord(7, 4711L, "user1", 1, 25, 4, 2, 640, 480, 1000L, "beach, sun"),
+				new CatalogSnapshot.PhotoRecord(8, 4712L, null, 0, 0, 0, 0, 800, 600, 2000L, null));
+		List<CatalogSnapshot.UserRecord> userRecords = Arrays.asList(
+				new CatalogSnapshot.UserRecord("user1", "Jürgen"),
+				new CatalogSnapshot.UserRecord("user2", "anna"));
+		return new CatalogSnapshot(123456789L, photoRecords, userRecords).asBytes();
+	}
+
+	private static CatalogSnapshot read(byte[] bytes) {
+		return CatalogSnapshot.readFrom(ByteBuffer.wrap(bytes), "test");
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		CatalogSnapshot snapshot = read(createSnapshot());
+
+		assertNotNull(snapshot);
+		assertEquals(123456789L, snapshot.getHighWaterMark());
+		assertEquals(2, snapshot.getPhotoRecords().size());
+
+		CatalogSnapshot.PhotoRecord record = snapshot.getPhotoRecords().get(0);
+		assertEquals(7, record.getPhotoId());
+		assertEquals(4711L, record.getDatastoreId());
+		assertEquals("user1", record.getOwnerId());
+		assertEquals(1, record.getStatus());
+		assertEquals(25, record.getPraiseSum());
+		assertEquals(4, record.getNoVotes());
+		assertEquals(2, record.getNoVotesAtLastNotification());
+		assertEquals(640, record.getWidth());
+		assertEquals(480, record.getHeight());
+		assertEquals(1000L, record.getCreationTime());
+		assertEquals("beach, sun", record.getTags());
+
+		assertNull(snapshot.getPhotoRecords().get(1).getOwnerId());
+		assertNull(snapshot.getPhotoRecords().get(1).getTags());
+
+		assertEquals(2, snapshot.getUserRecords().size());
+		assertEquals("user1", snapshot.getUserRecords().get(0).getId());
+		assertEquals("Jürgen", snapshot.getUserRecords().get(0).getNickName());
+	}
+
+	@Test
+	public void testEmptySnapshotRoundTrip() throws Exception {
+		byte[] bytes = new CatalogSnapshot(42L, Collections.<CatalogSnapshot.PhotoRecord>emptyList(),
+				Collections.<CatalogSnapshot.UserRecord>emptyList()).asBytes();
+
+		CatalogSnapshot snapshot = read(bytes);
+
+		assertEquals(42L, snapshot.getHighWaterMark());
+		assertTrue(snapshot.getPhotoRecords().isEmpty());
+	}
+
+	@Test
+	public void testEmptyObjectIsNotUsable() {
+		assertNull(read(new byte[0]));
+	}
+
+	@Test
+	public void testTruncatedSnapshotIsNotUsable() throws Exception {
+		byte[] bytes = createSnapshot();
+
+		assertNull(read(Arrays.copyOf(bytes, bytes.length - 5)));
+	}
+
+	@Test
+	public void testSnapshotWithoutChecksumIsNotUsable() throws Exception {
+		assertNull(read(Arrays.copyOf(createSnapshot(), CatalogSnapshot.HEADER_SIZE)));
+	}
+
+	@Test
+	public void testChecksumMismatchIsDetected() throws Exception {
+		byte[] bytes = createSnapshot();
+		bytes[CatalogSnapshot.HEADER_SIZE + 8] ^= 0xff;
+
+		assertNull(read(bytes));
+	}
+
+}
@@ -25,7 +25,10 @@ import org.junit.runners.Suite;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
+		CatalogSnapshotTest.class,
 		DatastoreAdapterTest.class,
+		SlabImageBytesStoreTest.class,
+		VoteJournalTest.class,
 })
 public class PersistenceTestSuite {
 }
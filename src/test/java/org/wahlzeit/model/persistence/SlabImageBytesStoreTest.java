@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.model.persistence;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.wahlzeit.model.PhotoSize;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for the {@link SlabImageBytesStore} class.
+ */
+public class SlabImageBytesStoreTest {
+
+	private static final int SLAB_BYTES = 1000;
+
+	private SlabImageBytesStore store;
+
+	@Before
+	public void setup() {
+		store = new SlabImageBytesStore(SLAB_BYTES, 4 * SLAB_BYTES);
+	}
+
+	private byte[] createData(int length, int seed) {
+		byte[] result = new byte[length];
+		for (int i = 0; i < length; i++) {
+			result[i] = (byte) (seed + i);
+		}
+		return result;
+	}
+
+	@Test
+	public void testStoredBytesAreReadBack() throws Exception {
+		byte[] data = createData(300, 7);
+		ImageBytesStore.Handle handle = store.store(1, PhotoSize.THUMB, data);
+
+		assertEquals(300, handle.getSize());
+		assertTrue(handle.asByteBuffer().isDirect());
+		assertArrayEquals(data, handle.toByteArray());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		handle.writeTo(out);
+		assertArrayEquals(data, out.toByteArray());
+	}
+
+	@Test
+	public void testBytesAreFreedWithLastReference() {
+		ImageBytesStore.Handle handle = store.store(1, PhotoSize.THUMB, createData(300, 0));
+		assertTrue(handle.retain());
+		assertEquals(300, store.getLiveBytes());
+
+		handle.release();
+		assertEquals(300, store.getLiveBytes());
+
+		handle.release();
+		assertEquals(0, store.getLiveBytes());
+		assertFalse(handle.retain());
+	}
+
+	@Test
+	public void testEmptySlabsAreDropped() {
+		List<ImageBytesStore.Handle> handles = new ArrayList<ImageBytesStore.Handle>();
+		for (int i = 0; i < 6; i++) {
+			handles.add(store.store(i, PhotoSize.MEDIUM, createData(400, i)));
+		}
+		assertEquals(3, store.getNumberOfSlabs());
+
+		handles.get(0).release();
+		handles.get(1).release();
+		assertEquals(2, store.getNumberOfSlabs());
+	}
+
+	@Test
+	public void testCompactionMovesImagesOfSparseSlabs() {
+		List<ImageBytesStore.Handle> handles = new ArrayList<ImageBytesStore.Handle>();
+		for (int i = 0; i < 8; i++) {
+			handles.add(store.store(i, PhotoSize.MEDIUM, createData(400, i)));
+		}
+		assertEquals(4 * SLAB_BYTES, store.getAllocatedBytes());
+
+		for (int i = 0; i < 8; i += 2) {
+			handles.get(i).release();
+		}
+		ByteBuffer viewBeforeCompaction = handles.get(1).asByteBuffer();
+
+		store.compact();
+
+		assertTrue(store.getAllocatedBytes() < 4 * SLAB_BYTES);
+		assertEquals(4 * 400, store.getLiveBytes());
+		for (int i = 1; i < 8; i += 2) {
+			assertArrayEquals(createData(400, i), handles.get(i).toByteArray());
+		}
+
+		byte[] oldContent = new byte[400];
+		viewBeforeCompaction.get(oldContent);
+		assertArrayEquals(createData(400, 1), oldContent);
+	}
+
+	@Test
+	public void testFallsBackToHeapWhenBudgetIsExhausted() {
+		for (int i = 0; i < 4; i++) {
+			store.store(i, PhotoSize.LARGE, createData(SLAB_BYTES, i));
+		}
+
+		byte[] data = createData(100, 42);
+		ImageBytesStore.Handle handle = store.store(5, PhotoSize.THUMB, data);
+
+		assertEquals(1, store.getHeapFallbackCount());
+		assertTrue(Arrays.equals(data, handle.toByteArray()));
+	}
+
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.model.persistence;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wahlzeit.model.PraiseVote;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for the {@link VoteJournal} class.
+ */
+public class VoteJournalTest {
+
+	private File file;
+
+	@Before
+	public void setup() throws Exception {
+		file = File.createTempFile("votes", ".journal");
+		assertTrue(file.delete());
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	private VoteJournal openJournal(List<PraiseVote> replayedVotes) throws Exception {
+		VoteJournal result = new VoteJournal(file, false, 200);
+		replayedVotes.addAll(result.open());
+		return result;
+	}
+
+	@Test
+	public void testUnappliedVotesAreReplayed() throws Exception {
+		List<PraiseVote> replayed = new ArrayList<PraiseVote>();
+		VoteJournal journal = openJournal(replayed);
+		assertTrue(replayed.isEmpty());
+
+		journal.append(new PraiseVote(1, 7, "client1", 5, 1000));
+		journal.append(new PraiseVote(2, 8, "client2", 9, 2000));
+		journal.checkpoint(1);
+		journal.append(new PraiseVote(3, 7, "", 3, 3000));
+		journal.close();
+
+		journal = openJournal(replayed);
+		assertEquals(2, replayed.size());
+		assertEquals(2, replayed.get(0).getSequence());
+		assertEquals(8, replayed.get(0).getPhotoId());
+		assertEquals("client2", replayed.get(0).getClientId());
+		assertEquals(9, replayed.get(0).getValue());
+		assertEquals(2000, replayed.get(0).getTime());
+		assertEquals(3, replayed.get(1).getSequence());
+		assertEquals(3, journal.getLastSequence());
+		journal.close();
+	}
+
+	@Test
+	public void testTornTailIsCutOff() throws Exception {
+		List<PraiseVote> replayed = new ArrayList<PraiseVote>();
+		VoteJournal journal = openJournal(replayed);
+		journal.append(new PraiseVote(1, 7, "client1", 5, 1000));
+		long validSize = journal.getSize();
+		journal.append(new PraiseVote(2, 7, "client2", 5, 1000));
+		long size = journal.getSize();
+		journal.close();
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(size - 3);
+		}
+
+		journal = openJournal(replayed);
+		assertEquals(1, replayed.size());
+		assertEquals(1, replayed.get(0).getSequence());
+		assertEquals(validSize, journal.getSize());
+
+		journal.append(new PraiseVote(2, 7, "client2", 5, 1000));
+		journal.close();
+
+		replayed.clear();
+		openJournal(replayed).close();
+		assertEquals(2, replayed.size());
+	}
+
+	@Test
+	public void testJournalIsCompactedWhenAllVotesAreApplied() throws Exception {
+		List<PraiseVote> replayed = new ArrayList<PraiseVote>();
+		VoteJournal journal = openJournal(replayed);
+		for (int i = 1; i <= 10; i++) {
+			journal.append(new PraiseVote(i, i, "client", 5, 1000));
+		}
+		assertTrue(journal.getSize() >= 200);
+
+		journal.checkpoint(9);
+		assertTrue(journal.getSize() >= 200);
+
+		journal.checkpoint(10);
+		assertTrue(journal.getSize() < 200);
+		assertEquals(journal.getSize(), file.length());
+		assertFalse(new File(file.getPath() + VoteJournal.TEMP_FILE_SUFFIX).exists());
+
+		journal.append(new PraiseVote(11, 11, "client", 5, 1000));
+		journal.close();
+
+		journal = openJournal(replayed);
+		assertEquals(1, replayed.size());
+		assertEquals(11, replayed.get(0).getSequence());
+		assertEquals(11, journal.getLastSequence());
+		journal.close();
+	}
+
+	@Test
+	public void testCompactedJournalHoldsIdAndCheckpointOnly() throws Exception {
+		List<PraiseVote> replayed = new ArrayList<PraiseVote>();
+		VoteJournal journal = openJournal(replayed);
+		for (int i = 1; i <= 10; i++) {
+			journal.append(new PraiseVote(i, i, "client", 5, 1000));
+		}
+		journal.checkpoint(10);
+		journal.close();
+
+		// an id record and a checkpoint record, each of type, sequence number, and checksum
+		assertEquals(2 * (1 + 8 + VoteJournal.CHECKSUM_SIZE), file.length());
+
+		journal = openJournal(replayed);
+		assertTrue(replayed.isEmpty());
+		assertEquals(10, journal.getLastSequence());
+		journal.close();
+	}
+
+	@Test
+	public void testIdSurvivesReopenAndCompaction() throws Exception {
+		List<PraiseVote> replayed = new ArrayList<PraiseVote>();
+		VoteJournal journal = openJournal(replayed);
+		String id = journal.getId();
+		for (int i = 1; i <= 10; i++) {
+			journal.append(new PraiseVote(i, i, "client", 5, 1000));
+		}
+		journal.checkpoint(10);
+		journal.close();
+
+		journal = openJournal(replayed);
+		assertEquals(id, journal.getId());
+		journal.close();
+
+		assertTrue(file.delete());
+		journal = openJournal(replayed);
+		assertNotEquals(id, journal.getId());
+		journal.close();
+	}
+
+}
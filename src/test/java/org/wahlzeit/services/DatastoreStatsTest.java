@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.wahlzeit.services;
+
+import com.google.apphosting.api.ApiProxy;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for {@link DatastoreStats} and the {@link DatastoreAccountingDelegate} that feeds it.
+ */
+public class DatastoreStatsTest {
+
+	@After
+	public void tearDown() {
+		DatastoreStats.end();
+	}
+
+	@Test
+	public void testRecordCall() {
+		DatastoreStats stats = new DatastoreStats("/showPhoto.html");
+		stats.recordCall("Get", new byte[]{1, 2});
+		stats.recordCall("RunQuery", new byte[]{3});
+		stats.recordCall("Next", new byte[]{3});
+		stats.recordCall("Put", new byte[10]);
+		stats.recordCall("Delete", new byte[4]);
+		stats.recordCall("BeginTransaction", null);
+		stats.recordResponse(new byte[100]);
+
+		assertEquals(1, stats.getNoLoads());
+		assertEquals(2, stats.getNoQueries());
+		assertEquals(1, stats.getNoSaves());
+		assertEquals(1, stats.getNoDeletes());
+		assertEquals(1, stats.getNoOtherCalls());
+		assertEquals(6, stats.getNoCalls());
+		assertEquals(118, stats.getNoBytes());
+		assertEquals(0, stats.getNoRepeatedCalls());
+	}
+
+	@Test
+	public void testRepeatedCalls() {
+		DatastoreStats stats = new DatastoreStats("/showPhoto.html");
+		stats.recordCall("Get", new byte[]{1, 2});
+		stats.recordCall("Get", new byte[]{1, 3});
+		stats.recordCall("Get", new byte[]{1, 2});
+		stats.recordCall("RunQuery", new byte[]{1, 2});
+		stats.recordCall("RunQuery", new byte[]{1, 2});
+		// continuations and writes are expected to repeat
+		stats.recordCall("Next", new byte[]{5});
+		stats.recordCall("Next", new byte[]{5});
+		stats.recordCall("Put", new byte[]{6});
+		stats.recordCall("Put", new byte[]{6});
+
+		assertEquals(2, stats.getNoRepeatedCalls());
+	}
+
+	@Test
+	public void testCurrentStats() {
+		assertNull(DatastoreStats.getCurrent());
+		DatastoreStats.recordEntities(3);
+
+		DatastoreStats stats = DatastoreStats.begin("/showPhoto.html");
+		assertSame(stats, DatastoreStats.getCurrent());
+		DatastoreStats.recordEntities(3);
+		DatastoreStats.recordEntities(2);
+		assertEquals(5, stats.getNoEntities());
+
+		DatastoreStats.end();
+		assertNull(DatastoreStats.getCurrent());
+	}
+
+	@Test
+	public void testAdd() {
+		DatastoreStats total = new DatastoreStats("MainServlet.showPhoto");
+		for (int i = 0; i < 3; i++) {
+			DatastoreStats stats = new DatastoreStats("/showPhoto.html");
+			stats.recordCall("Get", new byte[]{1});
+			stats.recordCall("Get", new byte[]{1});
+			total.add(stats);
+		}
+
+		assertEquals(3, total.getNoRequests());
+		assertEquals(6, total.getNoLoads());
+		assertEquals(3, total.getNoRepeatedCalls());
+		assertEquals("loads=6; queries=0; saves=0; deletes=0; other=0; entities=0; bytes=6; repeated=3",
+				total.asHeaderValue());
+	}
+
+	@Test
+	public void testDelegate() throws Exception {
+		DatastoreAccountingDelegate delegate = new DatastoreAccountingDelegate(new FakeDelegate());
+
+		delegate.makeSyncCall(null, DatastoreStats.DATASTORE_PACKAGE, "Get", new byte[3]);
+
+		DatastoreStats stats = DatastoreStats.begin("/showPhoto.html");
+		delegate.makeSyncCall(null, DatastoreStats.DATASTORE_PACKAGE, "Get", new byte[3]);
+		delegate.makeSyncCall(null, "memcache", "Get", new byte[3]);
+		Future<byte[]> future =
+				delegate.makeAsyncCall(null, DatastoreStats.DATASTORE_PACKAGE, "Put", new byte[5], null);
+		assertEquals(2, stats.getNoCalls());
+		assertEquals(3 + FakeDelegate.RESPONSE_SIZE + 5, stats.getNoBytes());
+
+		future.get();
+		future.get();
+		assertEquals(3 + FakeDelegate.RESPONSE_SIZE + 5 + FakeDelegate.RESPONSE_SIZE, stats.getNoBytes());
+	}
+
+	/**
+	 *
+	 */
+	protected static class FakeDelegate implements ApiProxy.Delegate<ApiProxy.Environment> {
+
+		protected static final int RESPONSE_SIZE = 7;
+
+		@Override
+		public byte[] makeSyncCall(ApiProxy.Environment environment, String packageName, String methodName,
+								   byte[] request) {
+			return new byte[RESPONSE_SIZE];
+		}
+
+		@Override
+		public Future<byte[]> makeAsyncCall(ApiProxy.Environment environment, String packageName, String methodName,
+											byte[] request, ApiProxy.ApiConfig apiConfig) {
+			return CompletableFuture.completedFuture(new byte[RESPONSE_SIZE]);
+		}
+
+		@Override
+		public void log(ApiProxy.Environment environment, ApiProxy.LogRecord record) {
+		}
+
+		@Override
+		public void flushLogs(ApiProxy.Environment environment) {
+		}
+
+		@Override
+		public List<Thread> getRequestThreads(ApiProxy.Environment environment) {
+			return Collections.emptyList();
+		}
+	}
+
+}
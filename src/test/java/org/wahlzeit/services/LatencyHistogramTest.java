@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.wahlzeit.services;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest {
+
+	@Test
+	public void testBuckets() {
+		int lastIndex = -1;
+		for (long value = 0; value < 100000; value++) {
+			int index = LatencyHistogram.getBucketIndex(value);
+			assertTrue(index == lastIndex || index == lastIndex + 1);
+			assertTrue(value <= LatencyHistogram.getBucketUpperBound(index));
+			if (index > 0) {
+				assertTrue(value > LatencyHistogram.getBucketUpperBound(index - 1));
+			}
+			lastIndex = index;
+		}
+
+		assertEquals(LatencyHistogram.NO_BUCKETS - 1, LatencyHistogram.getBucketIndex(Long.MAX_VALUE));
+		assertEquals(0, LatencyHistogram.getBucketIndex(-5));
+	}
+
+	@Test
+	public void testEmptyHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getPercentileMicros(50.0));
+		assertEquals(0.0, histogram.getMeanMicros(), 0.0);
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long micros = 1; micros <= 10000; micros++) {
+			histogram.recordMicros(micros);
+		}
+
+		assertEquals(10000, histogram.getCount());
+		assertEquals(10000, histogram.getMaxMicros());
+		assertEquals(5000.5, histogram.getMeanMicros(), 0.001);
+		assertEquals(5000, histogram.getPercentileMicros(50.0), 5000 / 16);
+		assertEquals(9900, histogram.getPercentileMicros(99.0), 9900 / 16);
+		assertEquals(10000, histogram.getPercentileMicros(100.0));
+		assertEquals(1, histogram.getPercentileMicros(0.0));
+	}
+
+	@Test
+	public void testRecordNanos() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		Random random = new Random(42);
+		for (int i = 0; i < 1000; i++) {
+			histogram.recordNanos(1000000 + random.nextInt(1000));
+		}
+		histogram.recordNanos(250000000);
+
+		assertEquals(1001, histogram.getCount());
+		assertEquals(250000, histogram.getMaxMicros());
+		assertEquals(1000, histogram.getPercentileMicros(50.0), 1000 / 16);
+		assertEquals(250000, histogram.getPercentileMicros(100.0));
+	}
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.wahlzeit.services;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for the sampling and rate limiting of {@link LogSite}.
+ */
+public class LogSiteTest {
+
+	@Test
+	public void testUnlimitedSite() {
+		LogSite site = new LogSite("unlimited", LogSite.DEFAULT_SAMPLE_RATE, LogSite.NO_MAX_PER_SECOND);
+		for (int i = 0; i < 100; i++) {
+			assertTrue(site.tryAcquire());
+		}
+		assertEquals(100, site.getNoWrittenMessages());
+		assertEquals(0, site.getNoSuppressedMessages());
+		assertEquals(0, site.takeSuppressedMessages());
+	}
+
+	@Test
+	public void testSampling() {
+		LogSite site = new LogSite("sampled", 4, LogSite.NO_MAX_PER_SECOND);
+		int noWritten = 0;
+		for (int i = 0; i < 20; i++) {
+			if (site.tryAcquire()) {
+				assertEquals(0, i % 4);
+				noWritten++;
+			}
+		}
+		assertEquals(5, noWritten);
+		assertEquals(5, site.getNoWrittenMessages());
+		assertEquals(15, site.getNoSuppressedMessages());
+	}
+
+	@Test
+	public void testRateLimit() {
+		final long[] second = {100};
+		LogSite site = new LogSite("limited", LogSite.DEFAULT_SAMPLE_RATE, 3) {
+			@Override
+			protected long getCurrentSecond() {
+				return second[0];
+			}
+		};
+
+		for (int i = 0; i < 10; i++) {
+			assertEquals(i < 3, site.tryAcquire());
+		}
+		assertEquals(7, site.takeSuppressedMessages());
+		assertEquals(0, site.takeSuppressedMessages());
+
+		second[0]++;
+		assertTrue(site.tryAcquire());
+		assertEquals(4, site.getNoWrittenMessages());
+		assertEquals(7, site.getNoSuppressedMessages());
+	}
+
+	@Test
+	public void testGetSite() {
+		LogSite site = LogSite.getSite(LogSiteTest.class.getName() + ".site");
+		assertSame(site, LogSite.getSite(LogSiteTest.class.getName() + ".site"));
+		assertTrue(LogSite.getSites().contains(site));
+		assertEquals(LogSite.DEFAULT_SAMPLE_RATE, site.getSampleRate());
+		assertEquals(LogSite.NO_MAX_PER_SECOND, site.getMaxPerSecond());
+	}
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.wahlzeit.services;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for {@link MetricsRegistry}.
+ */
+public class MetricsRegistryTest {
+
+	@Test
+	public void testGetHistogram() {
+		MetricsRegistry registry = new MetricsRegistry();
+		LatencyHistogram histogram = registry.getHistogram("MainServlet.showPhoto.render");
+		assertSame(histogram, registry.getHistogram("MainServlet.showPhoto.render"));
+		assertNotSame(histogram, registry.getHistogram("MainServlet.showPhoto.redirect"));
+	}
+
+	@Test
+	public void testRecordRequest() {
+		MetricsRegistry registry = new MetricsRegistry();
+		long startNanos = System.nanoTime() - 2000000;
+		registry.recordRequest("MainServlet", "showPhoto", MetricsRegistry.RENDER, startNanos);
+		registry.recordRequest("MainServlet", "showPhoto", MetricsRegistry.RENDER, startNanos);
+		registry.recordRequest("PersistPhotoAgent", null, MetricsRegistry.ERROR, startNanos);
+
+		Map<String, LatencyHistogram> histograms = registry.getHistograms();
+		assertEquals(2, histograms.size());
+		assertEquals(2, histograms.get("MainServlet.showPhoto.render").getCount());
+		assertEquals(1, histograms.get("PersistPhotoAgent.error").getCount());
+		assertTrue(histograms.get("PersistPhotoAgent.error").getMaxMicros() >= 2000);
+		assertEquals("MainServlet.showPhoto.render", histograms.keySet().iterator().next());
+		assertTrue(registry.getUptimeSeconds() > 0);
+	}
+
+	@Test
+	public void testRecordDatastoreStats() {
+		MetricsRegistry registry = new MetricsRegistry();
+		try {
+			DatastoreStats stats = DatastoreStats.begin("/showPhoto.html");
+			stats.recordCall("Get", new byte[]{1});
+			registry.recordRequest("MainServlet", "showPhoto", MetricsRegistry.RENDER, System.nanoTime());
+			registry.recordRequest("MainServlet", "showPhoto", MetricsRegistry.REDIRECT, System.nanoTime());
+		} finally {
+			DatastoreStats.end();
+		}
+		registry.recordRequest("MainServlet", "showPhoto", MetricsRegistry.RENDER, System.nanoTime());
+
+		DatastoreStats total = registry.getAllDatastoreStats().get("MainServlet.showPhoto");
+		assertEquals(1, registry.getAllDatastoreStats().size());
+		assertEquals(2, total.getNoRequests());
+		assertEquals(2, total.getNoLoads());
+	}
+
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.services;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.junit.rules.TestRule;
+import org.wahlzeit.model.Tag;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for the batch operations of the {@link ObjectManager} class.
+ */
+public class ObjectManagerTest {
+
+	@Rule
+	public TestRule chain = RuleChain.
+			outerRule(new LocalDatastoreServiceTestConfigProvider()).
+			around(new RegisteredOfyEnvironmentProvider());
+
+	private Closeable ofyCloseable;
+	private TestObjectManager objectManager;
+
+	@Before
+	public void setup() {
+		ofyCloseable = ObjectifyService.begin();
+		objectManager = new TestObjectManager();
+	}
+
+	@After
+	public void tearDown() {
+		ofyCloseable.close();
+	}
+
+	private List<Tag> createTags(int noTags, String photoId) {
+		List<Tag> result = new ArrayList<Tag>();
+		for (int i = 0; i < noTags; i++) {
+			result.add(new Tag("tag" + i, photoId));
+		}
+		return result;
+	}
+
+	private List<Tag> readAllTags() {
+		List<Tag> result = new ArrayList<Tag>();
+		objectManager.readObjects(result, Tag.class);
+		return result;
+	}
+
+	@Test
+	public void testPartitionSplitsAtMaxBatchSize() {
+		List<Integer> elements = new ArrayList<Integer>();
+		for (int i = 0; i < 2 * ObjectManager.MAX_BATCH_SIZE + 1; i++) {
+			elements.add(i);
+		}
+
+		List<List<Integer>> batches = ObjectManager.partition(elements);
+
+		assertEquals(3, batches.size());
+		assertEquals(ObjectManager.MAX_BATCH_SIZE, batches.get(0).size());
+		assertEquals(ObjectManager.MAX_BATCH_SIZE, batches.get(1).size());
+		assertEquals(Collections.singletonList(2 * ObjectManager.MAX_BATCH_SIZE), batches.get(2));
+		assertEquals(Integer.valueOf(ObjectManager.MAX_BATCH_SIZE), batches.get(1).get(0));
+	}
+
+	@Test
+	public void testPartitionOfFullAndEmptyCollections() {
+		List<Integer> elements = new ArrayList<Integer>();
+		for (int i = 0; i < ObjectManager.MAX_BATCH_SIZE; i++) {
+			elements.add(i);
+		}
+
+		assertEquals(1, ObjectManager.partition(elements).size());
+		assertTrue(ObjectManager.partition(Collections.<Integer>emptyList()).isEmpty());
+	}
+
+	@Test
+	public void testWriteObjectsWritesInBatches() {
+		List<Tag> tags = createTags(ObjectManager.MAX_BATCH_SIZE + 1, "x1");
+
+		objectManager.writeObjects(tags);
+
+		assertEquals(Arrays.asList(ObjectManager.MAX_BATCH_SIZE, 1), objectManager.dependentBatchSizes);
+		assertEquals(0, objectManager.noCleanDependents);
+		for (Tag tag : tags) {
+			assertFalse(tag.isDirty());
+		}
+		assertEquals(ObjectManager.MAX_BATCH_SIZE + 1, readAllTags().size());
+	}
+
+	@Test
+	public void testWriteObjectsSkipsCleanObjects() {
+		List<Tag> tags = createTags(3, "x1");
+		tags.get(1).resetWriteCount();
+
+		objectManager.writeObjects(tags);
+
+		assertEquals(Collections.singletonList(2), objectManager.dependentBatchSizes);
+		assertEquals(2, readAllTags().size());
+	}
+
+	@Test
+	public void testWriteObjectsWithoutDirtyObjectsDoesNothing() {
+		List<Tag> tags = createTags(2, "x1");
+		for (Tag tag : tags) {
+			tag.resetWriteCount();
+		}
+
+		objectManager.writeObjects(tags);
+
+		assertTrue(objectManager.dependentBatchSizes.isEmpty());
+		assertTrue(readAllTags().isEmpty());
+	}
+
+	@Test
+	public void testReadObjectsByIds() {
+		List<Tag> tags = createTags(3, "x1");
+		objectManager.writeObjects(tags);
+
+		List<Long> ids = new ArrayList<Long>();
+		for (Tag tag : tags) {
+			ids.add(Key.create(tag).getId());
+		}
+		ids.add(Long.MAX_VALUE);
+
+		Map<Long, Tag> result = objectManager.readObjectsByIds(Tag.class, ObjectManager.applicationRootKey, ids);
+
+		assertEquals(3, result.size());
+		assertEquals("tag2", result.get(ids.get(2)).getText());
+		assertFalse(result.containsKey(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void testDeleteObjectsInBatches() {
+		List<Tag> tags = createTags(ObjectManager.MAX_BATCH_SIZE + 1, "x1");
+		objectManager.writeObjects(tags);
+
+		objectManager.deleteObjects(tags);
+
+		assertTrue(readAllTags().isEmpty());
+	}
+
+	@Test
+	public void testDeleteObjectsByProperty() {
+		objectManager.writeObjects(createTags(ObjectManager.MAX_BATCH_SIZE + 1, "x1"));
+		objectManager.writeObjects(createTags(2, "x2"));
+
+		objectManager.deleteObjects(Tag.class, Tag.PHOTO_ID, "x1");
+
+		List<Tag> remainingTags = readAllTags();
+		assertEquals(2, remainingTags.size());
+		assertEquals("x2", remainingTags.get(0).getPhotoId());
+	}
+
+	/**
+	 * Records the batches whose dependents are updated, and whether their objects were still dirty at that time.
+	 */
+	private static class TestObjectManager extends ObjectManager {
+
+		private final List<Integer> dependentBatchSizes = new ArrayList<Integer>();
+		private int noCleanDependents = 0;
+
+		@Override
+		protected void updateDependents(Collection<? extends Persistent> objects) {
+			dependentBatchSizes.add(objects.size());
+			for (Persistent object : objects) {
+				if (!object.isDirty()) {
+					noCleanDependents++;
+				}
+			}
+		}
+	}
+
+}
@@ -26,8 +26,16 @@ import org.wahlzeit.services.mailing.EmailTestSuite;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
+		DatastoreStatsTest.class,
 		EmailAddressTest.class,
+		LatencyHistogramTest.class,
 		LogBuilderTest.class,
+		LogSiteTest.class,
+		MetricsRegistryTest.class,
+		ObjectManagerTest.class,
+		StructuredLogTest.class,
+		UnitOfWorkTest.class,
+		WriteBehindQueueTest.class,
 
 		EmailTestSuite.class,
 })
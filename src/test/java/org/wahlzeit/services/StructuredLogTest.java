@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.wahlzeit.services;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for {@link StructuredLog} and {@link LogEntry}, including an allocation benchmark of disabled log
+ * statements like those on the PhotoFilter, ImageStorage and MainServlet paths against the LogBuilder.
+ */
+public class StructuredLogTest {
+
+	private static final Logger benchmarkLog = Logger.getLogger(StructuredLogTest.class.getName());
+
+	private static final int NO_ROUNDS = 100000;
+
+	private Logger logger;
+	private StructuredLog log;
+	private List<LogRecord> records;
+	private Handler handler;
+	private Session session;
+
+	@Before
+	public void setUp() {
+		session = SessionManager.getThreadLocalSession();
+		SessionManager.dropThreadLocalSession();
+
+		records = new ArrayList<LogRecord>();
+		handler = new Handler() {
+			@Override
+			public void publish(LogRecord record) {
+				records.add(record);
+			}
+
+			@Override
+			public void flush() {
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		logger = Logger.getLogger(StructuredLogTest.class.getName() + ".subject");
+		logger.setUseParentHandlers(false);
+		logger.addHandler(handler);
+		logger.setLevel(Level.INFO);
+		log = new StructuredLog(logger);
+	}
+
+	@After
+	public void tearDown() {
+		logger.removeHandler(handler);
+		SessionManager.setThreadLocalSession(session);
+	}
+
+	@Test
+	public void testDisabledEntry() {
+		LogEntry entry = log.config();
+		assertSame(LogEntry.DISABLED, entry);
+		assertFalse(entry.isEnabled());
+
+		final boolean[] isCalled = {false};
+		entry.addParameter("value", new Supplier<String>() {
+			@Override
+			public String get() {
+				isCalled[0] = true;
+				return "value";
+			}
+		}).addAction("action").log();
+
+		assertFalse(isCalled[0]);
+		assertTrue(records.isEmpty());
+	}
+
+	@Test
+	public void testMessageFormat() {
+		log.info().addAction("write image").addParameter("photo id", "x1").addParameter("size", 3)
+				.addParameter("count", 5L).addParameter("visible", true).addMessage("done").log();
+
+		String expected = LogBuilder.createSystemMessage().addAction("write image").addParameter("photo id", "x1")
+				.addParameter("size", 3).addParameter("count", 5L).addParameter("visible", true)
+				.addMessage("done").toString();
+		assertEquals(1, records.size());
+		assertEquals(expected, records.get(0).getMessage());
+		assertEquals(Level.INFO, records.get(0).getLevel());
+
+		log.userInfo().addParameter("requested URI", "/index.html").log();
+		expected = LogBuilder.createUserMessage().addParameter("requested URI", "/index.html").toString();
+		assertEquals(expected, records.get(1).getMessage());
+	}
+
+	@Test
+	public void testException() {
+		Exception exception = new IllegalStateException("sorry");
+		log.warning().addException("because I can", exception).log();
+
+		LogRecord record = records.get(0);
+		assertSame(exception, record.getThrown());
+		assertTrue(record.getMessage().endsWith(LogBuilder.EXCEPTION_REASON + "=because I can"));
+		assertFalse(record.getMessage().contains(LogBuilder.STACKTRACE));
+	}
+
+	@Test
+	public void testEntryIsReused() {
+		LogEntry first = log.info();
+		first.addParameter("a", 1).log();
+		LogEntry second = log.info();
+		assertSame(first, second);
+
+		// an entry created while the pooled one is in use must not share its buffer
+		LogEntry nested = log.info();
+		assertNotSame(second, nested);
+		nested.addParameter("b", 2).log();
+		second.addParameter("c", 3).log();
+
+		assertTrue(records.get(1).getMessage().endsWith("b=2"));
+		assertTrue(records.get(2).getMessage().endsWith("c=3"));
+		assertFalse(records.get(2).getMessage().contains("a=1"));
+	}
+
+	@Test
+	public void testSuppressedMessagesAreSummarized() {
+		LogSite site = new LogSite("sampled", 3, LogSite.NO_MAX_PER_SECOND);
+		for (int i = 0; i < 7; i++) {
+			log.info(site).addParameter("i", i).log();
+		}
+
+		assertEquals(3, records.size());
+		assertTrue(records.get(0).getMessage().endsWith("i=0"));
+		assertTrue(records.get(1).getMessage().endsWith("i=3, " + LogEntry.SUPPRESSED_MESSAGES + "=2"));
+		assertTrue(records.get(2).getMessage().endsWith("i=6, " + LogEntry.SUPPRESSED_MESSAGES + "=2"));
+
+		// messages below the level are neither written nor counted
+		log.config(site).log();
+		assertEquals(7, site.getNoWrittenMessages() + site.getNoSuppressedMessages());
+	}
+
+	@Test
+	public void testDisabledStatementsDoNotAllocate() {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadBean;
+		Assume.assumeTrue(bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled());
+
+		logger.setLevel(Level.WARNING);
+		long threadId = Thread.currentThread().getId();
+		String photoId = "x1234";
+		Object image = new Object();
+
+		for (int i = 0; i < NO_ROUNDS; i++) {
+			logWithStructuredLog(photoId, image, i);
+			logWithLogBuilder(photoId, image, i);
+		}
+
+		long start = bean.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < NO_ROUNDS; i++) {
+			logWithStructuredLog(photoId, image, i);
+		}
+		long structuredBytes = bean.getThreadAllocatedBytes(threadId) - start;
+
+		start = bean.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < NO_ROUNDS; i++) {
+			logWithLogBuilder(photoId, image, i);
+		}
+		long builderBytes = bean.getThreadAllocatedBytes(threadId) - start;
+
+		benchmarkLog.info("bytes allocated per round of disabled statements: structured log " +
+				(double) structuredBytes / NO_ROUNDS + ", log builder " + (double) builderBytes / NO_ROUNDS);
+
+		assertTrue(records.isEmpty());
+		assertTrue(structuredBytes < NO_ROUNDS);
+		assertTrue(builderBytes > structuredBytes);
+	}
+
+	/**
+	 * The CONFIG statements of PhotoFilter, ImageStorage and MainServlet
+	 */
+	protected void logWithStructuredLog(String photoId, Object image, int i) {
+		log.config().addParameter("Number of filter conditions", i).log();
+		log.config().addAction("write image to storage").addParameter("image", image)
+				.addParameter("photo id", photoId).addParameter("size", i).log();
+		log.config().addParameter("Key of uploaded parameter", photoId).addParameter("value", photoId).log();
+	}
+
+	/**
+	 * The same statements as before
+	 */
+	protected void logWithLogBuilder(String photoId, Object image, int i) {
+		logger.config(LogBuilder.createSystemMessage().addParameter("Number of filter conditions", i).toString());
+		logger.config(LogBuilder.createSystemMessage().addAction("write image to storage")
+				.addParameter("image", image).addParameter("photo id", photoId).addParameter("size", i).toString());
+		logger.config(LogBuilder.createSystemMessage().addParameter("Key of uploaded parameter", photoId)
+				.addParameter("value", photoId).toString());
+	}
+
+}
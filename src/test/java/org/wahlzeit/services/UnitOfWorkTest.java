@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.services;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for the {@link UnitOfWork} class.
+ */
+public class UnitOfWorkTest {
+
+	private List<String> writes;
+	private TestManager ownerManager;
+	private TestManager objectManager;
+
+	@Before
+	public void setup() {
+		writes = new ArrayList<String>();
+		ownerManager = new TestManager("owners", null);
+		objectManager = new TestManager("objects", ownerManager);
+	}
+
+	@After
+	public void tearDown() {
+		UnitOfWork.end();
+	}
+
+	private TestObject modify(TestObject object) {
+		object.incWriteCount();
+		return object;
+	}
+
+	@Test
+	public void testWritesOutsideOfUnitOfWorkAreImmediate() {
+		objectManager.writeObject(modify(new TestObject("a", null)));
+
+		assertEquals(1, writes.size());
+		assertEquals("objects:[a]", writes.get(0));
+	}
+
+	@Test
+	public void testWritesAreDeferredAndCoalesced() {
+		UnitOfWork unitOfWork = UnitOfWork.begin();
+		TestObject a = new TestObject("a", null);
+		TestObject b = new TestObject("b", null);
+		objectManager.writeObject(modify(a));
+		objectManager.writeObject(modify(b));
+		objectManager.writeObject(modify(a));
+
+		assertTrue(writes.isEmpty());
+		assertEquals(2, unitOfWork.getNoEnlistedObjects());
+		assertEquals(1, unitOfWork.getNoCoalescedEnlistments());
+
+		UnitOfWork.end();
+
+		assertEquals(1, writes.size());
+		assertEquals("objects:[a, b]", writes.get(0));
+		assertFalse(a.isDirty());
+		assertNull(UnitOfWork.getCurrent());
+	}
+
+	@Test
+	public void testDependentsAreWrittenOnceAndAfterTheirObjects() {
+		UnitOfWork unitOfWork = UnitOfWork.begin();
+		TestObject owner = new TestObject("owner", null);
+		ownerManager.writeObject(modify(owner));
+		objectManager.writeObject(modify(new TestObject("a", owner)));
+		objectManager.writeObject(modify(new TestObject("b", owner)));
+
+		UnitOfWork.end();
+
+		// the owner is saved once, with the first batch; the objects find it clean
+		assertEquals(2, writes.size());
+		assertEquals("owners:[owner]", writes.get(0));
+		assertEquals("objects:[a, b]", writes.get(1));
+		assertEquals(1, unitOfWork.getNoRounds());
+	}
+
+	@Test
+	public void testDependentsModifiedByWriteAreWrittenInNextRound() {
+		UnitOfWork unitOfWork = UnitOfWork.begin();
+		TestObject owner = modify(new TestObject("owner", null));
+		objectManager.writeObject(modify(new TestObject("a", owner)));
+		objectManager.writeObject(modify(new TestObject("b", owner)));
+
+		UnitOfWork.end();
+
+		assertEquals(2, writes.size());
+		assertEquals("objects:[a, b]", writes.get(0));
+		assertEquals("owners:[owner]", writes.get(1));
+		assertEquals(2, unitOfWork.getNoRounds());
+		assertEquals(1, unitOfWork.getNoCoalescedEnlistments());
+	}
+
+	@Test
+	public void testNestedUnitOfWorkIsNotStarted() {
+		UnitOfWork unitOfWork = UnitOfWork.begin();
+		assertNull(UnitOfWork.begin());
+		assertSame(unitOfWork, UnitOfWork.getCurrent());
+	}
+
+	@Test
+	public void testForgottenObjectsAreNotWritten() {
+		UnitOfWork unitOfWork = UnitOfWork.begin();
+		TestObject a = modify(new TestObject("a", null));
+		objectManager.writeObject(a);
+		unitOfWork.forget(a);
+
+		UnitOfWork.end();
+
+		assertTrue(writes.isEmpty());
+	}
+
+	@Test
+	public void testFailedBatchFailsCommitAfterOtherBatches() {
+		UnitOfWork.begin();
+		ownerManager.isFailing = true;
+		TestObject owner = modify(new TestObject("owner", null));
+		ownerManager.writeObject(owner);
+		TestObject a = modify(new TestObject("a", null));
+		objectManager.writeObject(a);
+
+		try {
+			UnitOfWork.end();
+			fail("commit should fail");
+		} catch (IllegalStateException ex) {
+			// expected
+		}
+
+		assertEquals(1, writes.size());
+		assertEquals("objects:[a]", writes.get(0));
+		assertTrue(owner.isDirty());
+		assertNull(UnitOfWork.getCurrent());
+	}
+
+	@Test
+	public void testCommitBeforeEndLeavesNothingForEnd() {
+		UnitOfWork unitOfWork = UnitOfWork.begin();
+		objectManager.writeObject(modify(new TestObject("a", null)));
+		unitOfWork.commit();
+
+		assertEquals(1, writes.size());
+		assertEquals(0, unitOfWork.getNoEnlistedObjects());
+
+		objectManager.writeObject(modify(new TestObject("b", null)));
+		assertEquals(1, unitOfWork.getNoEnlistedObjects());
+		UnitOfWork.end();
+		assertEquals("objects:[b]", writes.get(1));
+	}
+
+	/**
+	 * Records its batch writes instead of saving them; the dependent of an object is its owner, which is written like
+	 * the PhotoManager writes the owner of a photo.
+	 */
+	private class TestManager extends ObjectManager {
+
+		private final String name;
+		private final TestManager ownerManager;
+		private boolean isFailing = false;
+
+		TestManager(String name, TestManager ownerManager) {
+			this.name = name;
+			this.ownerManager = ownerManager;
+		}
+
+		@Override
+		protected void writeObjects(Collection<? extends Persistent> collection) {
+			if (isFailing) {
+				throw new IllegalStateException("datastore unavailable");
+			}
+			List<Persistent> dirtyObjects = new ArrayList<Persistent>();
+			for (Persistent object : collection) {
+				if (object.isDirty()) {
+					dirtyObjects.add(object);
+				}
+			}
+			if (!dirtyObjects.isEmpty()) {
+				writes.add(name + ":" + dirtyObjects);
+				updateDependents(dirtyObjects);
+				for (Persistent object : dirtyObjects) {
+					object.resetWriteCount();
+				}
+			}
+		}
+
+		@Override
+		protected void writeObject(Persistent object) {
+			if (UnitOfWork.getCurrent() != null) {
+				super.writeObject(object);
+			} else {
+				writeObjects(Collections.singletonList(object));
+			}
+		}
+
+		@Override
+		protected void updateDependents(Persistent object) {
+			TestObject owner = ((TestObject) object).owner;
+			if (owner != null && ownerManager != null) {
+				ownerManager.writeObject(owner);
+			}
+		}
+	}
+
+	private static class TestObject implements Persistent {
+
+		private final String name;
+		private final TestObject owner;
+		private int writeCount = 0;
+
+		TestObject(String name, TestObject owner) {
+			this.name = name;
+			this.owner = owner;
+		}
+
+		public boolean isDirty() {
+			return writeCount != 0;
+		}
+
+		public void incWriteCount() {
+			writeCount++;
+		}
+
+		public void resetWriteCount() {
+			writeCount = 0;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.services;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for the {@link WriteBehindQueue} class.
+ */
+public class WriteBehindQueueTest {
+
+	private WriteBehindQueue queue;
+	private List<List<Persistent>> writtenBatches;
+
+	@Before
+	public void setup() {
+		queue = new WriteBehindQueue(Long.MAX_VALUE, 3);
+		writtenBatches = new ArrayList<List<Persistent>>();
+		setupWriter();
+	}
+
+	private void setupWriter() {
+		queue.registerWriter(TestObject.class, new WriteBehindQueue.Writer() {
+			@Override
+			public void write(List<Persistent> objects) {
+				writtenBatches.add(new ArrayList<Persistent>(objects));
+				for (Persistent object : objects) {
+					object.resetWriteCount();
+				}
+			}
+		});
+	}
+
+	private TestObject modify(TestObject object) {
+		object.incWriteCount();
+		queue.markDirty(object);
+		return object;
+	}
+
+	@Test
+	public void testCoalescesModificationsOfSameObject() {
+		TestObject object = new TestObject();
+		for (int i = 0; i < 100; i++) {
+			modify(object);
+		}
+
+		assertEquals(1, queue.getQueueDepth());
+		assertEquals(99, queue.getNoCoalescedMarks());
+
+		queue.flush();
+
+		assertEquals(1, writtenBatches.size());
+		assertEquals(1, writtenBatches.get(0).size());
+		assertEquals(0, queue.getQueueDepth());
+		assertFalse(object.isDirty());
+	}
+
+	@Test
+	public void testFlushIfDueWaitsForBatchSize() {
+		modify(new TestObject());
+		modify(new TestObject());
+		queue.flushIfDue();
+		assertTrue(writtenBatches.isEmpty());
+
+		modify(new TestObject());
+		queue.flushIfDue();
+		assertEquals(1, writtenBatches.size());
+		assertEquals(3, queue.getNoWrittenObjects());
+	}
+
+	@Test
+	public void testOverdueQueueIsFlushedWhenAnotherObjectIsQueued() {
+		queue = new WriteBehindQueue(60 * 1000, 100);
+		setupWriter();
+		TestObject first = modify(new TestObject());
+		queue.flushIfDue();
+		assertTrue(writtenBatches.isEmpty());
+
+		queue.oldestMarkTime.set(System.currentTimeMillis() - 61 * 1000);
+		TestObject second = modify(new TestObject());
+
+		assertEquals(1, writtenBatches.size());
+		assertSame(first, writtenBatches.get(0).get(0));
+		assertEquals(1, writtenBatches.get(0).size());
+		assertTrue(second.isDirty());
+		assertEquals(1, queue.getQueueDepth());
+		assertFalse(queue.isOverdue());
+	}
+
+	@Test
+	public void testSplitsIntoBatches() {
+		for (int i = 0; i < 7; i++) {
+			modify(new TestObject());
+		}
+		queue.flush();
+
+		assertEquals(3, writtenBatches.size());
+		assertEquals(1, queue.getNoFlushes());
+	}
+
+	@Test
+	public void testIgnoresTypesWithoutWriter() {
+		queue.markDirty(new Persistent() {
+			public boolean isDirty() {
+				return true;
+			}
+
+			public void incWriteCount() {
+			}
+
+			public void resetWriteCount() {
+			}
+		});
+
+		assertEquals(0, queue.getQueueDepth());
+	}
+
+	@Test
+	public void testFailedBatchIsQueuedAgain() {
+		queue.registerWriter(TestObject.class, new WriteBehindQueue.Writer() {
+			@Override
+			public void write(List<Persistent> objects) {
+				throw new IllegalStateException("datastore unavailable");
+			}
+		});
+		modify(new TestObject());
+		queue.flush();
+
+		assertEquals(1, queue.getQueueDepth());
+	}
+
+	private static class TestObject implements Persistent {
+
+		private int writeCount = 0;
+
+		public boolean isDirty() {
+			return writeCount != 0;
+		}
+
+		public void incWriteCount() {
+			writeCount++;
+		}
+
+		public void resetWriteCount() {
+			writeCount = 0;
+		}
+	}
+
+}
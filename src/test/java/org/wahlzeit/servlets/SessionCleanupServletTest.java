@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package org.wahlzeit.servlets;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.junit.rules.TestRule;
+import org.wahlzeit.model.persistence.SessionCleanupCheckpoint;
+import org.wahlzeit.services.OfyService;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for the chunked, resumable cleanup of the {@link SessionCleanupServlet} class.
+ */
+public class SessionCleanupServletTest {
+
+	@Rule
+	public TestRule chain = RuleChain.
+			outerRule(new LocalDatastoreServiceTestConfigProvider()).
+			around(new RegisteredOfyEnvironmentProvider());
+
+	private Closeable ofyCloseable;
+	private DatastoreService datastore;
+
+	@Before
+	public void setup() {
+		ofyCloseable = ObjectifyService.begin();
+		datastore = DatastoreServiceFactory.getDatastoreService();
+	}
+
+	@After
+	public void tearDown() {
+		ofyCloseable.close();
+	}
+
+	private void createSession(String sessionId, long expires) {
+		Entity session = new Entity("_ah_SESSION", "_ahs" + sessionId);
+		session.setProperty("_expires", expires);
+		datastore.put(session);
+	}
+
+	private int countSessions() {
+		return datastore.prepare(new Query("_ah_SESSION")).countEntities(FetchOptions.Builder.withDefaults());
+	}
+
+	private SessionCleanupCheckpoint loadCheckpoint() {
+		return OfyService.ofy().load().type(SessionCleanupCheckpoint.class).id(SessionCleanupCheckpoint.DEFAULT_ID).
+				now();
+	}
+
+	@Test
+	public void testCleanupIsCompleteWithinDeadline() {
+		for (int i = 0; i < 5; i++) {
+			createSession("expired" + i, 1000);
+		}
+		createSession("active", 5000);
+
+		SessionCleanupServlet.Progress progress = new SessionCleanupServlet.Progress();
+		new TestSessionCleanupServlet(2, 100).cleanUp(2000, progress);
+
+		assertTrue(progress.isComplete);
+		assertEquals(5, progress.noSessions);
+		assertEquals(1, countSessions());
+		assertNull(loadCheckpoint());
+	}
+
+	@Test
+	public void testInterruptedCleanupIsResumedFromCheckpoint() {
+		for (int i = 0; i < 7; i++) {
+			createSession("expired" + i, 1000);
+		}
+		createSession("active", 5000);
+
+		SessionCleanupServlet.Progress progress = new SessionCleanupServlet.Progress();
+		new TestSessionCleanupServlet(2, 2).cleanUp(2000, progress);
+
+		assertFalse(progress.isComplete);
+		assertEquals(4, progress.noSessions);
+		assertEquals(4, countSessions());
+		SessionCleanupCheckpoint checkpoint = loadCheckpoint();
+		assertNotNull(checkpoint);
+		assertEquals(2000, checkpoint.getExpiresBefore());
+
+		// another instance resumes with the expiry time of the interrupted run, so the active session is kept
+		progress = new SessionCleanupServlet.Progress();
+		ofyCloseable.close();
+		ofyCloseable = ObjectifyService.begin();
+		new TestSessionCleanupServlet(2, 100).cleanUp(6000, progress);
+
+		assertTrue(progress.isComplete);
+		assertEquals(3, progress.noSessions);
+		assertEquals(1, countSessions());
+		assertNull(loadCheckpoint());
+	}
+
+	/**
+	 * Runs into the deadline after a given number of chunks
+	 */
+	private static class TestSessionCleanupServlet extends SessionCleanupServlet {
+
+		private final int noChunksBeforeDeadline;
+		private int noChunks = 0;
+
+		private TestSessionCleanupServlet(int chunkSize, int noChunksBeforeDeadline) {
+			super(chunkSize, 0);
+			this.noChunksBeforeDeadline = noChunksBeforeDeadline;
+		}
+
+		@Override
+		protected boolean isDeadlineNear() {
+			return noChunks++ >= noChunksBeforeDeadline;
+		}
+	}
+
+}
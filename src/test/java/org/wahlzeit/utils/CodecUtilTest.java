@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for the {@link CodecUtil} class.
+ */
+public class CodecUtilTest {
+
+	@Test
+	public void testVarIntRoundTrip() throws IOException {
+		int[] values = {0, 1, 127, 128, 16383, 16384, 1 << 21, Integer.MAX_VALUE};
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		for (int value : values) {
+			CodecUtil.writeVarInt(out, value);
+		}
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		for (int value : values) {
+			assertEquals(value, CodecUtil.readVarInt(in));
+		}
+		assertEquals(-1, in.read());
+	}
+
+	@Test
+	public void testVarIntSize() throws IOException {
+		assertEquals(1, encodeVarInt(127).length);
+		assertEquals(2, encodeVarInt(128).length);
+		assertEquals(5, encodeVarInt(Integer.MAX_VALUE).length);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNegativeVarInt() throws IOException {
+		encodeVarInt(-1);
+	}
+
+	@Test
+	public void testStringRoundTrip() throws IOException {
+		String[] values = {null, "", "beach", "Grüße"};
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		for (String value : values) {
+			CodecUtil.writeString(out, value);
+		}
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		for (String value : values) {
+			assertEquals(value, CodecUtil.readString(in));
+		}
+	}
+
+	private static byte[] encodeVarInt(int value) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		CodecUtil.writeVarInt(new DataOutputStream(bytes), value);
+		return bytes.toByteArray();
+	}
+
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2017
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.wahlzeit.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for the {@link IntBitmap} class.
+ */
+public class IntBitmapTest {
+
+	private static int[] toArray(TreeSet<Integer> set) {
+		int[] result = new int[set.size()];
+		int i = 0;
+		for (int value : set) {
+			result[i++] = value;
+		}
+		return result;
+	}
+
+	private static IntBitmap createBitmap(TreeSet<Integer> values) {
+		IntBitmap result = new IntBitmap();
+		for (int value : values) {
+			result.add(value);
+		}
+		return result;
+	}
+
+	private static TreeSet<Integer> createRandomSet(Random random, int size, int range) {
+		TreeSet<Integer> result = new TreeSet<Integer>();
+		while (result.size() < size) {
+			result.add(random.nextInt(range));
+		}
+		return result;
+	}
+
+	@Test
+	public void testAddRemoveContains() {
+		IntBitmap bitmap = new IntBitmap();
+		assertTrue(bitmap.isEmpty());
+
+		assertTrue(bitmap.add(3));
+		assertFalse(bitmap.add(3));
+		assertTrue(bitmap.add(70000));
+		assertTrue(bitmap.contains(3));
+		assertTrue(bitmap.contains(70000));
+		assertFalse(bitmap.contains(4));
+		assertEquals(2, bitmap.getCardinality());
+
+		assertTrue(bitmap.remove(3));
+		assertFalse(bitmap.remove(3));
+		assertFalse(bitmap.contains(3));
+		assertTrue(bitmap.remove(70000));
+		assertTrue(bitmap.isEmpty());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsNegativeValues() {
+		new IntBitmap().add(-1);
+	}
+
+	@Test
+	public void testDenseChunkSwitchesRepresentation() {
+		IntBitmap bitmap = new IntBitmap();
+		for (int i = 0; i < 10000; i++) {
+			bitmap.add(i * 2);
+		}
+		assertTrue(bitmap.containers[0] instanceof IntBitmap.BitmapContainer);
+		assertEquals(10000, bitmap.getCardinality());
+		assertTrue(bitmap.contains(19998));
+		assertFalse(bitmap.contains(19999));
+
+		for (int i = 0; i < 9000; i++) {
+			bitmap.remove(i * 2);
+		}
+		assertTrue(bitmap.containers[0] instanceof IntBitmap.ArrayContainer);
+		assertEquals(1000, bitmap.getCardinality());
+		assertTrue(bitmap.contains(18000));
+	}
+
+	@Test
+	public void testToArrayIsSorted() {
+		TreeSet<Integer> expected = createRandomSet(new Random(1), 5000, 1 << 20);
+		assertArrayEquals(toArray(expected), createBitmap(expected).toArray());
+	}
+
+	@Test
+	public void testSetOperationsMatchTreeSet() {
+		Random random = new Random(42);
+		int[] sizes = {10, 3000, 20000};
+		for (int leftSize : sizes) {
+			for (int rightSize : sizes) {
+				TreeSet<Integer> left = createRandomSet(random, leftSize, 1 << 17);
+				TreeSet<Integer> right = createRandomSet(random, rightSize, 1 << 17);
+
+				TreeSet<Integer> expected = new TreeSet<Integer>(left);
+				expected.addAll(right);
+				IntBitmap bitmap = createBitmap(left);
+				bitmap.or(createBitmap(right));
+				assertArrayEquals(toArray(expected), bitmap.toArray());
+
+				expected = new TreeSet<Integer>(left);
+				expected.retainAll(right);
+				bitmap = createBitmap(left);
+				bitmap.and(createBitmap(right));
+				assertArrayEquals(toArray(expected), bitmap.toArray());
+
+				expected = new TreeSet<Integer>(left);
+				expected.removeAll(right);
+				bitmap = createBitmap(left);
+				bitmap.andNot(createBitmap(right));
+				assertArrayEquals(toArray(expected), bitmap.toArray());
+			}
+		}
+	}
+
+	@Test
+	public void testSetOperationsDoNotModifyArgument() {
+		IntBitmap left = new IntBitmap();
+		IntBitmap right = new IntBitmap();
+		for (int i = 0; i < 6000; i++) {
+			left.add(i);
+			right.add(i + 3000);
+		}
+
+		left.or(right);
+		left.andNot(right);
+		left.and(right);
+		assertEquals(6000, right.getCardinality());
+		assertTrue(right.contains(3000));
+		assertTrue(left.isEmpty());
+	}
+
+	@Test
+	public void testSelectReturnsValueByRank() {
+		TreeSet<Integer> values = createRandomSet(new Random(3), 9000, 1 << 17);
+		IntBitmap bitmap = createBitmap(values);
+		int[] expected = toArray(values);
+		for (int rank = 0; rank < expected.length; rank += 7) {
+			assertEquals(expected[rank], bitmap.select(rank));
+		}
+		assertEquals(expected[expected.length - 1], bitmap.select(expected.length - 1));
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testSelectBeyondCardinality() {
+		IntBitmap bitmap = new IntBitmap();
+		bitmap.add(1);
+		bitmap.select(1);
+	}
+
+	@Test
+	public void testByteArrayRoundTrip() {
+		TreeSet<Integer> values = createRandomSet(new Random(7), 6000, 1 << 17);
+		values.add(1 << 20);
+		IntBitmap bitmap = createBitmap(values);
+
+		byte[] bytes = bitmap.toByteArray();
+		assertArrayEquals(toArray(values), IntBitmap.fromByteArray(bytes).toArray());
+		assertTrue(IntBitmap.fromByteArray(null).isEmpty());
+		assertTrue(IntBitmap.fromByteArray(new IntBitmap().toByteArray()).isEmpty());
+	}
+
+	@Test
+	public void testJavaSerializationRoundTrip() throws Exception {
+		IntBitmap bitmap = new IntBitmap();
+		for (int i = 0; i < 100; i++) {
+			bitmap.add(i * 1000);
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(bitmap);
+		out.close();
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		IntBitmap copy = (IntBitmap) in.readObject();
+
+		assertArrayEquals(bitmap.toArray(), copy.toArray());
+		assertTrue(copy.add(1));
+	}
+
+	@Test
+	public void testCopyIsIndependent() {
+		IntBitmap original = new IntBitmap();
+		original.add(1);
+		IntBitmap copy = new IntBitmap(original);
+		copy.add(2);
+		original.remove(1);
+
+		assertTrue(original.isEmpty());
+		assertArrayEquals(new int[] {1, 2}, copy.toArray());
+	}
+
+}
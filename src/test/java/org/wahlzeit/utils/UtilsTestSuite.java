@@ -25,6 +25,8 @@ import org.junit.runners.Suite;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
+		CodecUtilTest.class,
+		IntBitmapTest.class,
 		StringUtilTest.class,
 		VersionTest.class,
 })